@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Task handoff throughput: 16 threads submit batches of tiny tasks to a shared pool and wait for the batch completion.
+ *
+ * LIFO_SQP - LifoThreadPoolExecutorSQP.
+ * LIFO_WS - LifoThreadPoolExecutorWS.
+ * TPE - JDK ThreadPoolExecutor.
+ * FJP - JDK ForkJoinPool.
+ *
+ * @author zoly
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(16)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ThreadPoolHandoffBenchmark {
+
+  public enum PoolType {
+    LIFO_SQP, LIFO_WS, TPE, FJP
+  }
+
+  private static final int BATCH_SIZE = 100;
+
+  @Param({"LIFO_SQP", "LIFO_WS", "TPE", "FJP"})
+  private PoolType poolType;
+
+  @Param({"16"})
+  private int poolSize;
+
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    switch (poolType) {
+      case LIFO_SQP:
+        executor = new LifoThreadPoolExecutorSQP("bench", poolSize, poolSize, 60000, Integer.MAX_VALUE);
+        break;
+      case LIFO_WS:
+        executor = new LifoThreadPoolExecutorWS("bench", poolSize, poolSize, 60000, Integer.MAX_VALUE);
+        break;
+      case TPE:
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60000, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        break;
+      case FJP:
+        executor = new ForkJoinPool(poolSize);
+        break;
+      default:
+        throw new IllegalStateException("Unsupported pool type " + poolType);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Unable to shut down " + executor);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void submitBatch() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      executor.execute(latch::countDown);
+    }
+    latch.await();
+  }
+
+}
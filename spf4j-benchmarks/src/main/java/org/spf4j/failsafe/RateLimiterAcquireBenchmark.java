@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Permit acquisition throughput of a shared rate limiter, with 1, 4 and 16 acquiring threads.
+ * The rate is high enough for permits to be (almost) always available, the benchmark measures
+ * the acquisition overhead and how it scales with the number of threads.
+ *
+ * SINGLE - RateLimiter (single permit counter).
+ * STRIPED - StripedRateLimiter.
+ *
+ * @author zoly
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RateLimiterAcquireBenchmark {
+
+  public enum LimiterType {
+    SINGLE, STRIPED
+  }
+
+  private static final long PERMITS_PER_INTERVAL = 100_000_000L;
+
+  private static final Duration INTERVAL = Duration.ofMillis(10);
+
+  @Param({"SINGLE", "STRIPED"})
+  private LimiterType limiterType;
+
+  private AutoCloseable limiter;
+
+  private BooleanSupplier acquirer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    switch (limiterType) {
+      case SINGLE:
+        RateLimiter rateLimiter = new RateLimiter(PERMITS_PER_INTERVAL, INTERVAL, PERMITS_PER_INTERVAL * 10);
+        acquirer = rateLimiter::tryAcquire;
+        limiter = rateLimiter;
+        break;
+      case STRIPED:
+        StripedRateLimiter stripedLimiter
+                = new StripedRateLimiter(PERMITS_PER_INTERVAL, INTERVAL, PERMITS_PER_INTERVAL * 10);
+        acquirer = stripedLimiter::tryAcquire;
+        limiter = stripedLimiter;
+        break;
+      default:
+        throw new IllegalStateException("Unsupported limiter type " + limiterType);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    limiter.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean acquire1Thread() {
+    return acquirer.getAsBoolean();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean acquire4Threads() {
+    return acquirer.getAsBoolean();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public boolean acquire16Threads() {
+    return acquirer.getAsBoolean();
+  }
+
+}
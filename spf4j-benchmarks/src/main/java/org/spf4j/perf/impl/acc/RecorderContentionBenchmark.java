@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.spf4j.perf.CloseableMeasurementRecorder;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.impl.AccumulatorStorage;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * Recording throughput of 8 threads into a RecorderFactory scalable quantized recorder
+ * while a collector thread continuously collects the measurements, for every accumulator storage.
+ *
+ * @author zoly
+ */
+@State(Scope.Group)
+@Fork(2)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecorderContentionBenchmark {
+
+  @Param({"THREAD_LOCAL", "THREAD_CELLS", "STRIPED"})
+  private AccumulatorStorage storage;
+
+  private CloseableMeasurementRecorder recorder;
+
+  private MeasurementAccumulator accumulator;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    // sample time large enough for the recorder persister not to interfere with the collector thread.
+    recorder = RecorderFactory.createScalableQuantizedRecorder("bench-" + storage, "ns",
+            (int) TimeUnit.HOURS.toMillis(1), 10, 0, 6, 10, storage);
+    accumulator = (MeasurementAccumulator) recorder;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    recorder.close();
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(8)
+  public void record() {
+    recorder.record(ThreadLocalRandom.current().nextInt(1000000));
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(1)
+  public void collect(final Blackhole bh) {
+    bh.consume(accumulator.getThenReset());
+  }
+
+}
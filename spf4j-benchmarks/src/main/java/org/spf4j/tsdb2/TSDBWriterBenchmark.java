@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Compares the TSDBWriter row write paths: the original varargs/DataRow path (ROW encoding) and the
+ * striped, primitive columnar path. Run with -prof gc to see the allocation rates.
+ *
+ * @author zoly
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Threads(8)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TSDBWriterBenchmark {
+
+  private static final int NR_TABLES = 1000;
+
+  @Param({"ROW", "COLUMNAR"})
+  private TSDBWriter.BlockEncoding encoding;
+
+  private File file;
+
+  private TSDBWriter writer;
+
+  private long[] tableIds;
+
+  @State(Scope.Thread)
+  public static class RowState {
+
+    private final long[] data = new long[4];
+
+    private int counter;
+
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    file = File.createTempFile("bench", ".tsdb2");
+    writer = new TSDBWriter(file, 1024, "benchmark", false, encoding);
+    tableIds = new long[NR_TABLES];
+    for (int i = 0; i < NR_TABLES; i++) {
+      tableIds[i] = writer.writeTableDef(TableDef.newBuilder()
+              .setName("table" + i)
+              .setDescription("benchmark table")
+              .setSampleTime(1000)
+              .setColumns(Arrays.asList(
+                      column("count", "count"),
+                      column("total", "ms"),
+                      column("min", "ms"),
+                      column("max", "ms")))
+              .build());
+    }
+  }
+
+  private static ColumnDef column(final String name, final String uom) {
+    return ColumnDef.newBuilder().setName(name).setDescription(name).setUnitOfMeasurement(uom).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    writer.close();
+    Files.deleteIfExists(file.toPath());
+    Files.deleteIfExists(TSDBIndex.getIndexFile(file).toPath());
+  }
+
+  @Benchmark
+  public void writeDataRowVarArgs(final RowState state) throws IOException {
+    int i = state.counter++;
+    writer.writeDataRow(tableIds[i % NR_TABLES], System.currentTimeMillis(), i, i * 10L, i % 7, i % 13);
+  }
+
+  @Benchmark
+  public void writeDataRowPrimitive(final RowState state) throws IOException {
+    int i = state.counter++;
+    long[] data = state.data;
+    data[0] = i;
+    data[1] = i * 10L;
+    data[2] = i % 7;
+    data[3] = i % 13;
+    writer.writeDataRow(tableIds[i % NR_TABLES], System.currentTimeMillis(), data, 0, data.length);
+  }
+
+}
@@ -37,10 +37,12 @@ import java.io.PrintStream;
 import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -71,6 +73,29 @@ public final class Threads {
     TI_SUPP = supp;
   }
 
+  /** Thread.isVirtual, null on JVMs without virtual threads (before JDK 21). */
+  @Nullable
+  private static final MethodHandle IS_VIRTUAL;
+
+  /** Thread.ofVirtual, null on JVMs without virtual threads (before JDK 21). */
+  @Nullable
+  private static final java.lang.reflect.Method OF_VIRTUAL;
+
+  static {
+    MethodHandle isVirtual;
+    java.lang.reflect.Method ofVirtual;
+    try {
+      isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+              MethodType.methodType(boolean.class));
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+    } catch (NoSuchMethodException | IllegalAccessException ex) {
+      isVirtual = null;
+      ofVirtual = null;
+    }
+    IS_VIRTUAL = isVirtual;
+    OF_VIRTUAL = ofVirtual;
+  }
+
   interface ThreadInfoSupplier {
 
     Thread[] getThreads();
@@ -204,7 +229,61 @@ public final class Threads {
   }
 
   public static StackTraceElement[][] getStackTraces(final Thread... threads) {
-    return TI_SUPP.getStackTraces(threads);
+    StackTraceElement[][] stackTraces = TI_SUPP.getStackTraces(threads);
+    if (IS_VIRTUAL != null) {
+      // the bulk thread dump does not handle virtual threads, ask them one by one.
+      for (int i = 0; i < threads.length; i++) {
+        Thread thread = threads[i];
+        if (stackTraces[i] == null && thread != null && isVirtual(thread)) {
+          stackTraces[i] = thread.getStackTrace();
+        }
+      }
+    }
+    return stackTraces;
+  }
+
+  /**
+   * @return true if the thread is a virtual thread, always false on JVMs without virtual threads.
+   */
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  public static boolean isVirtual(final Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (boolean) IS_VIRTUAL.invokeExact(thread);
+    } catch (RuntimeException | Error ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new UncheckedExecutionException(ex);
+    }
+  }
+
+  /**
+   * @return true if the JVM supports virtual threads.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Create a factory of virtual threads.
+   * @param namePrefix the created threads will be named namePrefix + sequence number.
+   * @return the virtual thread factory, or null if the JVM does not support virtual threads.
+   */
+  @Nullable
+  public static ThreadFactory newVirtualThreadFactory(final String namePrefix) {
+    if (OF_VIRTUAL == null) {
+      return null;
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke(null);
+      Class<?> builderClass = OF_VIRTUAL.getReturnType();
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException("Unable to create virtual thread factory " + namePrefix, ex);
+    }
   }
 
   public static void dumpTo(final Appendable stream) throws IOException {
@@ -51,6 +51,7 @@ public final class LifoThreadPoolBuilder {
   private int threadPriority;
   private boolean mutable;
   private boolean jmxEnabled;
+  private boolean workStealing;
 
   private LifoThreadPoolBuilder() {
     poolName = "Lifo Pool";
@@ -64,6 +65,7 @@ public final class LifoThreadPoolBuilder {
     threadPriority = Thread.NORM_PRIORITY;
     mutable = false;
     jmxEnabled = false;
+    workStealing = false;
   }
 
   public static LifoThreadPoolBuilder newBuilder() {
@@ -125,13 +127,28 @@ public final class LifoThreadPoolBuilder {
     return this;
   }
 
+  /**
+   * Build a pool with per thread task queues and work stealing (LifoThreadPoolExecutorWS),
+   * which scales better with the number of submitting threads.
+   */
+  public LifoThreadPoolBuilder workStealing() {
+    this.workStealing = true;
+    return this;
+  }
+
   public LifoThreadPool build() {
     return buildMutable();
   }
 
   public MutableLifoThreadPool buildMutable() {
-    MutableLifoThreadPool result = new LifoThreadPoolExecutorSQP(poolName, coreSize, maxSize, maxIdleTimeMillis,
+    MutableLifoThreadPool result;
+    if (workStealing) {
+      result = new LifoThreadPoolExecutorWS(poolName, coreSize, maxSize, maxIdleTimeMillis,
+            queueSizeLimit, daemonThreads, rejectionHandler, threadPriority, spinLockCount);
+    } else {
+      result = new LifoThreadPoolExecutorSQP(poolName, coreSize, maxSize, maxIdleTimeMillis,
             queueSizeLimit, daemonThreads, rejectionHandler, threadPriority);
+    }
     if (jmxEnabled) {
       result.exportJmx();
     }
@@ -144,7 +161,7 @@ public final class LifoThreadPoolBuilder {
             + maxSize + ", maxIdleTimeMillis=" + maxIdleTimeMillis + ", queueSizeLimit=" + queueSizeLimit
             + ", daemonThreads=" + daemonThreads + ", spinLockCount=" + spinLockCount + ", rejectionHandler="
             + rejectionHandler + ", threadPriority=" + threadPriority + ", mutable=" + mutable + ", jmxEnabled="
-            + jmxEnabled + '}';
+            + jmxEnabled + ", workStealing=" + workStealing + '}';
   }
 
 }
@@ -0,0 +1,759 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.set.hash.THashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.base.Timing;
+import org.spf4j.base.UncheckedExecutionException;
+import static org.spf4j.concurrent.LifoThreadPoolExecutorSQP.CORE_MINWAIT_NANOS;
+import static org.spf4j.concurrent.RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+
+/**
+ * Work stealing variant of {@link LifoThreadPoolExecutorSQP}.
+ *
+ * The scheduling behavior is the same: a submitted task is handed to the most recently idle thread, if there is
+ * no idle thread a new thread is spawned if the pool has room to grow, and only after that the task is queued
+ * (up to queueSizeLimit, beyond which it is rejected). Running tasks can be cancelled + interrupted.
+ *
+ * Unlike LifoThreadPoolExecutorSQP, task submission and handoff do not acquire a pool wide lock:
+ * idle threads are kept in a lock free stack and are parked/un-parked individually, tasks queued by pool threads
+ * go into the submitting thread's own deque (LIFO), tasks queued by other threads go into striped submission queues
+ * (FIFO), and idle threads steal the oldest tasks from the other threads' deques. The state lock is only acquired
+ * when threads are started or terminated. This pool scales better than LifoThreadPoolExecutorSQP when
+ * many threads submit at a high rate.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+@SuppressFBWarnings({"MDM_THREAD_PRIORITIES", "MDM_WAIT_WITHOUT_TIMEOUT"})
+public final class LifoThreadPoolExecutorWS extends AbstractExecutorService implements MutableLifoThreadPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LifoThreadPoolExecutorWS.class);
+
+  private static final int SUBMISSION_STRIPES = Integer.highestOneBit(
+          Integer.getInteger("spf4j.lifoTp.submissionStripes", org.spf4j.base.Runtime.NR_PROCESSORS) * 2 - 1);
+
+  private static final int DEFAULT_IDLE_SPIN_COUNT = Integer.getInteger("spf4j.lifoTp.idleSpinCount", 100);
+
+  /** Handed to an idle thread to make it re-scan the queues. */
+  private static final Runnable WAKEUP = () -> { };
+
+  /** Set by an idle thread that is not idle anymore, to prevent handoffs to it. */
+  private static final Runnable CANCELLED = () -> { };
+
+  private final ReentrantLock stateLock;
+
+  private final Condition terminationCondition;
+
+  private final String poolName;
+
+  private final RejectedExecutionHandler rejectionHandler;
+
+  private final ConcurrentLinkedDeque<Runnable>[] submissionQueues;
+
+  /** the top of the idle thread stack. */
+  private final AtomicReference<IdleNode> idleThreads;
+
+  private final AtomicInteger threadCount;
+
+  private final AtomicInteger queuedCount;
+
+  @GuardedBy("stateLock")
+  private final Set<Worker> allThreads;
+
+  /** snapshot of allThreads, used for stealing. */
+  private volatile Worker[] workers;
+
+  private volatile boolean shutdown;
+
+  private volatile boolean stop;
+
+  private volatile int maxIdleTimeMillis;
+
+  private volatile int maxThreadCount;
+
+  private volatile int coreThreadCount;
+
+  private volatile int queueSizeLimit;
+
+  private volatile boolean daemonThreads;
+
+  private volatile int threadPriority;
+
+  private final int idleSpinCount;
+
+  @GuardedBy("stateLock")
+  private int threadCreationCount;
+
+  public LifoThreadPoolExecutorWS(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit) {
+    this(poolName, coreSize, maxSize, maxIdleTimeMillis,
+            queueSizeLimit, false, REJECT_EXCEPTION_EXEC_HANDLER, Thread.NORM_PRIORITY);
+  }
+
+  public LifoThreadPoolExecutorWS(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit, final boolean daemonThreads,
+          final RejectedExecutionHandler rejectionHandler,
+          final int threadPriority) {
+    this(poolName, coreSize, maxSize, maxIdleTimeMillis, queueSizeLimit, daemonThreads, rejectionHandler,
+            threadPriority, DEFAULT_IDLE_SPIN_COUNT);
+  }
+
+  /**
+   * @param idleSpinCount the number of times a thread that became idle yields and re-scans the queues before parking.
+   * Parking and un-parking a thread is a lot more expensive than a handoff to a running thread.
+   */
+  @SuppressWarnings("unchecked")
+  public LifoThreadPoolExecutorWS(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit, final boolean daemonThreads,
+          final RejectedExecutionHandler rejectionHandler,
+          final int threadPriority, final int idleSpinCount) {
+    if (coreSize > maxSize) {
+      throw new IllegalArgumentException("Core size must be smaller than max size " + coreSize
+              + " < " + maxSize);
+    }
+    if (coreSize < 0 || maxSize < 0 || maxIdleTimeMillis < 0 || queueSizeLimit < 0 || idleSpinCount < 0) {
+      throw new IllegalArgumentException("All numberic TP configs must be positive values: "
+              + coreSize + ", " + maxSize + ", " + maxIdleTimeMillis
+              + ", " + queueSizeLimit + ", " + idleSpinCount);
+    }
+    this.stateLock = new ReentrantLock();
+    this.terminationCondition = stateLock.newCondition();
+    this.poolName = poolName;
+    this.rejectionHandler = rejectionHandler;
+    this.submissionQueues = new ConcurrentLinkedDeque[SUBMISSION_STRIPES];
+    for (int i = 0; i < SUBMISSION_STRIPES; i++) {
+      submissionQueues[i] = new ConcurrentLinkedDeque<>();
+    }
+    this.idleThreads = new AtomicReference<>();
+    this.threadCount = new AtomicInteger();
+    this.queuedCount = new AtomicInteger();
+    this.allThreads = new THashSet<>(Math.min(maxSize, 2048));
+    this.workers = new Worker[0];
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+    this.maxThreadCount = maxSize;
+    this.coreThreadCount = coreSize;
+    this.queueSizeLimit = queueSizeLimit;
+    this.daemonThreads = daemonThreads;
+    this.threadPriority = threadPriority;
+    this.idleSpinCount = idleSpinCount;
+    for (int i = 0; i < coreSize; i++) {
+      trySpawn(null);
+    }
+  }
+
+  @Override
+  public void exportJmx() {
+    Registry.export(LifoThreadPoolExecutorWS.class.getName(), poolName, this);
+  }
+
+  @Override
+  public void unregisterJmx() {
+    Registry.unregister(LifoThreadPoolExecutorWS.class.getName(), poolName);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (shutdown) {
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    if (handOff(command) || trySpawn(command)) {
+      return;
+    }
+    ConcurrentLinkedDeque<Runnable> queue = enqueue(command);
+    if (queue == null) {
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    if (shutdown && queue.removeLastOccurrence(command)) {
+      // shutdown raced with this submission, the task might never be picked up.
+      queuedCount.decrementAndGet();
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    // make sure an idle thread will pick up the task, or that at least one thread is alive to do it.
+    if (!handOff(WAKEUP) && threadCount.get() == 0) {
+      trySpawn(null);
+    }
+  }
+
+  /**
+   * Hand off a task to the most recently idle thread.
+   * @return false if there is no idle thread.
+   */
+  private boolean handOff(final Runnable task) {
+    IdleNode node;
+    while ((node = popIdle()) != null) {
+      if (node.task.compareAndSet(null, task)) {
+        LockSupport.unpark(node.worker);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void pushIdle(final IdleNode node) {
+    IdleNode top;
+    do {
+      top = idleThreads.get();
+      node.next = top;
+    } while (!idleThreads.compareAndSet(top, node));
+  }
+
+  @Nullable
+  private IdleNode popIdle() {
+    IdleNode top;
+    do {
+      top = idleThreads.get();
+      if (top == null) {
+        return null;
+      }
+    } while (!idleThreads.compareAndSet(top, top.next));
+    return top;
+  }
+
+  private boolean trySpawn(@Nullable final Runnable firstTask) {
+    int tc;
+    do {
+      tc = threadCount.get();
+      if (tc >= maxThreadCount) {
+        return false;
+      }
+    } while (!threadCount.compareAndSet(tc, tc + 1));
+    Worker worker;
+    stateLock.lock();
+    try {
+      if (shutdown) {
+        threadCount.decrementAndGet();
+        return false;
+      }
+      worker = new Worker(poolName + '-' + (threadCreationCount++), firstTask);
+      worker.setDaemon(daemonThreads);
+      worker.setPriority(threadPriority);
+      allThreads.add(worker);
+      workers = allThreads.toArray(new Worker[allThreads.size()]);
+    } finally {
+      stateLock.unlock();
+    }
+    LOG.debug("Started thread {}", worker.getName());
+    worker.start();
+    return true;
+  }
+
+  /**
+   * @return the queue the task was added to, or null if the queue size limit has been reached.
+   */
+  @Nullable
+  private ConcurrentLinkedDeque<Runnable> enqueue(final Runnable command) {
+    int qc;
+    do {
+      qc = queuedCount.get();
+      if (qc >= queueSizeLimit) {
+        return null;
+      }
+    } while (!queuedCount.compareAndSet(qc, qc + 1));
+    Thread current = Thread.currentThread();
+    if (current instanceof Worker && ((Worker) current).getPool() == this) {
+      ConcurrentLinkedDeque<Runnable> tasks = ((Worker) current).tasks;
+      tasks.addFirst(command);
+      return tasks;
+    } else {
+      ConcurrentLinkedDeque<Runnable> queue = submissionQueues[(int) current.getId() & (SUBMISSION_STRIPES - 1)];
+      queue.addLast(command);
+      return queue;
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    stateLock.lock();
+    try {
+      if (!shutdown) {
+        shutdown = true; // reject new submissions.
+        while (handOff(WAKEUP)) {
+          // wake all idle threads, so they can terminate.
+        }
+        terminationCondition.signalAll();
+      }
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> result = new ArrayList<>();
+    stateLock.lock();
+    try {
+      stop = true;
+      for (Worker worker : allThreads) {
+        worker.interrupt(); // interrupt all running threads.
+      }
+    } finally {
+      stateLock.unlock();
+    }
+    for (ConcurrentLinkedDeque<Runnable> queue : submissionQueues) {
+      drainTo(queue, result);
+    }
+    for (Worker worker : workers) {
+      drainTo(worker.tasks, result);
+    }
+    return result;
+  }
+
+  private void drainTo(final ConcurrentLinkedDeque<Runnable> queue, final List<Runnable> to) {
+    Runnable r;
+    while ((r = queue.pollFirst()) != null) {
+      queuedCount.decrementAndGet();
+      to.add(r);
+    }
+  }
+
+  @Override
+  public boolean awaitTermination(final long time, final TimeUnit unit) throws InterruptedException {
+    long deadlinenanos = TimeSource.nanoTime() + unit.toNanos(time);
+    stateLock.lock();
+    try {
+      if (!shutdown) {
+        throw new IllegalStateException("Threadpool is not is shutdown mode " + this);
+      }
+      long timeoutNs = deadlinenanos - TimeSource.nanoTime();
+      while (!allThreads.isEmpty()) {
+        if (timeoutNs > 0) {
+          timeoutNs = terminationCondition.awaitNanos(timeoutNs);
+        } else {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @Override
+  @JmxExport
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  @JmxExport
+  public boolean isTerminated() {
+    stateLock.lock();
+    try {
+      return shutdown && allThreads.isEmpty();
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @JmxExport
+  @Override
+  public boolean isDaemonThreads() {
+    return daemonThreads;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadCount() {
+    return threadCount.get();
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxThreadCount() {
+    return maxThreadCount;
+  }
+
+  @JmxExport
+  @Override
+  public int getCoreThreadCount() {
+    return coreThreadCount;
+  }
+
+  @Override
+  public ReentrantLock getStateLock() {
+    return stateLock;
+  }
+
+  @JmxExport
+  @Override
+  public int getNrQueuedTasks() {
+    return queuedCount.get();
+  }
+
+  @JmxExport
+  @Override
+  public int getQueueSizeLimit() {
+    return queueSizeLimit;
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxIdleTimeMillis() {
+    return maxIdleTimeMillis;
+  }
+
+  @JmxExport
+  @Override
+  public String getPoolName() {
+    return poolName;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadPriority() {
+    return threadPriority;
+  }
+
+  @Override
+  @JmxExport
+  public void setDaemonThreads(final boolean daemonThreads) {
+    this.daemonThreads = daemonThreads;
+  }
+
+  @Override
+  @JmxExport
+  public void setMaxIdleTimeMillis(final int maxIdleTimeMillis) {
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+  }
+
+  @Override
+  @JmxExport
+  public void setMaxThreadCount(final int maxThreadCount) {
+    this.maxThreadCount = maxThreadCount;
+  }
+
+  @Override
+  @JmxExport
+  public void setCoreThreadCount(final int coreThreadCount) {
+    this.coreThreadCount = coreThreadCount;
+  }
+
+  @Override
+  @JmxExport
+  public void setQueueSizeLimit(final int queueSizeLimit) {
+    this.queueSizeLimit = queueSizeLimit;
+  }
+
+  @Override
+  @JmxExport
+  public void setThreadPriority(final int threadPriority) {
+    this.threadPriority = threadPriority;
+  }
+
+  /**
+   * An idle episode of a worker, a worker publishes a new node every time it becomes idle.
+   * task is null while the worker is idle, and is set either by a submitter (a task or WAKEUP),
+   * or by the worker itself (CANCELLED) when it stops being idle.
+   */
+  private static final class IdleNode {
+
+    private final Worker worker;
+
+    private final AtomicReference<Runnable> task;
+
+    private IdleNode next;
+
+    IdleNode(final Worker worker) {
+      this.worker = worker;
+      this.task = new AtomicReference<>();
+    }
+  }
+
+  @SuppressFBWarnings("NO_NOTIFY_NOT_NOTIFYALL")
+  private final class Worker extends Thread {
+
+    private final ConcurrentLinkedDeque<Runnable> tasks;
+
+    @Nullable
+    private Runnable firstTask;
+
+    private long lastRunNanos;
+
+    /** true while this thread is accounted for in threadCount. */
+    private boolean counted;
+
+    Worker(final String name, @Nullable final Runnable firstTask) {
+      super(name);
+      this.tasks = new ConcurrentLinkedDeque<>();
+      this.firstTask = firstTask;
+      this.lastRunNanos = TimeSource.nanoTime();
+      this.counted = true;
+    }
+
+    LifoThreadPoolExecutorWS getPool() {
+      return LifoThreadPoolExecutorWS.this;
+    }
+
+    @Override
+    public void run() {
+      Runnable task = firstTask;
+      firstTask = null;
+      try {
+        while (true) {
+          if (task != null) {
+            runTask(task);
+          }
+          boolean isShutdown = shutdown;
+          task = poll();
+          if (task == null) {
+            if (isShutdown) { // nothing left to do.
+              return;
+            }
+            task = idle();
+            if (!counted) { // retired.
+              return;
+            }
+          }
+        }
+      } catch (Throwable t) {
+        LOG.error("Unexpected exception", t);
+        throw t;
+      } finally {
+        terminated();
+      }
+    }
+
+    /**
+     * Park until a task is handed off to this thread, or until the max idle time is reached.
+     * @return a task to run, or null if the queues need to be scanned again, or if this thread has been retired.
+     */
+    @Nullable
+    private Runnable idle() {
+      IdleNode node = new IdleNode(this);
+      pushIdle(node);
+      // scan again, a task queued before this thread was visible as idle might not wake it up.
+      boolean isShutdown = shutdown;
+      Runnable task = poll();
+      for (int i = 0; i < idleSpinCount && task == null && !isShutdown && node.task.get() == null; i++) {
+        Thread.yield();
+        isShutdown = shutdown;
+        task = poll();
+      }
+      if (task == null && !isShutdown) {
+        long maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleTimeMillis);
+        while (node.task.get() == null && !shutdown) {
+          long timeoutNanos = lastRunNanos + maxIdleNanos - TimeSource.nanoTime();
+          if (timeoutNanos <= 0) { // Thread was idle more than it should
+            if (threadCount.get() > coreThreadCount) { // can we terminate.
+              break;
+            }
+            timeoutNanos = CORE_MINWAIT_NANOS; // this is a core thread for now.
+          }
+          LockSupport.parkNanos(this, timeoutNanos);
+          Thread.interrupted(); // an interrupt that reaches an idle thread is stale.
+        }
+      }
+      if (node.task.compareAndSet(null, CANCELLED)) {
+        if (task == null && !shutdown) {
+          tryRetire();
+        }
+        return task;
+      }
+      Runnable handed = node.task.get();
+      if (task != null) {
+        if (handed != WAKEUP) {
+          runTask(handed);
+        }
+        return task;
+      }
+      return handed == WAKEUP ? null : handed;
+    }
+
+    private void tryRetire() {
+      int tc;
+      do {
+        tc = threadCount.get();
+        if (tc <= coreThreadCount || TimeSource.nanoTime() - lastRunNanos
+                < TimeUnit.MILLISECONDS.toNanos(maxIdleTimeMillis)) {
+          return;
+        }
+      } while (!threadCount.compareAndSet(tc, tc - 1));
+      counted = false;
+      if (queuedCount.get() > 0) {
+        // a task was queued while retiring, stay around if possible to make sure it is not orphaned.
+        do {
+          tc = threadCount.get();
+          if (tc >= maxThreadCount) {
+            return;
+          }
+        } while (!threadCount.compareAndSet(tc, tc + 1));
+        counted = true;
+      }
+    }
+
+    @Nullable
+    private Runnable poll() {
+      if (stop) { // shutdownNow, queued tasks are returned to the caller.
+        return null;
+      }
+      Runnable task = tasks.pollFirst();
+      if (task == null) {
+        task = pollSubmissions();
+        if (task == null) {
+          task = steal();
+          if (task == null) {
+            return null;
+          }
+        }
+      }
+      queuedCount.decrementAndGet();
+      return task;
+    }
+
+    @Nullable
+    private Runnable pollSubmissions() {
+      int idx = (int) getId();
+      for (int i = 0; i < SUBMISSION_STRIPES; i++) {
+        Runnable task = submissionQueues[(idx + i) & (SUBMISSION_STRIPES - 1)].pollFirst();
+        if (task != null) {
+          return task;
+        }
+      }
+      return null;
+    }
+
+    @Nullable
+    private Runnable steal() {
+      Worker[] ws = workers;
+      int nrWorkers = ws.length;
+      if (nrWorkers <= 1) {
+        return null;
+      }
+      int idx = ThreadLocalRandom.current().nextInt(nrWorkers);
+      for (int i = 0; i < nrWorkers; i++) {
+        Worker victim = ws[(idx + i) % nrWorkers];
+        if (victim != this) {
+          Runnable task = victim.tasks.pollLast();
+          if (task != null) {
+            return task;
+          }
+        }
+      }
+      return null;
+    }
+
+    private void terminated() {
+      stateLock.lock();
+      try {
+        if (counted) {
+          threadCount.decrementAndGet();
+          counted = false;
+        }
+        allThreads.remove(this);
+        workers = allThreads.toArray(new Worker[allThreads.size()]);
+        terminationCondition.signalAll();
+      } finally {
+        stateLock.unlock();
+      }
+      LOG.debug("Terminating thread {}", getName());
+      Runnable task;
+      // this thread died unexpectedly, hand over the tasks it still has queued.
+      while ((task = tasks.pollLast()) != null) {
+        submissionQueues[0].addFirst(task);
+      }
+      if (queuedCount.get() > 0 && !handOff(WAKEUP) && threadCount.get() == 0) {
+        trySpawn(null);
+      }
+    }
+
+    private void runTask(final Runnable runnable) {
+      if (stop) {
+        interrupt();
+      } else {
+        Thread.interrupted(); // clear a stale interrupt, from a cancel of a previous task.
+      }
+      try {
+        runnable.run();
+      }  catch (Throwable e) {
+          // Will run the thread uncaught handlers
+          // but will continue the thread running unless a uncaught handler throws an exception
+          final Thread.UncaughtExceptionHandler uexh = this.getUncaughtExceptionHandler();
+          try {
+            uexh.uncaughtException(this, e);
+          } catch (RuntimeException ex) {
+            ex.addSuppressed(e);
+            throw new UncheckedExecutionException("Uncaught exception handler blew up: " + uexh, ex);
+          }
+      } finally {
+        lastRunNanos = TimeSource.nanoTime();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Worker{name = " + getName() + ", lastRunNanos="
+              + Timing.getCurrentTiming().fromNanoTimeToInstant(lastRunNanos)
+              + ", queued = " + tasks.size() + '}';
+    }
+
+  }
+
+  @Override
+  public String toString() {
+    return "LifoThreadPoolExecutorWS{" + "threadCount=" + threadCount + ", queuedCount=" + queuedCount
+            + ", maxIdleTimeMillis=" + maxIdleTimeMillis + ", maxThreadCount=" + maxThreadCount
+            + ", coreThreadCount=" + coreThreadCount + ", queueSizeLimit=" + queueSizeLimit
+            + ", idleSpinCount=" + idleSpinCount
+            + ", shutdown=" + shutdown + ", workers=" + Arrays.toString(workers) + ", poolName=" + poolName + '}';
+  }
+
+}
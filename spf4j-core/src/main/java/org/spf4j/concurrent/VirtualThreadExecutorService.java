@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.ExecutionContexts;
+import org.spf4j.base.Threads;
+import org.spf4j.base.TimeSource;
+import org.spf4j.perf.impl.RecorderFactory;
+import org.spf4j.perf.impl.acc.DirectStoreMultiAccumulator;
+
+/**
+ * Executor that runs every task in a new virtual thread (JDK 21+), with the concurrency bounded by a semaphore.
+ *
+ * The execution context of the submitter is propagated to the task, and the task waits for a permit at most
+ * until the deadline of this context. A task that cannot obtain a permit in time fails with a TimeoutException.
+ *
+ * On JVMs without virtual threads, daemon platform threads are used instead.
+ *
+ * When enabled, the number of queued (waiting for a permit), active and pinned tasks are recorded periodically
+ * as "executor.[name]". A task is counted as pinned when its virtual thread is blocked on a monitor,
+ * which pins the carrier thread on JDK 21.
+ *
+ * Note: no synchronized blocks are used in this implementation to not pin virtual threads.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class VirtualThreadExecutorService extends AbstractExecutorService {
+
+  private static final int DEFAULT_SAMPLE_TIME_MILLIS
+          = Integer.getInteger("spf4j.virtualThreadExecutor.sampleTimeMillis", 0);
+
+  private static final int WAITING = 0;
+
+  private static final int RUNNING = 1;
+
+  private static final int DONE = 2;
+
+  private final String name;
+
+  private final Semaphore semaphore;
+
+  private final ThreadFactory threadFactory;
+
+  private final boolean virtual;
+
+  private final Set<Worker> workers;
+
+  /** the number of submitted tasks that did not finish yet. */
+  private final AtomicInteger liveCount;
+
+  private final AtomicInteger queuedCount;
+
+  private final AtomicInteger activeCount;
+
+  private final ReentrantLock stateLock;
+
+  private final Condition terminated;
+
+  private volatile boolean shutdown;
+
+  @Nullable
+  private final MetricsRecorder metricsRecorder;
+
+  @Nullable
+  private final ScheduledFuture<?> metricsFuture;
+
+  public VirtualThreadExecutorService(final String name, final int maxConcurrency) {
+    this(name, new LocalSemaphore(maxConcurrency, false));
+  }
+
+  public VirtualThreadExecutorService(final String name, final Semaphore semaphore) {
+    this(name, semaphore, DEFAULT_SAMPLE_TIME_MILLIS);
+  }
+
+  /**
+   * @param name the executor name, used for thread names and metrics.
+   * @param semaphore the semaphore bounding the number of concurrently running tasks.
+   * @param sampleTimeMillis the metrics sampling interval, metrics are not recorded if <= 0.
+   */
+  public VirtualThreadExecutorService(final String name, final Semaphore semaphore, final int sampleTimeMillis) {
+    this.name = name;
+    this.semaphore = semaphore;
+    ThreadFactory vtFactory = Threads.newVirtualThreadFactory(name + '-');
+    if (vtFactory == null) {
+      this.threadFactory = new CustomThreadFactory(name, true);
+      this.virtual = false;
+    } else {
+      this.threadFactory = vtFactory;
+      this.virtual = true;
+    }
+    this.workers = ConcurrentHashMap.newKeySet();
+    this.liveCount = new AtomicInteger();
+    this.queuedCount = new AtomicInteger();
+    this.activeCount = new AtomicInteger();
+    this.stateLock = new ReentrantLock();
+    this.terminated = stateLock.newCondition();
+    this.shutdown = false;
+    if (sampleTimeMillis > 0) {
+      this.metricsRecorder = new MetricsRecorder();
+      this.metricsFuture = DefaultScheduler.INSTANCE.scheduleWithFixedDelay(metricsRecorder,
+              sampleTimeMillis, sampleTimeMillis, TimeUnit.MILLISECONDS);
+    } else {
+      this.metricsRecorder = null;
+      this.metricsFuture = null;
+    }
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    // increment before the shutdown check, shutdown checks the live count after setting the flag.
+    liveCount.incrementAndGet();
+    if (shutdown) {
+      taskDone();
+      throw new RejectedExecutionException("Executor " + name + " is shut down, rejecting " + command);
+    }
+    Worker worker = new Worker(command, ExecutionContexts.propagatingRunnable(command),
+            ExecutionContexts.getContextDeadlineNanos());
+    Thread thread;
+    try {
+      thread = threadFactory.newThread(worker);
+      worker.thread = thread;
+      workers.add(worker);
+      queuedCount.incrementAndGet();
+      thread.start();
+    } catch (RuntimeException | Error ex) {
+      if (worker.thread != null) {
+        workers.remove(worker);
+        queuedCount.decrementAndGet();
+      }
+      taskDone();
+      throw new RejectedExecutionException("Cannot start thread for " + command + " in " + name, ex);
+    }
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+    return new Task<>(runnable, value);
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+    return new Task<>(callable);
+  }
+
+  private void taskDone() {
+    if (liveCount.decrementAndGet() == 0 && shutdown) {
+      signalTerminated();
+    }
+  }
+
+  private void signalTerminated() {
+    stateLock.lock();
+    try {
+      terminated.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    if (metricsFuture != null && metricsFuture.cancel(false)) {
+      metricsRecorder.close();
+    }
+    if (liveCount.get() == 0) {
+      signalTerminated();
+    }
+  }
+
+  /**
+   * @return the tasks that were waiting for a permit, running tasks are interrupted.
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> notStarted = new ArrayList<>();
+    for (Worker worker : workers) {
+      if (worker.state.compareAndSet(WAITING, DONE)) {
+        notStarted.add(worker.command);
+      }
+    }
+    // interrupt only after draining, otherwise a waiting task could get the permit of an interrupted one.
+    for (Worker worker : workers) {
+      worker.thread.interrupt();
+    }
+    return notStarted;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && liveCount.get() == 0;
+  }
+
+  @Override
+  public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    stateLock.lock();
+    try {
+      while (!isTerminated()) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = terminated.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of tasks waiting for a permit.
+   */
+  public int getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  /**
+   * @return the number of tasks running.
+   */
+  public int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /**
+   * @return the number of tasks running in a virtual thread that is blocked on a monitor.
+   */
+  public int getPinnedCount() {
+    if (!virtual) {
+      return 0;
+    }
+    int result = 0;
+    for (Worker worker : workers) {
+      if (worker.state.get() == RUNNING && worker.thread.getState() == Thread.State.BLOCKED) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return true if tasks run in virtual threads.
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualThreadExecutorService{" + "name=" + name + ", semaphore=" + semaphore + ", virtual=" + virtual
+            + ", live=" + liveCount + ", queued=" + queuedCount + ", active=" + activeCount
+            + ", shutdown=" + shutdown + '}';
+  }
+
+  /**
+   * FutureTask that can be failed by the executor when a permit cannot be obtained.
+   */
+  private static final class Task<T> extends FutureTask<T> {
+
+    Task(final Callable<T> callable) {
+      super(callable);
+    }
+
+    Task(final Runnable runnable, final T result) {
+      super(runnable, result);
+    }
+
+    void fail(final Exception ex) {
+      setException(ex);
+    }
+
+  }
+
+  private final class Worker implements Runnable {
+
+    /** the task as submitted. */
+    private final Runnable command;
+
+    /** the task with the submitter execution context attached. */
+    private final Runnable task;
+
+    private final long deadlineNanos;
+
+    private final AtomicInteger state;
+
+    private Thread thread;
+
+    Worker(final Runnable command, final Runnable task, final long deadlineNanos) {
+      this.command = command;
+      this.task = task;
+      this.deadlineNanos = deadlineNanos;
+      this.state = new AtomicInteger(WAITING);
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (acquirePermit()) {
+          activeCount.incrementAndGet();
+          try {
+            task.run();
+          } finally {
+            activeCount.decrementAndGet();
+            semaphore.release();
+          }
+        }
+      } finally {
+        workers.remove(this);
+        taskDone();
+      }
+    }
+
+    private boolean acquirePermit() {
+      boolean acquired = false;
+      Exception failure = null;
+      try {
+        acquired = semaphore.tryAcquire(1, deadlineNanos);
+      } catch (InterruptedException ex) {
+        failure = ex;
+      } finally {
+        queuedCount.decrementAndGet();
+      }
+      if (!acquired) {
+        if (state.compareAndSet(WAITING, DONE)) {
+          if (failure == null) {
+            failure = new TimeoutException("Permit not available for " + command + " in " + name
+                    + ", deadline exceeded by " + (TimeSource.nanoTime() - deadlineNanos) + " ns");
+          }
+          fail(failure);
+        }
+        return false;
+      }
+      if (!state.compareAndSet(WAITING, RUNNING)) {
+        // drained by shutdownNow.
+        semaphore.release();
+        return false;
+      }
+      return true;
+    }
+
+    private void fail(final Exception ex) {
+      if (command instanceof Task) {
+        ((Task<?>) command).fail(ex);
+      } else {
+        throw new RejectedExecutionException("Cannot execute " + command + " in " + name, ex);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Worker{" + "command=" + command + ", state=" + state + ", thread=" + thread + '}';
+    }
+
+  }
+
+  private final class MetricsRecorder extends AbstractRunnable implements Closeable {
+
+    private final DirectStoreMultiAccumulator recorder;
+
+    MetricsRecorder() {
+      super(true);
+      this.recorder = (DirectStoreMultiAccumulator) RecorderFactory.createDirectRecorder("executor." + name,
+              "virtual thread executor task counts",
+              new String[] {"queued", "active", "pinned"}, new String[] {"count", "count", "count"});
+    }
+
+    @Override
+    public void doRun() {
+      recorder.record(queuedCount.get(), activeCount.get(), getPinnedCount());
+    }
+
+    @Override
+    public void close() {
+      recorder.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import com.google.common.annotations.Beta;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.Semaphore;
+import org.spf4j.perf.CloseableMeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * A semaphore with a concurrency limit that adapts to the observed latency and overload,
+ * the limit is computed by a ConcurrencyLimitAlgorithm (AimdLimitAlgorithm, GradientLimitAlgorithm) at the end of
+ * every sample window.
+ *
+ * The latency is derived with Little's law from the number of permits in flight over time and the number of
+ * released permits (average latency = integral of permits in flight over time / released permits), as such
+ * no per permit state is needed and permits can be released from any thread.
+ *
+ * A permit can be released with {@link #release(int)} for a completed operation,
+ * or with {@link #releaseDropped(int)} for a operation that failed due to overload (timeout, rejection...).
+ *
+ * Being a Semaphore, this limiter can be combined with other limits (CompoundSemaphore), or used to limit the
+ * executions of a retry policy: retryPolicy.call(new LimitingExecutor(limiter).toLimitedCallable(callable), ...)
+ *
+ * When a name is provided, the limit and the latency are published as the measurements: [name].concurrency_limit
+ * and [name].rtt.
+ *
+ * @author zoly
+ */
+@Beta
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class AdaptiveConcurrencyLimiter implements Semaphore, Closeable {
+
+  private static final long DEFAULT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(
+          Long.getLong("spf4j.adaptiveLimiter.windowMillis", 100));
+
+  private static final int DEFAULT_MIN_WINDOW_SAMPLES = Integer.getInteger("spf4j.adaptiveLimiter.minWindowSamples",
+          10);
+
+  private static final int DEFAULT_SAMPLE_TIME_MILLIS = Integer.getInteger("spf4j.adaptiveLimiter.sampleTimeMillis",
+          60000);
+
+  private final ConcurrencyLimitAlgorithm algorithm;
+
+  private final long windowNanos;
+
+  private final int minWindowSamples;
+
+  private final LongSupplier nanoTimeSupplier;
+
+  private final ReentrantLock lock;
+
+  private final Condition available;
+
+  @Nullable
+  private final CloseableMeasurementRecorder limitRecorder;
+
+  @Nullable
+  private final CloseableMeasurementRecorder rttRecorder;
+
+  private volatile int limit;
+
+  @GuardedBy("lock")
+  private int inFlight;
+
+  @GuardedBy("lock")
+  private int maxInFlight;
+
+  /** number of waiters that need more than one permit. */
+  @GuardedBy("lock")
+  private int multiPermitWaiters;
+
+  @GuardedBy("lock")
+  private long lastEventNanos;
+
+  /** integral of permits in flight over time since the window start. */
+  @GuardedBy("lock")
+  private long inFlightNanos;
+
+  @GuardedBy("lock")
+  private long released;
+
+  @GuardedBy("lock")
+  private boolean dropped;
+
+  @GuardedBy("lock")
+  private long windowStartNanos;
+
+  public AdaptiveConcurrencyLimiter(final ConcurrencyLimitAlgorithm algorithm) {
+    this(null, algorithm);
+  }
+
+  public AdaptiveConcurrencyLimiter(@Nullable final String name, final ConcurrencyLimitAlgorithm algorithm) {
+    this(name, algorithm, DEFAULT_WINDOW_NANOS, DEFAULT_MIN_WINDOW_SAMPLES, DEFAULT_SAMPLE_TIME_MILLIS,
+            TimeSource.nanoTimeSupplier());
+  }
+
+  /**
+   * @param name the limiter name, the limit and latency are not published if null.
+   * @param algorithm the limit algorithm.
+   * @param windowNanos the minimum duration of a sample window.
+   * @param minWindowSamples the minimum number of released permits in a sample window.
+   * @param sampleTimeMillis the aggregation interval of the published measurements.
+   * @param nanoTimeSupplier the time supplier.
+   */
+  public AdaptiveConcurrencyLimiter(@Nullable final String name, final ConcurrencyLimitAlgorithm algorithm,
+          final long windowNanos, final int minWindowSamples, final int sampleTimeMillis,
+          final LongSupplier nanoTimeSupplier) {
+    this.algorithm = algorithm;
+    this.windowNanos = windowNanos;
+    this.minWindowSamples = minWindowSamples;
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    this.lock = new ReentrantLock();
+    this.available = lock.newCondition();
+    this.limit = algorithm.getInitialLimit();
+    if (name == null) {
+      this.limitRecorder = null;
+      this.rttRecorder = null;
+    } else {
+      this.limitRecorder = RecorderFactory.createScalableMinMaxAvgRecorder(name + ".concurrency_limit", "count",
+              sampleTimeMillis);
+      this.rttRecorder = RecorderFactory.createScalableMinMaxAvgRecorder(name + ".rtt", "ns", sampleTimeMillis);
+    }
+    long nanos = nanoTimeSupplier.getAsLong();
+    lock.lock();
+    try {
+      this.lastEventNanos = nanos;
+      this.windowStartNanos = nanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void advance(final long nanos) {
+    inFlightNanos += inFlight * (nanos - lastEventNanos);
+    lastEventNanos = nanos;
+  }
+
+  @Override
+  public boolean tryAcquire(@Nonnegative final int nrPermits, final long deadlineNanos)
+          throws InterruptedException {
+    lock.lock();
+    try {
+      long nanos = nanoTimeSupplier.getAsLong();
+      while (inFlight + nrPermits > limit) {
+        long waitNanos = deadlineNanos - nanos;
+        if (waitNanos <= 0) {
+          return false;
+        }
+        if (nrPermits > 1) {
+          multiPermitWaiters++;
+          try {
+            available.awaitNanos(waitNanos);
+          } finally {
+            multiPermitWaiters--;
+          }
+        } else {
+          available.awaitNanos(waitNanos);
+        }
+        nanos = nanoTimeSupplier.getAsLong();
+      }
+      advance(nanos);
+      inFlight += nrPermits;
+      if (inFlight > maxInFlight) {
+        maxInFlight = inFlight;
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * release permits of successfully completed operations.
+   * @param nrPermits the number of permits to release.
+   */
+  @Override
+  public void release(final int nrPermits) {
+    release(nrPermits, false);
+  }
+
+  /**
+   * release permits of operations that failed due to overload (timeouts, rejections...),
+   * this will decrease the limit at the end of the current sample window.
+   * @param nrPermits the number of permits to release.
+   */
+  public void releaseDropped(final int nrPermits) {
+    release(nrPermits, true);
+  }
+
+  private void release(final int nrPermits, final boolean isDropped) {
+    int oldLimit;
+    int newLimit;
+    long rttNanos;
+    lock.lock();
+    try {
+      long nanos = nanoTimeSupplier.getAsLong();
+      advance(nanos);
+      inFlight -= nrPermits;
+      released += nrPermits;
+      dropped |= isDropped;
+      oldLimit = limit;
+      if (released < minWindowSamples || nanos - windowStartNanos < windowNanos) {
+        signal(nrPermits);
+        return;
+      }
+      rttNanos = inFlightNanos / released;
+      newLimit = Math.max(1, algorithm.update(oldLimit, rttNanos, maxInFlight, dropped));
+      limit = newLimit;
+      inFlightNanos = 0;
+      released = 0;
+      dropped = false;
+      maxInFlight = inFlight;
+      windowStartNanos = nanos;
+      signal(newLimit > oldLimit ? nrPermits + newLimit - oldLimit : nrPermits);
+    } finally {
+      lock.unlock();
+    }
+    if (limitRecorder != null) {
+      limitRecorder.record(newLimit);
+      rttRecorder.record(rttNanos);
+    }
+  }
+
+  /**
+   * A single permit can be handed to a single waiter only if every waiter can proceed with one permit,
+   * otherwise the signal might wake a waiter that needs more, and leave one that needs a single permit waiting.
+   */
+  @GuardedBy("lock")
+  private void signal(final int nrPermits) {
+    if (nrPermits == 1 && multiPermitWaiters == 0) {
+      available.signal();
+    } else {
+      available.signalAll();
+    }
+  }
+
+  /**
+   * @return the current concurrency limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of permits in flight.
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (limitRecorder != null) {
+      limitRecorder.close();
+      rttRecorder.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveConcurrencyLimiter{" + "algorithm=" + algorithm + ", limit=" + limit + '}';
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Additive increase, multiplicative decrease concurrency limit.
+ *
+ * The limit is decreased by the backoff ratio when operations are dropped or when the latency exceeds a threshold,
+ * and is increased by 1 when no overload is detected and at least half of the limit is used.
+ * (the limit is not increased when the load does not need it)
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class AimdLimitAlgorithm implements ConcurrencyLimitAlgorithm {
+
+  private final int initialLimit;
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final double backoffRatio;
+
+  private final long latencyThresholdNanos;
+
+  /**
+   * @param initialLimit the limit to start with.
+   * @param minLimit the minimum limit.
+   * @param maxLimit the maximum limit.
+   * @param backoffRatio the ratio to multiply the limit with on overload, in [0.5, 1).
+   * @param latencyThresholdNanos latency above which the limit is decreased.
+   */
+  public AimdLimitAlgorithm(final int initialLimit, final int minLimit, final int maxLimit,
+          final double backoffRatio, final long latencyThresholdNanos) {
+    if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Invalid limits, initial = " + initialLimit + ", min = " + minLimit
+              + ", max = " + maxLimit);
+    }
+    if (backoffRatio < 0.5 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("Backoff ratio must be in [0.5, 1), not " + backoffRatio);
+    }
+    this.initialLimit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = backoffRatio;
+    this.latencyThresholdNanos = latencyThresholdNanos;
+  }
+
+  @Override
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  @Override
+  public int update(final int limit, final long rttNanos, final int maxInFlight, final boolean overloaded) {
+    if (overloaded || rttNanos > latencyThresholdNanos) {
+      return Math.max(minLimit, (int) (limit * backoffRatio));
+    }
+    if (maxInFlight * 2 >= limit) {
+      return Math.min(maxLimit, limit + 1);
+    }
+    return limit;
+  }
+
+  @Override
+  public String toString() {
+    return "AimdLimitAlgorithm{" + "initialLimit=" + initialLimit + ", minLimit=" + minLimit
+            + ", maxLimit=" + maxLimit + ", backoffRatio=" + backoffRatio
+            + ", latencyThresholdNanos=" + latencyThresholdNanos + '}';
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Gradient (Vegas like) concurrency limit.
+ *
+ * The latency of every window (short rtt) is compared with a exponential moving average of the latency
+ * (long rtt, the no load latency estimate), the limit is scaled with the gradient:
+ * min(1, tolerance * longRtt / shortRtt), clamped to [0.5, 1], and a queue allowance of sqrt(limit) is added
+ * to allow the limit to grow while the latency does not increase. The new limit is smoothed.
+ * The limit is not changed when less than half of it is used, and is decreased by 10% when operations are dropped.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class GradientLimitAlgorithm implements ConcurrencyLimitAlgorithm {
+
+  private final int initialLimit;
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final double rttTolerance;
+
+  private final double smoothing;
+
+  private final double longRttFactor;
+
+  private double estimatedLimit;
+
+  private double longRttNanos;
+
+  public GradientLimitAlgorithm(final int initialLimit, final int minLimit, final int maxLimit) {
+    this(initialLimit, minLimit, maxLimit, 1.5, 0.2, 100);
+  }
+
+  /**
+   * @param initialLimit the limit to start with.
+   * @param minLimit the minimum limit.
+   * @param maxLimit the maximum limit.
+   * @param rttTolerance the latency increase tolerated before decreasing the limit, (>= 1)
+   * 1.5 means that the latency can increase by 50%.
+   * @param smoothing the weight of the newly computed limit, in (0, 1].
+   * @param longRttWindow the number of samples the long rtt average is computed over.
+   */
+  public GradientLimitAlgorithm(final int initialLimit, final int minLimit, final int maxLimit,
+          final double rttTolerance, final double smoothing, final int longRttWindow) {
+    if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Invalid limits, initial = " + initialLimit + ", min = " + minLimit
+              + ", max = " + maxLimit);
+    }
+    if (rttTolerance < 1) {
+      throw new IllegalArgumentException("Rtt tolerance must be >= 1, not " + rttTolerance);
+    }
+    if (smoothing <= 0 || smoothing > 1) {
+      throw new IllegalArgumentException("Smoothing must be in (0, 1], not " + smoothing);
+    }
+    if (longRttWindow < 1) {
+      throw new IllegalArgumentException("Invalid long rtt window " + longRttWindow);
+    }
+    this.initialLimit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.rttTolerance = rttTolerance;
+    this.smoothing = smoothing;
+    this.longRttFactor = 2d / (longRttWindow + 1);
+    this.estimatedLimit = initialLimit;
+    this.longRttNanos = 0;
+  }
+
+  @Override
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  @Override
+  public int update(final int limit, final long rttNanos, final int maxInFlight, final boolean overloaded) {
+    if (overloaded) {
+      estimatedLimit = Math.max(minLimit, estimatedLimit * 0.9);
+      return (int) estimatedLimit;
+    }
+    if (rttNanos <= 0) {
+      return limit;
+    }
+    if (longRttNanos == 0) {
+      longRttNanos = rttNanos;
+    } else {
+      longRttNanos += (rttNanos - longRttNanos) * longRttFactor;
+      if (longRttNanos > 2 * rttNanos) {
+        // recover faster from latency spikes that inflated the long rtt.
+        longRttNanos *= 0.95;
+      }
+    }
+    if (maxInFlight * 2 < estimatedLimit) {
+      // the limit is not the bottleneck, no signal.
+      return limit;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRttNanos / rttNanos));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    return (int) estimatedLimit;
+  }
+
+  /**
+   * @return the no load latency estimate.
+   */
+  public long getLongRttNanos() {
+    return (long) longRttNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "GradientLimitAlgorithm{" + "minLimit=" + minLimit + ", maxLimit=" + maxLimit
+            + ", rttTolerance=" + rttTolerance + ", smoothing=" + smoothing
+            + ", estimatedLimit=" + estimatedLimit + ", longRttNanos=" + longRttNanos + '}';
+  }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.TimeSource;
+import org.spf4j.perf.MeasurementRecorder;
+
+/**
+ * Hedge policy that hedges at a percentile (like p95) of the observed latency of a call target.
+ *
+ * The latency distribution is kept in a sliding window histogram (by default 1 minute, in 6 slices of 10 seconds),
+ * the hedge delay is recomputed at most every second. Until enough latencies are observed the fallback
+ * policy is used (by default no hedging).
+ *
+ * The extra load is capped with a token budget: every request deposits budgetRatio tokens (0.05 means at most 5%
+ * extra requests), every extra attempt costs one token. The hedge tokens are withdrawn when the hedge is granted,
+ * hedges are only granted when the budget can pay for them. Retries are charged when executed, and can put
+ * the budget in debt, which disables hedging until repaid.
+ *
+ * Latencies and extra attempts are observed by executing the calls via a {@link #timed(Callable)} wrapper,
+ * with the hedges granted via {@link #policyOf(Callable)}: the hedges of a call not executed by the time
+ * an attempt completes are refunded. Latencies and retries can also be reported directly
+ * with {@link #record(long)} and {@link #chargeExtraAttempt()}.
+ * Only the latency of successful attempts is recorded.
+ *
+ * Usage:
+ * <pre>
+ * LatencyPercentileHedge hedge = new LatencyPercentileHedge(0.95, 0.05, 1_000_000, 10_000_000_000L, 1);
+ * AsyncRetryExecutor&lt;T, Callable&lt;T&gt;&gt; executor = retryPolicy.async(hedge::policyOf, failSafeExecutor);
+ * Future&lt;T&gt; result = executor.submit(hedge.timed(callable));
+ * </pre>
+ * For multiple call targets, use a hedge instance per target.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class LatencyPercentileHedge implements HedgePolicy, MeasurementRecorder {
+
+  private static final long DEFAULT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+          Long.getLong("spf4j.failsafe.hedge.latency.sliceMillis", 10000));
+
+  private static final int DEFAULT_NR_SLICES = Integer.getInteger("spf4j.failsafe.hedge.latency.nrSlices", 6);
+
+  private static final int DEFAULT_MIN_SAMPLES = Integer.getInteger("spf4j.failsafe.hedge.latency.minSamples", 100);
+
+  private static final int DEFAULT_MAX_BUDGET = Integer.getInteger("spf4j.failsafe.hedge.latency.maxBudget", 10);
+
+  private static final long RECOMPUTE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** the budget is kept in thousandths of a token. */
+  private static final long TOKEN = 1000;
+
+  private final double percentile;
+
+  private final long minHedgeDelayNanos;
+
+  private final long maxHedgeDelayNanos;
+
+  private final int nrHedges;
+
+  private final long minSamples;
+
+  private final SlidingLatencyHistogram histogram;
+
+  private final HedgePolicy fallback;
+
+  private final LongSupplier nanoTimeSupplier;
+
+  private final AtomicLong budget;
+
+  private final long deposit;
+
+  private final long maxBudget;
+
+  private volatile Snapshot snapshot;
+
+  public LatencyPercentileHedge(final double percentile, final double budgetRatio,
+          final long minHedgeDelayNanos, final long maxHedgeDelayNanos, final int nrHedges) {
+    this(percentile, budgetRatio, DEFAULT_MAX_BUDGET, minHedgeDelayNanos, maxHedgeDelayNanos, nrHedges,
+            DEFAULT_SLICE_NANOS, DEFAULT_NR_SLICES, DEFAULT_MIN_SAMPLES, HedgePolicy.NONE,
+            TimeSource.nanoTimeSupplier());
+  }
+
+  /**
+   * @param percentile the latency percentile to hedge at, in (0, 1), like 0.95.
+   * @param budgetRatio the maximum ratio of extra requests, like 0.05.
+   * @param maxBudget the maximum number of tokens that can accumulate in the budget (max burst of extra requests).
+   * @param minHedgeDelayNanos the minimum hedge delay.
+   * @param maxHedgeDelayNanos the maximum hedge delay.
+   * @param nrHedges the number of hedges.
+   * @param sliceNanos the time slice of the latency window.
+   * @param nrSlices the number of slices in the latency window.
+   * @param minSamples the minimum number of latencies in the window to hedge at the percentile.
+   * @param fallback the hedge policy to use when there are not enough latencies.
+   * @param nanoTimeSupplier the time supplier.
+   */
+  public LatencyPercentileHedge(final double percentile, final double budgetRatio, final int maxBudget,
+          final long minHedgeDelayNanos, final long maxHedgeDelayNanos, final int nrHedges,
+          final long sliceNanos, final int nrSlices, final int minSamples,
+          final HedgePolicy fallback, final LongSupplier nanoTimeSupplier) {
+    if (percentile <= 0 || percentile >= 1) {
+      throw new IllegalArgumentException("Percentile must be in (0, 1), not " + percentile);
+    }
+    if (budgetRatio < 0 || maxBudget < nrHedges) {
+      throw new IllegalArgumentException("Invalid budget ratio " + budgetRatio + " or max budget " + maxBudget
+              + ", max budget must be at least the number of hedges " + nrHedges);
+    }
+    if (minHedgeDelayNanos > maxHedgeDelayNanos) {
+      throw new IllegalArgumentException("Min hedge delay " + minHedgeDelayNanos
+              + " greater than maxHedgeDelay " + maxHedgeDelayNanos);
+    }
+    this.percentile = percentile;
+    this.minHedgeDelayNanos = minHedgeDelayNanos;
+    this.maxHedgeDelayNanos = maxHedgeDelayNanos;
+    this.nrHedges = nrHedges;
+    this.minSamples = minSamples;
+    this.histogram = new SlidingLatencyHistogram(sliceNanos, nrSlices);
+    this.fallback = fallback;
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    this.deposit = Math.round(budgetRatio * TOKEN);
+    this.maxBudget = maxBudget * TOKEN;
+    this.budget = new AtomicLong(this.maxBudget);
+    this.snapshot = new Snapshot(null, nanoTimeSupplier.getAsLong() - RECOMPUTE_INTERVAL_NANOS);
+  }
+
+  /**
+   * Deposit the request tokens and withdraw the tokens of the returned hedges.
+   * The tokens are not refunded if the hedges are not executed, use {@link #policyOf(Callable)} for timed calls.
+   */
+  @Override
+  public Hedge getHedge(final long startTimeNanos, final long deadlineNanos) {
+    Hedge hedge = getPercentileHedge(nanoTimeSupplier.getAsLong());
+    if (hedge == null) {
+      hedge = fallback.getHedge(startTimeNanos, deadlineNanos);
+    } else if (hedge.getHedgeDelayNanos() >= deadlineNanos - startTimeNanos) {
+      hedge = Hedge.NONE;
+    }
+    long cost = hedge.getHedgeCount() * TOKEN;
+    while (true) {
+      long available = budget.get();
+      long deposited = Math.min(maxBudget, available + deposit);
+      if (deposited >= cost) {
+        if (budget.compareAndSet(available, deposited - cost)) {
+          return hedge;
+        }
+      } else if (budget.compareAndSet(available, deposited)) {
+        return Hedge.NONE;
+      }
+    }
+  }
+
+  /**
+   * @param callable the call to get the hedge policy for.
+   * @return for calls wrapped with {@link #timed(Callable)}, a policy that reserves the granted hedges to the call,
+   * the hedges not executed by the time a attempt completes are refunded. This policy for other calls.
+   */
+  public HedgePolicy policyOf(final Callable<?> callable) {
+    if (callable instanceof TimedCallable && ((TimedCallable) callable).getOwner() == this) {
+      return ((TimedCallable) callable)::reserve;
+    }
+    return this;
+  }
+
+  @Nullable
+  private Hedge getPercentileHedge(final long nowNanos) {
+    Snapshot snap = snapshot;
+    if (nowNanos - snap.computedAtNanos < RECOMPUTE_INTERVAL_NANOS) {
+      return snap.hedge;
+    }
+    long latency = histogram.getPercentile(percentile, minSamples, nowNanos);
+    Hedge hedge;
+    if (latency < 0) {
+      hedge = null;
+    } else {
+      hedge = new Hedge(Math.max(minHedgeDelayNanos, Math.min(maxHedgeDelayNanos, latency)), nrHedges);
+    }
+    snapshot = new Snapshot(hedge, nowNanos);
+    return hedge;
+  }
+
+  /**
+   * Record the latency of a successful attempt.
+   * @param latencyNanos the latency in nanoseconds.
+   */
+  @Override
+  public void record(final long latencyNanos) {
+    histogram.record(latencyNanos, nanoTimeSupplier.getAsLong());
+  }
+
+  /**
+   * Record the latency of a successful attempt, the timestamp is ignored, the latency is recorded at current time.
+   */
+  @Override
+  public void recordAt(final long timestampMillis, final long latencyNanos) {
+    record(latencyNanos);
+  }
+
+  /**
+   * Charge a extra attempt (retry, hedge not granted by this policy) to the budget.
+   * The budget can go into debt.
+   */
+  public void chargeExtraAttempt() {
+    budget.addAndGet(-TOKEN);
+  }
+
+  private void refund(final int nrTokens) {
+    budget.accumulateAndGet(nrTokens * TOKEN, (long b, long t) -> Math.min(maxBudget, b + t));
+  }
+
+  /**
+   * Wrap a call to record the latency of its attempts and charge the extra attempts to the budget,
+   * the hedges granted via {@link #policyOf(Callable)} are paid from the call reservation.
+   * Every submission needs to be wrapped separately.
+   * @param callable the call to wrap.
+   * @return the wrapped call.
+   */
+  public <T> Callable<T> timed(final Callable<T> callable) {
+    return new TimedCallable<>(callable);
+  }
+
+  /**
+   * @return the current hedge delay, -1 if there are not enough latency samples.
+   */
+  public long getHedgeDelayNanos() {
+    Hedge hedge = getPercentileHedge(nanoTimeSupplier.getAsLong());
+    return hedge == null ? -1 : hedge.getHedgeDelayNanos();
+  }
+
+  /**
+   * @return the number of tokens available for extra attempts.
+   */
+  public double getBudget() {
+    return (double) budget.get() / TOKEN;
+  }
+
+  @Override
+  public String toString() {
+    return "LatencyPercentileHedge{" + "percentile=" + percentile + ", minHedgeDelayNanos=" + minHedgeDelayNanos
+            + ", maxHedgeDelayNanos=" + maxHedgeDelayNanos + ", nrHedges=" + nrHedges
+            + ", hedge=" + snapshot.hedge + ", budget=" + getBudget() + ", fallback=" + fallback + '}';
+  }
+
+  private static final class Snapshot {
+
+    @Nullable
+    private final Hedge hedge;
+
+    private final long computedAtNanos;
+
+    Snapshot(@Nullable final Hedge hedge, final long computedAtNanos) {
+      this.hedge = hedge;
+      this.computedAtNanos = computedAtNanos;
+    }
+  }
+
+  private final class TimedCallable<T> implements Callable<T> {
+
+    private final Callable<T> callable;
+
+    private final AtomicInteger nrAttempts;
+
+    /** the hedge tokens withdrawn for this call, not used yet. */
+    private final AtomicInteger reserved;
+
+    TimedCallable(final Callable<T> callable) {
+      this.callable = callable;
+      this.nrAttempts = new AtomicInteger();
+      this.reserved = new AtomicInteger();
+    }
+
+    LatencyPercentileHedge getOwner() {
+      return LatencyPercentileHedge.this;
+    }
+
+    Hedge reserve(final long startTimeNanos, final long deadlineNanos) {
+      Hedge hedge = LatencyPercentileHedge.this.getHedge(startTimeNanos, deadlineNanos);
+      reserved.addAndGet(hedge.getHedgeCount());
+      return hedge;
+    }
+
+    private boolean useReserved() {
+      int nrReserved;
+      do {
+        nrReserved = reserved.get();
+        if (nrReserved <= 0) {
+          return false;
+        }
+      } while (!reserved.compareAndSet(nrReserved, nrReserved - 1));
+      return true;
+    }
+
+    @Override
+    public T call() throws Exception {
+      if (nrAttempts.getAndIncrement() > 0 && !useReserved()) {
+        chargeExtraAttempt();
+      }
+      long startNanos = nanoTimeSupplier.getAsLong();
+      try {
+        T result = callable.call();
+        record(nanoTimeSupplier.getAsLong() - startNanos);
+        return result;
+      } finally {
+        int unused = reserved.getAndSet(0);
+        if (unused > 0) {
+          refund(unused);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "TimedCallable{" + callable + ", nrAttempts=" + nrAttempts + ", reserved=" + reserved + '}';
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Latency histogram over a sliding time window.
+ *
+ * The window is made of time slices, a slice is reused (cleared) when its time comes around again.
+ * Values are quantized log-linearly: 8 buckets per power of 2, with a relative error under 12.5%.
+ * Recording is lock free, the clearing of a slice races with the recordings of its first values, which might be lost.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+final class SlidingLatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+
+  private static final int NR_SUB_BUCKETS = 1 << SUB_BITS;
+
+  private static final int NR_BUCKETS = bucketIdx(Long.MAX_VALUE) + 1;
+
+  private final long sliceNanos;
+
+  private final int nrSlices;
+
+  private final AtomicLongArray counts;
+
+  private final AtomicLongArray sliceEpochs;
+
+  SlidingLatencyHistogram(final long sliceNanos, final int nrSlices) {
+    if (sliceNanos <= 0 || nrSlices < 1) {
+      throw new IllegalArgumentException("Invalid slice " + sliceNanos + " ns or number of slices " + nrSlices);
+    }
+    this.sliceNanos = sliceNanos;
+    this.nrSlices = nrSlices;
+    this.counts = new AtomicLongArray(nrSlices * NR_BUCKETS);
+    this.sliceEpochs = new AtomicLongArray(nrSlices);
+    for (int i = 0; i < nrSlices; i++) {
+      sliceEpochs.set(i, Long.MIN_VALUE);
+    }
+  }
+
+  static int bucketIdx(final long value) {
+    if (value < NR_SUB_BUCKETS) {
+      return value < 0 ? 0 : (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BITS)) & (NR_SUB_BUCKETS - 1);
+    return (exp - SUB_BITS + 1) * NR_SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the smallest value of the bucket.
+   */
+  static long bucketLowerBound(final int idx) {
+    if (idx < NR_SUB_BUCKETS) {
+      return idx;
+    }
+    int exp = idx / NR_SUB_BUCKETS + SUB_BITS - 1;
+    long sub = idx % NR_SUB_BUCKETS;
+    return (NR_SUB_BUCKETS + sub) << (exp - SUB_BITS);
+  }
+
+  /**
+   * @return the largest value of the bucket.
+   */
+  static long bucketUpperBound(final int idx) {
+    return idx + 1 >= NR_BUCKETS ? Long.MAX_VALUE : bucketLowerBound(idx + 1) - 1;
+  }
+
+  private int slice(final long nowNanos) {
+    long epoch = Math.floorDiv(nowNanos, sliceNanos);
+    int slice = (int) Math.floorMod(epoch, (long) nrSlices);
+    long sliceEpoch = sliceEpochs.get(slice);
+    if (sliceEpoch != epoch && sliceEpoch < epoch && sliceEpochs.compareAndSet(slice, sliceEpoch, epoch)) {
+      int from = slice * NR_BUCKETS;
+      for (int i = from, l = from + NR_BUCKETS; i < l; i++) {
+        counts.set(i, 0);
+      }
+    }
+    return slice;
+  }
+
+  void record(final long valueNanos, final long nowNanos) {
+    counts.getAndIncrement(slice(nowNanos) * NR_BUCKETS + bucketIdx(valueNanos));
+  }
+
+  /**
+   * @return true if the slice is part of the window ending with the provided epoch.
+   */
+  private boolean isInWindow(final int slice, final long epoch) {
+    long sliceEpoch = sliceEpochs.get(slice);
+    return sliceEpoch <= epoch && sliceEpoch > epoch - nrSlices;
+  }
+
+  /**
+   * @param nowNanos the current time.
+   * @return the bucket counts for the window ending now.
+   */
+  long[] getWindowCounts(final long nowNanos) {
+    long epoch = Math.floorDiv(nowNanos, sliceNanos);
+    long[] result = new long[NR_BUCKETS];
+    for (int s = 0; s < nrSlices; s++) {
+      if (isInWindow(s, epoch)) {
+        int from = s * NR_BUCKETS;
+        for (int i = 0; i < NR_BUCKETS; i++) {
+          result[i] += counts.get(from + i);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param percentile the percentile, in (0, 1].
+   * @param minCount the minimum number of values needed in the window.
+   * @param nowNanos the current time.
+   * @return the upper bound of the bucket containing the percentile, -1 if there are less than minCount values.
+   */
+  long getPercentile(final double percentile, final long minCount, final long nowNanos) {
+    long[] windowCounts = getWindowCounts(nowNanos);
+    long total = 0;
+    for (long count : windowCounts) {
+      total += count;
+    }
+    if (total < minCount || total == 0) {
+      return -1;
+    }
+    long rank = (long) Math.ceil(percentile * total);
+    long cumulative = 0;
+    for (int i = 0; i < windowCounts.length; i++) {
+      cumulative += windowCounts[i];
+      if (cumulative >= rank) {
+        return bucketUpperBound(i);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return "SlidingLatencyHistogram{" + "sliceNanos=" + sliceNanos + ", nrSlices=" + nrSlices + '}';
+  }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import com.google.common.annotations.Beta;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import javax.annotation.Nonnegative;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.concurrent.PermitSupplier;
+
+/**
+ * Token bucket rate limiter (like RateLimiter) where the bucket is split into stripes (shards),
+ * to reduce the contention when a lot of threads acquire permits concurrently.
+ *
+ * A thread acquires permits from the stripe selected by the hash of its id, if the stripe does not have enough
+ * permits, it borrows them from the neighbour stripes. The replenishment (done in a separate thread) distributes
+ * the new permits to the stripes with the least permits first, rebalancing the stripes every replenish interval.
+ * Every stripe is on its own cache line, so uncontended acquisitions do not invalidate the caches of other cores.
+ *
+ * Acquisitions that need to wait for permits (reservations) are handled like in RateLimiter, the reserved
+ * permits are owed and paid from the next replenishments, before any permits are distributed to the stripes.
+ *
+ * The maximum burst size is enforced globally, the global rate accuracy is the same as the one of RateLimiter.
+ * Unlike RateLimiter, a multi permit acquisition can only be satisfied from a single stripe on the fast path,
+ * so it might need to take the slower (locked) reservation path even when enough permits are available overall.
+ *
+ * Use this implementation instead of RateLimiter for rate limiters that are shared by a lot of threads.
+ *
+ * @author zoly
+ */
+@Beta
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class StripedRateLimiter implements AutoCloseable, PermitSupplier {
+
+  /**
+   * Default number of stripes, the power of 2 greater or equal with the number of available processors.
+   */
+  public static final int DEFAULT_NR_STRIPES = Integer.getInteger("spf4j.rateLimiter.stripes",
+          Math.min(1024, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+  /**
+   * the distance between 2 stripes in the array (in longs), 128 bytes to avoid false sharing
+   * (including adjacent cache line prefetch).
+   */
+  private static final int STRIDE = 16;
+
+  private final AtomicLongArray stripes;
+
+  private final int mask;
+
+  private final ScheduledFuture<?> replenisher;
+
+  private final long permitsPerReplenishInterval;
+
+  private final long permitReplenishIntervalNanos;
+
+  private final long maxAvailablePermits;
+
+  private final LongSupplier nanoTimeSupplier;
+
+  private final Object sync;
+
+  /**
+   * the time at which replenishment has been made.
+   */
+  @GuardedBy("sync")
+  private long lastReplenishmentNanos;
+
+  /**
+   * the number of reserved permits to be paid from the next replenishments.
+   */
+  @GuardedBy("sync")
+  private long owedPermits;
+
+  /**
+   * the stripe that gets the first rounding leftover permit at the next distribution.
+   */
+  @GuardedBy("sync")
+  private int nextStripe;
+
+  public StripedRateLimiter(final long permitsPerReplenishInterval,
+          final Duration replenishmentInterval,
+          final long maxBurstSize) {
+    this(permitsPerReplenishInterval, replenishmentInterval, maxBurstSize, DefaultScheduler.INSTANCE);
+  }
+
+  public StripedRateLimiter(final long permitsPerReplenishInterval,
+          final Duration replenishmentInterval,
+          final long maxBurstSize,
+          final ScheduledExecutorService scheduler) {
+    this(permitsPerReplenishInterval, replenishmentInterval, 0, maxBurstSize, scheduler,
+            TimeSource.nanoTimeSupplier(), DEFAULT_NR_STRIPES);
+  }
+
+  /**
+   * create the rate limiter.
+   *
+   * @param permitsPerReplenishInterval the number of permits added every replenish interval.
+   * @param replenishmentInterval the replenish interval.
+   * @param initialNrOfPermits the number of permits available initially.
+   * @param maxAvailablePermits the maximum number of permits that can accumulate.
+   * @param scheduler the scheduler to use to replenish the bucket.
+   * @param nanoTimeSupplier the time supplier.
+   * @param nrStripes the number of stripes, needs to be a power of 2.
+   */
+  public StripedRateLimiter(final long permitsPerReplenishInterval,
+          final Duration replenishmentInterval,
+          final long initialNrOfPermits,
+          final long maxAvailablePermits,
+          final ScheduledExecutorService scheduler,
+          final LongSupplier nanoTimeSupplier,
+          final int nrStripes) {
+    if (Integer.bitCount(nrStripes) != 1) {
+      throw new IllegalArgumentException("Number of stripes must be a power of 2, not " + nrStripes);
+    }
+    if (permitsPerReplenishInterval < 1) {
+      throw new IllegalArgumentException("Invalid permits per replenish interval " + permitsPerReplenishInterval);
+    }
+    this.permitReplenishIntervalNanos = replenishmentInterval.toNanos();
+    if (maxAvailablePermits < permitsPerReplenishInterval) {
+      throw new IllegalArgumentException("Invalid max burst size: " + maxAvailablePermits
+              + ",  increase maxBurstSize to something larger than " + permitsPerReplenishInterval
+              + " we assume a clock resolution of " + permitReplenishIntervalNanos
+              + " and that is the minimum replenish interval");
+    }
+    this.permitsPerReplenishInterval = permitsPerReplenishInterval;
+    this.maxAvailablePermits = maxAvailablePermits;
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    this.mask = nrStripes - 1;
+    this.stripes = new AtomicLongArray(nrStripes * STRIDE);
+    this.sync = new Object();
+    this.owedPermits = 0;
+    this.nextStripe = 0;
+    synchronized (sync) {
+      distribute(initialNrOfPermits);
+      lastReplenishmentNanos = nanoTimeSupplier.getAsLong();
+    }
+    this.replenisher = scheduler.scheduleAtFixedRate(this::replenish,
+            permitReplenishIntervalNanos, permitReplenishIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void replenish() {
+    synchronized (sync) {
+      long newPermits = permitsPerReplenishInterval;
+      if (owedPermits > 0) {
+        long paid = Math.min(owedPermits, newPermits);
+        owedPermits -= paid;
+        newPermits -= paid;
+      }
+      if (newPermits > 0) {
+        distribute(newPermits);
+      }
+      lastReplenishmentNanos = nanoTimeSupplier.getAsLong();
+    }
+  }
+
+  /**
+   * Add permits to the stripes, filling up first the stripes with the least permits.
+   * Permits are never removed from the stripes here, so concurrent acquisitions are not disturbed.
+   * @param nrPermits the number of permits to add.
+   * @return the number of permits added, less than nrPermits when the max burst size is reached.
+   */
+  @GuardedBy("sync")
+  private long distribute(final long nrPermits) {
+    int nrStripes = mask + 1;
+    long total = 0;
+    for (int i = 0; i < nrStripes; i++) {
+      total += stripes.get(i * STRIDE);
+    }
+    long toAdd = Math.min(nrPermits, maxAvailablePermits - total);
+    if (toAdd <= 0) {
+      return 0;
+    }
+    long target = (total + toAdd) / nrStripes;
+    long remaining = toAdd;
+    for (int i = 0; i < nrStripes && remaining > 0; i++) {
+      int idx = i * STRIDE;
+      long deficit = target - stripes.get(idx);
+      if (deficit > 0) {
+        long add = Math.min(deficit, remaining);
+        stripes.getAndAdd(idx, add);
+        remaining -= add;
+      }
+    }
+    // rounding leftovers, less than the number of stripes.
+    int i = nextStripe;
+    while (remaining > 0) {
+      stripes.getAndIncrement(i * STRIDE);
+      remaining--;
+      i = (i + 1) & mask;
+    }
+    nextStripe = i;
+    return toAdd;
+  }
+
+  private int homeStripe() {
+    long id = Thread.currentThread().getId();
+    return ((int) ((id * 0x9E3779B97F4A7C15L) >>> 32)) & mask;
+  }
+
+  private boolean tryTake(final int stripe, final long nrPermits) {
+    int idx = stripe * STRIDE;
+    long available;
+    while ((available = stripes.get(idx)) >= nrPermits) {
+      if (stripes.compareAndSet(idx, available, available - nrPermits)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Try to acquire a permit if available.
+   *
+   * @return true if permit acquired. false otherwise.
+   */
+  public boolean tryAcquire() {
+    return tryAcquire(1);
+  }
+
+  /**
+   * Try to acquire permits if available, from the stripe of the current thread, or from the neighbour stripes.
+   *
+   * @param nrPermits the number of permits to acquire.
+   * @return true if permits acquired. false otherwise.
+   */
+  public boolean tryAcquire(@Nonnegative final int nrPermits) {
+    int home = homeStripe();
+    for (int i = 0; i <= mask; i++) {
+      if (tryTake((home + i) & mask, nrPermits)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean addPermits(final int nrPermits) {
+    synchronized (sync) {
+      long toAdd = nrPermits;
+      if (owedPermits > 0) {
+        long paid = Math.min(owedPermits, toAdd);
+        owedPermits -= paid;
+        toAdd -= paid;
+      }
+      return distribute(toAdd) > 0 || toAdd < nrPermits;
+    }
+  }
+
+  @Override
+  public boolean tryAcquire(final int nrPermits, final long deadlineNanos) throws InterruptedException {
+    return tryAcquireEx(nrPermits, deadlineNanos).isSuccess();
+  }
+
+  @Override
+  @SuppressFBWarnings("MDM_THREAD_YIELD") // sleep until the reserved permits are available.
+  public Acquisition tryAcquireEx(final int nrPermits, final long deadlineNanos)
+          throws InterruptedException {
+    Acquisition acq = tryAcquireGetDelayNanos(nrPermits, deadlineNanos);
+    if (acq.isSuccess()) {
+      long permitAvailableEstimateInNanos = acq.permitAvailableEstimateInNanos();
+      if (permitAvailableEstimateInNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(permitAvailableEstimateInNanos);
+      }
+    }
+    return acq;
+  }
+
+  /**
+   * Acquire permits or reserve them if they will be available before the deadline.
+   * the user of this method needs to be trusted, since it can violate the contract.
+   * @param nrPermits nr of permits to acquire
+   * @param deadlineNanos the deadline.
+   * @return the acquisition, when successful the nanos to wait until the reserved permits can be used.
+   */
+  Acquisition tryAcquireGetDelayNanos(final int nrPermits, final long deadlineNanos) {
+    if (tryAcquire(nrPermits)) {
+      return Acquisition.SUCCESS;
+    } else {
+      return forceReserve(nrPermits, deadlineNanos);
+    }
+  }
+
+  private Acquisition forceReserve(final int nrPermits, final long deadlineNanos) {
+    if (replenisher.isCancelled()) {
+      throw new IllegalStateException("RateLimiter is closed: " + this);
+    }
+    long nowNanos = nanoTimeSupplier.getAsLong();
+    synchronized (sync) {
+      long collected = collect(nrPermits);
+      long needed = nrPermits - collected;
+      if (needed == 0) {
+        return Acquisition.SUCCESS;
+      }
+      long owed = owedPermits + needed;
+      long nsUntilNextReplenishment = permitReplenishIntervalNanos - (nowNanos - lastReplenishmentNanos);
+      long nrReplenishmentsNeeded = (owed + permitsPerReplenishInterval - 1) / permitsPerReplenishInterval;
+      long nsNeeded = nsUntilNextReplenishment + (nrReplenishmentsNeeded - 1) * permitReplenishIntervalNanos;
+      if (nsNeeded <= deadlineNanos - nowNanos) {
+        owedPermits = owed;
+        return new Reservation(nsNeeded);
+      } else {
+        distribute(collected);
+        return Acquisition.failed(nsNeeded);
+      }
+    }
+  }
+
+  /**
+   * take up to nrPermits from all stripes.
+   * @return the number of permits taken.
+   */
+  @GuardedBy("sync")
+  private long collect(final long nrPermits) {
+    long collected = 0;
+    int home = homeStripe();
+    for (int i = 0; i <= mask && collected < nrPermits; i++) {
+      int idx = ((home + i) & mask) * STRIDE;
+      long available;
+      long take;
+      do {
+        available = stripes.get(idx);
+        take = Math.min(available, nrPermits - collected);
+      } while (take > 0 && !stripes.compareAndSet(idx, available, available - take));
+      if (take > 0) {
+        collected += take;
+      }
+    }
+    return collected;
+  }
+
+  /**
+   * @return the number of available permits, negative when permits are owed.
+   */
+  public long getNrPermits() {
+    long total = 0;
+    for (int i = 0; i <= mask; i++) {
+      total += stripes.get(i * STRIDE);
+    }
+    synchronized (sync) {
+      return total - owedPermits;
+    }
+  }
+
+  public int getNrStripes() {
+    return mask + 1;
+  }
+
+  public long getPermitsPerReplenishInterval() {
+    return permitsPerReplenishInterval;
+  }
+
+  public long getPermitReplenishIntervalNanos() {
+    return permitReplenishIntervalNanos;
+  }
+
+  public long getLastReplenishmentNanos() {
+    synchronized (sync) {
+      return lastReplenishmentNanos;
+    }
+  }
+
+  @Override
+  public void close() {
+    replenisher.cancel(false);
+  }
+
+  @Override
+  public String toString() {
+    return "StripedRateLimiter{" + "permits=" + getNrPermits() + ", nrStripes=" + (mask + 1)
+            + ", permitsPerReplenishInterval=" + permitsPerReplenishInterval
+            + ", permitReplenishIntervalNanos=" + permitReplenishIntervalNanos + '}';
+  }
+
+  private static final class Reservation implements Acquisition {
+
+    private final long nanosUntilAvailable;
+
+    Reservation(final long nanosUntilAvailable) {
+      this.nanosUntilAvailable = nanosUntilAvailable;
+    }
+
+    @Override
+    public boolean isSuccess() {
+      return true;
+    }
+
+    @Override
+    public long permitAvailableEstimateInNanos() {
+      return nanosUntilAvailable;
+    }
+
+    @Override
+    public String toString() {
+      return "Reservation{" + "nanosUntilAvailable=" + nanosUntilAvailable + '}';
+    }
+  }
+
+}
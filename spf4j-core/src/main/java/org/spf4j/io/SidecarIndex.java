@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.io;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A sparse index stored in a side-car file next to the data file it indexes.
+ * Every index entry describes a [position, endPosition) range of the data file, entries are in file order.
+ *
+ * The index is only an optimization: data file ranges that are not indexed (files written by older versions,
+ * index writes lost in a crash) must be read sequentially. When loading a index, entries beyond the committed end
+ * of the data file, overlapping entries, a corrupted or incomplete entry and everything after it are ignored,
+ * and they are truncated when the index is opened for append.
+ *
+ * Index file format: magic, format specific header, format specific entries.
+ *
+ * @author zoly
+ */
+public final class SidecarIndex<E extends SidecarIndex.Entry> {
+
+  private final List<E> entries;
+
+  private final long indexedEnd;
+
+  private final long validIndexSize;
+
+  private SidecarIndex(final List<E> entries, final long indexedEnd, final long validIndexSize) {
+    this.entries = entries;
+    this.indexedEnd = indexedEnd;
+    this.validIndexSize = validIndexSize;
+  }
+
+  /**
+   * A index entry, describing a range of the data file.
+   */
+  public interface Entry {
+
+    long getPosition();
+
+    long getEndPosition();
+  }
+
+  /**
+   * A index file format.
+   */
+  public abstract static class Format<E extends Entry> {
+
+    private final byte[] magic;
+
+    protected Format(final byte[] magic) {
+      this.magic = magic.clone();
+    }
+
+    /**
+     * @return true if the header that follows the magic matches the data file.
+     */
+    protected boolean readHeader(final DataInputStream is) throws IOException {
+      return true;
+    }
+
+    protected void writeHeader(final DataOutputStream os) throws IOException {
+      // no header by default.
+    }
+
+    /**
+     * @return the next entry, or null if the entry is corrupted.
+     */
+    @Nullable
+    protected abstract E readEntry(DataInputStream is) throws IOException;
+
+  }
+
+  /**
+   * Load a index file.
+   * @param indexFile the index file.
+   * @param format the index format.
+   * @param endPosition the end of the committed data in the data file. Index entries beyond it are ignored.
+   * @return the index, or null if there is no valid index file.
+   * @throws IOException
+   */
+  @Nullable
+  public static <E extends Entry> SidecarIndex<E> load(final Path indexFile, final Format<E> format,
+          final long endPosition) throws IOException {
+    InputStream is;
+    try {
+      is = Files.newInputStream(indexFile);
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    CountingInputStream cis = new CountingInputStream(new BufferedInputStream(is, 8192));
+    try (DataInputStream dis = new DataInputStream(cis)) {
+      byte[] magic = new byte[format.magic.length];
+      try {
+        dis.readFully(magic);
+        if (!Arrays.equals(format.magic, magic) || !format.readHeader(dis)) {
+          return null;
+        }
+      } catch (EOFException ex) {
+        return null;
+      }
+      List<E> entries = new ArrayList<>();
+      long indexedEnd = 0L;
+      long validSize = cis.getCount();
+      try {
+        E entry;
+        while ((entry = format.readEntry(dis)) != null) {
+          if (entry.getEndPosition() > endPosition || entry.getPosition() < indexedEnd) {
+            break;
+          }
+          entries.add(entry);
+          indexedEnd = entry.getEndPosition();
+          validSize = cis.getCount();
+        }
+      } catch (EOFException ex) {
+        // end of index, or incomplete last entry.
+      }
+      return new SidecarIndex<>(entries, indexedEnd, validSize);
+    }
+  }
+
+  /**
+   * Creates a new, empty index file, overwriting a existing one.
+   * @return the stream to write the index entries to.
+   */
+  @CreatesObligation
+  public static DataOutputStream create(final Path indexFile, final Format<?> format) throws IOException {
+    DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 8192));
+    try {
+      os.write(format.magic);
+      format.writeHeader(os);
+    } catch (IOException | RuntimeException ex) {
+      os.close();
+      throw ex;
+    }
+    return os;
+  }
+
+  /**
+   * Opens the index file this index was loaded from for append, the entries that were ignored are truncated.
+   * @return the stream to write the index entries to.
+   */
+  @CreatesObligation
+  public DataOutputStream openForAppend(final Path indexFile) throws IOException {
+    try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+      ch.truncate(validIndexSize);
+    }
+    return new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(indexFile, StandardOpenOption.APPEND), 8192));
+  }
+
+  /**
+   * @return all entries, in file order.
+   */
+  public List<E> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * @return the file position where the indexed data ends, 0 if nothing is indexed.
+   */
+  public long getIndexedEnd() {
+    return indexedEnd;
+  }
+
+  @Override
+  public String toString() {
+    return "SidecarIndex{" + "nrEntries=" + entries.size() + ", indexedEnd=" + indexedEnd
+            + ", validIndexSize=" + validIndexSize + '}';
+  }
+
+}
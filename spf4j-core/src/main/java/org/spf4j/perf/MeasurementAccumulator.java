@@ -43,6 +43,10 @@ import org.spf4j.base.Arrays;
  */
 public interface MeasurementAccumulator extends MeasurementRecorder {
 
+  /**
+   * @return the measurements in the order declared by getInfo(), null when no measurements have been made.
+   * HISTOGRAM measurements can be followed by (bucket lower bound, count) pairs.
+   */
   @Nullable
   long[] get();
 
@@ -81,6 +85,10 @@ public interface MeasurementAccumulator extends MeasurementRecorder {
     try {
       long[] measurements = get();
       if (measurements != null) {
+        int nrMeasurements = info.getNumberOfMeasurements();
+        if (measurements.length > nrMeasurements) {
+          measurements = java.util.Arrays.copyOf(measurements, nrMeasurements);
+        }
         return new CompositeDataSupport(info.toCompositeType(), info.getMeasurementNames(),
                 Arrays.toObjectArray(measurements));
       } else {
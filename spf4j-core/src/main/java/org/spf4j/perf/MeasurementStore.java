@@ -59,6 +59,7 @@ public interface MeasurementStore extends Closeable {
    * @param tableId - the table ID to store measurements for.
    * @param timeStampMillis - the timestamp of the measurement (milliseconds since Jan 1 1970 UTC)
    * @param measurements - the measurements to persist. (same order as declared)
+   * HISTOGRAM measurements can be followed by a variable number of (bucket lower bound, count) pairs.
    * @throws IOException - IO issues.
    */
   void saveMeasurements(long tableId, long timeStampMillis, long... measurements)
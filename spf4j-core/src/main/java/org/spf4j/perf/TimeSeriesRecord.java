@@ -33,6 +33,7 @@ package org.spf4j.perf;
 
 import com.google.common.annotations.Beta;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import org.apache.avro.Schema;
@@ -202,6 +203,42 @@ public interface TimeSeriesRecord extends GenericRecord {
           throw new UnsupportedOperationException("Unsupported aggregation: " + agg);
       }
     }
+    int nrColumns = recSchema.getFields().size() - 1;
+    int l1 = r1d.size() - 1;
+    int l2 = r2d.size() - 1;
+    if (l1 < nrColumns && l2 < nrColumns) {
+      return;
+    }
+    // sum the counts of the histogram (bucket lower bound, count) pairs, ordered by lower bound.
+    // zero count pairs (columnar block padding) are dropped.
+    List<Long> merged = new ArrayList<>(Math.max(l1, l2) + 1);
+    merged.addAll(r1d.subList(0, nrColumns));
+    int i = nrColumns;
+    int j = nrColumns;
+    while (true) {
+      while (i < l1 && r1d.get(i + 1) == 0L) {
+        i += 2;
+      }
+      while (j < l2 && r2d.get(j + 1) == 0L) {
+        j += 2;
+      }
+      if (i >= l1 && j >= l2) {
+        break;
+      }
+      long bound = j >= l2 || (i < l1 && r1d.get(i) <= r2d.get(j)) ? r1d.get(i) : r2d.get(j);
+      long count = 0;
+      if (i < l1 && r1d.get(i) == bound) {
+        count += r1d.get(i + 1);
+        i += 2;
+      }
+      if (j < l2 && r2d.get(j) == bound) {
+        count += r2d.get(j + 1);
+        j += 2;
+      }
+      merged.add(bound);
+      merged.add(count);
+    }
+    r1.setData(merged);
   }
 
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import javax.annotation.Nullable;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.impl.acc.LockFreeAccumulator;
+import org.spf4j.perf.impl.acc.StripedAccumulator;
+
+/**
+ * How the scalable recorders store their measurements before they are persisted.
+ *
+ * @author zoly
+ */
+public enum AccumulatorStorage {
+
+  /**
+   * A synchronized accumulator per thread, held in a thread map, dead threads are removed on reset. (default)
+   */
+  THREAD_LOCAL,
+  /**
+   * A lock free single writer cell per thread, dead thread cells are removed on reset. (LockFreeAccumulator)
+   */
+  THREAD_CELLS,
+  /**
+   * A fixed number of cells shared by all threads, memory use does not depend on the number of threads.
+   * appropriate for short lived or a large number of threads. (StripedAccumulator)
+   */
+  STRIPED;
+
+  private static final AccumulatorStorage DEFAULT =
+          AccumulatorStorage.valueOf(System.getProperty("spf4j.perf.accumulatorStorage", "THREAD_LOCAL"));
+
+  /**
+   * @return the default storage, configurable via the spf4j.perf.accumulatorStorage system property.
+   */
+  public static AccumulatorStorage getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param template the accumulator template.
+   * @return true if accumulators shared by all threads are to be used for the template.
+   */
+  boolean isShared(final MeasurementAccumulator template) {
+    switch (this) {
+      case THREAD_CELLS:
+        return LockFreeAccumulator.isSupported(template);
+      case STRIPED:
+        return StripedAccumulator.isSupported(template);
+      case THREAD_LOCAL:
+        return false;
+      default:
+        throw new IllegalStateException("Unsupported storage " + this);
+    }
+  }
+
+  /**
+   * @param template the accumulator template.
+   * @return a thread safe accumulator shared by all threads, or null if the per thread accumulators
+   * are to be used. (THREAD_LOCAL storage or the template accumulator has no shared implementation)
+   */
+  @Nullable
+  MeasurementAccumulator createShared(final MeasurementAccumulator template) {
+    switch (this) {
+      case THREAD_CELLS:
+        return LockFreeAccumulator.isSupported(template) ? LockFreeAccumulator.from(template) : null;
+      case STRIPED:
+        return StripedAccumulator.isSupported(template) ? StripedAccumulator.from(template) : null;
+      case THREAD_LOCAL:
+        return null;
+      default:
+        throw new IllegalStateException("Unsupported storage " + this);
+    }
+  }
+
+}
@@ -34,6 +34,7 @@ package org.spf4j.perf.impl;
 import org.spf4j.perf.impl.acc.DirectStoreMultiAccumulator;
 import org.spf4j.perf.impl.acc.DirectStoreAccumulator;
 import org.spf4j.perf.impl.acc.QuantizedAccumulator;
+import org.spf4j.perf.impl.acc.HistogramAccumulator;
 import org.spf4j.perf.impl.acc.AddAndCountAccumulator;
 import org.spf4j.perf.impl.acc.MinMaxAvgAccumulator;
 import org.spf4j.perf.impl.ms.graphite.GraphiteTcpStore;
@@ -112,6 +113,23 @@ public final class RecorderFactory {
     return mr;
   }
 
+  /**
+   * Create a Quantized Measurement recorder with the provided accumulator storage.
+   * (see createScalableQuantizedRecorder(forWhat, unitOfMeasurement, sampleTimeMillis, factor, lowerMagnitude,
+   * higherMagnitude, quantasPerMagnitude) for parameter details)
+   * @param storage the accumulator storage, STRIPED is appropriate for a large number of recording threads.
+   */
+  public static CloseableMeasurementRecorder createScalableQuantizedRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude, final AccumulatorStorage storage) {
+    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new QuantizedAccumulator(forWhat, "",
+            unitOfMeasurement, factor, lowerMagnitude, higherMagnitude,
+            quantasPerMagnitude), sampleTimeMillis, MEASUREMENT_STORE, true, storage);
+    mr.registerJmx();
+    return mr;
+  }
+
   public static CloseableMeasurementRecorder createScalableQuantizedRecorder2(
           final Object forWhat, final String unitOfMeasurement,  final int sampleTimeMillis,
           final int factor, final int lowerMagnitude, final int higherMagnitude,
@@ -123,6 +141,50 @@ public final class RecorderFactory {
     return mr;
   }
 
+  /**
+   * Create a log linear (HDR style) histogram recorder. (see HistogramAccumulator)
+   *
+   * Appropriate for latency measurements where tail percentiles are of interest, the recorder
+   * persists: count, total, min, max, p50, p90, p99, p999 and the histogram bucket counts.
+   *
+   * example: createScalableHistogramRecorder("response time", "ms", 60000, 60000, 3)
+   * will track with a max 12.5% relative error values up to 1 minute.
+   *
+   * @param forWhat an object identifying what is being measured, ex: "response time"
+   * @param unitOfMeasurement the unit of measurement of the measurements, ex "milliseconds"
+   * @param sampleTimeMillis the sampling (accumulating interval) ex: 60000 for minute level detail.
+   * @param highestTrackableValue the highest value tracked with precision, higher values are accounted
+   * in a overflow bucket.
+   * @param precisionBits each power of 2 interval is split in 2^precisionBits buckets.
+   * @return the histogram recorder.
+   */
+  public static CloseableMeasurementRecorder createScalableHistogramRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int precisionBits) {
+    return createScalableHistogramRecorder(forWhat, unitOfMeasurement, sampleTimeMillis,
+            highestTrackableValue, precisionBits, AccumulatorStorage.getDefault());
+  }
+
+  public static CloseableMeasurementRecorder createScalableHistogramRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int precisionBits, final AccumulatorStorage storage) {
+    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new HistogramAccumulator(forWhat, "",
+            unitOfMeasurement, highestTrackableValue, precisionBits), sampleTimeMillis, MEASUREMENT_STORE, true,
+            storage);
+    mr.registerJmx();
+    return mr;
+  }
+
+  public static MeasurementRecorderSource createScalableHistogramRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int precisionBits) {
+    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
+            new HistogramAccumulator(forWhat, "", unitOfMeasurement, highestTrackableValue, precisionBits),
+            sampleTimeMillis, MEASUREMENT_STORE, true);
+    mrs.registerJmx();
+    return mrs;
+  }
+
   /**
    * This will accumulate a sum of all the recorded numbers +
    * the number fo record method invocations.
@@ -139,6 +201,14 @@ public final class RecorderFactory {
     return mr;
   }
 
+  public static CloseableMeasurementRecorder createScalableCountingRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int bucketTimeMillis,
+          final AccumulatorStorage storage) {
+    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new AddAndCountAccumulator(forWhat, "",
+            unitOfMeasurement), bucketTimeMillis, MEASUREMENT_STORE, true, storage);
+    mr.registerJmx();
+    return mr;
+  }
 
   /**
    * This will accumulate a sum of all the recorded numbers
@@ -163,6 +233,15 @@ public final class RecorderFactory {
     return mr;
   }
 
+  public static CloseableMeasurementRecorder createScalableMinMaxAvgRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final AccumulatorStorage storage) {
+    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new MinMaxAvgAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true, storage);
+    mr.registerJmx();
+    return mr;
+  }
+
   public static CloseableMeasurementRecorder createScalableMinMaxAvgRecorder2(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
     ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new MinMaxAvgAccumulator(forWhat, "",
@@ -183,6 +262,18 @@ public final class RecorderFactory {
     return mrs;
   }
 
+  public static MeasurementRecorderSource createScalableQuantizedRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude, final AccumulatorStorage storage) {
+    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
+            new QuantizedAccumulator(forWhat, "",
+                    unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude),
+            sampleTimeMillis, MEASUREMENT_STORE, true, storage);
+    mrs.registerJmx();
+    return mrs;
+  }
+
   public static CloseableMeasurementRecorderSource createScalableQuantizedRecorderSource2(final Object forWhat,
           final String unitOfMeasurement,  final int sampleTimeMillis,
           final int factor, final int lowerMagnitude, final int higherMagnitude,
@@ -204,6 +295,16 @@ public final class RecorderFactory {
     return mrs;
   }
 
+  public static MeasurementRecorderSource createScalableCountingRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final AccumulatorStorage storage) {
+    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
+            new AddAndCountAccumulator(forWhat, "",
+                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true, storage);
+    mrs.registerJmx();
+    return mrs;
+  }
+
   public static CloseableMeasurementRecorderSource createScalableSimpleCountingRecorderSource(
           final Object forWhat, final String description, final String unitOfMeasurement, final int sampleTimeMillis) {
     ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
@@ -240,6 +341,16 @@ public final class RecorderFactory {
     return mrs;
   }
 
+  public static MeasurementRecorderSource createScalableMinMaxAvgRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final AccumulatorStorage storage) {
+    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
+            new MinMaxAvgAccumulator(forWhat, "",
+                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true, storage);
+    mrs.registerJmx();
+    return mrs;
+  }
+
   public static MultiMeasurementRecorder createDirectRecorder(final Object measuredEntity, final String description,
           final String[] measurementNames, final String[] measurementUnits) {
     Aggregation[] aggs = new Aggregation[measurementNames.length];
@@ -72,6 +72,11 @@ import org.spf4j.perf.TimeSeriesRecord;
 public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumulator
   implements CloseableMeasurementRecorder, JmxSupport {
 
+  /**
+   * accumulator shared by all threads, null when using per thread accumulators.
+   */
+  @Nullable
+  private final MeasurementAccumulator sharedRecorder;
   private final Map<Thread, MeasurementAccumulator> threadLocalRecorders;
   private final ThreadLocal<MeasurementAccumulator> threadLocalRecorder;
   private final int sampleTimeMillis;
@@ -82,11 +87,18 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
 
   ScalableMeasurementRecorder(final MeasurementAccumulator processor, final int sampleTimeMillis,
           final MeasurementStore measurementStore, final boolean closeOnShutdown) {
+    this(processor, sampleTimeMillis, measurementStore, closeOnShutdown, AccumulatorStorage.getDefault());
+  }
+
+  ScalableMeasurementRecorder(final MeasurementAccumulator processor, final int sampleTimeMillis,
+          final MeasurementStore measurementStore, final boolean closeOnShutdown,
+          final AccumulatorStorage storage) {
     if (sampleTimeMillis < 1000) {
       throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
     }
     threadLocalRecorders = new HashMap<>();
     processorTemplate = processor;
+    sharedRecorder = storage.createShared(processor);
     this.sampleTimeMillis = sampleTimeMillis;
     threadLocalRecorder = new ThreadLocal<MeasurementAccumulator>() {
 
@@ -130,11 +142,18 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
 
   @Override
   public void record(final long measurement) {
-    threadLocalRecorder.get().record(measurement);
+    if (sharedRecorder != null) {
+      sharedRecorder.record(measurement);
+    } else {
+      threadLocalRecorder.get().record(measurement);
+    }
   }
 
   @Override
   public long[] get() {
+    if (sharedRecorder != null) {
+      return sharedRecorder.get();
+    }
     MeasurementAccumulator result = null;
     synchronized (threadLocalRecorders) {
       for (Map.Entry<Thread, MeasurementAccumulator> entry : threadLocalRecorders.entrySet()) {
@@ -223,7 +242,8 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
 
   @Override
   public String toString() {
-    return "ScalableMeasurementRecorder{" + "threadLocalRecorders=" + threadLocalRecorders
+    return "ScalableMeasurementRecorder{" + "sharedRecorder=" + sharedRecorder
+            + ", threadLocalRecorders=" + threadLocalRecorders
             + ", processorTemplate=" + processorTemplate + '}';
   }
 
@@ -244,6 +264,9 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
 
   @Override
   public long[] getThenReset() {
+    if (sharedRecorder != null) {
+      return sharedRecorder.getThenReset();
+    }
     MeasurementAccumulator result = null;
     synchronized (threadLocalRecorders) {
       Iterator<Map.Entry<Thread, MeasurementAccumulator>> iterator = threadLocalRecorders.entrySet().iterator();
@@ -32,7 +32,9 @@
 package org.spf4j.perf.impl;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.TObjectLongMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import java.io.IOException;
 import java.io.StringWriter;
@@ -41,10 +43,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
@@ -78,10 +83,31 @@ import org.spf4j.perf.MeasurementRecorderSource;
 public final class ScalableMeasurementRecorderSource implements
         MeasurementRecorderSource, MeasurementsSource, CloseableMeasurementRecorderSource, JmxSupport {
 
+  /**
+   * number of consecutive sample intervals without measurements after which a shared accumulator is removed.
+   */
+  private static final int MAX_IDLE_INTERVALS =
+          Integer.getInteger("spf4j.perf.sharedAccumulatorMaxIdleIntervals", 2);
+
   private final Map<Thread, Map<Object, MeasurementAccumulator>> measurementProcessorMap;
 
   private final ThreadLocal<Map<Object, MeasurementAccumulator>> threadLocalMeasurementProcessorMap;
 
+  /**
+   * accumulators shared by all threads, null when using per thread accumulators.
+   */
+  @Nullable
+  private final ConcurrentMap<Object, MeasurementAccumulator> sharedMeasurementProcessorMap;
+
+  /**
+   * consecutive sample intervals without measurements of the shared accumulators, null when using per thread
+   * accumulators.
+   */
+  @Nullable
+  private final TObjectIntMap<Object> sharedIdleIntervals;
+
+  private final AccumulatorStorage storage;
+
   private final ScheduledFuture<?> samplingFuture;
   private final MeasurementAccumulator processorTemplate;
 
@@ -92,10 +118,24 @@ public final class ScalableMeasurementRecorderSource implements
 
   ScalableMeasurementRecorderSource(final MeasurementAccumulator processor,
           final int sampleTimeMillis, final MeasurementStore database, final boolean closeOnShutdown) {
+    this(processor, sampleTimeMillis, database, closeOnShutdown, AccumulatorStorage.getDefault());
+  }
+
+  ScalableMeasurementRecorderSource(final MeasurementAccumulator processor,
+          final int sampleTimeMillis, final MeasurementStore database, final boolean closeOnShutdown,
+          final AccumulatorStorage storage) {
     if (sampleTimeMillis < 1000) {
       throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
     }
     this.processorTemplate = processor;
+    this.storage = storage;
+    if (storage.isShared(processor)) {
+      sharedMeasurementProcessorMap = new ConcurrentHashMap<>();
+      sharedIdleIntervals = new TObjectIntHashMap<>();
+    } else {
+      sharedMeasurementProcessorMap = null;
+      sharedIdleIntervals = null;
+    }
     measurementProcessorMap = new HashMap<>();
     threadLocalMeasurementProcessorMap = new ThreadLocal<Map<Object, MeasurementAccumulator>>() {
 
@@ -135,6 +175,10 @@ public final class ScalableMeasurementRecorderSource implements
 
   @Override
   public MeasurementRecorder getRecorder(final Object forWhat) {
+    if (sharedMeasurementProcessorMap != null) {
+      return sharedMeasurementProcessorMap.computeIfAbsent(forWhat, (what) -> storage.createShared(
+              processorTemplate.createLike(Pair.of(processorTemplate.getInfo().getMeasuredEntity(), what))));
+    }
     Map<Object, MeasurementAccumulator> recorders = threadLocalMeasurementProcessorMap.get();
     synchronized (recorders) {
       MeasurementAccumulator result = recorders.get(forWhat);
@@ -150,6 +194,12 @@ public final class ScalableMeasurementRecorderSource implements
   @Override
   public Map<Object, MeasurementAccumulator> getEntitiesMeasurements() {
     Map<Object, MeasurementAccumulator> result = new HashMap<>();
+    if (sharedMeasurementProcessorMap != null) {
+      for (Map.Entry<Object, MeasurementAccumulator> entry : sharedMeasurementProcessorMap.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().createClone());
+      }
+      return result;
+    }
 
     synchronized (measurementProcessorMap) {
       Iterator<Map.Entry<Thread, Map<Object, MeasurementAccumulator>>> iterator
@@ -179,6 +229,31 @@ public final class ScalableMeasurementRecorderSource implements
   @Nonnull
   public Map<Object, MeasurementAccumulator> getEntitiesMeasurementsAndReset() {
     Map<Object, MeasurementAccumulator> result = new HashMap<>();
+    if (sharedMeasurementProcessorMap != null) {
+      // like the per thread accumulators, idle shared accumulators are removed,
+      // recorders returned by getRecorder are not to be held on to by callers.
+      synchronized (sharedIdleIntervals) {
+        for (Map.Entry<Object, MeasurementAccumulator> entry : sharedMeasurementProcessorMap.entrySet()) {
+          Object what = entry.getKey();
+          MeasurementAccumulator acc = entry.getValue();
+          MeasurementAccumulator measurements = acc.reset();
+          if (measurements != null) {
+            result.put(what, measurements);
+            sharedIdleIntervals.remove(what);
+          } else if (sharedIdleIntervals.adjustOrPutValue(what, 1, 1) >= MAX_IDLE_INTERVALS) {
+            sharedIdleIntervals.remove(what);
+            if (sharedMeasurementProcessorMap.remove(what, acc)) {
+              // measurements recorded between the reset and the removal.
+              measurements = acc.reset();
+              if (measurements != null) {
+                result.put(what, measurements);
+              }
+            }
+          }
+        }
+      }
+      return result;
+    }
 
     synchronized (measurementProcessorMap) {
       Iterator<Map.Entry<Thread, Map<Object, MeasurementAccumulator>>> iterator
@@ -409,7 +484,9 @@ public final class ScalableMeasurementRecorderSource implements
 
   @Override
   public String toString() {
-    return "ScalableMeasurementRecorderSource{" + "measurementProcessorMap=" + measurementProcessorMap
+    return "ScalableMeasurementRecorderSource{" + "storage=" + storage
+            + ", sharedMeasurementProcessorMap=" + sharedMeasurementProcessorMap
+            + ", measurementProcessorMap=" + measurementProcessorMap
             + ", threadLocalMeasurementProcessorMap=" + threadLocalMeasurementProcessorMap
             + ", samplingFuture=" + samplingFuture + ", processorTemplate=" + processorTemplate
             + ", tableIds=" + tableIds + ", persister=" + persister + ", shutdownHook=" + shutdownHook + '}';
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * Base for the accumulators that record into cells, and aggregate the cells on collection.
+ *
+ * The cells contain cumulative count, total and histogram bucket counters, collection reports the difference
+ * since the previous reset. Min and max are tracked per reset epoch.
+ * Values are handled in a canonical layout: min, max, count, total, buckets..., converted to the measurements
+ * of the template accumulator on output.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+abstract class CellAccumulator extends AbstractMeasurementAccumulator {
+
+  static final int MIN = 0;
+  static final int MAX = 1;
+  static final int COUNT = 2;
+  static final int TOTAL = 3;
+  static final int BUCKETS = 4;
+
+  private final Layout layout;
+
+  private final Object readSync;
+
+  private volatile long epoch;
+
+  /**
+   * Values not reported yet that do not belong to a cell. (clones, aggregates)
+   */
+  @GuardedBy("readSync")
+  @Nullable
+  private long[] detached;
+
+  CellAccumulator(final Layout layout, @Nullable final long[] detached) {
+    this.layout = layout;
+    this.readSync = new Object();
+    this.epoch = 0L;
+    this.detached = detached;
+  }
+
+  /**
+   * @param accumulator the accumulator to test.
+   * @return true if there is a cell based implementation for the accumulator.
+   */
+  public static boolean isSupported(final MeasurementAccumulator accumulator) {
+    return accumulator instanceof QuantizedAccumulator || accumulator instanceof HistogramAccumulator
+            || accumulator instanceof MinMaxAvgAccumulator
+            || accumulator instanceof AddAndCountAccumulator || accumulator instanceof CountAccumulator;
+  }
+
+  final Layout getLayout() {
+    return layout;
+  }
+
+  final long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Add the values recorded in the cells since the last reset.
+   * invoked while holding the read lock, there is no concurrent invocation of this method.
+   * @param values the values to add to.
+   * @param currentEpoch the epoch being collected.
+   * @param reset when true, a new epoch has started (currentEpoch + 1), and the cells need to be reset.
+   */
+  abstract void collectCells(long[] values, long currentEpoch, boolean reset);
+
+  /**
+   * @param values the values of the new accumulator.
+   * @return a new accumulator with the same layout and no cells.
+   */
+  abstract CellAccumulator newDetached(long[] values);
+
+  /**
+   * @param reset start a new interval.
+   * @return the values recorded since the last reset.
+   */
+  final long[] collect(final boolean reset) {
+    synchronized (readSync) {
+      long[] result = layout.empty();
+      if (detached != null) {
+        Layout.merge(result, detached);
+        if (reset) {
+          detached = null;
+        }
+      }
+      long e = epoch;
+      if (reset) {
+        epoch = e + 1;
+      }
+      collectCells(result, e, reset);
+      return result;
+    }
+  }
+
+  @Override
+  @Nullable
+  public final long[] get() {
+    return layout.toMeasurements(collect(false));
+  }
+
+  @Override
+  @Nullable
+  public final long[] getThenReset() {
+    return layout.toMeasurements(collect(true));
+  }
+
+  @Override
+  public final CellAccumulator aggregate(final MeasurementAccumulator mSource) {
+    if (mSource instanceof CellAccumulator && layout.isCompatible(((CellAccumulator) mSource).layout)) {
+      long[] values = collect(false);
+      Layout.merge(values, ((CellAccumulator) mSource).collect(false));
+      return newDetached(values);
+    } else {
+      throw new IllegalArgumentException("Cannot aggregate " + this + " with " + mSource);
+    }
+  }
+
+  @Override
+  public final CellAccumulator createClone() {
+    return newDetached(collect(false));
+  }
+
+  @Override
+  @Nullable
+  public final CellAccumulator reset() {
+    long[] values = collect(true);
+    if (values[COUNT] == 0) {
+      return null;
+    }
+    return newDetached(values);
+  }
+
+  @Override
+  public final MeasurementsInfo getInfo() {
+    return layout.template.getInfo();
+  }
+
+  /**
+   * The measurements of a template accumulator in the canonical values layout.
+   */
+  static final class Layout {
+
+    private final MeasurementAccumulator template;
+
+    /**
+     * output measurement index -> canonical value index, null for histograms.
+     * (the histogram measurements are computed by HistogramAccumulator.toMeasurements)
+     */
+    @Nullable
+    private final int[] outputs;
+
+    private final boolean minMax;
+
+    @Nullable
+    private final long[] bucketLimits;
+
+    @Nullable
+    private final HistogramAccumulator histogram;
+
+    private final int nrValues;
+
+    private Layout(final MeasurementAccumulator template, final int[] outputs, final boolean minMax,
+            @Nullable final long[] bucketLimits) {
+      this.template = template;
+      this.outputs = outputs;
+      this.minMax = minMax;
+      this.bucketLimits = bucketLimits;
+      this.histogram = null;
+      this.nrValues = BUCKETS + (bucketLimits == null ? 0 : bucketLimits.length + 1);
+    }
+
+    private Layout(final HistogramAccumulator histogram) {
+      this.template = histogram;
+      this.minMax = true;
+      this.bucketLimits = null;
+      this.histogram = histogram;
+      this.nrValues = BUCKETS + histogram.getNrBuckets();
+      this.outputs = null;
+    }
+
+    static Layout from(final MeasurementAccumulator template) {
+      if (template instanceof QuantizedAccumulator) {
+        long[] limits = ((QuantizedAccumulator) template).getBucketLimits();
+        int[] outputs = new int[4 + limits.length + 1];
+        outputs[0] = TOTAL;
+        outputs[1] = COUNT;
+        outputs[2] = MIN;
+        outputs[3] = MAX;
+        for (int i = 4; i < outputs.length; i++) {
+          outputs[i] = BUCKETS + i - 4;
+        }
+        return new Layout(template, outputs, true, limits);
+      } else if (template instanceof HistogramAccumulator) {
+        return new Layout((HistogramAccumulator) template);
+      } else if (template instanceof MinMaxAvgAccumulator) {
+        return new Layout(template, new int[] {COUNT, TOTAL, MIN, MAX}, true, null);
+      } else if (template instanceof AddAndCountAccumulator) {
+        return new Layout(template, new int[] {COUNT, TOTAL}, false, null);
+      } else if (template instanceof CountAccumulator) {
+        return new Layout(template, new int[] {TOTAL}, false, null);
+      } else {
+        throw new IllegalArgumentException("No cell based implementation for " + template);
+      }
+    }
+
+    MeasurementAccumulator getTemplate() {
+      return template;
+    }
+
+    boolean isMinMax() {
+      return minMax;
+    }
+
+    @Nullable
+    long[] getBucketLimits() {
+      return bucketLimits;
+    }
+
+    int getNrValues() {
+      return nrValues;
+    }
+
+    /**
+     * @param measurement the measurement.
+     * @return the index of the value to increment for the measurement, -1 if there are no histogram buckets.
+     */
+    int bucketIndex(final long measurement) {
+      if (histogram != null) {
+        return BUCKETS + histogram.getBucket(measurement);
+      }
+      return bucketLimits == null ? -1 : BUCKETS + QuantizedAccumulator.findBucket(bucketLimits, measurement);
+    }
+
+    boolean isCompatible(final Layout other) {
+      return template.getClass() == other.template.getClass()
+              && Arrays.equals(bucketLimits, other.bucketLimits)
+              && (histogram == null || other.histogram != null && histogram.isSameConfig(other.histogram));
+    }
+
+    long[] empty() {
+      long[] result = new long[nrValues];
+      result[MIN] = Long.MAX_VALUE;
+      result[MAX] = Long.MIN_VALUE;
+      return result;
+    }
+
+    static void merge(final long[] to, final long[] from) {
+      to[MIN] = Math.min(to[MIN], from[MIN]);
+      to[MAX] = Math.max(to[MAX], from[MAX]);
+      for (int i = COUNT; i < to.length; i++) {
+        to[i] += from[i];
+      }
+    }
+
+    @Nullable
+    @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+    long[] toMeasurements(final long[] values) {
+      if (values[COUNT] == 0) {
+        return null;
+      }
+      if (histogram != null) {
+        return histogram.toMeasurements(values, BUCKETS, values[COUNT], values[TOTAL], values[MIN], values[MAX]);
+      }
+      long[] result = new long[outputs.length];
+      for (int i = 0; i < outputs.length; i++) {
+        result[i] = values[outputs[i]];
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "Layout{" + "template=" + template + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.impl.MeasurementsInfoImpl;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.MeasurementType;
+
+/**
+ * Log linear (HDR style) histogram accumulator.
+ *
+ * Every power of 2 interval [2^e, 2^(e+1)) is split in 2^precisionBits equal buckets, values smaller than
+ * 2^precisionBits have a bucket each. As such the relative error of a value represented by a bucket is at most
+ * 2^-precisionBits. Negative values are accounted in the first bucket, values above the bucket of the highest
+ * trackable value are accounted in the last (overflow) bucket.
+ *
+ * Since the buckets of a lower precision histogram are unions of the buckets of a higher precision one,
+ * histograms with different configurations can be merged (with the lowest precision and highest range).
+ *
+ * Measurements: count, total, min, max, p50, p90, p99, p999. Percentiles are the highest value
+ * of the bucket the percentile falls into, bounded by min and max. Percentiles are aggregated as MAX when
+ * downsampling, which is a upper bound of the percentile of the aggregate.
+ *
+ * The declared measurements are followed by the (bucket lower bound, count) pairs of the non empty buckets,
+ * in ascending lower bound order, so only the buckets with data are stored. The first bucket also accounts
+ * the negative values and has a lower bound of 0. The lower bounds make the pairs decodable without the histogram
+ * configuration, and histograms with different configurations can be aggregated by summing the counts
+ * of the same lower bounds.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class HistogramAccumulator extends AbstractMeasurementAccumulator {
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  /**
+   * number of declared measurements, the index of the first bucket pair.
+   */
+  private static final int BUCKETS_OFFSET = 4 + PERCENTILES.length;
+
+  private final MeasurementsInfo info;
+  private final long highestTrackableValue;
+  private final int precisionBits;
+  private final int subBucketCount;
+  private long minMeasurement;
+  private long maxMeasurement;
+  private long measurementCount;
+  private long measurementTotal;
+  private final long[] counts;
+
+  /**
+   * Create a log linear histogram accumulator.
+   * @param measuredEntity - and object representing the thing we accumulate measurements for.
+   * @param description - description of the thing we accumulate measurements for.
+   * @param unitOfMeasurement - unit of measurement.
+   * @param highestTrackableValue values above will be accounted in the overflow bucket.
+   * @param precisionBits the number of sub buckets per power of 2 = 2^precisionBits. [1, 10]
+   * ex: 3 bits = 8 sub buckets, 12.5% max relative error.
+   */
+  public HistogramAccumulator(final Object measuredEntity, final String description,
+          final String unitOfMeasurement, final long highestTrackableValue, final int precisionBits) {
+    if (precisionBits < 1 || precisionBits > 10) {
+      throw new IllegalArgumentException("Invalid precisionBits " + precisionBits + " must be in [1, 10]");
+    }
+    if (highestTrackableValue < (1L << precisionBits)) {
+      throw new IllegalArgumentException("highestTrackableValue " + highestTrackableValue
+              + " must be at least 2^precisionBits = " + (1L << precisionBits));
+    }
+    this.highestTrackableValue = highestTrackableValue;
+    this.precisionBits = precisionBits;
+    this.subBucketCount = 1 << precisionBits;
+    this.counts = new long[bucketIndex(highestTrackableValue) + 2];
+    this.minMeasurement = Long.MAX_VALUE;
+    this.maxMeasurement = Long.MIN_VALUE;
+    this.measurementCount = 0;
+    this.measurementTotal = 0;
+    int nrm = BUCKETS_OFFSET;
+    String[] names = new String[nrm];
+    String[] uom = new String[nrm];
+    Aggregation[] aggs = new Aggregation[nrm];
+    names[0] = "count";
+    uom[0] = "count";
+    aggs[0] = Aggregation.SUM;
+    names[1] = "total";
+    uom[1] = unitOfMeasurement;
+    aggs[1] = Aggregation.SUM;
+    names[2] = "min";
+    uom[2] = unitOfMeasurement;
+    aggs[2] = Aggregation.MIN;
+    names[3] = "max";
+    uom[3] = unitOfMeasurement;
+    aggs[3] = Aggregation.MAX;
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      names[4 + i] = PERCENTILE_NAMES[i];
+      uom[4 + i] = unitOfMeasurement;
+      aggs[4 + i] = Aggregation.MAX;
+    }
+    this.info = new MeasurementsInfoImpl(measuredEntity, description, names, uom, aggs, MeasurementType.HISTOGRAM);
+  }
+
+  //CHECKSTYLE:OFF
+  private HistogramAccumulator(final MeasurementsInfo info, final long highestTrackableValue,
+          final int precisionBits, final long minMeasurement, final long maxMeasurement,
+          final long measurementCount, final long measurementTotal, final long[] counts) {
+    //CHECKSTYLE:ON
+    this.info = info;
+    this.highestTrackableValue = highestTrackableValue;
+    this.precisionBits = precisionBits;
+    this.subBucketCount = 1 << precisionBits;
+    this.minMeasurement = minMeasurement;
+    this.maxMeasurement = maxMeasurement;
+    this.measurementCount = measurementCount;
+    this.measurementTotal = measurementTotal;
+    this.counts = counts;
+  }
+
+  /**
+   * @param value the measurement.
+   * @return the bucket index of the measurement (without overflow).
+   */
+  private int bucketIndex(final long value) {
+    if (value < subBucketCount) {
+      return value <= 0 ? 0 : (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exp - precisionBits;
+    return ((shift + 1) << precisionBits) + (int) (value >>> shift) - subBucketCount;
+  }
+
+  /**
+   * @param value the measurement.
+   * @return the bucket index to account the value in.
+   */
+  int getBucket(final long value) {
+    return Math.min(bucketIndex(value), counts.length - 1);
+  }
+
+  /**
+   * @param index the bucket index.
+   * @return the lowest value that is accounted in the bucket.
+   */
+  long bucketLowerBound(final int index) {
+    if (index < subBucketCount) {
+      return index;
+    }
+    int k = index >>> precisionBits;
+    long sub = (index & (subBucketCount - 1)) + subBucketCount;
+    return sub << (k - 1);
+  }
+
+  int getNrBuckets() {
+    return counts.length;
+  }
+
+  public long getHighestTrackableValue() {
+    return highestTrackableValue;
+  }
+
+  public int getPrecisionBits() {
+    return precisionBits;
+  }
+
+  public String getUnitOfMeasurement() {
+    return info.getMeasurementUnit(1);
+  }
+
+  boolean isSameConfig(final HistogramAccumulator other) {
+    return precisionBits == other.precisionBits && highestTrackableValue == other.highestTrackableValue;
+  }
+
+  /**
+   * @param bucketCounts the bucket counts.
+   * @param offset the offset of the first bucket count in bucketCounts.
+   * @param count the measurement count.
+   * @param total the measurement total.
+   * @param min the min measurement.
+   * @param max the max measurement.
+   * @return the measurements followed by the (bucket lower bound, count) pairs of the non empty buckets.
+   */
+  long[] toMeasurements(final long[] bucketCounts, final int offset, final long count, final long total,
+          final long min, final long max) {
+    int nrBuckets = counts.length;
+    int nonEmpty = 0;
+    for (int i = offset, l = offset + nrBuckets; i < l; i++) {
+      if (bucketCounts[i] != 0) {
+        nonEmpty++;
+      }
+    }
+    long[] result = new long[BUCKETS_OFFSET + 2 * nonEmpty];
+    result[0] = count;
+    result[1] = total;
+    result[2] = min;
+    result[3] = max;
+    percentiles(bucketCounts, offset, count, min, max, result, 4);
+    int j = BUCKETS_OFFSET;
+    for (int i = 0; i < nrBuckets; i++) {
+      long c = bucketCounts[offset + i];
+      if (c != 0) {
+        result[j++] = bucketLowerBound(i);
+        result[j++] = c;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * compute the percentiles.
+   * @param bucketCounts the bucket counts.
+   * @param offset the offset of the first bucket count in bucketCounts.
+   * @param count the total count.
+   * @param min the min measurement.
+   * @param max the max measurement.
+   * @param to the array to write the percentiles to.
+   * @param toOffset the offset in to.
+   */
+  void percentiles(final long[] bucketCounts, final int offset, final long count,
+          final long min, final long max, final long[] to, final int toOffset) {
+    int nrBuckets = counts.length;
+    int b = 0;
+    long cumulative = 0;
+    for (int p = 0; p < PERCENTILES.length; p++) {
+      long rank = Math.max(1, (long) Math.ceil(PERCENTILES[p] * count / 100));
+      while (b < nrBuckets - 1 && cumulative + bucketCounts[offset + b] < rank) {
+        cumulative += bucketCounts[offset + b];
+        b++;
+      }
+      long value = b == nrBuckets - 1 ? max : bucketLowerBound(b + 1) - 1;
+      to[toOffset + p] = Math.max(min, Math.min(max, value));
+    }
+  }
+
+  @Override
+  public synchronized void record(final long measurement) {
+    measurementCount++;
+    measurementTotal += measurement;
+    if (measurement < minMeasurement) {
+      minMeasurement = measurement;
+    }
+    if (measurement > maxMeasurement) {
+      maxMeasurement = measurement;
+    }
+    counts[getBucket(measurement)]++;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public synchronized long[] get() {
+    if (measurementCount == 0) {
+      return null;
+    }
+    return toMeasurements(counts, 0, measurementCount, measurementTotal, minMeasurement, maxMeasurement);
+  }
+
+  /**
+   * @param percentile the percentile (0, 100].
+   * @return the value at percentile, or null if no measurements.
+   */
+  @Nullable
+  public synchronized Long getValueAtPercentile(final double percentile) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("Invalid percentile " + percentile);
+    }
+    if (measurementCount == 0) {
+      return null;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile * measurementCount / 100));
+    long cumulative = 0;
+    int last = counts.length - 1;
+    for (int b = 0; b < last; b++) {
+      cumulative += counts[b];
+      if (cumulative >= rank) {
+        return Math.max(minMeasurement, Math.min(maxMeasurement, bucketLowerBound(b + 1) - 1));
+      }
+    }
+    return maxMeasurement;
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return info;
+  }
+
+  /**
+   * Aggregate with another histogram, the result will have the lowest precision and the highest range
+   * of the two. The overflow bucket of a lower range histogram is accounted at its lower bound.
+   */
+  @Override
+  public HistogramAccumulator aggregate(final MeasurementAccumulator mSource) {
+    if (!(mSource instanceof HistogramAccumulator)) {
+      throw new IllegalArgumentException("Cannot aggregate " + this + " with " + mSource);
+    }
+    HistogramAccumulator me = createClone();
+    HistogramAccumulator other = ((HistogramAccumulator) mSource).createClone();
+    HistogramAccumulator result;
+    if (me.isSameConfig(other)) {
+      result = me;
+    } else {
+      int bits = Math.min(me.precisionBits, other.precisionBits);
+      long highest = Math.max(me.highestTrackableValue, other.highestTrackableValue);
+      HistogramAccumulator template = me.precisionBits == bits && me.highestTrackableValue == highest ? me
+              : other.precisionBits == bits && other.highestTrackableValue == highest ? other
+              : new HistogramAccumulator(info.getMeasuredEntity(), info.getDescription(), getUnitOfMeasurement(),
+                      highest, bits);
+      result = new HistogramAccumulator(template.info, highest, bits, Long.MAX_VALUE, Long.MIN_VALUE, 0, 0,
+              new long[template.counts.length]);
+      result.addFrom(me);
+    }
+    result.addFrom(other);
+    return result;
+  }
+
+  /**
+   * add all the measurements from other (not thread safe, used only on non shared instances).
+   */
+  private void addFrom(final HistogramAccumulator other) {
+    if (other.measurementCount == 0) {
+      return;
+    }
+    measurementCount += other.measurementCount;
+    measurementTotal += other.measurementTotal;
+    minMeasurement = Math.min(minMeasurement, other.minMeasurement);
+    maxMeasurement = Math.max(maxMeasurement, other.maxMeasurement);
+    if (isSameConfig(other)) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+    } else {
+      for (int i = 0; i < other.counts.length; i++) {
+        long c = other.counts[i];
+        if (c != 0) {
+          counts[getBucket(other.bucketLowerBound(i))] += c;
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized HistogramAccumulator createClone() {
+    return new HistogramAccumulator(info, highestTrackableValue, precisionBits,
+            minMeasurement, maxMeasurement, measurementCount, measurementTotal, counts.clone());
+  }
+
+  @Override
+  @Nullable
+  public synchronized HistogramAccumulator reset() {
+    if (measurementCount == 0) {
+      return null;
+    }
+    HistogramAccumulator result = createClone();
+    this.minMeasurement = Long.MAX_VALUE;
+    this.maxMeasurement = Long.MIN_VALUE;
+    this.measurementCount = 0;
+    this.measurementTotal = 0;
+    Arrays.fill(this.counts, 0L);
+    return result;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] getThenReset() {
+    final HistogramAccumulator vals = reset();
+    if (vals == null) {
+      return null;
+    } else {
+      return vals.get();
+    }
+  }
+
+  @Override
+  public HistogramAccumulator createLike(final Object entity) {
+    return new HistogramAccumulator(entity, info.getDescription(), getUnitOfMeasurement(),
+            highestTrackableValue, precisionBits);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "HistogramAccumulator{" + "info=" + info + ", highestTrackableValue=" + highestTrackableValue
+            + ", precisionBits=" + precisionBits + ", minMeasurement=" + minMeasurement
+            + ", maxMeasurement=" + maxMeasurement + ", measurementCount=" + measurementCount
+            + ", measurementTotal=" + measurementTotal + ", counts=" + Arrays.toString(counts) + '}';
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+
+/**
+ * A accumulator where recording never takes a lock.
+ *
+ * Every recording thread has its own cell where it is the single writer, all cell updates are ordered writes
+ * (lazySet) of values only this thread modifies. Count, total and histogram buckets are cumulative in the cells,
+ * the collecting thread reports the difference since its previous reset. Min and max are tracked per reset epoch,
+ * the writer restarts them when it observes a new epoch. As such a value recorded concurrently with a reset
+ * will be counted in exactly one of the intervals, but its min/max contribution might be reported in the next one.
+ *
+ * Supports the layouts of: QuantizedAccumulator, HistogramAccumulator, MinMaxAvgAccumulator,
+ * AddAndCountAccumulator and CountAccumulator.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+// a accumulator instance is tipically alive for the entire life of the process
+@SuppressFBWarnings("PMB_INSTANCE_BASED_THREAD_LOCAL")
+public final class LockFreeAccumulator extends CellAccumulator {
+
+  private final boolean minMax;
+
+  /**
+   * the cell slot of the epoch the min/max belong to.
+   */
+  private final int epochIdx;
+
+  private final ThreadLocal<Cell> threadCell;
+
+  private final ConcurrentLinkedQueue<Cell> cells;
+
+  private LockFreeAccumulator(final Layout layout, @Nullable final long[] detached) {
+    super(layout, detached);
+    this.minMax = layout.isMinMax();
+    this.epochIdx = layout.getNrValues();
+    this.cells = new ConcurrentLinkedQueue<>();
+    this.threadCell = ThreadLocal.withInitial(() -> {
+      Cell cell = new Cell(Thread.currentThread(), epochIdx + 1);
+      cells.add(cell);
+      return cell;
+    });
+  }
+
+  /**
+   * @param accumulator the accumulator to test.
+   * @return true if there is a lock free implementation for the accumulator.
+   */
+  public static boolean isSupported(final MeasurementAccumulator accumulator) {
+    return CellAccumulator.isSupported(accumulator);
+  }
+
+  /**
+   * Create a lock free accumulator that produces the same measurements as the template.
+   * @param template the accumulator to produce the same measurements as.
+   * @return the lock free accumulator.
+   */
+  public static LockFreeAccumulator from(final MeasurementAccumulator template) {
+    return new LockFreeAccumulator(Layout.from(template), null);
+  }
+
+  @Override
+  public void record(final long measurement) {
+    AtomicLongArray values = threadCell.get().values;
+    values.lazySet(COUNT, values.get(COUNT) + 1);
+    values.lazySet(TOTAL, values.get(TOTAL) + measurement);
+    if (minMax) {
+      long e = getEpoch();
+      if (values.get(epochIdx) != e) {
+        values.lazySet(MIN, measurement);
+        values.lazySet(MAX, measurement);
+        values.lazySet(epochIdx, e);
+      } else {
+        if (measurement < values.get(MIN)) {
+          values.lazySet(MIN, measurement);
+        }
+        if (measurement > values.get(MAX)) {
+          values.lazySet(MAX, measurement);
+        }
+      }
+    }
+    int bucketIdx = getLayout().bucketIndex(measurement);
+    if (bucketIdx >= 0) {
+      values.lazySet(bucketIdx, values.get(bucketIdx) + 1);
+    }
+  }
+
+  @Override
+  void collectCells(final long[] result, final long currentEpoch, final boolean reset) {
+    int nrValues = epochIdx;
+    Iterator<Cell> it = cells.iterator();
+    while (it.hasNext()) {
+      Cell cell = it.next();
+      boolean alive = cell.thread.isAlive();
+      long[] current = cell.read();
+      long[] last = cell.lastReported;
+      if (current[COUNT] != last[COUNT]) {
+        for (int i = COUNT; i < nrValues; i++) {
+          result[i] += current[i] - last[i];
+        }
+        if (minMax) {
+          result[MIN] = Math.min(result[MIN], current[MIN]);
+          result[MAX] = Math.max(result[MAX], current[MAX]);
+        }
+      }
+      if (reset) {
+        cell.lastReported = current;
+        if (!alive) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  @Override
+  LockFreeAccumulator newDetached(final long[] values) {
+    return new LockFreeAccumulator(getLayout(), values);
+  }
+
+  @Override
+  public LockFreeAccumulator createLike(final Object entity) {
+    return from(getLayout().getTemplate().createLike(entity));
+  }
+
+  @VisibleForTesting
+  int getNrCells() {
+    return cells.size();
+  }
+
+  @Override
+  public String toString() {
+    return "LockFreeAccumulator{" + "layout=" + getLayout() + ", epoch=" + getEpoch()
+            + ", cells=" + cells.size() + '}';
+  }
+
+  private static final class Cell {
+
+    private final Thread thread;
+
+    /**
+     * written only by thread.
+     */
+    private final AtomicLongArray values;
+
+    /**
+     * accessed only by the collecting thread (under the read lock).
+     */
+    private long[] lastReported;
+
+    Cell(final Thread thread, final int nrSlots) {
+      this.thread = thread;
+      this.values = new AtomicLongArray(nrSlots);
+      this.values.set(nrSlots - 1, -1L); // no epoch
+      this.lastReported = new long[nrSlots];
+    }
+
+    long[] read() {
+      long[] result = new long[values.length()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = values.get(i);
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "Cell{" + "thread=" + thread + ", values=" + values + '}';
+    }
+
+  }
+
+}
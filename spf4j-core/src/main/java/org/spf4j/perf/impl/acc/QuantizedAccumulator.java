@@ -263,6 +263,13 @@ public final class QuantizedAccumulator extends AbstractMeasurementAccumulator {
     this.info = info;
   }
 
+  /**
+   * @return the bucket limits, bucket i contains values in [limits[i - 1], limits[i]).
+   */
+  public long[] getBucketLimits() {
+    return bucketLimits.clone();
+  }
+
   public String getUnitOfMeasurement() {
     return info.getMeasurementUnit(0);
   }
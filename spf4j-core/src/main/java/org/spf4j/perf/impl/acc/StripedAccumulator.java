@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+
+/**
+ * A accumulator that records into a fixed number of stripes, a thread records into the stripe selected by its
+ * probe (similar to LongAdder cells). The probe starts as the hash of the thread id, and moves to another stripe
+ * when the count update of a record fails due to contention, so threads that collide on a stripe spread out.
+ * Memory use does not depend on the number of threads, which makes this accumulator appropriate
+ * for short lived threads, large thread pools (or virtual threads).
+ *
+ * Stripes are updated with atomic operations (no locks), count, total and histogram buckets are cumulative,
+ * min and max are kept in 2 slot pairs alternating with the reset epoch, the collector reads and clears
+ * the pair of the epoch it collects.
+ *
+ * Supports the layouts of: QuantizedAccumulator, HistogramAccumulator, MinMaxAvgAccumulator,
+ * AddAndCountAccumulator and CountAccumulator.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class StripedAccumulator extends CellAccumulator {
+
+  /**
+   * Default number of stripes, by default the power of 2 greater or equal with 2 * available processors.
+   */
+  public static final int DEFAULT_NR_STRIPES = Integer.getInteger("spf4j.perf.stripedAccumulator.stripes",
+          Math.min(1024, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1)));
+
+  /**
+   * the per thread stripe probe, shared by all striped accumulators (like the thread probe of Striped64).
+   */
+  private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> {
+    long id = Thread.currentThread().getId();
+    int h = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    return new int[] {h == 0 ? 1 : h};
+  });
+
+  private final boolean minMax;
+
+  private final int nrValues;
+
+  private final int mask;
+
+  private final AtomicReferenceArray<Stripe> stripes;
+
+  private StripedAccumulator(final Layout layout, final int nrStripes, @Nullable final long[] detached) {
+    super(layout, detached);
+    if (Integer.bitCount(nrStripes) != 1) {
+      throw new IllegalArgumentException("Number of stripes must be a power of 2, not " + nrStripes);
+    }
+    this.minMax = layout.isMinMax();
+    this.nrValues = layout.getNrValues();
+    this.mask = nrStripes - 1;
+    this.stripes = new AtomicReferenceArray<>(nrStripes);
+  }
+
+  /**
+   * @param accumulator the accumulator to test.
+   * @return true if there is a striped implementation for the accumulator.
+   */
+  public static boolean isSupported(final MeasurementAccumulator accumulator) {
+    return CellAccumulator.isSupported(accumulator);
+  }
+
+  /**
+   * Create a striped accumulator that produces the same measurements as the template.
+   * @param template the accumulator to produce the same measurements as.
+   * @return the striped accumulator.
+   */
+  public static StripedAccumulator from(final MeasurementAccumulator template) {
+    return from(template, DEFAULT_NR_STRIPES);
+  }
+
+  /**
+   * Create a striped accumulator that produces the same measurements as the template.
+   * @param template the accumulator to produce the same measurements as.
+   * @param nrStripes the number of stripes, needs to be a power of 2.
+   * @return the striped accumulator.
+   */
+  public static StripedAccumulator from(final MeasurementAccumulator template, final int nrStripes) {
+    return new StripedAccumulator(Layout.from(template), nrStripes, null);
+  }
+
+  private Stripe getStripe(final int probe) {
+    int idx = probe & mask;
+    Stripe stripe = stripes.get(idx);
+    if (stripe == null) {
+      stripe = new Stripe(nrValues);
+      if (!stripes.compareAndSet(idx, null, stripe)) {
+        stripe = stripes.get(idx);
+      }
+    }
+    return stripe;
+  }
+
+  private int minIdx(final long epoch) {
+    return (epoch & 1) == 0 ? MIN : nrValues;
+  }
+
+  private int maxIdx(final long epoch) {
+    return (epoch & 1) == 0 ? MAX : nrValues + 1;
+  }
+
+  /**
+   * xorshift, the same as ThreadLocalRandom.advanceProbe.
+   */
+  private static int advanceProbe(final int probe) {
+    int h = probe;
+    h ^= h << 13;
+    h ^= h >>> 17;
+    h ^= h << 5;
+    return h;
+  }
+
+  @Override
+  public void record(final long measurement) {
+    int[] probe = PROBE.get();
+    AtomicLongArray values = getStripe(probe[0]).values;
+    long count = values.get(COUNT);
+    if (!values.compareAndSet(COUNT, count, count + 1)) {
+      // contended stripe, the next record of this thread goes to another stripe.
+      values.getAndIncrement(COUNT);
+      probe[0] = advanceProbe(probe[0]);
+    }
+    values.getAndAdd(TOTAL, measurement);
+    if (minMax) {
+      long e = getEpoch();
+      int idx = minIdx(e);
+      long current;
+      while (measurement < (current = values.get(idx)) && !values.compareAndSet(idx, current, measurement)) {
+        // retry
+      }
+      idx = maxIdx(e);
+      while (measurement > (current = values.get(idx)) && !values.compareAndSet(idx, current, measurement)) {
+        // retry
+      }
+    }
+    int bucketIdx = getLayout().bucketIndex(measurement);
+    if (bucketIdx >= 0) {
+      values.getAndIncrement(bucketIdx);
+    }
+  }
+
+  @Override
+  void collectCells(final long[] result, final long currentEpoch, final boolean reset) {
+    int minIdx = minIdx(currentEpoch);
+    int maxIdx = maxIdx(currentEpoch);
+    for (int s = 0, l = stripes.length(); s < l; s++) {
+      Stripe stripe = stripes.get(s);
+      if (stripe == null) {
+        continue;
+      }
+      AtomicLongArray values = stripe.values;
+      long[] last = stripe.lastReported;
+      for (int i = COUNT; i < nrValues; i++) {
+        long v = values.get(i);
+        result[i] += v - last[i];
+        if (reset) {
+          last[i] = v;
+        }
+      }
+      if (minMax) {
+        if (reset) {
+          result[MIN] = Math.min(result[MIN], values.getAndSet(minIdx, Long.MAX_VALUE));
+          result[MAX] = Math.max(result[MAX], values.getAndSet(maxIdx, Long.MIN_VALUE));
+        } else {
+          result[MIN] = Math.min(result[MIN], values.get(minIdx));
+          result[MAX] = Math.max(result[MAX], values.get(maxIdx));
+        }
+      }
+    }
+  }
+
+  @Override
+  StripedAccumulator newDetached(final long[] values) {
+    return new StripedAccumulator(getLayout(), mask + 1, values);
+  }
+
+  @Override
+  public StripedAccumulator createLike(final Object entity) {
+    return new StripedAccumulator(Layout.from(getLayout().getTemplate().createLike(entity)), mask + 1, null);
+  }
+
+  @Override
+  public String toString() {
+    return "StripedAccumulator{" + "layout=" + getLayout() + ", epoch=" + getEpoch()
+            + ", nrStripes=" + stripes.length() + '}';
+  }
+
+  private static final class Stripe {
+
+    /**
+     * canonical values, followed by the min, max of the odd epochs.
+     */
+    private final AtomicLongArray values;
+
+    /**
+     * accessed only by the collecting thread (under the read lock).
+     */
+    private final long[] lastReported;
+
+    Stripe(final int nrValues) {
+      this.values = new AtomicLongArray(nrValues + 2);
+      this.values.set(MIN, Long.MAX_VALUE);
+      this.values.set(MAX, Long.MIN_VALUE);
+      this.values.set(nrValues, Long.MAX_VALUE);
+      this.values.set(nrValues + 1, Long.MIN_VALUE);
+      this.lastReported = new long[nrValues];
+    }
+
+    @Override
+    public String toString() {
+      return "Stripe{" + "values=" + values + '}';
+    }
+
+  }
+
+}
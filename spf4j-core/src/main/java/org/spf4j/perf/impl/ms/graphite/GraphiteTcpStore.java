@@ -54,6 +54,7 @@ import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
 import org.spf4j.perf.MeasurementStoreQuery;
 import org.spf4j.perf.impl.ms.Id2Info;
+import static org.spf4j.perf.impl.ms.graphite.GraphiteUdpStore.nrMetrics;
 import static org.spf4j.perf.impl.ms.graphite.GraphiteUdpStore.writeMetric;
 import org.spf4j.recyclable.ObjectCreationException;
 import org.spf4j.recyclable.ObjectDisposeException;
@@ -201,9 +202,8 @@ public final class GraphiteTcpStore implements MeasurementStore {
     @Override
     @Nullable
     public Void handle(final Writer socketWriter, final long deadline) throws IOException {
-      for (int i = 0; i < measurements.length; i++) {
-        writeMetric(measurementInfo, measurementInfo.getMeasurementName(i),
-                measurements[i], timeStampMillis, socketWriter);
+      for (int i = 0, l = nrMetrics(measurementInfo, measurements); i < l; i++) {
+        writeMetric(measurementInfo, measurements, i, timeStampMillis, socketWriter);
       }
       socketWriter.flush();
       return null;
@@ -167,6 +167,33 @@ public final class GraphiteUdpStore implements MeasurementStore {
 
   }
 
+  /**
+   * @param measurementInfo the measurements info.
+   * @param measurements the measurements.
+   * @return the number of metrics, the declared measurements followed by the histogram
+   * (bucket lower bound, count) pairs.
+   */
+  static int nrMetrics(final MeasurementsInfo measurementInfo, final long[] measurements) {
+    int nrMeasurements = Math.min(measurementInfo.getNumberOfMeasurements(), measurements.length);
+    return nrMeasurements + (measurements.length - nrMeasurements) / 2;
+  }
+
+  /**
+   * write a metric, the histogram bucket counts are named Q[bucket lower bound].
+   * @param metricNr the metric number [0, nrMetrics).
+   */
+  static void writeMetric(final MeasurementsInfo measurementInfo, final long[] measurements, final int metricNr,
+          final long timeStampMillis, final Writer os) throws IOException {
+    int nrMeasurements = measurementInfo.getNumberOfMeasurements();
+    if (metricNr < nrMeasurements) {
+      writeMetric(measurementInfo, measurementInfo.getMeasurementName(metricNr), measurements[metricNr],
+              timeStampMillis, os);
+    } else {
+      int idx = nrMeasurements + 2 * (metricNr - nrMeasurements);
+      writeMetric(measurementInfo, "Q" + measurements[idx], measurements[idx + 1], timeStampMillis, os);
+    }
+  }
+
   /**
    * Write with the plaintext protocol: https://graphite.readthedocs.io/en/0.9.10/feeding-carbon.html
    *
@@ -227,9 +254,8 @@ public final class GraphiteUdpStore implements MeasurementStore {
         int msgEnd = 0;
         int prevEnd = 0;
 
-        for (int i = 0; i < measurements.length; i++) {
-          writeMetric(measurementInfo, measurementInfo.getMeasurementName(i),
-                  measurements[i], timeStampMillis, os);
+        for (int i = 0, l = nrMetrics(measurementInfo, measurements); i < l; i++) {
+          writeMetric(measurementInfo, measurements, i, timeStampMillis, os);
           os.flush();
           msgEnd = bos.size();
           int length = msgEnd - msgStart;
@@ -32,22 +32,33 @@
 package org.spf4j.perf.impl.ms.tsdb;
 
 import com.google.common.primitives.Longs;
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileStream;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecord;
+import org.spf4j.base.AbstractRunnable;
 import org.spf4j.jmx.JmxExport;
 import org.spf4j.perf.MeasurementStoreQuery;
 import org.spf4j.tsdb2.TableDefs;
@@ -55,6 +66,11 @@ import org.spf4j.tsdb2.avro.Observation;
 import org.spf4j.tsdb2.avro.TableDef;
 
 /**
+ * Avro measurement store.
+ * Table definitions are written to fileNameBase.tabledef.avro, observations to fileNameBase.observation.avro.
+ * The observation file is rolled into fileNameBase.N.observation.avro segments based on the {@link SegmentPolicy},
+ * rolled segments are downsampled and deleted in the background as configured by the policy.
+ * Every data file has a sparse block index side-car file (see ObservationBlockIndex) used by time range queries.
  *
  * @author zoly
  */
@@ -62,19 +78,49 @@ import org.spf4j.tsdb2.avro.TableDef;
 public final class AvroMeasurementStore
         implements MeasurementStore {
 
+  static final String DATA_FILE_SUFFIX = ".observation.avro";
+
+  /**
+   * Avro file metadata key marking a segment downsampled to the resolution (millis) stored as value.
+   */
+  static final String DOWNSAMPLED_META = "downsampledMillis";
+
+  private static final Logger LOG = Logger.getLogger(AvroMeasurementStore.class.getName());
+
   private CodecFactory codecFact;
 
   private DataFileWriter<TableDef> infoWriter;
 
+  private final Object dataSync = new Object();
+
+  @GuardedBy("dataSync")
   private DataFileWriter<Observation> dataWriter;
 
+  @GuardedBy("dataSync")
+  private ObservationBlockIndex.Writer dataIndex;
+
   private Path infoFile;
 
   private Path dataFile;
 
   private long ids;
 
-  private final long timeRef;
+  @GuardedBy("dataSync")
+  private long timeRef;
+
+  @GuardedBy("dataSync")
+  private long segmentRecords;
+
+  @GuardedBy("dataSync")
+  private long nextSegmentNr;
+
+  private final Path destinationPath;
+
+  private final String fileNameBase;
+
+  private final SegmentPolicy segmentPolicy;
+
+  private final Segments.Maintenance maintenance;
 
   private final AvroMeasurementStoreReader reader;
 
@@ -94,8 +140,17 @@ public final class AvroMeasurementStore
   }
 
   public AvroMeasurementStore(final Path destinationPath, final String fileNameBase,
-          @Nullable final Compressor compressor)
+          @Nullable final Compressor compressor) throws IOException {
+    this(destinationPath, fileNameBase, compressor, SegmentPolicy.DEFAULT);
+  }
+
+  public AvroMeasurementStore(final Path destinationPath, final String fileNameBase,
+          @Nullable final Compressor compressor, final SegmentPolicy segmentPolicy)
   throws IOException {
+    this.destinationPath = destinationPath;
+    this.fileNameBase = fileNameBase;
+    this.segmentPolicy = segmentPolicy;
+    this.maintenance = new Segments.Maintenance();
     if (compressor != null) {
       switch (compressor) {
         case SNAPPY:
@@ -127,11 +182,22 @@ public final class AvroMeasurementStore
     AvroFileInfo<TableDef> info = initWriter(fileNameBase, destinationPath, true, TableDef.class);
     this.infoFile = info.getFilePath();
     this.infoWriter = info.getFileWriter();
+    this.ids = info.getInitNrRecords();
     AvroFileInfo<Observation> data = initWriter(fileNameBase, destinationPath, false, Observation.class);
     this.dataFile = data.getFilePath();
-    this.dataWriter = data.getFileWriter();
-    timeRef = data.getFileEpoch();
-    reader = new AvroMeasurementStoreReader(infoFile, dataFile);
+    synchronized (dataSync) {
+      this.dataWriter = data.getFileWriter();
+      this.timeRef = data.getFileEpoch();
+      this.dataIndex = openIndex(dataFile, dataWriter);
+      this.nextSegmentNr = Segments.nextSegmentNumber(
+              Segments.list(destinationPath, fileNameBase, DATA_FILE_SUFFIX), fileNameBase, DATA_FILE_SUFFIX);
+      if (segmentPolicy.isRolling()) {
+        // roll over data from a previous run if needed.
+        segmentRecords = data.getInitNrRecords() == 0 ? 0 : 1;
+        rollIfNeeded(System.currentTimeMillis());
+      }
+    }
+    reader = new AvroMeasurementStoreReader(infoFile);
    }
 
   private <T extends SpecificRecord>
@@ -145,6 +211,7 @@ public final class AvroMeasurementStore
     }
     long epoch = System.currentTimeMillis();
     writer.setMeta("timeRef", epoch);
+    writer.setMeta(ObservationBlockIndex.FILE_ID_META, ThreadLocalRandom.current().nextLong());
     String fileName = fileNameBase + '.' + clasz.getSimpleName().toLowerCase(Locale.US) +  ".avro";
     Path file = destinationPath.resolve(fileName);
     long initNrRecords;
@@ -159,7 +226,7 @@ public final class AvroMeasurementStore
           }
           initNrRecords = count;
         } else {
-          initNrRecords = -1L;
+          initNrRecords = streamReader.hasNext() ? -1L : 0L;
         }
         epoch = streamReader.getMetaLong("timeRef");
       }
@@ -205,9 +272,138 @@ public final class AvroMeasurementStore
   public void saveMeasurements(final long tableId,
           final long timeStampMillis, final long... measurements)
           throws IOException {
-    synchronized (dataWriter) {
-      dataWriter.append(new Observation(timeStampMillis - timeRef, tableId, Longs.asList(measurements)));
+    synchronized (dataSync) {
+      append(dataWriter, dataIndex,
+              new Observation(timeStampMillis - timeRef, tableId, Longs.asList(measurements)));
+      segmentRecords++;
+    }
+  }
+
+  private static void append(final DataFileWriter<Observation> writer, final ObservationBlockIndex.Writer index,
+          final Observation observation) throws IOException {
+    writer.append(observation);
+    if (index.add(observation.getRelTimeStamp(), observation.getTableDefId())
+            >= ObservationBlockIndex.DEFAULT_BLOCK_RECORDS) {
+      index.endBlock(writer.sync());
+    }
+  }
+
+  @CreatesObligation
+  private static ObservationBlockIndex.Writer openIndex(final Path file, final DataFileWriter<Observation> writer)
+          throws IOException {
+    writer.flush();
+    return ObservationBlockIndex.openWriter(file, writer.sync());
+  }
+
+  @GuardedBy("dataSync")
+  private void rollIfNeeded(final long nowMillis) throws IOException {
+    if (segmentRecords > 0 && segmentPolicy.shouldRoll(Files.size(dataFile), timeRef, nowMillis)) {
+      closeData();
+      Path segment = Segments.getSegmentPath(destinationPath, fileNameBase, nextSegmentNr, DATA_FILE_SUFFIX);
+      Files.move(dataFile, segment, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(ObservationBlockIndex.getIndexFile(dataFile), ObservationBlockIndex.getIndexFile(segment),
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      nextSegmentNr++;
+      AvroFileInfo<Observation> data = initWriter(fileNameBase, destinationPath, false, Observation.class);
+      dataWriter = data.getFileWriter();
+      timeRef = data.getFileEpoch();
+      dataIndex = openIndex(dataFile, dataWriter);
+      segmentRecords = 0;
+      LOG.log(Level.FINE, "Rolled {0} to {1}", new Object[] {dataFile, segment});
+    }
+  }
+
+  /**
+   * Delete expired and downsample old rolled segments.
+   */
+  void maintainSegments() throws IOException {
+    synchronized (maintenance) {
+      doMaintainSegments();
+    }
+  }
+
+  private void doMaintainSegments() throws IOException {
+    long now = System.currentTimeMillis();
+    List<Path> files = Segments.list(destinationPath, fileNameBase, DATA_FILE_SUFFIX);
+    TLongObjectMap<Schema> schemas = null;
+    for (Path file : files) {
+      long segmentNr = Segments.getSegmentNumber(file, fileNameBase, DATA_FILE_SUFFIX);
+      if (segmentNr == Segments.ACTIVE || segmentNr == Segments.OTHER) {
+        continue;
+      }
+      if (segmentPolicy.isRetentionEnabled()
+              && Segments.isOlder(file, now - segmentPolicy.getRetentionMillis())) {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(ObservationBlockIndex.getIndexFile(file));
+        LOG.log(Level.FINE, "Deleted expired segment {0}", file);
+      } else if (segmentPolicy.isCompactionEnabled()
+              && Segments.isOlder(file, now - segmentPolicy.getCompactAfterMillis())) {
+        if (schemas == null) {
+          schemas = readSchemas();
+        }
+        downsample(file, schemas);
+      }
+    }
+  }
+
+  private TLongObjectMap<Schema> readSchemas() throws IOException {
+    TLongObjectMap<Schema> result = new TLongObjectHashMap<>();
+    synchronized (infoWriter) {
+      infoWriter.flush();
+      try (DataFileStream<TableDef> stream = new DataFileStream<>(Files.newInputStream(infoFile),
+              new SpecificDatumReader<>(TableDef.class))) {
+        for (TableDef td : stream) {
+          result.put(td.getId(), TableDefs.createSchema(td));
+        }
+      }
+    }
+    return result;
+  }
+
+  private void downsample(final Path segment, final TLongObjectMap<Schema> schemas) throws IOException {
+    long resolution = segmentPolicy.getCompactionResolutionMillis();
+    FileTime lastModified = Files.getLastModifiedTime(segment);
+    Path fileName = segment.getFileName();
+    if (fileName == null) {
+      throw new IllegalArgumentException("Invalid segment " + segment);
+    }
+    Path tmp = segment.resolveSibling(fileName + ".tmp");
+    Path tmpIndex = ObservationBlockIndex.getIndexFile(tmp);
+    try (DataFileStream<Observation> in = new DataFileStream<>(Files.newInputStream(segment),
+            new SpecificDatumReader<>(Observation.class))) {
+      String downsampled = in.getMetaString(DOWNSAMPLED_META);
+      if (downsampled != null && Long.parseLong(downsampled) >= resolution) {
+        return;
+      }
+      try (DataFileWriter<Observation> out = new DataFileWriter<>(new SpecificDatumWriter<>(Observation.class))) {
+        if (codecFact != null) {
+          out.setCodec(codecFact);
+        }
+        out.setMeta("timeRef", in.getMetaLong("timeRef"));
+        out.setMeta(ObservationBlockIndex.FILE_ID_META, ThreadLocalRandom.current().nextLong());
+        out.setMeta(DOWNSAMPLED_META, resolution);
+        out.create(Observation.getClassSchema(), tmp.toFile());
+        try (ObservationBlockIndex.Writer outIndex = openIndex(tmp, out)) {
+          Downsampler downsampler = new Downsampler(resolution, schemas::get, (obs) -> append(out, outIndex, obs));
+          for (Observation obs : in) {
+            downsampler.add(obs);
+          }
+          downsampler.flush();
+          outIndex.endBlock(out.sync());
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(tmp);
+      Files.deleteIfExists(tmpIndex);
+      throw ex;
     }
+    // the new file has a new file id, the old index will not be used with the new data.
+    Files.move(tmp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(tmpIndex, ObservationBlockIndex.getIndexFile(segment),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // retention is based on the last modified time, preserve it.
+    Files.setLastModifiedTime(segment, lastModified);
+    LOG.log(Level.FINE, "Downsampled segment {0} to {1} ms", new Object[] {segment, resolution});
   }
 
   @Override
@@ -215,7 +411,15 @@ public final class AvroMeasurementStore
     synchronized (infoWriter) {
       infoWriter.close();
     }
-    synchronized (dataWriter) {
+    synchronized (dataSync) {
+      closeData();
+    }
+  }
+
+  @GuardedBy("dataSync")
+  private void closeData() throws IOException {
+    try (ObservationBlockIndex.Writer index = dataIndex) {
+      index.endBlock(dataWriter.sync());
       dataWriter.close();
     }
   }
@@ -226,8 +430,22 @@ public final class AvroMeasurementStore
     synchronized (infoWriter) {
       infoWriter.flush();
     }
-    synchronized (dataWriter) {
+    long now = System.currentTimeMillis();
+    synchronized (dataSync) {
+      dataIndex.endBlock(dataWriter.sync());
       dataWriter.flush();
+      dataIndex.flush();
+      if (segmentPolicy.isRolling()) {
+        rollIfNeeded(now);
+      }
+    }
+    if (segmentPolicy.hasMaintenance()) {
+      maintenance.maybeRun(now, "avro-ms-maintenance", new AbstractRunnable(true) {
+        @Override
+        public void doRun() throws IOException {
+          maintainSegments();
+        }
+      });
     }
   }
 
@@ -235,15 +453,29 @@ public final class AvroMeasurementStore
     return infoFile;
   }
 
+  /**
+   * @return the active data file.
+   */
   public Path getDataFile() {
     return dataFile;
   }
 
+  /**
+   * @return all data files, rolled segments in order and the active segment.
+   */
+  public List<Path> getDataFiles() throws IOException {
+    return AvroMeasurementStoreReader.lookupObservationFiles(infoFile);
+  }
+
+  public SegmentPolicy getSegmentPolicy() {
+    return segmentPolicy;
+  }
+
   @Override
   public String toString() {
     return "AvroMeasurementStore{" + "codecFact=" + codecFact + ", infoWriter=" + infoWriter
             + ", dataWriter=" + dataWriter + ", infoFile=" + infoFile + ", dataFile=" + dataFile
-            + ", ids=" + ids + ", timeRef=" + timeRef + '}';
+            + ", ids=" + ids + ", timeRef=" + timeRef + ", segmentPolicy=" + segmentPolicy + '}';
   }
 
   @Override
@@ -32,33 +32,45 @@
 package org.spf4j.perf.impl.ms.tsdb;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.THashMap;
 import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileStream;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.spf4j.base.Closeables;
+import org.spf4j.base.ESupplier;
 import org.spf4j.base.Pair;
 import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.perf.MeasurementStoreQuery;
 import org.spf4j.perf.TimeSeriesRecord;
 import org.spf4j.tsdb2.TableDefs;
@@ -73,20 +85,57 @@ public final class AvroMeasurementStoreReader implements MeasurementStoreQuery {
 
   private final Path infoFile;
 
+  /**
+   * Default number of avro blocks chunks decoded in parallel by queries, 1 = sequential scan.
+   */
+  public static final int DEFAULT_SCAN_PARALLELISM =
+          Integer.getInteger("spf4j.perf.avro.scanParallelism", 1);
+
+  @Nullable
   private final Path[] dataFiles;
 
+  private final Executor scanExecutor;
+
+  private final int scanParallelism;
+
+  /**
+   * Create a reader for a store, the data files (segments) are looked up on every query.
+   * @param infoFile the store table definition file.
+   */
   public AvroMeasurementStoreReader(final Path infoFile) throws IOException {
-    this(infoFile, lookupObservationFiles(infoFile).toArray(new Path[1]));
+    this(infoFile, DefaultExecutor.INSTANCE, DEFAULT_SCAN_PARALLELISM);
   }
 
+  /**
+   * Create a reader for a store, the data files (segments) are looked up on every query.
+   * @param infoFile the store table definition file.
+   * @param scanExecutor the executor to decode the data files with.
+   * @param scanParallelism the max number of data chunks decoded in parallel, 1 = sequential scan.
+   */
+  public AvroMeasurementStoreReader(final Path infoFile, final Executor scanExecutor, final int scanParallelism) {
+    this(infoFile, null, scanExecutor, scanParallelism);
+  }
 
   public AvroMeasurementStoreReader(final Path infoFile, final Path... dataFiles) {
+    this(infoFile, dataFiles, DefaultExecutor.INSTANCE, DEFAULT_SCAN_PARALLELISM);
+  }
+
+  public AvroMeasurementStoreReader(final Path infoFile, @Nullable final Path[] dataFiles,
+          final Executor scanExecutor, final int scanParallelism) {
+    if (scanParallelism < 1) {
+      throw new IllegalArgumentException("Invalid scan parallelism " + scanParallelism);
+    }
     this.infoFile = infoFile;
     this.dataFiles = dataFiles;
+    this.scanExecutor = scanExecutor;
+    this.scanParallelism = scanParallelism;
   }
 
+  /**
+   * @param infoFile the table definition file.
+   * @return the observation files in time order, rolled segments first, active file last.
+   */
   public static List<Path> lookupObservationFiles(final Path infoFile) throws IOException {
-    List<Path> dataFiles = new ArrayList<>(4);
     Path fn = infoFile.getFileName();
     if (fn == null) {
       throw new IllegalArgumentException("Invalid info file " + infoFile);
@@ -97,26 +146,7 @@ public final class AvroMeasurementStoreReader implements MeasurementStoreQuery {
     if (parent == null) {
       throw new IllegalArgumentException("Invalid info file " + infoFile);
     }
-    try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent,
-            new DirectoryStream.Filter<Path>() {
-      @Override
-      public boolean accept(final Path entry) {
-        if (Files.isDirectory(entry)) {
-          return false;
-        }
-        Path fnp = entry.getFileName();
-        if (fnp == null) {
-          return false;
-        }
-        String fName = fnp.toString();
-        return fName.startsWith(prefix) && fName.endsWith(".observation.avro");
-      }
-    })) {
-      for (Path f : stream) {
-        dataFiles.add(f);
-      }
-    }
-    return dataFiles;
+    return Segments.list(parent, prefix, AvroMeasurementStore.DATA_FILE_SUFFIX);
   }
 
   @Override
@@ -147,44 +177,358 @@ public final class AvroMeasurementStoreReader implements MeasurementStoreQuery {
     }).collect(Collectors.toCollection(() -> new ArrayList<>(result.size())));
   }
 
+  /**
+   * All observations, merged by timestamp across the data files.
+   */
   @Override
   public AvroCloseableIterable<Observation> getObservations() throws IOException {
-    Schema oSchema = Observation.getClassSchema();
+    Path[] dataFiles = this.dataFiles;
+    boolean lookedUp = dataFiles == null;
+    if (lookedUp) {
+      dataFiles = lookupObservationFiles(infoFile).toArray(new Path[0]);
+    }
     if (dataFiles.length == 0) {
-          return AvroCloseableIterable.from(Collections.emptyList(), () -> { }, oSchema);
+      return AvroCloseableIterable.from(Collections.emptyList(), () -> { }, Observation.getClassSchema());
     }
+    return scan(dataFiles, lookedUp, Long.MIN_VALUE, Long.MAX_VALUE, null, 0L, 0L, 0L);
+  }
+
+  /**
+   * Observations of a measurement in a time range.
+   * Only the avro blocks that can contain matching observations are read, based on the block index of
+   * the data files, data files without a index are read entirely. Observations are merged by timestamp across
+   * the data files.
+   */
+  @Override
+  public AvroCloseableIterable<Observation> getObservations(final Schema measurement,
+          @Nullable final Instant from, @Nullable final Instant to) throws IOException {
+    Set<Long> ids = new HashSet<>();
+    long minId = Long.MAX_VALUE;
+    long maxId = Long.MIN_VALUE;
+    long idMask = 0L;
+    for (Number id : (Collection<? extends Number>) measurement.getObjectProp(TimeSeriesRecord.IDS_PROP)) {
+      long tableId = id.longValue();
+      ids.add(tableId);
+      minId = Math.min(minId, tableId);
+      maxId = Math.max(maxId, tableId);
+      idMask |= ObservationBlockIndex.tableIdMask(tableId);
+    }
+    Path[] dataFiles = this.dataFiles;
+    boolean lookedUp = dataFiles == null;
+    if (lookedUp) {
+      dataFiles = lookupObservationFiles(infoFile).toArray(new Path[0]);
+    }
+    if (dataFiles.length == 0 || ids.isEmpty()) {
+      return AvroCloseableIterable.from(Collections.emptyList(), () -> { }, Observation.getClassSchema());
+    }
+    final long fromMs = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+    final long toMs = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+    return scan(dataFiles, lookedUp, fromMs, toMs, ids, minId, maxId, idMask);
+  }
+
+  /**
+   * Scan the data files sequentially, or with {@link ParallelObservationScan} when the scan parallelism is &gt; 1.
+   * Every iteration of the returned iterable runs a new scan, the first one is started eagerly.
+   * @param tableIds the table ids to return, null for all.
+   */
+  private AvroCloseableIterable<Observation> scan(final Path[] dataFiles, final boolean lookedUp,
+          final long fromMs, final long toMs, @Nullable final Set<Long> tableIds,
+          final long minId, final long maxId, final long idMask) throws IOException {
+    Scans<?> scans;
+    if (scanParallelism > 1) {
+      List<ParallelObservationScan.FileScan> files = planParallelScan(dataFiles, lookedUp, fromMs, toMs, tableIds,
+              minId, maxId, idMask);
+      scans = new Scans<>(() -> new ParallelObservationScan(files, scanExecutor, scanParallelism));
+    } else {
+      scans = new Scans<>(() -> new SequentialScan(dataFiles, lookedUp, fromMs, toMs, tableIds,
+              minId, maxId, idMask));
+    }
+    return AvroCloseableIterable.from(scans, scans, Observation.getClassSchema());
+  }
+
+  /**
+   * Plan the {@link ParallelObservationScan} of the data files, the index is used only to plan the byte ranges
+   * to read.
+   */
+  private static List<ParallelObservationScan.FileScan> planParallelScan(final Path[] dataFiles,
+          final boolean lookedUp, final long fromMs, final long toMs, @Nullable final Set<Long> tableIds,
+          final long minId, final long maxId, final long idMask) throws IOException {
     SpecificDatumReader<Observation> specificDatumReader = new SpecificDatumReader<>(Observation.class);
-    Iterable<Observation>[] streams = new Iterable[dataFiles.length];
-    Closeable[] closeables = new Closeable[dataFiles.length];
-    for (int i = 0; i < dataFiles.length; i++) {
-      Path dataFile = dataFiles[i];
-      DataFileStream<Observation> ds;
+    List<ParallelObservationScan.FileScan> files = new ArrayList<>(dataFiles.length);
+    for (Path dataFile : dataFiles) {
+      DataFileReader<Observation> reader;
       try {
-        ds =  new DataFileStream<Observation>(Files.newInputStream(dataFile), specificDatumReader);
-      } catch (IOException ex) {
-        IOException ex2 = Closeables.closeAll(closeables, 0, i);
-        if (ex2 != null) {
-          ex2.addSuppressed(ex);
-          throw ex2;
+        reader = new DataFileReader<>(dataFile.toFile(), specificDatumReader);
+      } catch (FileNotFoundException | NoSuchFileException ex) {
+        if (lookedUp) { // segment deleted by retention since lookup.
+          continue;
         }
         throw ex;
       }
-      long fileTimeRef = ds.getMetaLong("timeRef");
-      streams[i] = Iterables.transform(ds, new TimeCalibrate(fileTimeRef));
-      closeables[i] = ds;
+      try {
+        long fileTimeRef = reader.getMetaLong("timeRef");
+        long fromRel = toRelative(fromMs, fileTimeRef);
+        long toRel = toRelative(toMs, fileTimeRef);
+        long size = Files.size(dataFile);
+        long[] ranges;
+        if (tableIds == null) {
+          ranges = new long[] {reader.previousSync(), size};
+        } else {
+          ObservationBlockIndex index = ObservationBlockIndex.load(dataFile,
+                  ObservationBlockIndex.getFileId(reader), size);
+          if (index == null) {
+            ranges = new long[] {reader.previousSync(), size};
+          } else {
+            ranges = blockRanges(index, reader, fromRel, toRel, minId, maxId, idMask);
+            ranges[ranges.length - 1] = size;
+          }
+        }
+        files.add(new ParallelObservationScan.FileScan(dataFile, fileTimeRef, ranges, fromRel, toRel, tableIds));
+      } finally {
+        reader.close();
+      }
     }
-    Iterable<Observation> stream = Iterables.concat(streams);
-    return AvroCloseableIterable.from(stream, () -> {
-      IOException ex = Closeables.closeAll(closeables);
-      if (ex != null) {
-        throw new UncheckedIOException(ex);
+    return files;
+  }
+
+  /**
+   * @return the [start, end) position pairs of the blocks that might contain matching observations,
+   * the last range is the not indexed tail of the file, and ends with Long.MAX_VALUE.
+   */
+  private static long[] blockRanges(final ObservationBlockIndex index, final DataFileReader<Observation> reader,
+          final long fromRel, final long toRel, final long minId, final long maxId, final long idMask) {
+    TLongList ranges = new TLongArrayList();
+    for (ObservationBlockIndex.BlockEntry block : index.getBlocks()) {
+      if (block.matches(fromRel, toRel, minId, maxId, idMask)) {
+        addRange(ranges, block.getPosition(), block.getEndPosition());
       }
-    }, oSchema);
+    }
+    // the not indexed tail.
+    addRange(ranges, Math.max(index.getIndexedEnd(), reader.previousSync()), Long.MAX_VALUE);
+    return ranges.toArray();
+  }
+
+  private static long toRelative(final long timeMillis, final long timeRef) {
+    if (timeMillis == Long.MIN_VALUE || timeMillis == Long.MAX_VALUE) {
+      return timeMillis;
+    }
+    return timeMillis - timeRef;
+  }
+
+  private static void addRange(final TLongList ranges, final long start, final long end) {
+    int size = ranges.size();
+    if (size > 0 && ranges.get(size - 1) == start) {
+      ranges.set(size - 1, end);
+    } else {
+      ranges.add(start);
+      ranges.add(end);
+    }
   }
 
   @Override
   public String toString() {
-    return "AvroMeasurementStoreReader{" + "infoFile=" + infoFile + ", dataFiles=" + Arrays.toString(dataFiles) + '}';
+    return "AvroMeasurementStoreReader{" + "infoFile=" + infoFile + ", dataFiles="
+            + (dataFiles == null ? "lookup" : Arrays.toString(dataFiles))
+            + ", scanParallelism=" + scanParallelism + '}';
+  }
+
+  /**
+   * Every iterator() call opens a new scan, the first scan is opened when this is created so that errors are
+   * reported by getObservations. All scans are closed when this is closed.
+   */
+  private static final class Scans<S extends Iterator<Observation> & Closeable>
+          implements Iterable<Observation>, Closeable {
+
+    private final ESupplier<S, IOException> opener;
+
+    private final List<S> opened;
+
+    @Nullable
+    private S first;
+
+    Scans(final ESupplier<S, IOException> opener) throws IOException {
+      this.opener = opener;
+      this.opened = new ArrayList<>(2);
+      this.first = opener.get();
+      opened.add(first);
+    }
+
+    @Override
+    public synchronized Iterator<Observation> iterator() {
+      if (first != null) {
+        S result = first;
+        first = null;
+        return result;
+      }
+      S scan;
+      try {
+        scan = opener.get();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      opened.add(scan);
+      return scan;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      first = null;
+      IOException ex = Closeables.closeAll(opened.toArray(new Closeable[opened.size()]));
+      opened.clear();
+      if (ex != null) {
+        throw ex;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Scans{" + "opened=" + opened.size() + '}';
+    }
+
+  }
+
+  /**
+   * Reads the data files one record at a time, and merges them by timestamp.
+   */
+  private static final class SequentialScan implements Iterator<Observation>, Closeable {
+
+    private final List<Closeable> readers;
+
+    private final Iterator<Observation> merged;
+
+    /**
+     * @param tableIds the table ids to return, null for all.
+     */
+    SequentialScan(final Path[] dataFiles, final boolean lookedUp,
+            final long fromMs, final long toMs, @Nullable final Set<Long> tableIds,
+            final long minId, final long maxId, final long idMask) throws IOException {
+      SpecificDatumReader<Observation> specificDatumReader = new SpecificDatumReader<>(Observation.class);
+      List<Iterator<Observation>> streams = new ArrayList<>(dataFiles.length);
+      readers = new ArrayList<>(dataFiles.length);
+      try {
+        for (Path dataFile : dataFiles) {
+          DataFileReader<Observation> reader;
+          try {
+            reader = new DataFileReader<>(dataFile.toFile(), specificDatumReader);
+          } catch (FileNotFoundException | NoSuchFileException ex) {
+            if (lookedUp) { // segment deleted by retention since lookup.
+              continue;
+            }
+            throw ex;
+          }
+          readers.add(reader);
+          long fileTimeRef = reader.getMetaLong("timeRef");
+          long fromRel = toRelative(fromMs, fileTimeRef);
+          long toRel = toRelative(toMs, fileTimeRef);
+          ObservationBlockIndex index = tableIds == null ? null : ObservationBlockIndex.load(dataFile,
+                  ObservationBlockIndex.getFileId(reader), Files.size(dataFile));
+          Iterator<Observation> data;
+          if (index == null) {
+            data = reader;
+          } else {
+            data = new BlockRangeIterator(reader, blockRanges(index, reader, fromRel, toRel, minId, maxId, idMask));
+          }
+          streams.add(Iterators.transform(Iterators.filter(data, (Observation row) -> {
+            long ts = row.getRelTimeStamp();
+            return ts >= fromRel && ts <= toRel && (tableIds == null || tableIds.contains(row.getTableDefId()));
+          }), new TimeCalibrate(fileTimeRef)));
+        }
+        merged = new ObservationMergeIterator(streams);
+      } catch (IOException | RuntimeException ex) {
+        IOException cex = Closeables.closeAll(readers.toArray(new Closeable[readers.size()]));
+        if (cex != null) {
+          ex.addSuppressed(cex);
+        }
+        throw ex;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return merged.hasNext();
+    }
+
+    @Override
+    public Observation next() {
+      return merged.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOException ex = Closeables.closeAll(readers.toArray(new Closeable[readers.size()]));
+      if (ex != null) {
+        throw ex;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "SequentialScan{" + "nrReaders=" + readers.size() + '}';
+    }
+
+  }
+
+  /**
+   * Iterates the observations of a data file within a set of block ranges.
+   */
+  private static final class BlockRangeIterator implements Iterator<Observation> {
+
+    private final DataFileReader<Observation> reader;
+
+    /** start, end position pairs. */
+    private final long[] ranges;
+
+    private int nextRange;
+
+    private long rangeEnd;
+
+    private boolean inRange;
+
+    BlockRangeIterator(final DataFileReader<Observation> reader, final long[] ranges) {
+      this.reader = reader;
+      this.ranges = ranges;
+      this.nextRange = 0;
+      this.inRange = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+      try {
+        while (true) {
+          if (inRange) {
+            // pastSync(pos) is true when the current block starts at or after pos + SYNC_SIZE.
+            if (reader.hasNext() && !reader.pastSync(rangeEnd - DataFileConstants.SYNC_SIZE)) {
+              return true;
+            }
+            inRange = false;
+          }
+          if (nextRange >= ranges.length) {
+            return false;
+          }
+          reader.seek(ranges[nextRange]);
+          rangeEnd = ranges[nextRange + 1];
+          nextRange += 2;
+          inRange = true;
+        }
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+
+    @Override
+    public Observation next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return reader.next();
+    }
+
+    @Override
+    public String toString() {
+      return "BlockRangeIterator{" + "reader=" + reader + ", ranges=" + Arrays.toString(ranges)
+              + ", nextRange=" + nextRange + '}';
+    }
+
   }
 
   private static class TimeCalibrate implements Function<Observation, Observation> {
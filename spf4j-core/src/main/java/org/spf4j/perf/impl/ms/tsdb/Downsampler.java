@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.function.LongFunction;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.spf4j.io.IOConsumer;
+import org.spf4j.perf.TimeSeriesAggregatingIterator;
+import org.spf4j.perf.TimeSeriesRecord;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * Streaming downsampler for a interleaved multi table observation stream.
+ * Observations of each table are aggregated into windows with the same semantics as
+ * {@link TimeSeriesAggregatingIterator} and {@link TimeSeriesRecord#accumulateObservations}.
+ * An aggregated observation is written out when its window is closed, by the first observation outside of it,
+ * or on {@link #flush()}.
+ *
+ * @author zoly
+ */
+final class Downsampler {
+
+  private final long resolutionMillis;
+
+  private final LongFunction<Schema> schemas;
+
+  private final IOConsumer<Observation> sink;
+
+  private final TLongObjectMap<Window> windows;
+
+  /**
+   * @param resolutionMillis the aggregation window.
+   * @param schemas table id to measurement schema, observations of tables without a schema are passed trough.
+   * @param sink the downsampled observation consumer.
+   */
+  Downsampler(final long resolutionMillis, final LongFunction<Schema> schemas,
+          final IOConsumer<Observation> sink) {
+    this.resolutionMillis = resolutionMillis;
+    this.schemas = schemas;
+    this.sink = sink;
+    this.windows = new TLongObjectHashMap<>();
+  }
+
+  void add(final Observation obs) throws IOException {
+    long tableId = obs.getTableDefId();
+    Window window = windows.get(tableId);
+    if (window == null) {
+      Schema schema = schemas.apply(tableId);
+      if (schema == null) {
+        sink.acceptEx(obs);
+        return;
+      }
+      window = new Window(schema);
+      windows.put(tableId, window);
+    }
+    long ts = obs.getRelTimeStamp();
+    Observation current = window.current;
+    if (current != null) {
+      if (ts < window.maxTime) {
+        TimeSeriesRecord.accumulateObservations(window.schema, current, obs);
+        current.setTableDefId(tableId);
+        return;
+      }
+      sink.acceptEx(current);
+    }
+    window.current = new Observation(ts, tableId, new ArrayList<>(obs.getData()));
+    window.maxTime = ts + resolutionMillis - window.adj;
+  }
+
+  void flush() throws IOException {
+    for (Window window : windows.valueCollection()) {
+      Observation current = window.current;
+      if (current != null) {
+        window.current = null;
+        sink.acceptEx(current);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Downsampler{" + "resolutionMillis=" + resolutionMillis + ", nrTables=" + windows.size() + '}';
+  }
+
+  private static final class Window {
+
+    private final Schema schema;
+
+    private final long adj;
+
+    @Nullable
+    private Observation current;
+
+    private long maxTime;
+
+    Window(final Schema schema) {
+      this.schema = schema;
+      this.adj = Math.max(TimeSeriesRecord.getFrequencyMillis(schema), 0) / 2;
+    }
+
+  }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.Strings;
+import org.spf4j.io.SidecarIndex;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * Sparse block index of a observation avro file, stored in a side-car file (data file name + ".bidx").
+ * For every indexed range of avro blocks the index contains the range file positions (sync points),
+ * the min/max relative timestamp, the min/max table id and a 64 bit table id mask (bit tableId &amp; 63).
+ * Queries use it to seek (DataFileReader.seek) only to the blocks that can contain the data they need.
+ *
+ * Ranges that are not indexed when the index is opened for append are written as "unknown" entries that match
+ * everything, see {@link SidecarIndex} for how the index is validated and recovered.
+ *
+ * Index file format: MAGIC, long fileId followed by entries:
+ * <pre>
+ * long position, long endPosition, long minTs, long maxTs, long minTableId, long maxTableId, long tableIdMask
+ * </pre>
+ *
+ * @author zoly
+ */
+final class ObservationBlockIndex {
+
+  static final String INDEX_FILE_SUFFIX = ".bidx";
+
+  /**
+   * Data file metadata key, identifies a data file so that a stale index is never used.
+   */
+  static final String FILE_ID_META = "fileId";
+
+  static final int DEFAULT_BLOCK_RECORDS = Integer.getInteger("spf4j.perf.avro.indexBlockRecords", 4096);
+
+  private static final byte[] MAGIC = Strings.toUtf8("AVROBIDX");
+
+  private final SidecarIndex<BlockEntry> index;
+
+  private ObservationBlockIndex(final SidecarIndex<BlockEntry> index) {
+    this.index = index;
+  }
+
+  static Path getIndexFile(final Path dataFile) {
+    return dataFile.resolveSibling(dataFile.getFileName() + INDEX_FILE_SUFFIX);
+  }
+
+  static long getFileId(final DataFileStream<?> stream) {
+    if (stream.getMeta(FILE_ID_META) != null) {
+      return stream.getMetaLong(FILE_ID_META);
+    }
+    return stream.getMetaLong("timeRef");
+  }
+
+  /**
+   * Load the index of a observation file.
+   * @param dataFile the data file.
+   * @param fileId the data file id, see getFileId.
+   * @param endPosition the data file size. Index entries beyond it are ignored.
+   * @return the index, or null if the file has no valid index.
+   * @throws IOException
+   */
+  @Nullable
+  static ObservationBlockIndex load(final Path dataFile, final long fileId, final long endPosition)
+          throws IOException {
+    SidecarIndex<BlockEntry> index = SidecarIndex.load(getIndexFile(dataFile), new Format(fileId), endPosition);
+    return index == null ? null : new ObservationBlockIndex(index);
+  }
+
+  /**
+   * @return all indexed block ranges, in file order.
+   */
+  List<BlockEntry> getBlocks() {
+    return index.getEntries();
+  }
+
+  /**
+   * @return the file position where the indexed blocks end, 0 if nothing is indexed.
+   */
+  long getIndexedEnd() {
+    return index.getIndexedEnd();
+  }
+
+  /**
+   * Opens the index of a observation file for append, creating it if it does not exist or is not valid.
+   * Index entries beyond endPosition are discarded, and the data that is not in the index is added as a
+   * "unknown" entry.
+   * @param dataFile the data file.
+   * @param endPosition the data file end, must be a sync point.
+   */
+  @CreatesObligation
+  static Writer openWriter(final Path dataFile, final long endPosition) throws IOException {
+    long fileId;
+    long firstBlock;
+    try (DataFileReader<Observation> reader = new DataFileReader<>(dataFile.toFile(),
+            new SpecificDatumReader<>(Observation.class))) {
+      fileId = getFileId(reader);
+      firstBlock = reader.previousSync();
+    }
+    Format format = new Format(fileId);
+    Path indexFile = getIndexFile(dataFile);
+    SidecarIndex<BlockEntry> index = SidecarIndex.load(indexFile, format, endPosition);
+    Writer writer;
+    long indexedEnd;
+    if (index == null) {
+      writer = new Writer(SidecarIndex.create(indexFile, format));
+      indexedEnd = firstBlock;
+    } else {
+      writer = new Writer(index.openForAppend(indexFile));
+      indexedEnd = Math.max(firstBlock, index.getIndexedEnd());
+    }
+    if (indexedEnd < endPosition) {
+      writer.writeBlock(new BlockEntry(indexedEnd, endPosition, Long.MIN_VALUE, Long.MAX_VALUE,
+              Long.MIN_VALUE, Long.MAX_VALUE, -1L));
+    }
+    writer.blockStart = endPosition;
+    return writer;
+  }
+
+  @Override
+  public String toString() {
+    return "ObservationBlockIndex{" + index + '}';
+  }
+
+  private static final class Format extends SidecarIndex.Format<BlockEntry> {
+
+    private final long fileId;
+
+    Format(final long fileId) {
+      super(MAGIC);
+      this.fileId = fileId;
+    }
+
+    @Override
+    protected boolean readHeader(final DataInputStream is) throws IOException {
+      return is.readLong() == fileId;
+    }
+
+    @Override
+    protected void writeHeader(final DataOutputStream os) throws IOException {
+      os.writeLong(fileId);
+    }
+
+    @Override
+    protected BlockEntry readEntry(final DataInputStream is) throws IOException {
+      return new BlockEntry(is.readLong(), is.readLong(), is.readLong(), is.readLong(),
+              is.readLong(), is.readLong(), is.readLong());
+    }
+
+  }
+
+  static long tableIdMask(final long tableId) {
+    return 1L << (tableId & 63);
+  }
+
+  /**
+   * Index entry of a range of avro blocks.
+   */
+  static final class BlockEntry implements SidecarIndex.Entry {
+
+    private final long position;
+
+    private final long endPosition;
+
+    private final long minTs;
+
+    private final long maxTs;
+
+    private final long minTableId;
+
+    private final long maxTableId;
+
+    private final long tableIdMask;
+
+    BlockEntry(final long position, final long endPosition, final long minTs, final long maxTs,
+            final long minTableId, final long maxTableId, final long tableIdMask) {
+      this.position = position;
+      this.endPosition = endPosition;
+      this.minTs = minTs;
+      this.maxTs = maxTs;
+      this.minTableId = minTableId;
+      this.maxTableId = maxTableId;
+      this.tableIdMask = tableIdMask;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public long getEndPosition() {
+      return endPosition;
+    }
+
+    /**
+     * @param fromTs min relative timestamp.
+     * @param toTs max relative timestamp.
+     * @param fromTableId min table id.
+     * @param toTableId max table id.
+     * @param idMask the table id mask of the table ids.
+     * @return true if the block range can contain observations matching the parameters.
+     */
+    boolean matches(final long fromTs, final long toTs, final long fromTableId, final long toTableId,
+            final long idMask) {
+      return minTs <= toTs && maxTs >= fromTs && minTableId <= toTableId && maxTableId >= fromTableId
+              && (tableIdMask & idMask) != 0;
+    }
+
+    @Override
+    public String toString() {
+      return "BlockEntry{" + "position=" + position + ", endPosition=" + endPosition + ", minTs=" + minTs
+              + ", maxTs=" + maxTs + ", minTableId=" + minTableId + ", maxTableId=" + maxTableId
+              + ", tableIdMask=" + Long.toHexString(tableIdMask) + '}';
+    }
+
+  }
+
+  /**
+   * Accumulates the statistics of the observations appended to a DataFileWriter, and writes a index entry
+   * when the block range is ended with the position returned by DataFileWriter.sync().
+   */
+  static final class Writer implements Closeable, Flushable {
+
+    private final DataOutputStream os;
+
+    private long blockStart;
+
+    private int nrRecords;
+
+    private long minTs;
+
+    private long maxTs;
+
+    private long minTableId;
+
+    private long maxTableId;
+
+    private long tableIdMask;
+
+    Writer(final DataOutputStream os) {
+      this.os = os;
+      resetStats();
+    }
+
+    private void resetStats() {
+      nrRecords = 0;
+      minTs = Long.MAX_VALUE;
+      maxTs = Long.MIN_VALUE;
+      minTableId = Long.MAX_VALUE;
+      maxTableId = Long.MIN_VALUE;
+      tableIdMask = 0L;
+    }
+
+    void writeBlock(final BlockEntry entry) throws IOException {
+      os.writeLong(entry.position);
+      os.writeLong(entry.endPosition);
+      os.writeLong(entry.minTs);
+      os.writeLong(entry.maxTs);
+      os.writeLong(entry.minTableId);
+      os.writeLong(entry.maxTableId);
+      os.writeLong(entry.tableIdMask);
+    }
+
+    /**
+     * Add a appended observation to the current block range stats.
+     * @return the number of observations in the current block range.
+     */
+    int add(final long relTimeStamp, final long tableId) {
+      if (relTimeStamp < minTs) {
+        minTs = relTimeStamp;
+      }
+      if (relTimeStamp > maxTs) {
+        maxTs = relTimeStamp;
+      }
+      if (tableId < minTableId) {
+        minTableId = tableId;
+      }
+      if (tableId > maxTableId) {
+        maxTableId = tableId;
+      }
+      tableIdMask |= tableIdMask(tableId);
+      return ++nrRecords;
+    }
+
+    /**
+     * End the current block range.
+     * @param endPosition the position returned by DataFileWriter.sync()
+     */
+    void endBlock(final long endPosition) throws IOException {
+      if (nrRecords > 0) {
+        writeBlock(new BlockEntry(blockStart, endPosition, minTs, maxTs, minTableId, maxTableId, tableIdMask));
+        resetStats();
+      }
+      blockStart = endPosition;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      os.close();
+    }
+
+    @Override
+    public String toString() {
+      return "Writer{" + "blockStart=" + blockStart + ", nrRecords=" + nrRecords + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * Merges timestamp ordered observation iterators into a single timestamp ordered iterator.
+ * Observations with equal timestamps are returned in the order of their source iterators.
+ *
+ * @author zoly
+ */
+final class ObservationMergeIterator implements Iterator<Observation> {
+
+  private final PriorityQueue<Head> heads;
+
+  ObservationMergeIterator(final List<? extends Iterator<Observation>> sources) {
+    int nrSources = sources.size();
+    this.heads = new PriorityQueue<>(Math.max(1, nrSources), (a, b) -> {
+      int cmp = Long.compare(a.current.getRelTimeStamp(), b.current.getRelTimeStamp());
+      return cmp != 0 ? cmp : Integer.compare(a.order, b.order);
+    });
+    for (int i = 0; i < nrSources; i++) {
+      Iterator<Observation> source = sources.get(i);
+      if (source.hasNext()) {
+        heads.add(new Head(i, source, source.next()));
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return !heads.isEmpty();
+  }
+
+  @Override
+  public Observation next() {
+    Head head = heads.poll();
+    if (head == null) {
+      throw new NoSuchElementException();
+    }
+    Observation result = head.current;
+    if (head.source.hasNext()) {
+      head.current = head.source.next();
+      heads.add(head);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "ObservationMergeIterator{" + "nrSources=" + heads.size() + '}';
+  }
+
+  private static final class Head {
+
+    private final int order;
+
+    private final Iterator<Observation> source;
+
+    private Observation current;
+
+    Head(final int order, final Iterator<Observation> source, final Observation current) {
+      this.order = order;
+      this.source = source;
+      this.current = current;
+    }
+
+  }
+
+}
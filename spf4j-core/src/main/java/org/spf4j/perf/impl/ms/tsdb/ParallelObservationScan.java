@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.UncheckedExecutionException;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * Parallel scan of avro observation files.
+ *
+ * Every file is split in chunks of about {@link #CHUNK_BYTES} bytes, every chunk is decoded (decompressed) by
+ * a separate task on the provided executor. The decoded chunks are consumed in file order and the files are
+ * merged by timestamp. At most parallelism chunks are decoded ahead of the consumer, which bounds the memory used.
+ *
+ * A chunk [start, end) contains all avro blocks that start within it, a chunk can start at any byte offset,
+ * the reader will synchronize to the next block.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+final class ParallelObservationScan implements Iterator<Observation>, Closeable {
+
+  static final long CHUNK_BYTES = Long.getLong("spf4j.perf.avro.scanChunkBytes", 4L * 1024 * 1024);
+
+  private Iterator<Observation> merged;
+
+  private final List<FileStream> streams;
+
+  ParallelObservationScan(final List<FileScan> files, final Executor executor, final int parallelism) {
+    this(files, executor, parallelism, CHUNK_BYTES);
+  }
+
+  ParallelObservationScan(final List<FileScan> files, final Executor executor, final int parallelism,
+          final long chunkBytes) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+    }
+    if (chunkBytes < 1) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkBytes);
+    }
+    int nrFiles = files.size();
+    int prefetch = Math.max(1, parallelism / Math.max(1, nrFiles));
+    this.streams = new ArrayList<>(nrFiles);
+    for (int i = 0; i < nrFiles; i++) {
+      FileScan file = files.get(i);
+      streams.add(new FileStream(i, file, file.chunks(chunkBytes), executor, prefetch));
+    }
+    // all files start decoding before we wait on any of them.
+    for (FileStream stream : streams) {
+      stream.fill();
+    }
+    this.merged = new ObservationMergeIterator(streams);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return merged.hasNext();
+  }
+
+  @Override
+  public Observation next() {
+    return merged.next();
+  }
+
+  /**
+   * Cancel all chunks not decoded yet.
+   */
+  @Override
+  public void close() {
+    for (FileStream stream : streams) {
+      stream.cancel();
+    }
+    merged = Collections.emptyIterator();
+  }
+
+  @Override
+  public String toString() {
+    return "ParallelObservationScan{" + "streams=" + streams + '}';
+  }
+
+  /**
+   * A file to scan.
+   */
+  static final class FileScan {
+
+    private final Path file;
+
+    private final long timeRef;
+
+    /** start, end position pairs. */
+    private final long[] ranges;
+
+    private final long fromRel;
+
+    private final long toRel;
+
+    @Nullable
+    private final Set<Long> tableIds;
+
+    /**
+     * @param file the avro data file.
+     * @param timeRef the file time reference.
+     * @param ranges the [start, end) byte ranges to scan.
+     * @param fromRel min relative timestamp to return.
+     * @param toRel max relative timestamp to return.
+     * @param tableIds the table ids to return, null for all.
+     */
+    FileScan(final Path file, final long timeRef, final long[] ranges,
+            final long fromRel, final long toRel, @Nullable final Set<Long> tableIds) {
+      this.file = file;
+      this.timeRef = timeRef;
+      this.ranges = ranges;
+      this.fromRel = fromRel;
+      this.toRel = toRel;
+      this.tableIds = tableIds;
+    }
+
+    List<long[]> chunks(final long chunkBytes) {
+      List<long[]> result = new ArrayList<>();
+      for (int i = 0; i < ranges.length; i += 2) {
+        long end = ranges[i + 1];
+        long start = ranges[i];
+        while (end - start > chunkBytes) {
+          result.add(new long[] {start, start + chunkBytes});
+          start += chunkBytes;
+        }
+        if (start < end) {
+          result.add(new long[] {start, end});
+        }
+      }
+      return result;
+    }
+
+    List<Observation> decode(final long start, final long end) throws IOException {
+      List<Observation> result = new ArrayList<>();
+      try (DataFileReader<Observation> reader = new DataFileReader<>(file.toFile(),
+              new SpecificDatumReader<>(Observation.class))) {
+        reader.sync(Math.max(0, start - DataFileConstants.SYNC_SIZE));
+        // pastSync(pos) is true when the current block starts at or after pos + SYNC_SIZE.
+        while (reader.hasNext() && !reader.pastSync(end - DataFileConstants.SYNC_SIZE)) {
+          Observation row = reader.next();
+          long ts = row.getRelTimeStamp();
+          if (ts >= fromRel && ts <= toRel && (tableIds == null || tableIds.contains(row.getTableDefId()))) {
+            row.setRelTimeStamp(timeRef + ts);
+            result.add(row);
+          }
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "FileScan{" + "file=" + file + ", timeRef=" + timeRef + ", ranges=" + Arrays.toString(ranges) + '}';
+    }
+
+  }
+
+  private static final class FileStream implements Iterator<Observation> {
+
+    private final int order;
+
+    private final FileScan file;
+
+    private final Iterator<long[]> chunks;
+
+    private final ArrayDeque<CompletableFuture<List<Observation>>> decoding;
+
+    private final Executor executor;
+
+    private final int prefetch;
+
+    private List<Observation> current;
+
+    private int currentIdx;
+
+    FileStream(final int order, final FileScan file, final List<long[]> chunks,
+            final Executor executor, final int prefetch) {
+      this.order = order;
+      this.file = file;
+      this.chunks = chunks.iterator();
+      this.decoding = new ArrayDeque<>(prefetch);
+      this.executor = executor;
+      this.prefetch = prefetch;
+      this.current = Collections.emptyList();
+      this.currentIdx = 0;
+    }
+
+    void fill() {
+      while (decoding.size() < prefetch && chunks.hasNext()) {
+        long[] chunk = chunks.next();
+        decoding.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return file.decode(chunk[0], chunk[1]);
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+        }, executor));
+      }
+    }
+
+    /**
+     * @return true if there is a current observation.
+     */
+    @Override
+    public boolean hasNext() {
+      while (currentIdx >= current.size()) {
+        CompletableFuture<List<Observation>> next = decoding.poll();
+        if (next == null) {
+          return false;
+        }
+        fill();
+        try {
+          current = next.get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new UncheckedExecutionException(ex);
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new UncheckedExecutionException(cause);
+        }
+        currentIdx = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public Observation next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.get(currentIdx++);
+    }
+
+    void cancel() {
+      CompletableFuture<List<Observation>> f;
+      while ((f = decoding.poll()) != null) {
+        f.cancel(false);
+      }
+      current = Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+      return "FileStream{" + "order=" + order + ", file=" + file + ", decoding=" + decoding.size() + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Segment rolling, retention and compaction policy for the file based measurement stores.
+ *
+ * The active segment is rolled (closed and renamed to a numbered segment) when it grows over maxSegmentBytes
+ * or when it is older than maxSegmentMillis. Rolled segments not modified for more than compactAfterMillis
+ * are downsampled to compactionResolutionMillis, and rolled segments not modified for more
+ * than retentionMillis are deleted. A value &lt;= 0 disables the respective feature.
+ *
+ * @author zoly
+ */
+@Immutable
+public final class SegmentPolicy {
+
+  /**
+   * Default policy: a single file like {@link #NONE}, unless rolling, retention or compaction are enabled with the
+   * spf4j.perf.ms.segment.* system properties (for example -Dspf4j.perf.ms.segment.maxBytes=268435456
+   * -Dspf4j.perf.ms.segment.maxMillis=86400000 to roll every 256MB or every day).
+   */
+  public static final SegmentPolicy DEFAULT = new SegmentPolicy(
+          Long.getLong("spf4j.perf.ms.segment.maxBytes", 0L),
+          Long.getLong("spf4j.perf.ms.segment.maxMillis", 0L),
+          Long.getLong("spf4j.perf.ms.segment.retentionMillis", 0L),
+          Long.getLong("spf4j.perf.ms.segment.compactAfterMillis", 0L),
+          Long.getLong("spf4j.perf.ms.segment.compactionResolutionMillis", TimeUnit.MINUTES.toMillis(1)));
+
+  /**
+   * A single, ever growing file.
+   */
+  public static final SegmentPolicy NONE = new SegmentPolicy(0L, 0L, 0L, 0L, 0L);
+
+  private final long maxSegmentBytes;
+
+  private final long maxSegmentMillis;
+
+  private final long retentionMillis;
+
+  private final long compactAfterMillis;
+
+  private final long compactionResolutionMillis;
+
+  public SegmentPolicy(final long maxSegmentBytes, final long maxSegmentMillis, final long retentionMillis,
+          final long compactAfterMillis, final long compactionResolutionMillis) {
+    if (compactAfterMillis > 0 && compactionResolutionMillis <= 0) {
+      throw new IllegalArgumentException("Invalid compaction resolution " + compactionResolutionMillis);
+    }
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMillis = maxSegmentMillis;
+    this.retentionMillis = retentionMillis;
+    this.compactAfterMillis = compactAfterMillis;
+    this.compactionResolutionMillis = compactionResolutionMillis;
+  }
+
+  public boolean isRolling() {
+    return maxSegmentBytes > 0 || maxSegmentMillis > 0;
+  }
+
+  public boolean shouldRoll(final long segmentBytes, final long segmentStartMillis, final long nowMillis) {
+    return (maxSegmentBytes > 0 && segmentBytes >= maxSegmentBytes)
+            || (maxSegmentMillis > 0 && nowMillis - segmentStartMillis >= maxSegmentMillis);
+  }
+
+  public boolean isRetentionEnabled() {
+    return retentionMillis > 0;
+  }
+
+  public boolean isCompactionEnabled() {
+    return compactAfterMillis > 0;
+  }
+
+  public boolean hasMaintenance() {
+    return isRetentionEnabled() || isCompactionEnabled();
+  }
+
+  public long getMaxSegmentBytes() {
+    return maxSegmentBytes;
+  }
+
+  public long getMaxSegmentMillis() {
+    return maxSegmentMillis;
+  }
+
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  public long getCompactAfterMillis() {
+    return compactAfterMillis;
+  }
+
+  public long getCompactionResolutionMillis() {
+    return compactionResolutionMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentPolicy{" + "maxSegmentBytes=" + maxSegmentBytes + ", maxSegmentMillis=" + maxSegmentMillis
+            + ", retentionMillis=" + retentionMillis + ", compactAfterMillis=" + compactAfterMillis
+            + ", compactionResolutionMillis=" + compactionResolutionMillis + '}';
+  }
+
+}
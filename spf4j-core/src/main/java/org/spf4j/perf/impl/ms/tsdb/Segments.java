@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * Segment file naming utilities.
+ * The active segment is named prefix + suffix, rolled segments are named prefix + '.' + segmentNr + suffix,
+ * segment numbers increase with every roll.
+ *
+ * @author zoly
+ */
+final class Segments {
+
+  /**
+   * segment number of the active segment.
+   */
+  static final long ACTIVE = Long.MAX_VALUE;
+
+  /**
+   * segment number of a file that matches the prefix and suffix but is not a segment.
+   */
+  static final long OTHER = -1L;
+
+  private static final long MAINTENANCE_INTERVAL_MILLIS
+          = Long.getLong("spf4j.perf.ms.segment.maintenanceIntervalMillis", TimeUnit.MINUTES.toMillis(1));
+
+  private Segments() { }
+
+  /**
+   * @return the index of the file name extension (the suffix of the active segment), length when none.
+   */
+  static int getExtensionIndex(final String fileName) {
+    int idx = fileName.lastIndexOf('.');
+    return idx > 0 ? idx : fileName.length();
+  }
+
+  static long getSegmentNumber(final String fileName, final String prefix, final String suffix) {
+    if (!fileName.startsWith(prefix) || !fileName.endsWith(suffix)) {
+      return OTHER;
+    }
+    int from = prefix.length();
+    int to = fileName.length() - suffix.length();
+    if (from == to) {
+      return ACTIVE;
+    }
+    if (to - from < 2 || fileName.charAt(from) != '.') {
+      return OTHER;
+    }
+    long result = 0;
+    for (int i = from + 1; i < to; i++) {
+      int digit = fileName.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - 1 - digit) / 10) {
+        return OTHER;
+      }
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  static long getSegmentNumber(final Path file, final String prefix, final String suffix) {
+    Path fileName = file.getFileName();
+    if (fileName == null) {
+      return OTHER;
+    }
+    return getSegmentNumber(fileName.toString(), prefix, suffix);
+  }
+
+  static Path getSegmentPath(final Path folder, final String prefix, final long segmentNr, final String suffix) {
+    return folder.resolve(prefix + '.' + segmentNr + suffix);
+  }
+
+  /**
+   * List all files matching prefix*suffix in a folder,
+   * in order: non segment files by name, rolled segments by number, the active segment.
+   */
+  static List<Path> list(final Path folder, final String prefix, final String suffix) throws IOException {
+    List<Path> result = new ArrayList<>(4);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, (Path entry) -> {
+      if (Files.isDirectory(entry)) {
+        return false;
+      }
+      Path fnp = entry.getFileName();
+      if (fnp == null) {
+        return false;
+      }
+      String fName = fnp.toString();
+      return fName.startsWith(prefix) && fName.endsWith(suffix);
+    })) {
+      for (Path f : stream) {
+        result.add(f);
+      }
+    }
+    result.sort(Comparator.comparingLong((Path p) -> getSegmentNumber(p, prefix, suffix))
+            .thenComparing(Path::getFileName));
+    return result;
+  }
+
+  static long nextSegmentNumber(final List<Path> files, final String prefix, final String suffix) {
+    long max = -1;
+    for (Path file : files) {
+      long nr = getSegmentNumber(file, prefix, suffix);
+      if (nr != ACTIVE && nr > max) {
+        max = nr;
+      }
+    }
+    return max + 1;
+  }
+
+  static boolean isOlder(final Path file, final long cutoffMillis) throws IOException {
+    return Files.getLastModifiedTime(file).toMillis() < cutoffMillis;
+  }
+
+  /**
+   * Runs the retention/compaction of rolled segments in the background, at most once every maintenance interval
+   * and never concurrently with itself.
+   */
+  static final class Maintenance {
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile long nextRunMillis;
+
+    void maybeRun(final long nowMillis, final String name, final AbstractRunnable task) {
+      if (nowMillis < nextRunMillis || !running.compareAndSet(false, true)) {
+        return;
+      }
+      nextRunMillis = nowMillis + MAINTENANCE_INTERVAL_MILLIS;
+      DefaultExecutor.INSTANCE.execute(new AbstractRunnable(true, name) {
+        @Override
+        public void doRun() {
+          try {
+            task.run();
+          } finally {
+            running.set(false);
+          }
+        }
+      });
+    }
+
+    boolean isRunning() {
+      return running.get();
+    }
+
+  }
+
+}
@@ -31,20 +31,52 @@
  */
 package org.spf4j.perf.impl.ms.tsdb;
 
+import com.google.common.primitives.Longs;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.apache.avro.Schema;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.avro.AvroCloseableIterable;
 import org.spf4j.jmx.JmxExport;
 import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.tsdb2.TSDBIndex;
 import org.spf4j.tsdb2.TSDBQuery;
+import org.spf4j.tsdb2.TSDBReader;
 import org.spf4j.tsdb2.TSDBWriter;
 import org.spf4j.tsdb2.TableDefs;
+import org.spf4j.tsdb2.avro.Observation;
+import org.spf4j.tsdb2.avro.TableDef;
 
 /**
+ * TSDB2 measurement store.
+ * The database file is rolled into dbName.N.tsdb2 segments based on the {@link SegmentPolicy}, the table definitions
+ * are re-written at the beginning of every segment so that each segment is a self contained TSDB2 file.
+ * Rolled segments are downsampled and deleted in the background as configured by the policy.
+ * Without rolling the measurement ids returned by this store are TSDB2 table ids, with rolling they are indexes
+ * into a table id mapping that is re-published on every roll, so they stay valid across segments.
+ * Saving measurements does not take the store lock, a save racing a roll is retried in the new segment.
  *
  * @author zoly
  */
@@ -52,61 +84,321 @@ import org.spf4j.tsdb2.TableDefs;
 public final class TSDBMeasurementStore
         implements MeasurementStore {
 
-  private final TSDBWriter database;
+  /**
+   * Header description prefix of downsampled segments, followed by the resolution in millis.
+   */
+  static final String DOWNSAMPLED_DESCRIPTION_PREFIX = "downsampled:";
+
+  private static final Logger LOG = Logger.getLogger(TSDBMeasurementStore.class.getName());
+
+  private final File databaseFile;
+
+  private final Path folder;
+
+  private final String prefix;
+
+  private final String suffix;
+
+  private final SegmentPolicy segmentPolicy;
+
+  private final Segments.Maintenance maintenance;
+
+  private final ReentrantReadWriteLock lock;
+
+  /**
+   * written under the lock, read without it by saves.
+   */
+  private volatile ActiveSegment active;
+
+  @GuardedBy("lock")
+  private final List<TableDef> tableDefs;
+
+  @GuardedBy("lock")
+  private long segmentStartMillis;
+
+  @GuardedBy("lock")
+  private long nextSegmentNr;
+
+  private volatile boolean segmentHasData;
 
   private final TSDBMeasurementStoreReader reader;
 
   public TSDBMeasurementStore(final File databaseFile) throws IOException {
-    this.database = new TSDBWriter(databaseFile, 1024, "", false);
+    this(databaseFile, SegmentPolicy.DEFAULT);
+  }
+
+  /**
+   * Create a TSDB2 measurement store.
+   * @param databaseFile the active segment file. Without rolling this file is overwritten,
+   * with rolling an existing file is preserved as a rolled segment.
+   * @param segmentPolicy the segment policy.
+   * @throws IOException
+   */
+  public TSDBMeasurementStore(final File databaseFile, final SegmentPolicy segmentPolicy) throws IOException {
+    this.databaseFile = databaseFile;
+    this.segmentPolicy = segmentPolicy;
+    this.folder = databaseFile.toPath().toAbsolutePath().getParent();
+    if (folder == null) {
+      throw new IllegalArgumentException("Invalid database file " + databaseFile);
+    }
+    String fileName = databaseFile.getName();
+    int extIdx = Segments.getExtensionIndex(fileName);
+    this.prefix = fileName.substring(0, extIdx);
+    this.suffix = fileName.substring(extIdx);
+    this.maintenance = new Segments.Maintenance();
+    this.lock = new ReentrantReadWriteLock();
+    this.tableDefs = new ArrayList<>();
+    lock.writeLock().lock();
+    try {
+      this.nextSegmentNr = Segments.nextSegmentNumber(Segments.list(folder, prefix, suffix), prefix, suffix);
+      if (segmentPolicy.isRolling() && databaseFile.length() > 0) {
+        moveToSegment();
+      }
+      this.active = new ActiveSegment(new TSDBWriter(databaseFile, 1024, "", false), new long[0]);
+      this.segmentStartMillis = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
     reader = new TSDBMeasurementStoreReader(databaseFile);
   }
 
   @Override
   public long alocateMeasurements(final MeasurementsInfo measurement,
           final int sampleTimeMillis) throws IOException {
-
-    return database.writeTableDef(TableDefs.from(measurement, sampleTimeMillis, -1L));
+    TableDef tableDef = TableDefs.from(measurement, sampleTimeMillis, -1L);
+    Lock wl = lock.writeLock();
+    wl.lock();
+    try {
+      ActiveSegment segment = active;
+      long tableId = segment.database.writeTableDef(tableDef);
+      if (!segmentPolicy.isRolling()) {
+        return tableId;
+      }
+      tableDefs.add(tableDef);
+      long[] tableIds = Arrays.copyOf(segment.tableIds, segment.tableIds.length + 1);
+      tableIds[tableIds.length - 1] = tableId;
+      active = new ActiveSegment(segment.database, tableIds);
+      return tableIds.length - 1;
+    } finally {
+      wl.unlock();
+    }
   }
 
   @Override
-  public void saveMeasurements(final long tableId,
+  public void saveMeasurements(final long measurementId,
           final long timeStampMillis, final long... measurements)
           throws IOException {
-    database.writeDataRow(tableId, timeStampMillis, measurements);
+    if (!segmentPolicy.isRolling()) {
+      active.database.writeDataRow(measurementId, timeStampMillis, measurements);
+      return;
+    }
+    ActiveSegment segment = active;
+    while (true) {
+      try {
+        segment.database.writeDataRow(segment.tableIds[(int) measurementId], timeStampMillis, measurements);
+        break;
+      } catch (ClosedChannelException ex) {
+        ActiveSegment current = getActiveSegment();
+        if (current == segment) {
+          throw ex;
+        }
+        segment = current;
+      }
+    }
+    if (!segmentHasData) {
+      segmentHasData = true;
+    }
+  }
+
+  /**
+   * @return the active segment, waiting for a roll in progress to finish.
+   */
+  private ActiveSegment getActiveSegment() {
+    Lock rl = lock.readLock();
+    rl.lock();
+    try {
+      return active;
+    } finally {
+      rl.unlock();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void moveToSegment() throws IOException {
+    File segment = Segments.getSegmentPath(folder, prefix, nextSegmentNr, suffix).toFile();
+    // move the index first, readers fall back to a full scan when there is no index.
+    File indexFile = TSDBIndex.getIndexFile(databaseFile);
+    if (indexFile.exists()) {
+      Files.move(indexFile.toPath(), TSDBIndex.getIndexFile(segment).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.move(databaseFile.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    nextSegmentNr++;
+    LOG.log(Level.FINE, "Rolled {0} to {1}", new Object[] {databaseFile, segment});
+  }
+
+  @GuardedBy("lock")
+  private void roll(final long nowMillis) throws IOException {
+    // saves racing the close get a ClosedChannelException and retry in the new segment.
+    active.database.close();
+    moveToSegment();
+    TSDBWriter database = new TSDBWriter(databaseFile, 1024, "", false);
+    long[] tableIds = new long[tableDefs.size()];
+    for (int i = 0; i < tableIds.length; i++) {
+      tableIds[i] = database.writeTableDef(tableDefs.get(i));
+    }
+    database.flush();
+    active = new ActiveSegment(database, tableIds);
+    segmentStartMillis = nowMillis;
+    segmentHasData = false;
+  }
+
+  /**
+   * Delete expired and downsample old rolled segments.
+   */
+  void maintainSegments() throws IOException {
+    synchronized (maintenance) {
+      doMaintainSegments();
+    }
+  }
+
+  private void doMaintainSegments() throws IOException {
+    long now = System.currentTimeMillis();
+    for (Path file : Segments.list(folder, prefix, suffix)) {
+      long segmentNr = Segments.getSegmentNumber(file, prefix, suffix);
+      if (segmentNr == Segments.ACTIVE || segmentNr == Segments.OTHER) {
+        continue;
+      }
+      if (segmentPolicy.isRetentionEnabled()
+              && Segments.isOlder(file, now - segmentPolicy.getRetentionMillis())) {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(TSDBIndex.getIndexFile(file.toFile()).toPath());
+        LOG.log(Level.FINE, "Deleted expired segment {0}", file);
+      } else if (segmentPolicy.isCompactionEnabled()
+              && Segments.isOlder(file, now - segmentPolicy.getCompactAfterMillis())) {
+        downsample(file.toFile());
+      }
+    }
+  }
+
+  private void downsample(final File segment) throws IOException {
+    long resolution = segmentPolicy.getCompactionResolutionMillis();
+    try (TSDBReader segmentReader = new TSDBReader(segment, 1024)) {
+      String description = segmentReader.getHeader().getDescription();
+      if (description.startsWith(DOWNSAMPLED_DESCRIPTION_PREFIX)
+              && Long.parseLong(description.substring(DOWNSAMPLED_DESCRIPTION_PREFIX.length())) >= resolution) {
+        return;
+      }
+    }
+    FileTime lastModified = Files.getLastModifiedTime(segment.toPath());
+    File tmp = new File(segment.getPath() + ".tmp");
+    try {
+      try (TSDBWriter out = new TSDBWriter(tmp, 1024, DOWNSAMPLED_DESCRIPTION_PREFIX + resolution, false)) {
+        TLongObjectMap<Schema> schemas = new TLongObjectHashMap<>();
+        TLongLongMap idMap = new TLongLongHashMap();
+        for (TableDef td : TSDBQuery.getAllTables(segment).values()) {
+          long tableId = td.getId();
+          schemas.put(tableId, TableDefs.createSchema(td));
+          idMap.put(tableId, out.writeTableDef(TableDef.newBuilder(td)
+                  .setSampleTime((int) Math.max(td.getSampleTime(), resolution)).build()));
+        }
+        Downsampler downsampler = new Downsampler(resolution, schemas::get,
+                (obs) -> out.writeDataRow(idMap.get(obs.getTableDefId()), obs.getRelTimeStamp(),
+                        Longs.toArray(obs.getData())));
+        try (AvroCloseableIterable<Observation> data = TSDBQuery.getTimeSeriesData(segment)) {
+          for (Observation obs : data) {
+            downsampler.add(obs);
+          }
+        }
+        downsampler.flush();
+      }
+      Files.move(TSDBIndex.getIndexFile(tmp).toPath(), TSDBIndex.getIndexFile(segment).toPath(),
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(tmp.toPath());
+      Files.deleteIfExists(TSDBIndex.getIndexFile(tmp).toPath());
+      throw ex;
+    }
+    // retention is based on the last modified time, preserve it.
+    Files.setLastModifiedTime(segment.toPath(), lastModified);
+    LOG.log(Level.FINE, "Downsampled segment {0} to {1} ms", new Object[] {segment, resolution});
   }
 
   @Override
   public void close() throws IOException {
-    database.close();
+    Lock wl = lock.writeLock();
+    wl.lock();
+    try {
+      active.database.close();
+    } finally {
+      wl.unlock();
+    }
   }
 
   @JmxExport(description = "flush out buffers")
   @Override
   public void flush() throws IOException {
-    database.flush();
+    long now = System.currentTimeMillis();
+    boolean shouldRoll;
+    Lock rl = lock.readLock();
+    rl.lock();
+    try {
+      active.database.flush();
+      shouldRoll = segmentPolicy.isRolling() && segmentHasData
+              && segmentPolicy.shouldRoll(databaseFile.length(), segmentStartMillis, now);
+    } finally {
+      rl.unlock();
+    }
+    if (shouldRoll) {
+      Lock wl = lock.writeLock();
+      wl.lock();
+      try {
+        if (segmentHasData && segmentPolicy.shouldRoll(databaseFile.length(), segmentStartMillis, now)) {
+          roll(now);
+        }
+      } finally {
+        wl.unlock();
+      }
+    }
+    if (segmentPolicy.hasMaintenance()) {
+      maintenance.maybeRun(now, "tsdb-ms-maintenance", new AbstractRunnable(true) {
+        @Override
+        public void doRun() throws IOException {
+          maintainSegments();
+        }
+      });
+    }
   }
 
   @JmxExport(description = "list all tables")
   public String[] getTables() throws IOException {
-    final Set<String> metrics = TSDBQuery.getAllTables(database.getFile()).keySet();
+    final Set<String> metrics = TSDBQuery.getAllTables(databaseFile).keySet();
     return metrics.toArray(new String[metrics.size()]);
   }
 
   @JmxExport(description = "getTable As Csv")
   public String getTableAsCsv(@JmxExport("tableName") final String tableName) throws IOException {
     StringBuilder result = new StringBuilder(1024);
-    TSDBQuery.writeAsCsv(result, database.getFile(), tableName);
+    TSDBQuery.writeAsCsv(result, databaseFile, tableName);
     return result.toString();
   }
 
+  public SegmentPolicy getSegmentPolicy() {
+    return segmentPolicy;
+  }
+
   @Override
   public String toString() {
-    return "TSDBMeasurementStore{" + "database=" + database + '}';
+    return "TSDBMeasurementStore{" + "databaseFile=" + databaseFile + ", segmentPolicy=" + segmentPolicy + '}';
   }
 
+  /**
+   * @return the writer of the active segment, the writer changes when the segment is rolled.
+   */
   @SuppressFBWarnings("EI_EXPOSE_REP")
   public TSDBWriter getDBWriter() {
-    return database;
+    return getActiveSegment().database;
   }
 
   @Override
@@ -114,4 +406,19 @@ public final class TSDBMeasurementStore
     return reader;
   }
 
+  /**
+   * The writer of the active segment and the measurement id -> table id mapping in it, replaced on roll.
+   */
+  private static final class ActiveSegment {
+
+    private final TSDBWriter database;
+
+    private final long[] tableIds;
+
+    ActiveSegment(final TSDBWriter database, final long[] tableIds) {
+      this.database = database;
+      this.tableIds = tableIds;
+    }
+  }
+
 }
@@ -31,20 +31,27 @@
  */
 package org.spf4j.perf.impl.ms.tsdb;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.apache.avro.Schema;
+import org.spf4j.base.Closeables;
 import org.spf4j.base.Pair;
 import org.spf4j.base.avro.AvroCloseableIterable;
 import org.spf4j.perf.MeasurementStoreQuery;
@@ -55,33 +62,80 @@ import org.spf4j.tsdb2.avro.Observation;
 import org.spf4j.tsdb2.avro.TableDef;
 
 /**
+ * Reader for a TSDB2 measurement store, queries the rolled segments (dbName.N.tsdb2) and the active segment.
+ * Table ids in a TSDB2 file are file positions, to make them unique across segments the returned ids
+ * are (segmentNr &lt;&lt; SEGMENT_ID_SHIFT) | position, the active segment nr is the next rolled segment number,
+ * so for a single file the ids are the file positions.
+ *
  * @author Zoltan Farkas
  */
 public final class TSDBMeasurementStoreReader implements MeasurementStoreQuery {
 
+  static final int SEGMENT_ID_SHIFT = 40;
+
+  private static final long POSITION_MASK = (1L << SEGMENT_ID_SHIFT) - 1;
+
   private final File dbFile;
 
   public TSDBMeasurementStoreReader(final File dbFile) {
     this.dbFile = dbFile;
   }
 
+  /**
+   * @return the segments in time order, key = segment number, value = segment file.
+   */
+  private List<Pair<Long, File>> getSegments() throws IOException {
+    Path folder = dbFile.toPath().toAbsolutePath().getParent();
+    if (folder == null) {
+      throw new IllegalArgumentException("Invalid database file " + dbFile);
+    }
+    String fileName = dbFile.getName();
+    int extIdx = Segments.getExtensionIndex(fileName);
+    String prefix = fileName.substring(0, extIdx);
+    String suffix = fileName.substring(extIdx);
+    List<Path> files = Segments.list(folder, prefix, suffix);
+    long activeNr = Segments.nextSegmentNumber(files, prefix, suffix);
+    List<Pair<Long, File>> result = new ArrayList<>(files.size());
+    for (Path file : files) {
+      long nr = Segments.getSegmentNumber(file, prefix, suffix);
+      if (nr == Segments.ACTIVE) {
+        result.add(Pair.of(activeNr, file.toFile()));
+      } else if (nr != Segments.OTHER) {
+        result.add(Pair.of(nr, file.toFile()));
+      }
+    }
+    return result;
+  }
+
+  static long toStoreId(final long segmentNr, final long tableId) {
+    return (segmentNr << SEGMENT_ID_SHIFT) | tableId;
+  }
+
   @Override
   public Collection<Schema> getMeasurements(final Predicate<String> filter) throws IOException {
-    ListMultimap<String, TableDef> allTables = TSDBQuery.getAllTables(dbFile);
-    Map<String, Pair<Schema, Set<Long>>> schemas = Maps.newHashMapWithExpectedSize(allTables.size());
-    for (Map.Entry<String, TableDef> entry : allTables.entries()) {
-      String key = entry.getKey();
-      if (filter.test(key)) {
-        Pair<Schema, Set<Long>> exSch = schemas.get(key);
-        TableDef td = entry.getValue();
-        if (exSch == null) {
-          Schema sch = TableDefs.createSchema(td);
-          Set<Long> ids = new HashSet<>(2);
-          ids.add(td.getId());
-          exSch = Pair.of(sch, ids);
-          schemas.put(key, exSch);
-        } else {
-          exSch.getValue().add(td.getId());
+    Map<String, Pair<Schema, Set<Long>>> schemas = Maps.newHashMapWithExpectedSize(16);
+    for (Pair<Long, File> segment : getSegments()) {
+      ListMultimap<String, TableDef> allTables;
+      try {
+        allTables = TSDBQuery.getAllTables(segment.getValue());
+      } catch (NoSuchFileException ex) { // deleted by retention.
+        continue;
+      }
+      long segmentNr = segment.getKey();
+      for (Map.Entry<String, TableDef> entry : allTables.entries()) {
+        String key = entry.getKey();
+        if (filter.test(key)) {
+          Pair<Schema, Set<Long>> exSch = schemas.get(key);
+          TableDef td = entry.getValue();
+          if (exSch == null) {
+            Schema sch = TableDefs.createSchema(td);
+            Set<Long> ids = new HashSet<>(2);
+            ids.add(toStoreId(segmentNr, td.getId()));
+            exSch = Pair.of(sch, ids);
+            schemas.put(key, exSch);
+          } else {
+            exSch.getValue().add(toStoreId(segmentNr, td.getId()));
+          }
         }
       }
     }
@@ -96,8 +150,38 @@ public final class TSDBMeasurementStoreReader implements MeasurementStoreQuery {
   @Nullable
   public AvroCloseableIterable<TimeSeriesRecord> getMeasurementData(final Schema measurement,
           final Instant from, final Instant to) throws IOException {
-    return TSDBQuery.getTimeSeriesData(dbFile, from.toEpochMilli(), to.toEpochMilli(),
-            (Collection<Long>) measurement.getObjectProp("ids"), measurement);
+    TLongObjectMap<Set<Long>> segmentIds = new TLongObjectHashMap<>();
+    for (Number id : (Collection<? extends Number>) measurement.getObjectProp(TimeSeriesRecord.IDS_PROP)) {
+      long storeId = id.longValue();
+      long segmentNr = storeId >>> SEGMENT_ID_SHIFT;
+      Set<Long> ids = segmentIds.get(segmentNr);
+      if (ids == null) {
+        ids = new HashSet<>(2);
+        segmentIds.put(segmentNr, ids);
+      }
+      ids.add(storeId & POSITION_MASK);
+    }
+    List<AvroCloseableIterable<TimeSeriesRecord>> parts = new ArrayList<>(segmentIds.size());
+    try {
+      for (Pair<Long, File> segment : getSegments()) {
+        Set<Long> ids = segmentIds.get(segment.getKey());
+        if (ids != null) {
+          try {
+            parts.add(TSDBQuery.getTimeSeriesData(segment.getValue(), from.toEpochMilli(), to.toEpochMilli(),
+                    ids, measurement));
+          } catch (NoSuchFileException ex) { // deleted by retention.
+            continue;
+          }
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      Exception cex = Closeables.closeAll(parts);
+      if (cex != null) {
+        ex.addSuppressed(cex);
+      }
+      throw ex;
+    }
+    return concat(parts, measurement);
   }
 
   @Override
@@ -107,7 +191,42 @@ public final class TSDBMeasurementStoreReader implements MeasurementStoreQuery {
 
   @Override
   public AvroCloseableIterable<Observation> getObservations() throws IOException {
-   return TSDBQuery.getTimeSeriesData(dbFile);
+    List<AvroCloseableIterable<Observation>> parts = new ArrayList<>(4);
+    try {
+      for (Pair<Long, File> segment : getSegments()) {
+        long segmentNr = segment.getKey();
+        AvroCloseableIterable<Observation> data;
+        try {
+          data = TSDBQuery.getTimeSeriesData(segment.getValue());
+        } catch (NoSuchFileException ex) { // deleted by retention.
+          continue;
+        }
+        parts.add(segmentNr == 0 ? data : AvroCloseableIterable.from(Iterables.transform(data, (obs) -> {
+          obs.setTableDefId(toStoreId(segmentNr, obs.getTableDefId()));
+          return obs;
+        }), data::close, data.getElementSchema()));
+      }
+    } catch (IOException | RuntimeException ex) {
+      Exception cex = Closeables.closeAll(parts);
+      if (cex != null) {
+        ex.addSuppressed(cex);
+      }
+      throw ex;
+    }
+    return concat(parts, Observation.getClassSchema());
+  }
+
+  private static <T> AvroCloseableIterable<T> concat(final List<AvroCloseableIterable<T>> parts,
+          final Schema schema) {
+    if (parts.size() == 1) {
+      return parts.get(0);
+    }
+    return AvroCloseableIterable.from(Iterables.concat(parts), () -> {
+      Exception ex = Closeables.closeAll(parts);
+      if (ex != null) {
+        throw new IOException(ex);
+      }
+    }, schema);
   }
 
 }
@@ -87,13 +87,21 @@ public final class TSDBTxtMeasurementStore
       Csv.writeCsvElement(groupName, writer);
       writer.write(',');
       writer.write(Long.toString(timeStampMillis));
-      for (int i = 0; i < measurements.length; i++) {
+      int nrMeasurements = Math.min(measurementInfo.getNumberOfMeasurements(), measurements.length);
+      for (int i = 0; i < nrMeasurements; i++) {
         String measurementName = measurementInfo.getMeasurementName(i);
         writer.write(',');
         Csv.writeCsvElement(measurementName, writer);
         writer.write(',');
         writer.write(Long.toString(measurements[i]));
       }
+      // histogram (bucket lower bound, count) pairs.
+      for (int i = nrMeasurements; i < measurements.length - 1; i += 2) {
+        writer.write(",Q");
+        writer.write(Long.toString(measurements[i]));
+        writer.write(',');
+        writer.write(Long.toString(measurements[i + 1]));
+      }
       writer.write('\n');
     }
   }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.WillCloseWhenClosed;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.spf4j.base.avro.Method;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * Reader for the profile streams written by {@link CompactProfileWriter}.
+ * The reader does not read ahead beyond the current record, so it can be used to consume a live stream
+ * (socket, or a file that is being appended to); input is buffered internally.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class CompactProfileReader implements Closeable {
+
+  private final BufferedInputStream is;
+
+  private final BinaryDecoder decoder;
+
+  private final List<String> strings;
+
+  private final List<Method> methods;
+
+  public CompactProfileReader(@WillCloseWhenClosed final InputStream is) throws IOException {
+    this.is = new BufferedInputStream(is, 8192);
+    this.decoder = DecoderFactory.get().directBinaryDecoder(this.is, null);
+    byte[] magic = new byte[CompactProfileWriter.MAGIC.length];
+    decoder.readFixed(magic);
+    if (!Arrays.equals(magic, CompactProfileWriter.MAGIC)) {
+      throw new IOException("Not a compact profile stream, header: " + Arrays.toString(magic));
+    }
+    int version = decoder.readInt();
+    if (version != CompactProfileWriter.VERSION) {
+      throw new IOException("Unsupported compact profile stream version " + version);
+    }
+    this.strings = new ArrayList<>();
+    this.methods = new ArrayList<>();
+  }
+
+  /**
+   * @return the next profile record, or null if the end of the stream has been reached.
+   * @throws IOException
+   */
+  @Nullable
+  public ProfileRecord read() throws IOException {
+    is.mark(1);
+    if (is.read() < 0) {
+      return null;
+    }
+    is.reset();
+    Instant from = Instant.ofEpochMilli(decoder.readLong());
+    Instant to = Instant.ofEpochMilli(decoder.readLong());
+    String tag = decoder.readString();
+    String label = decoder.readString();
+    int nrNewStrings = decoder.readInt();
+    for (int i = 0; i < nrNewStrings; i++) {
+      strings.add(decoder.readString());
+    }
+    int nrNewMethods = decoder.readInt();
+    for (int i = 0; i < nrNewMethods; i++) {
+      String declaringClass = strings.get(checkIndex(decoder.readInt(), strings.size()));
+      String name = strings.get(checkIndex(decoder.readInt(), strings.size()));
+      methods.add(new Method(declaringClass, name));
+    }
+    int nrNodes = decoder.readInt();
+    SampleNode[] nodes = new SampleNode[nrNodes + 1];
+    nodes[0] = new SampleNode(decoder.readInt());
+    for (int i = 1; i <= nrNodes; i++) {
+      int parentDelta = decoder.readInt();
+      if (parentDelta < 1 || parentDelta > i) {
+        throw new IOException("Invalid parent delta " + parentDelta + " for node " + i);
+      }
+      Method method = methods.get(checkIndex(decoder.readInt(), methods.size()));
+      SampleNode node = new SampleNode(decoder.readInt());
+      nodes[i - parentDelta].put(method, node);
+      nodes[i] = node;
+    }
+    return new ProfileRecord(from, to, tag, label, nodes[0]);
+  }
+
+  private static int checkIndex(final int idx, final int size) throws IOException {
+    if (idx < 0 || idx >= size) {
+      throw new IOException("Invalid dictionary reference " + idx + ", dictionary size = " + size);
+    }
+    return idx;
+  }
+
+  @Override
+  public void close() throws IOException {
+    is.close();
+  }
+
+  @Override
+  public String toString() {
+    return "CompactProfileReader{" + "is=" + is + ", nrMethods=" + methods.size() + '}';
+  }
+
+  /**
+   * A profile record: the samples collected for a label in a time interval.
+   */
+  public static final class ProfileRecord {
+
+    private final Instant from;
+    private final Instant to;
+    private final String tag;
+    private final String label;
+    private final SampleNode samples;
+
+    public ProfileRecord(final Instant from, final Instant to, final String tag, final String label,
+            final SampleNode samples) {
+      this.from = from;
+      this.to = to;
+      this.tag = tag;
+      this.label = label;
+      this.samples = samples;
+    }
+
+    public Instant getFrom() {
+      return from;
+    }
+
+    public Instant getTo() {
+      return to;
+    }
+
+    /**
+     * @return the profile tag, empty string if no tag.
+     */
+    public String getTag() {
+      return tag;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public SampleNode getSamples() {
+      return samples;
+    }
+
+    @Override
+    public String toString() {
+      return "ProfileRecord{" + "from=" + from + ", to=" + to + ", tag=" + tag + ", label=" + label
+              + ", nrNodes=" + samples.getNrNodes() + '}';
+    }
+
+  }
+
+}
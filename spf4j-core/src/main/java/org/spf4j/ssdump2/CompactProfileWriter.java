@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.WillCloseWhenClosed;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.spf4j.base.StackSamples;
+import org.spf4j.base.avro.Method;
+
+/**
+ * Writer for the compact, dictionary encoded profile stream format.
+ *
+ * A stream starts with the "SSDC" magic followed by the format version, and continues with any number of records.
+ * All numbers are zig-zag varints, strings are length prefixed UTF-8, the same encoding avro binary uses.
+ * Class and method names are written only once per stream: every record carries only the strings and methods
+ * that were not seen before in the stream, and references them by their index in the stream dictionary.
+ * A record is:
+ * <pre>
+ * long fromMillis, long toMillis, string tag, string label,
+ * int nrNewStrings, string[nrNewStrings],
+ * int nrNewMethods, (int classStringIdx, int nameStringIdx)[nrNewMethods],
+ * int nrNodes, int rootCount, (int parentDelta, int methodIdx, int count)[nrNodes]
+ * </pre>
+ * Nodes are written in depth first pre-order, the parent of a node is referenced by the difference between the node
+ * index and the parent index (the root has index 0), which is 1 for the typical deep and narrow stack sample trees.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class CompactProfileWriter implements Closeable, Flushable {
+
+  static final byte[] MAGIC = {'S', 'S', 'D', 'C'};
+
+  static final int VERSION = 1;
+
+  private final OutputStream os;
+
+  private final BinaryEncoder encoder;
+
+  private final TObjectIntMap<String> strings;
+
+  private final TObjectIntMap<Method> methods;
+
+  private final List<String> newStrings;
+
+  private final TIntArrayList newMethods;
+
+  private final TIntArrayList nodes;
+
+  private final ArrayDeque<Frame> traversal;
+
+  public CompactProfileWriter(@WillCloseWhenClosed final OutputStream os) throws IOException {
+    this.os = os;
+    this.encoder = EncoderFactory.get().binaryEncoder(os, null);
+    this.encoder.writeFixed(MAGIC);
+    this.encoder.writeInt(VERSION);
+    this.strings = new TObjectIntHashMap<>(256, 0.5f, -1);
+    this.methods = new TObjectIntHashMap<>(256, 0.5f, -1);
+    this.newStrings = new ArrayList<>();
+    this.newMethods = new TIntArrayList();
+    this.nodes = new TIntArrayList();
+    this.traversal = new ArrayDeque<>();
+  }
+
+  /**
+   * Write a profile record, the record is buffered until the writer is flushed.
+   * @param from the profile start.
+   * @param to the profile end.
+   * @param tag the profile tag.
+   * @param label the label (context) of the samples.
+   * @param samples the stack samples.
+   * @throws IOException
+   */
+  public void write(final Instant from, final Instant to, @Nullable final String tag, final String label,
+          final StackSamples samples) throws IOException {
+    newStrings.clear();
+    newMethods.resetQuick();
+    nodes.resetQuick();
+    int nrNodes = 0;
+    pushChildren(samples, 0);
+    Frame frame;
+    while ((frame = traversal.pollLast()) != null) {
+      int idx = ++nrNodes;
+      nodes.add(idx - frame.parentIdx);
+      nodes.add(methodIdx(frame.method));
+      nodes.add(frame.node.getSampleCount());
+      pushChildren(frame.node, idx);
+    }
+    encoder.writeLong(from.toEpochMilli());
+    encoder.writeLong(to.toEpochMilli());
+    encoder.writeString(tag == null ? "" : tag);
+    encoder.writeString(label);
+    encoder.writeInt(newStrings.size());
+    for (String str : newStrings) {
+      encoder.writeString(str);
+    }
+    encoder.writeInt(newMethods.size() / 2);
+    for (int i = 0, l = newMethods.size(); i < l; i++) {
+      encoder.writeInt(newMethods.getQuick(i));
+    }
+    encoder.writeInt(nrNodes);
+    encoder.writeInt(samples.getSampleCount());
+    for (int i = 0, l = nodes.size(); i < l; i++) {
+      encoder.writeInt(nodes.getQuick(i));
+    }
+  }
+
+  private void pushChildren(final StackSamples node, final int idx) {
+    TMap<Method, ? extends StackSamples> subNodes = node.getSubNodes();
+    if (!subNodes.isEmpty()) {
+      subNodes.forEachEntry((final Method m, final StackSamples child) -> {
+        traversal.addLast(new Frame(idx, m, child));
+        return true;
+      });
+    }
+  }
+
+  private int methodIdx(final Method method) {
+    int idx = methods.get(method);
+    if (idx < 0) {
+      int classIdx = stringIdx(method.getDeclaringClass());
+      int nameIdx = stringIdx(method.getName());
+      idx = methods.size();
+      methods.put(method, idx);
+      newMethods.add(classIdx);
+      newMethods.add(nameIdx);
+    }
+    return idx;
+  }
+
+  private int stringIdx(final String str) {
+    int idx = strings.get(str);
+    if (idx < 0) {
+      idx = strings.size();
+      strings.put(str, idx);
+      newStrings.add(str);
+    }
+    return idx;
+  }
+
+  /**
+   * @return the number of distinct methods in the stream dictionary.
+   */
+  public int getDictionarySize() {
+    return methods.size();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    encoder.flush();
+    os.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (OutputStream stream = os) {
+      encoder.flush();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CompactProfileWriter{" + "os=" + os + ", nrMethods=" + methods.size() + '}';
+  }
+
+  private static final class Frame {
+
+    private final int parentIdx;
+    private final Method method;
+    private final StackSamples node;
+
+    Frame(final int parentIdx, final Method method, final StackSamples node) {
+      this.parentIdx = parentIdx;
+      this.method = method;
+      this.node = node;
+    }
+  }
+
+}
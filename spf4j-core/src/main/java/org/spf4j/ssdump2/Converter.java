@@ -196,33 +196,44 @@ public final class Converter {
   public static void saveLabeledDumps(final File file,
           final Map<String, ? extends StackSamples> pcollected) throws IOException {
     try (OutputStream bos = newOutputStream(file)) {
-      final SpecificDatumWriter<StackSampleElement> writer = new SpecificDatumWriter<>(StackSampleElement.SCHEMA$);
-      final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bos, null);
+      saveLabeledDumps(bos, pcollected);
+    }
+  }
+
+  /**
+   * Write labeled stack samples in the ssdump3 format.
+   * @param bos the stream to write to.
+   * @param pcollected the labeled samples.
+   * @throws IOException
+   */
+  public static void saveLabeledDumps(@WillNotClose final OutputStream bos,
+          final Map<String, ? extends StackSamples> pcollected) throws IOException {
+    final SpecificDatumWriter<StackSampleElement> writer = new SpecificDatumWriter<>(StackSampleElement.SCHEMA$);
+    final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bos, null);
 
-      encoder.writeMapStart();
-      final Map<String, StackSamples> collected = pcollected.entrySet().stream()
-              .filter((e) -> e.getValue() != null)
-              .collect(Collectors.toMap((e) -> e.getKey(), (e) -> e.getValue()));
-      encoder.setItemCount(collected.size());
-      for (Map.Entry<String, StackSamples> entry : collected.entrySet()) {
-        encoder.startItem();
-        encoder.writeString(entry.getKey());
-        encoder.writeArrayStart();
-        Converters.convert(Methods.ROOT, entry.getValue(),
-                -1, 0, (final StackSampleElement object) -> {
-                  try {
+    encoder.writeMapStart();
+    final Map<String, StackSamples> collected = pcollected.entrySet().stream()
+            .filter((e) -> e.getValue() != null)
+            .collect(Collectors.toMap((e) -> e.getKey(), (e) -> e.getValue()));
+    encoder.setItemCount(collected.size());
+    for (Map.Entry<String, StackSamples> entry : collected.entrySet()) {
+      encoder.startItem();
+      encoder.writeString(entry.getKey());
+      encoder.writeArrayStart();
+      Converters.convert(Methods.ROOT, entry.getValue(),
+              -1, 0, (final StackSampleElement object) -> {
+                try {
                   encoder.setItemCount(1L);
                   encoder.startItem();
                   writer.write(object, encoder);
-                  } catch (IOException ex) {
-                    throw new UncheckedIOException(ex);
-                  }
-                });
-        encoder.writeArrayEnd();
-      }
-      encoder.writeMapEnd();
-      encoder.flush();
+                } catch (IOException ex) {
+                  throw new UncheckedIOException(ex);
+                }
+              });
+      encoder.writeArrayEnd();
     }
+    encoder.writeMapEnd();
+    encoder.flush();
   }
 
   private static OutputStream newOutputStream(final File file) throws IOException {
@@ -248,21 +259,32 @@ public final class Converter {
   @SuppressFBWarnings("NP_LOAD_OF_KNOWN_NULL_VALUE")
   public static Map<String, SampleNode> loadLabeledDumps(final File file) throws IOException {
     try (InputStream bis = newInputStream(file)) {
-      final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
-      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(bis, null);
-      long nrItems = decoder.readMapStart();
-      StackSampleElement asmp = new StackSampleElement();
-      Map<String, SampleNode> result = new HashMap<>((int) nrItems);
-      while (nrItems > 0) {
-        for (int i = 0; i < nrItems; i++) {
-          String key = decoder.readString();
-          TIntObjectMap<SampleNode> index = loadSamples(decoder, asmp, reader);
-          result.put(key, index.get(0));
-        }
-        nrItems = decoder.mapNext();
+      return loadLabeledDumps(bis);
+    }
+  }
+
+  /**
+   * Load labeled stack samples in the ssdump3 format.
+   * @param bis the stream to read from.
+   * @return the labeled samples.
+   * @throws IOException
+   */
+  @SuppressFBWarnings("NP_LOAD_OF_KNOWN_NULL_VALUE")
+  public static Map<String, SampleNode> loadLabeledDumps(@WillNotClose final InputStream bis) throws IOException {
+    final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
+    final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(bis, null);
+    long nrItems = decoder.readMapStart();
+    StackSampleElement asmp = new StackSampleElement();
+    Map<String, SampleNode> result = new HashMap<>((int) nrItems);
+    while (nrItems > 0) {
+      for (int i = 0; i < nrItems; i++) {
+        String key = decoder.readString();
+        TIntObjectMap<SampleNode> index = loadSamples(decoder, asmp, reader);
+        result.put(key, index.get(0));
       }
-      return result;
+      nrItems = decoder.mapNext();
     }
+    return result;
   }
 
   @SuppressFBWarnings("OCP_OVERLY_CONCRETE_PARAMETER")// it's a private method, don't care about being generic
@@ -290,69 +312,36 @@ public final class Converter {
 
   /**
    * Load the labels from a ssdump3 file.
+   * The labels are read from the file's label index, which is built with a single scan on first access.
    * @param file the ssdump3 file.
    * @throws IOException
    */
   public static void loadLabels(final File file, final Consumer<String> labalsConsumer) throws IOException {
-    try (InputStream bis = newInputStream(file)) {
-      final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
-      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(bis, null);
-      long nrItems = decoder.readMapStart();
-      StackSampleElement asmp = new StackSampleElement();
-      while (nrItems > 0) {
-        for (int i = 0; i < nrItems; i++) {
-          String key = decoder.readString();
-          labalsConsumer.accept(key);
-          skipDump(decoder, reader, asmp);
-        }
-        nrItems = decoder.mapNext();
-      }
-    }
-  }
-
-  @SuppressFBWarnings("OCP_OVERLY_CONCRETE_PARAMETER")// it's a private method, don't care about being generic
-  private static void skipDump(final Decoder decoder,
-          final SpecificDatumReader<StackSampleElement> reader,
-          final StackSampleElement asmp) throws IOException {
-    long nrArrayItems = decoder.readArrayStart();
-    while (nrArrayItems > 0) {
-      for (int j = 0; j < nrArrayItems; j++) {
-        reader.read(asmp, decoder);
-      }
-      nrArrayItems = decoder.arrayNext();
+    for (String label : LabeledDumpIndex.get(file).getLabels()) {
+      labalsConsumer.accept(label);
     }
   }
 
  /**
    * Load samples forrm file containing multiple labeled stack samples.
    * @param file the ssdump3 file.
+   * The dump is read directly from its offset, looked up in the file's label index.
    * @return
    * @throws IOException
    */
-  @SuppressFBWarnings("NP_LOAD_OF_KNOWN_NULL_VALUE")
   @Nullable
   public static SampleNode loadLabeledDump(final File file, final String label) throws IOException {
-    try (InputStream bis = newInputStream(file)) {
-      final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
-      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(bis, null);
-      long nrItems = decoder.readMapStart();
-      StackSampleElement asmp = new StackSampleElement();
-      while (nrItems > 0) {
-        for (int i = 0; i < nrItems; i++) {
-          String key = decoder.readString();
-          if (label.equals(key)) {
-            return loadSamples(decoder, asmp, reader).get(0);
-          } else {
-            skipDump(decoder, reader, asmp);
-          }
-        }
-        nrItems = decoder.mapNext();
+    try (InputStream is = LabeledDumpIndex.get(file).open(file, label)) {
+      if (is == null) {
+        return null;
       }
-      return null;
+      final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
+      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(is, null);
+      return loadSamples(decoder, new StackSampleElement(), reader).get(0);
     }
   }
 
-  private static InputStream newInputStream(final File file) throws IOException {
+  static InputStream newInputStream(final File file) throws IOException {
     InputStream result =  new BufferedInputStream(Files.newInputStream(file.toPath()));
     if (file.getName().endsWith(".gz")) {
       try {
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.spf4j.io.CountingInputStream;
+
+/**
+ * Index of the labeled dumps in a ssdump3 file: label -> offset of the label's sample array in the
+ * (uncompressed) file content. The index is built with a single scan that skips over the samples without
+ * materializing them, and is cached per file (invalidated when the file changes).
+ *
+ * @author zoly
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+final class LabeledDumpIndex {
+
+  private static final Cache<Path, LabeledDumpIndex> INDEXES = CacheBuilder.newBuilder()
+          .maximumSize(Integer.getInteger("spf4j.ssdump.labelIndexCacheSize", 64))
+          .build();
+
+  private final long lastModifiedMillis;
+
+  private final long size;
+
+  private final Map<String, Long> offsets;
+
+  private LabeledDumpIndex(final long lastModifiedMillis, final long size, final Map<String, Long> offsets) {
+    this.lastModifiedMillis = lastModifiedMillis;
+    this.size = size;
+    this.offsets = offsets;
+  }
+
+  static LabeledDumpIndex get(final File file) throws IOException {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    long lastModified = Files.getLastModifiedTime(path).toMillis();
+    long size = Files.size(path);
+    LabeledDumpIndex index = INDEXES.getIfPresent(path);
+    if (index == null || index.lastModifiedMillis != lastModified || index.size != size) {
+      index = new LabeledDumpIndex(lastModified, size, scan(file));
+      INDEXES.put(path, index);
+    }
+    return index;
+  }
+
+  private static Map<String, Long> scan(final File file) throws IOException {
+    try (CountingInputStream cis = new CountingInputStream(Converter.newInputStream(file))) {
+      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(cis, null);
+      Map<String, Long> result = new LinkedHashMap<>();
+      long nrItems = decoder.readMapStart();
+      while (nrItems > 0) {
+        for (int i = 0; i < nrItems; i++) {
+          String key = decoder.readString();
+          result.put(key, cis.getCount());
+          skipSamples(decoder);
+        }
+        nrItems = decoder.mapNext();
+      }
+      return Collections.unmodifiableMap(result);
+    }
+  }
+
+  /**
+   * skip a StackSampleElement array: id, parentId, count, method.declaringClass, method.name.
+   */
+  private static void skipSamples(final BinaryDecoder decoder) throws IOException {
+    long nrArrayItems = decoder.readArrayStart();
+    while (nrArrayItems > 0) {
+      for (int j = 0; j < nrArrayItems; j++) {
+        decoder.readInt();
+        decoder.readInt();
+        decoder.readInt();
+        decoder.skipString();
+        decoder.skipString();
+      }
+      nrArrayItems = decoder.arrayNext();
+    }
+  }
+
+  Set<String> getLabels() {
+    return offsets.keySet();
+  }
+
+  /**
+   * @return a stream positioned at the beginning of the label's sample array, or null if there is no such label.
+   */
+  @Nullable
+  InputStream open(final File file, final String label) throws IOException {
+    Long offset = offsets.get(label);
+    if (offset == null) {
+      return null;
+    }
+    if (file.getName().endsWith(".gz")) {
+      InputStream is = Converter.newInputStream(file);
+      try {
+        ByteStreams.skipFully(is, offset);
+      } catch (IOException | RuntimeException ex) {
+        is.close();
+        throw ex;
+      }
+      return is;
+    } else {
+      SeekableByteChannel channel = Files.newByteChannel(file.toPath());
+      try {
+        channel.position(offset);
+      } catch (IOException | RuntimeException ex) {
+        channel.close();
+        throw ex;
+      }
+      return new BufferedInputStream(Channels.newInputStream(channel));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LabeledDumpIndex{" + "lastModifiedMillis=" + lastModifiedMillis + ", size=" + size
+            + ", offsets=" + offsets + '}';
+  }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.WillNotClose;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.MutableHolder;
+import org.spf4j.base.avro.Method;
+import org.spf4j.base.avro.StackSampleElement;
+import org.spf4j.stackmonitor.CallingContextTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * Streaming operations over ssdump2 files and ssdump3 labeled dumps.
+ *
+ * Unlike Converter.load, these operations process the stack sample elements as they are decoded, without
+ * materializing the element list or the SampleNode tree of the input. Aggregation and filtering only keep a compact
+ * CallingContextTree of the result, diff keeps a compact tree of the subtrahend.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class StreamingConverter {
+
+  private StreamingConverter() {
+  }
+
+  /**
+   * A source of stack sample elements. Elements are provided in the order they were written,
+   * with parents before their children. The element instance provided to the consumer might be reused.
+   */
+  @FunctionalInterface
+  public interface ElementSource {
+
+    void forEach(Consumer<StackSampleElement> consumer) throws IOException;
+
+  }
+
+  /**
+   * @param file a ssdump2 file.
+   */
+  public static ElementSource ssdump2(final File file) {
+    return (consumer) -> {
+      try (InputStream is = Converter.newInputStream(file)) {
+        read(is, consumer);
+      }
+    };
+  }
+
+  /**
+   * @param file a ssdump3 file.
+   * @param label the label of the dump to read, a missing label is equivalent to an empty dump.
+   */
+  public static ElementSource labeledDump(final File file, final String label) {
+    return (consumer) -> {
+      try (InputStream is = LabeledDumpIndex.get(file).open(file, label)) {
+        if (is != null) {
+          readArray(DecoderFactory.get().directBinaryDecoder(is, null), consumer);
+        }
+      }
+    };
+  }
+
+  /**
+   * read all stack sample elements from a ssdump2 stream.
+   */
+  public static void read(@WillNotClose final InputStream is, final Consumer<StackSampleElement> consumer)
+          throws IOException {
+    final PushbackInputStream pis = new PushbackInputStream(is);
+    final SpecificDatumReader<StackSampleElement> reader =
+            new SpecificDatumReader<>(StackSampleElement.getClassSchema());
+    final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(pis, null);
+    StackSampleElement asmp = new StackSampleElement();
+    int read;
+    while ((read = pis.read()) >= 0) {
+      pis.unread(read);
+      asmp = reader.read(asmp, decoder);
+      consumer.accept(asmp);
+    }
+  }
+
+  static void readArray(final BinaryDecoder decoder, final Consumer<StackSampleElement> consumer)
+          throws IOException {
+    final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
+    StackSampleElement asmp = new StackSampleElement();
+    long nrArrayItems = decoder.readArrayStart();
+    while (nrArrayItems > 0) {
+      for (int j = 0; j < nrArrayItems; j++) {
+        asmp = reader.read(asmp, decoder);
+        consumer.accept(asmp);
+      }
+      nrArrayItems = decoder.arrayNext();
+    }
+  }
+
+  public static <T> T fold(final ElementSource source, final T identity,
+          final BiFunction<T, StackSampleElement, T> function) throws IOException {
+    MutableHolder<T> result = new MutableHolder<>(identity);
+    source.forEach((e) -> result.setValue(function.apply(result.getValue(), e)));
+    return result.getValue();
+  }
+
+  /**
+   * Aggregate the samples from source into target.
+   * @return target.
+   */
+  public static CallingContextTree aggregate(final CallingContextTree target, final ElementSource source)
+          throws IOException {
+    return aggregate(target, source, (m) -> false);
+  }
+
+  /**
+   * Aggregate the samples from source into target, excluding the samples of the methods matching the predicate
+   * (same semantics as SampleNode.filteredBy).
+   * @return target.
+   */
+  public static CallingContextTree aggregate(final CallingContextTree target, final ElementSource source,
+          final Predicate<Method> exclude) throws IOException {
+    TIntIntHashMap nodes = newIdMap();
+    source.forEach((e) -> {
+      int node;
+      int parentId = e.getParentId();
+      if (parentId < 0) {
+        node = CallingContextTree.ROOT;
+      } else {
+        int parent = nodes.get(parentId);
+        if (parent == CallingContextTree.NO_ID) {
+          return; // descendant of an excluded method.
+        }
+        Method method = e.getMethod();
+        if (exclude.test(method)) {
+          int count = e.getCount();
+          for (int p = parent; p != CallingContextTree.NO_ID; p = target.getParent(p)) {
+            target.addCount(p, -count);
+          }
+          return;
+        }
+        node = target.getOrCreateChild(parent, target.getMethodId(method));
+      }
+      target.addCount(node, e.getCount());
+      nodes.put(e.getId(), node);
+    });
+    return target;
+  }
+
+  /**
+   * Load the samples from source, excluding the samples of the methods matching the predicate.
+   * Equivalent to Converter.load(...).filteredBy(exclude), without materializing the unfiltered tree.
+   * @return the filtered samples, or null if no samples remain.
+   */
+  @Nullable
+  public static SampleNode load(final ElementSource source, final Predicate<Method> exclude) throws IOException {
+    return aggregate(new CallingContextTree(), source, exclude).toSampleNode();
+  }
+
+  /**
+   * Computes a - b, equivalent to SampleNode.diff(load(a), load(b)).
+   * b is loaded into a compact tree, a is diffed while being decoded.
+   * @return the difference or null if no samples remain.
+   */
+  @Nullable
+  public static SampleNode diff(final ElementSource a, final ElementSource b) throws IOException {
+    CallingContextTree bTree = aggregate(new CallingContextTree(), b);
+    int[] bSelf = selfCounts(bTree);
+    CallingContextTree result = new CallingContextTree();
+    // result node -> matching b node.
+    TIntArrayList matched = new TIntArrayList();
+    matched.add(CallingContextTree.ROOT);
+    TIntIntHashMap nodes = newIdMap();
+    a.forEach((e) -> {
+      int node;
+      int parentId = e.getParentId();
+      if (parentId < 0) {
+        node = CallingContextTree.ROOT;
+      } else {
+        int parent = nodes.get(parentId);
+        if (parent == CallingContextTree.NO_ID) {
+          return;
+        }
+        Method method = e.getMethod();
+        node = result.getOrCreateChild(parent, result.getMethodId(method));
+        if (node == matched.size()) {
+          int bParent = matched.get(parent);
+          int bNode = CallingContextTree.NO_ID;
+          if (bParent != CallingContextTree.NO_ID) {
+            int bMethodId = bTree.findMethodId(method);
+            if (bMethodId != CallingContextTree.NO_ID) {
+              bNode = bTree.getChild(bParent, bMethodId);
+            }
+          }
+          matched.add(bNode);
+        }
+      }
+      result.addCount(node, e.getCount());
+      nodes.put(e.getId(), node);
+    });
+    // children have larger ids than their parents, so a reverse pass is a bottom up traversal.
+    int nrNodes = result.getNrNodes();
+    int[] childCounts = new int[nrNodes];
+    int[] childReductions = new int[nrNodes];
+    for (int i = nrNodes - 1; i >= 0; i--) {
+      int count = result.getCount(i);
+      int bNode = matched.get(i);
+      int diffCount = count - childReductions[i];
+      if (bNode != CallingContextTree.NO_ID) {
+        diffCount -= Math.min(count - childCounts[i], bSelf[bNode]);
+      }
+      if (i != CallingContextTree.ROOT) {
+        int parent = result.getParent(i);
+        childCounts[parent] += count;
+        if (bNode != CallingContextTree.NO_ID) {
+          childReductions[parent] += count - diffCount;
+        }
+      }
+      result.setCount(i, diffCount);
+    }
+    return result.toSampleNode();
+  }
+
+  private static int[] selfCounts(final CallingContextTree tree) {
+    int nrNodes = tree.getNrNodes();
+    int[] result = new int[nrNodes];
+    for (int i = 0; i < nrNodes; i++) {
+      result[i] = tree.getCount(i);
+    }
+    for (int i = nrNodes - 1; i > 0; i--) {
+      result[tree.getParent(i)] -= tree.getCount(i);
+    }
+    return result;
+  }
+
+  private static TIntIntHashMap newIdMap() {
+    return new TIntIntHashMap(64, 0.5f, Integer.MIN_VALUE, CallingContextTree.NO_ID);
+  }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.math.IntMath;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.spf4j.base.avro.Method;
+
+/**
+ * A compact calling context tree optimized for collecting stack samples.
+ *
+ * Methods are interned to int ids, a StackTraceElement identity cache resolves the id of a frame without
+ * any string hashing if the same element instance is seen again. Tree nodes live in flat int arrays indexed by
+ * node id (node 0 is the root), and a single open addressed table maps (parent node, method id) to child node.
+ * Parents are always allocated before their children, so conversion to a SampleNode tree is a single pass over
+ * the node table, done only when the samples are retrieved.
+ *
+ * Method ids and caches survive reset, so a steady state profiler allocates nothing per sample. To bound the memory
+ * of long running profilers (generated classes, lambdas, synthetic frames), the method table is dropped and rebuilt
+ * on reset once it has more than maxRetainedMethods methods (spf4j.callingContextTree.maxRetainedMethods,
+ * default 16384).
+ * The node level methods allow building trees from other sources (like streamed profile files) with the same
+ * compact representation.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class CallingContextTree {
+
+  public static final int ROOT = 0;
+
+  public static final int NO_ID = -1;
+
+  private static final int IDENTITY_CACHE_SIZE = 4096;
+
+  private static final int INITIAL_NODE_CAPACITY = 256;
+
+  private static final int DEFAULT_MAX_RETAINED_METHODS
+          = Integer.getInteger("spf4j.callingContextTree.maxRetainedMethods", 16384);
+
+  private final int maxRetainedMethods;
+
+  /** method id -> method. */
+  private ArrayList<Method> methods;
+
+  /** className -> methodName -> method id. */
+  private THashMap<String, TObjectIntHashMap<String>> methodIds;
+
+  private final StackTraceElement[] identityCacheKeys;
+
+  private final int[] identityCacheIds;
+
+  private int[] nodeParent;
+
+  private int[] nodeMethod;
+
+  private int[] nodeCount;
+
+  private int nrNodes;
+
+  /** child lookup table, key = parent << 32 | methodId, value = child node id, 0 means empty slot. */
+  private long[] childKeys;
+
+  private int[] childNodes;
+
+  private int childMask;
+
+  public CallingContextTree() {
+    this(DEFAULT_MAX_RETAINED_METHODS);
+  }
+
+  /**
+   * @param maxRetainedMethods the maximum number of interned methods retained by reset.
+   */
+  public CallingContextTree(final int maxRetainedMethods) {
+    this.maxRetainedMethods = maxRetainedMethods;
+    methods = new ArrayList<>();
+    methodIds = new THashMap<>();
+    identityCacheKeys = new StackTraceElement[IDENTITY_CACHE_SIZE];
+    identityCacheIds = new int[IDENTITY_CACHE_SIZE];
+    nodeParent = new int[INITIAL_NODE_CAPACITY];
+    nodeMethod = new int[INITIAL_NODE_CAPACITY];
+    nodeCount = new int[INITIAL_NODE_CAPACITY];
+    nodeParent[0] = NO_ID;
+    nodeMethod[0] = NO_ID;
+    nrNodes = 1;
+    childKeys = new long[INITIAL_NODE_CAPACITY * 2];
+    childNodes = new int[INITIAL_NODE_CAPACITY * 2];
+    childMask = INITIAL_NODE_CAPACITY * 2 - 1;
+  }
+
+  /**
+   * add a stack trace sample, stackTrace[0] being the top of the stack.
+   */
+  public void add(final StackTraceElement[] stackTrace) {
+    int node = ROOT;
+    nodeCount[ROOT]++;
+    for (int i = stackTrace.length - 1; i >= 0; i--) {
+      node = getOrCreateChild(node, getMethodId(stackTrace[i]));
+      nodeCount[node]++;
+    }
+  }
+
+  /**
+   * add a weighted stack trace sample (like allocated bytes), stackTrace[0] being the top of the stack.
+   * counts saturate at Integer.MAX_VALUE.
+   */
+  public void add(final StackTraceElement[] stackTrace, final int weight) {
+    int node = ROOT;
+    nodeCount[ROOT] = IntMath.saturatedAdd(nodeCount[ROOT], weight);
+    for (int i = stackTrace.length - 1; i >= 0; i--) {
+      node = getOrCreateChild(node, getMethodId(stackTrace[i]));
+      nodeCount[node] = IntMath.saturatedAdd(nodeCount[node], weight);
+    }
+  }
+
+  public boolean isEmpty() {
+    return nodeCount[ROOT] <= 0;
+  }
+
+  /**
+   * @return the number of nodes, including the root node. Node ids are 0 (root) to getNrNodes() - 1,
+   * a parent node id is always smaller than its children's ids.
+   */
+  public int getNrNodes() {
+    return nrNodes;
+  }
+
+  public int getNrMethods() {
+    return methods.size();
+  }
+
+  /**
+   * @return the interned method id, creating one if needed.
+   */
+  public int getMethodId(final Method method) {
+    TObjectIntHashMap<String> cMethods = getClassMethods(method.getDeclaringClass());
+    int id = cMethods.get(method.getName());
+    if (id == NO_ID) {
+      id = addMethod(cMethods, method.getDeclaringClass(), method.getName());
+    }
+    return id;
+  }
+
+  /**
+   * @return the method id, or NO_ID if the method has not been interned in this tree.
+   */
+  public int findMethodId(final Method method) {
+    TObjectIntHashMap<String> cMethods = methodIds.get(method.getDeclaringClass());
+    if (cMethods == null) {
+      return NO_ID;
+    }
+    return cMethods.get(method.getName());
+  }
+
+  public Method getMethod(final int methodId) {
+    return methods.get(methodId);
+  }
+
+  public int getParent(final int node) {
+    return nodeParent[node];
+  }
+
+  public int getNodeMethodId(final int node) {
+    return nodeMethod[node];
+  }
+
+  public int getCount(final int node) {
+    return nodeCount[node];
+  }
+
+  public void setCount(final int node, final int count) {
+    nodeCount[node] = count;
+  }
+
+  public void addCount(final int node, final int count) {
+    nodeCount[node] += count;
+  }
+
+  /**
+   * @return the child node of parent for methodId, or NO_ID if there is none.
+   */
+  public int getChild(final int parent, final int methodId) {
+    long key = ((long) parent << 32) | methodId;
+    int idx = hash(key) & childMask;
+    int child;
+    while ((child = childNodes[idx]) != 0) {
+      if (childKeys[idx] == key) {
+        return child;
+      }
+      idx = (idx + 1) & childMask;
+    }
+    return NO_ID;
+  }
+
+  /**
+   * @return the samples as a SampleNode tree, or null if there are no samples.
+   * Nodes with a sample count <= 0 are not included (together with their children).
+   */
+  @Nullable
+  public SampleNode toSampleNode() {
+    if (isEmpty()) {
+      return null;
+    }
+    SampleNode[] nodes = new SampleNode[nrNodes];
+    nodes[ROOT] = new SampleNode(nodeCount[ROOT]);
+    for (int i = 1; i < nrNodes; i++) {
+      int count = nodeCount[i];
+      SampleNode parent = nodes[nodeParent[i]];
+      if (count > 0 && parent != null) {
+        SampleNode node = new SampleNode(count);
+        nodes[i] = node;
+        parent.put(methods.get(nodeMethod[i]), node);
+      }
+    }
+    return nodes[ROOT];
+  }
+
+  /**
+   * Clear all samples, interned methods are retained, unless there are more than maxRetainedMethods,
+   * in which case method ids are not valid after reset.
+   */
+  public void reset() {
+    Arrays.fill(nodeCount, 0, nrNodes, 0);
+    Arrays.fill(childNodes, 0);
+    nrNodes = 1;
+    if (methods.size() > maxRetainedMethods) {
+      methods = new ArrayList<>();
+      methodIds = new THashMap<>();
+      Arrays.fill(identityCacheKeys, null);
+    }
+  }
+
+  private int getMethodId(final StackTraceElement elem) {
+    int idx = System.identityHashCode(elem) & (IDENTITY_CACHE_SIZE - 1);
+    if (identityCacheKeys[idx] == elem) {
+      return identityCacheIds[idx];
+    }
+    String className = elem.getClassName();
+    String methodName = elem.getMethodName();
+    TObjectIntHashMap<String> cMethods = getClassMethods(className);
+    int id = cMethods.get(methodName);
+    if (id == NO_ID) {
+      id = addMethod(cMethods, className, methodName);
+    }
+    identityCacheKeys[idx] = elem;
+    identityCacheIds[idx] = id;
+    return id;
+  }
+
+  private TObjectIntHashMap<String> getClassMethods(final String className) {
+    TObjectIntHashMap<String> cMethods = methodIds.get(className);
+    if (cMethods == null) {
+      cMethods = new TObjectIntHashMap<>(8, 0.5f, NO_ID);
+      methodIds.put(className, cMethods);
+    }
+    return cMethods;
+  }
+
+  private int addMethod(final TObjectIntHashMap<String> cMethods, final String className, final String methodName) {
+    int id = methods.size();
+    methods.add(new Method(className, methodName));
+    cMethods.put(methodName, id);
+    return id;
+  }
+
+  /**
+   * @return the child node of parent for methodId, created with a 0 sample count if it does not exist.
+   */
+  public int getOrCreateChild(final int parent, final int methodId) {
+    long key = ((long) parent << 32) | methodId;
+    int idx = hash(key) & childMask;
+    int child;
+    while ((child = childNodes[idx]) != 0) {
+      if (childKeys[idx] == key) {
+        return child;
+      }
+      idx = (idx + 1) & childMask;
+    }
+    child = nrNodes++;
+    if (child >= nodeCount.length) {
+      int newCapacity = nodeCount.length << 1;
+      nodeParent = Arrays.copyOf(nodeParent, newCapacity);
+      nodeMethod = Arrays.copyOf(nodeMethod, newCapacity);
+      nodeCount = Arrays.copyOf(nodeCount, newCapacity);
+    }
+    nodeParent[child] = parent;
+    nodeMethod[child] = methodId;
+    childKeys[idx] = key;
+    childNodes[idx] = child;
+    if (nrNodes > (childMask >> 1)) {
+      rehash();
+    }
+    return child;
+  }
+
+  private void rehash() {
+    int newSize = childNodes.length << 1;
+    int newMask = newSize - 1;
+    long[] newKeys = new long[newSize];
+    int[] newNodes = new int[newSize];
+    for (int i = 0; i < childNodes.length; i++) {
+      int child = childNodes[i];
+      if (child != 0) {
+        long key = childKeys[i];
+        int idx = hash(key) & newMask;
+        while (newNodes[idx] != 0) {
+          idx = (idx + 1) & newMask;
+        }
+        newKeys[idx] = key;
+        newNodes[idx] = child;
+      }
+    }
+    childKeys = newKeys;
+    childNodes = newNodes;
+    childMask = newMask;
+  }
+
+  private static int hash(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return "CallingContextTree{" + "nrNodes=" + nrNodes + ", nrMethods=" + methods.size() + '}';
+  }
+
+}
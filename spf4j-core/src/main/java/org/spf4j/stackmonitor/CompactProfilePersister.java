@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.io.CountingOutputStream;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.DateTimeFormats;
+import org.spf4j.base.StackSamples;
+import org.spf4j.base.TimeSource;
+import org.spf4j.ssdump2.CompactProfileWriter;
+
+/**
+ * Persists profiles in the compact dictionary encoded format (see {@link CompactProfileWriter}) to rotating files.
+ * A file is rolled over when it exceeds a size or an age, each file has its own dictionary and can be read
+ * independently with {@link org.spf4j.ssdump2.CompactProfileReader}.
+ * Every persist is flushed, which allows an out of process collector to tail the current file.
+ * If a persist fails, the current file is closed (its dictionary might reference definitions that were not written)
+ * and the next persist starts a new file.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class CompactProfilePersister implements ProfilePersister {
+
+  private static final long DEFAULT_MAX_FILE_BYTES
+          = Long.getLong("spf4j.compactProfilePersister.maxFileBytes", 64L * 1024 * 1024);
+
+  private static final long DEFAULT_MAX_FILE_MILLIS
+          = Long.getLong("spf4j.compactProfilePersister.maxFileMillis", 3600000L);
+
+  private final Path targetFolder;
+
+  private final String baseFileName;
+
+  private final boolean compress;
+
+  private final long maxFileBytes;
+
+  private final long maxFileNanos;
+
+  private final FileOpener opener;
+
+  @Nullable
+  private CompactProfileWriter writer;
+
+  @Nullable
+  private CountingOutputStream fileStream;
+
+  @Nullable
+  private Path targetFile;
+
+  private long fileCreatedNanos;
+
+  public CompactProfilePersister(final Path targetFolder, final String baseFileName, final boolean compress) {
+    this(targetFolder, baseFileName, compress, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILE_MILLIS);
+  }
+
+  public CompactProfilePersister(final Path targetFolder, final String baseFileName, final boolean compress,
+          final long maxFileBytes, final long maxFileMillis) {
+    this(targetFolder, baseFileName, compress, maxFileBytes, maxFileMillis, Files::newOutputStream);
+  }
+
+  CompactProfilePersister(final Path targetFolder, final String baseFileName, final boolean compress,
+          final long maxFileBytes, final long maxFileMillis, final FileOpener opener) {
+    if (maxFileBytes <= 0 || maxFileMillis <= 0) {
+      throw new IllegalArgumentException("Invalid rotation limits, maxFileBytes = " + maxFileBytes
+              + ", maxFileMillis = " + maxFileMillis);
+    }
+    this.targetFolder = targetFolder;
+    this.baseFileName = baseFileName;
+    this.compress = compress;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFileNanos = maxFileMillis * 1000000L;
+    this.opener = opener;
+  }
+
+  @Override
+  public boolean isCompressing() {
+    return compress;
+  }
+
+  @Override
+  public ProfilePersister withBaseFileName(final Path ptargetPath, final String pbaseFileName) {
+    return new CompactProfilePersister(ptargetPath, pbaseFileName, compress, maxFileBytes, maxFileNanos / 1000000L,
+            opener);
+  }
+
+  @Override
+  public ProfilePersister witCompression(final boolean pcompress) {
+    return new CompactProfilePersister(targetFolder, baseFileName, pcompress, maxFileBytes, maxFileNanos / 1000000L,
+            opener);
+  }
+
+  @Override
+  @Nullable
+  public synchronized Path persist(final Map<String, ? extends StackSamples> profile, @Nullable final String tag,
+          final Instant profileFrom, final Instant profileTo) throws IOException {
+    if (profile.isEmpty()) {
+      return targetFile;
+    }
+    CompactProfileWriter w = getWriter();
+    try {
+      for (Map.Entry<String, ? extends StackSamples> entry : profile.entrySet()) {
+        StackSamples samples = entry.getValue();
+        if (samples != null) {
+          w.write(profileFrom, profileTo, tag, entry.getKey(), samples);
+        }
+      }
+      w.flush();
+    } catch (IOException | RuntimeException ex) {
+      try {
+        closeWriter();
+      } catch (IOException | RuntimeException ex2) {
+        ex.addSuppressed(ex2);
+      }
+      throw ex;
+    }
+    return targetFile;
+  }
+
+  @SuppressFBWarnings("PATH_TRAVERSAL_OUT") // file name is derived from the configured base file name.
+  private CompactProfileWriter getWriter() throws IOException {
+    if (writer != null) {
+      if (fileStream.getCount() < maxFileBytes && TimeSource.nanoTime() - fileCreatedNanos < maxFileNanos) {
+        return writer;
+      }
+      closeWriter();
+    }
+    String fileName = baseFileName + '_' + DateTimeFormats.COMPACT_TS_FORMAT.format(Instant.now());
+    String suffix = ProfileFileFormat.SSDC.getSuffix() + (compress ? ".gz" : "");
+    Path file = targetFolder.resolve(fileName + suffix);
+    for (int i = 1; Files.exists(file); i++) {
+      file = targetFolder.resolve(fileName + '_' + i + suffix);
+    }
+    CountingOutputStream cos = new CountingOutputStream(opener.open(file));
+    OutputStream os = compress ? new GZIPOutputStream(cos, 8192, true) : new BufferedOutputStream(cos, 8192);
+    writer = new CompactProfileWriter(os);
+    fileStream = cos;
+    targetFile = file;
+    fileCreatedNanos = TimeSource.nanoTime();
+    return writer;
+  }
+
+  private void closeWriter() throws IOException {
+    CompactProfileWriter w = writer;
+    writer = null;
+    fileStream = null;
+    if (w != null) {
+      w.close();
+    }
+  }
+
+  /**
+   * @return the file currently written to, null if nothing has been persisted yet.
+   */
+  @Nullable
+  public synchronized Path getTargetFile() {
+    return targetFile;
+  }
+
+  @Override
+  public Path getTargetPath() {
+    return targetFolder;
+  }
+
+  @Override
+  public String getBaseFileName() {
+    return baseFileName;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closeWriter();
+  }
+
+  @FunctionalInterface
+  interface FileOpener {
+    OutputStream open(Path file) throws IOException;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactProfilePersister{" + "targetFolder=" + targetFolder + ", baseFileName=" + baseFileName
+            + ", compress=" + compress + ", maxFileBytes=" + maxFileBytes + ", maxFileNanos=" + maxFileNanos + '}';
+  }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.spf4j.base.avro.Method;
+
+/**
+ * A stack sampler that separates on-CPU from off-CPU samples, to systematically find lock contention.
+ *
+ * Every sample is classified by the thread state into one of the RUNNABLE, BLOCKED or WAITING (includes
+ * TIMED_WAITING) trees. In the BLOCKED and WAITING trees, the first level below the root is the class of the monitor
+ * the thread is blocked on or waiting for (a synthetic frame, like java.lang.Object.&lt;lock&gt;), or NO_LOCK
+ * if the thread is not waiting on a lock (like Thread.sleep). The wait site is the frame above.
+ * When the lock owner is known, the owner thread name, with digits replaced by #, is added as a synthetic frame
+ * (LockOwner.[thread name], like LockOwner.pool-#-thread-#) on top of the waiting thread stack.
+ * Lock instances and thread names are not used as frames, since the interned frames of the trees
+ * would grow with every per request lock or thread.
+ *
+ * The most contended lock classes can be extracted from a BLOCKED or WAITING tree (including trees loaded from
+ * persisted profiles) with getTopContendedLocks. The most contended lock instances (class and identity hash code)
+ * since the last reset, with the exact owner thread names, are available with getTopContendedLockInstances,
+ * at most spf4j.contentionStackCollector.maxTrackedLocks (default 1024) lock instances are tracked.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class ContentionStackCollector implements ISampler {
+
+  public static final String RUNNABLE = "RUNNABLE";
+
+  public static final String BLOCKED = "BLOCKED";
+
+  public static final String WAITING = "WAITING";
+
+  public static final String LOCK_OWNER_CLASS = "LockOwner";
+
+  public static final String NO_LOCK_CLASS = "NO_LOCK";
+
+  public static final String LOCK_METHOD = "<lock>";
+
+  private static final int MAX_TRACKED_LOCKS = Integer.getInteger("spf4j.contentionStackCollector.maxTrackedLocks",
+          1024);
+
+  private static final Pattern DIGITS = Pattern.compile("[0-9]+");
+
+  private static final ThreadMXBean THREAD_MX = ManagementFactory.getThreadMXBean();
+
+  private final long ignoredThreadId;
+
+  private final Set<String> ignoredThreadNames;
+
+  private final StackCollector runnable;
+
+  private final StackCollector blocked;
+
+  private final StackCollector waiting;
+
+  /** lock instance (class@identity hash) -> contention, bounded by MAX_TRACKED_LOCKS. */
+  private final THashMap<String, LockStats> lockInstances;
+
+  public ContentionStackCollector(final Thread ignore) {
+    this(ignore, FastStackCollector.IGNORED_THREADS);
+  }
+
+  /**
+   * @param ignore the thread to exclude from sampling (usually the sampling thread).
+   * @param ignoredThreadNames the names of threads to exclude from sampling.
+   */
+  public ContentionStackCollector(final Thread ignore, final String... ignoredThreadNames) {
+    this.ignoredThreadId = ignore.getId();
+    this.ignoredThreadNames = new THashSet<>(Arrays.asList(ignoredThreadNames));
+    this.runnable = new StackCollectorImpl();
+    this.blocked = new StackCollectorImpl();
+    this.waiting = new StackCollectorImpl();
+    this.lockInstances = new THashMap<>();
+  }
+
+  @Override
+  public void sample() {
+    for (ThreadInfo info : THREAD_MX.dumpAllThreads(false, false)) {
+      if (info == null || info.getThreadId() == ignoredThreadId || ignoredThreadNames.contains(info.getThreadName())) {
+        continue;
+      }
+      StackTraceElement[] stackTrace = info.getStackTrace();
+      if (stackTrace.length == 0) {
+        continue;
+      }
+      switch (info.getThreadState()) {
+        case RUNNABLE:
+          runnable.collect(stackTrace);
+          break;
+        case BLOCKED:
+          blocked.collect(withLock(stackTrace, info));
+          break;
+        case WAITING:
+        case TIMED_WAITING:
+          waiting.collect(withLock(stackTrace, info));
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * @return the stack trace with the lock frame at the bottom, and the lock owner frame at the top.
+   */
+  private StackTraceElement[] withLock(final StackTraceElement[] stackTrace, final ThreadInfo info) {
+    LockInfo lock = info.getLockInfo();
+    String owner = info.getLockOwnerName();
+    int length = stackTrace.length + (owner == null ? 1 : 2);
+    StackTraceElement[] result = new StackTraceElement[length];
+    int offset;
+    if (owner == null) {
+      offset = 0;
+    } else {
+      result[0] = new StackTraceElement(LOCK_OWNER_CLASS, DIGITS.matcher(owner).replaceAll("#"), null, -1);
+      offset = 1;
+    }
+    System.arraycopy(stackTrace, 0, result, offset, stackTrace.length);
+    if (lock == null) {
+      result[length - 1] = new StackTraceElement(NO_LOCK_CLASS, "", null, -1);
+    } else {
+      result[length - 1] = new StackTraceElement(lock.getClassName(), LOCK_METHOD, null, -1);
+      recordLockInstance(lock, owner);
+    }
+    return result;
+  }
+
+  private void recordLockInstance(final LockInfo lock, @Nullable final String owner) {
+    String key = lock.getClassName() + '@' + Integer.toHexString(lock.getIdentityHashCode());
+    LockStats stats = lockInstances.get(key);
+    if (stats == null) {
+      if (lockInstances.size() >= MAX_TRACKED_LOCKS) {
+        return;
+      }
+      stats = new LockStats();
+      lockInstances.put(key, stats);
+    }
+    stats.nrSamples++;
+    if (owner != null) {
+      stats.owners.merge(owner, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Summarize the most contended lock instances (BLOCKED and WAITING samples) since the last reset.
+   * @param maxNr the maximum number of locks to return.
+   * @return the locks ordered by the number of samples waiting on them, most contended first.
+   */
+  public List<LockContention> getTopContendedLockInstances(final int maxNr) {
+    List<LockContention> result = new ArrayList<>(lockInstances.size());
+    for (Map.Entry<String, LockStats> entry : lockInstances.entrySet()) {
+      LockStats stats = entry.getValue();
+      result.add(new LockContention(entry.getKey(), stats.nrSamples, new THashMap<>(stats.owners)));
+    }
+    Collections.sort(result, (a, b) -> Integer.compare(b.getNrSamples(), a.getNrSamples()));
+    return result.size() > maxNr ? result.subList(0, maxNr) : result;
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    Map<String, SampleNode> result = new THashMap<>(4);
+    lockInstances.clear();
+    putIfNotNull(result, RUNNABLE, runnable.getAndReset());
+    putIfNotNull(result, BLOCKED, blocked.getAndReset());
+    putIfNotNull(result, WAITING, waiting.getAndReset());
+    return result;
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollections() {
+    Map<String, SampleNode> result = new THashMap<>(4);
+    putIfNotNull(result, RUNNABLE, runnable.get());
+    putIfNotNull(result, BLOCKED, blocked.get());
+    putIfNotNull(result, WAITING, waiting.get());
+    return result;
+  }
+
+  private static void putIfNotNull(final Map<String, SampleNode> map, final String label,
+          @Nullable final SampleNode node) {
+    if (node != null) {
+      map.put(label, node);
+    }
+  }
+
+  /**
+   * Summarize the most contended lock classes of a BLOCKED or WAITING tree.
+   * @param tree the BLOCKED or WAITING tree.
+   * @param maxNr the maximum number of locks to return.
+   * @return the locks ordered by the number of samples waiting on them, most contended first.
+   */
+  public static List<LockContention> getTopContendedLocks(final SampleNode tree, final int maxNr) {
+    List<LockContention> result = new ArrayList<>(tree.size());
+    for (Map.Entry<Method, SampleNode> entry : tree.entrySet()) {
+      Method lock = entry.getKey();
+      if (NO_LOCK_CLASS.equals(lock.getDeclaringClass())) {
+        continue;
+      }
+      SampleNode lockNode = entry.getValue();
+      Map<String, Integer> owners = new THashMap<>();
+      SampleNode.traverse(lock, lockNode, (final Method from, final Method to, final int count) -> {
+        if (LOCK_OWNER_CLASS.equals(to.getDeclaringClass())) {
+          owners.merge(to.getName(), count, Integer::sum);
+        }
+        return true;
+      });
+      // profiles persisted by older versions have a frame per lock instance (class.@identity hash).
+      String name = lock.getName();
+      result.add(new LockContention(LOCK_METHOD.equals(name) ? lock.getDeclaringClass()
+              : lock.getDeclaringClass() + name, lockNode.getSampleCount(), owners));
+    }
+    Collections.sort(result, (a, b) -> Integer.compare(b.getNrSamples(), a.getNrSamples()));
+    return result.size() > maxNr ? result.subList(0, maxNr) : result;
+  }
+
+  @Override
+  public String toString() {
+    return "ContentionStackCollector{" + "ignoredThreadId=" + ignoredThreadId
+            + ", ignoredThreadNames=" + ignoredThreadNames + '}';
+  }
+
+  private static final class LockStats {
+
+    private int nrSamples;
+
+    private final Map<String, Integer> owners = new THashMap<>();
+
+  }
+
+  /**
+   * The contention summary of a lock.
+   */
+  public static final class LockContention {
+
+    private final String lock;
+
+    private final int nrSamples;
+
+    private final Map<String, Integer> ownerSamples;
+
+    public LockContention(final String lock, final int nrSamples, final Map<String, Integer> ownerSamples) {
+      this.lock = lock;
+      this.nrSamples = nrSamples;
+      this.ownerSamples = ownerSamples;
+    }
+
+    /**
+     * @return the lock class name (like java.lang.Object) for tree summaries,
+     * or the lock class name and identity hash code (like java.lang.Object@1b6d3586) for lock instances.
+     */
+    public String getLock() {
+      return lock;
+    }
+
+    /**
+     * @return the number of samples of threads waiting on the lock.
+     */
+    public int getNrSamples() {
+      return nrSamples;
+    }
+
+    /**
+     * @return the lock owner thread names and the number of samples the lock was held by them.
+     */
+    public Map<String, Integer> getOwnerSamples() {
+      return Collections.unmodifiableMap(ownerSamples);
+    }
+
+    @Override
+    public String toString() {
+      return "LockContention{" + "lock=" + lock + ", nrSamples=" + nrSamples + ", ownerSamples=" + ownerSamples + '}';
+    }
+  }
+
+}
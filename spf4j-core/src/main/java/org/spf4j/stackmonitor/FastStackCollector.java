@@ -59,7 +59,7 @@ public final class FastStackCollector implements ISampler {
   private static final int DEFAULT_MAX_NR_SAMPLED_THREADS
           = Integer.getInteger("spf4j.stackCollector.maxSampledThreads", 128);
 
-  private static final String[] IGNORED_THREADS = {
+  static final String[] IGNORED_THREADS = {
     "Finalizer",
     "Signal Dispatcher",
     "Reference Handler",
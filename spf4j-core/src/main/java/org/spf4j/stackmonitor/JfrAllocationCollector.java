@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.spf4j.base.TimeSource;
+
+/**
+ * A allocation profiler backed by Java Flight Recorder allocation events, no byte code weaving required.
+ *
+ * The allocation stack traces are aggregated into a SampleNode tree weighted by the allocated kilobytes,
+ * available under the ALLOCATIONS label. This allows allocation profiles to be persisted with the ProfilePersister
+ * and visualized as flame graphs with the existing tooling, in the same file with the execution samples
+ * when a delegate stack sampler is provided:
+ *
+ * new Sampler(10, 3600000, (t) -> new JfrAllocationCollector(t, new FastStackCollector(false, true,
+ *   new Thread[]{t})));
+ *
+ * On JVMs that support it (JDK 16+) the throttled jdk.ObjectAllocationSample event is used (at most
+ * spf4j.jfrAllocationCollector.throttle samples, default 150/s), otherwise the weight is the size of the new TLABs
+ * (jdk.ObjectAllocationInNewTLAB) and of the allocations outside TLABs (jdk.ObjectAllocationOutsideTLAB),
+ * which have a higher overhead for allocation intensive applications.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class JfrAllocationCollector implements ISampler, Closeable {
+
+  public static final String LABEL = "ALLOCATIONS";
+
+  private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+
+  private static final String ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+
+  private static final String ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+
+  private static final String DEFAULT_THROTTLE = System.getProperty("spf4j.jfrAllocationCollector.throttle", "150/s");
+
+  private static final long DEFAULT_DRAIN_INTERVAL_MILLIS
+          = Long.getLong("spf4j.jfrAllocationCollector.drainIntervalMillis", 1000);
+
+  private final long ignoredThreadId;
+
+  @Nullable
+  private final ISampler delegate;
+
+  private final CallingContextTree allocations;
+
+  private final JfrEventDrain events;
+
+  private final long drainIntervalNanos;
+
+  private long lastDrainNanos;
+
+  public JfrAllocationCollector(final Thread ignore) {
+    this(ignore, null);
+  }
+
+  public JfrAllocationCollector(final Thread ignore, @Nullable final ISampler delegate) {
+    this(ignore, delegate, DEFAULT_THROTTLE, Duration.ofMillis(DEFAULT_DRAIN_INTERVAL_MILLIS));
+  }
+
+  /**
+   * @param ignore the thread to exclude from the allocation profile (usually the sampling thread).
+   * @param delegate a stack sampler whose collections are returned together with the allocation profile.
+   * @param throttle the jdk.ObjectAllocationSample throttle, like "150/s", ignored if the event is not available.
+   * @param drainInterval the minimum interval between reads of the recorded allocations.
+   */
+  public JfrAllocationCollector(final Thread ignore, @Nullable final ISampler delegate, final String throttle,
+          final Duration drainInterval) {
+    this.ignoredThreadId = ignore.getId();
+    this.delegate = delegate;
+    this.allocations = new CallingContextTree();
+    this.drainIntervalNanos = drainInterval.toNanos();
+    if (JfrEventDrain.isEventAvailable(ALLOCATION_SAMPLE)) {
+      this.events = new JfrEventDrain("spf4j-jfr-allocations",
+              ImmutableMap.of(ALLOCATION_SAMPLE, ImmutableMap.of("throttle", throttle, "stackTrace", "true")),
+              ImmutableMap.of(ALLOCATION_SAMPLE, "weight"), drainInterval);
+    } else {
+      Map<String, String> withStackTrace = ImmutableMap.of("stackTrace", "true");
+      this.events = new JfrEventDrain("spf4j-jfr-allocations",
+              ImmutableMap.of(ALLOCATION_IN_NEW_TLAB, withStackTrace, ALLOCATION_OUTSIDE_TLAB, withStackTrace),
+              ImmutableMap.of(ALLOCATION_IN_NEW_TLAB, "tlabSize", ALLOCATION_OUTSIDE_TLAB, "allocationSize"),
+              drainInterval);
+    }
+    this.lastDrainNanos = TimeSource.nanoTime();
+  }
+
+  @Override
+  public void sample() {
+    if (delegate != null) {
+      delegate.sample();
+    }
+    if (TimeSource.nanoTime() - lastDrainNanos >= drainIntervalNanos) {
+      drain();
+    }
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    drain();
+    SampleNode nodes = allocations.toSampleNode();
+    allocations.reset();
+    return withDelegateCollections(nodes, delegate == null ? null : delegate.getCollectionsAndReset());
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollections() {
+    drain();
+    return withDelegateCollections(allocations.toSampleNode(), delegate == null ? null : delegate.getCollections());
+  }
+
+  private static Map<String, SampleNode> withDelegateCollections(@Nullable final SampleNode nodes,
+          @Nullable final Map<String, SampleNode> delegateCollections) {
+    if (delegateCollections == null || delegateCollections.isEmpty()) {
+      return nodes == null ? ImmutableMap.of() : ImmutableMap.of(LABEL, nodes);
+    }
+    if (nodes == null) {
+      return delegateCollections;
+    }
+    Map<String, SampleNode> result = new HashMap<>(delegateCollections);
+    result.put(LABEL, nodes);
+    return result;
+  }
+
+  private void drain() {
+    lastDrainNanos = TimeSource.nanoTime();
+    events.drain(this::collect);
+  }
+
+  private void collect(final JfrEventDrain.Event event) {
+    if (event.getThreadId() == ignoredThreadId) {
+      return;
+    }
+    long bytes = event.getWeight();
+    if (bytes <= 0) {
+      return;
+    }
+    StackTraceElement[] stackTrace = event.getStackTrace();
+    if (stackTrace.length > 0) {
+      allocations.add(stackTrace, (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024));
+    }
+  }
+
+  /**
+   * Drains the remaining allocations, closes the delegate and stops the recording;
+   * collected allocations remain available.
+   */
+  @Override
+  public void close() {
+    if (!events.isClosed()) {
+      try {
+        lastDrainNanos = TimeSource.nanoTime();
+        events.drainAndClose(this::collect);
+      } finally {
+        if (delegate instanceof Closeable) {
+          try {
+            ((Closeable) delegate).close();
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "JfrAllocationCollector{" + "ignoredThreadId=" + ignoredThreadId + ", delegate=" + delegate
+            + ", events=" + events + '}';
+  }
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Incremental reader of Java Flight Recorder events.
+ *
+ * The jdk.jfr API is not available on all supported JVMs (JDK 11+, OpenJDK 8u272+), and is used reflectively.
+ * On JVMs with event streaming (JDK 14+) the events are delivered by a jdk.jfr.consumer.RecordingStream
+ * into a bounded queue (spf4j.jfrEventDrain.maxPendingEvents, default 100000) emptied by drain.
+ * Otherwise (or with -Dspf4j.jfrEventDrain.streaming=false) every drain rotates the recording chunk
+ * and reads only the chunks of the window between the previous and the current drain. Windows are disjoint,
+ * every event is handed over by the drain whose window contains the event start time.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+final class JfrEventDrain implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(JfrEventDrain.class.getName());
+
+  private static final boolean STREAMING = Boolean.parseBoolean(
+          System.getProperty("spf4j.jfrEventDrain.streaming", "true"));
+
+  private static final int MAX_PENDING_EVENTS = Integer.getInteger("spf4j.jfrEventDrain.maxPendingEvents", 100000);
+
+  /** the jdk.jfr API, null if not available. */
+  @Nullable
+  private static final Api API = Api.load();
+
+  private final Set<String> eventNames;
+
+  private final Map<String, String> weightFields;
+
+  /** the jdk.jfr.Recording when not streaming. */
+  @Nullable
+  private final Object recording;
+
+  /** the jdk.jfr.consumer.RecordingStream when streaming. */
+  @Nullable
+  private final Object stream;
+
+  @Nullable
+  private final BlockingQueue<Event> pending;
+
+  /** the end of the last drained window, when not streaming. */
+  private Instant drainedUntil;
+
+  private boolean closed;
+
+  /**
+   * @param recordingName the name of the recording.
+   * @param eventSettings event name -> event settings, like period, throttle, stackTrace.
+   * @param weightFields event name -> the long event field to use as event weight, 1 for the events not present.
+   * @param drainInterval the expected interval between drains.
+   */
+  JfrEventDrain(final String recordingName, final Map<String, Map<String, String>> eventSettings,
+          final Map<String, String> weightFields, final Duration drainInterval) {
+    Api api = getApi();
+    this.eventNames = new HashSet<>(eventSettings.keySet());
+    this.weightFields = weightFields;
+    if (STREAMING && api.streamConstructor != null) {
+      this.recording = null;
+      this.pending = new LinkedBlockingQueue<>(MAX_PENDING_EVENTS);
+      this.stream = call(api.streamConstructor);
+      enable(api, api.streamEnable, stream, eventSettings);
+      Consumer<Object> handler = this::onEvent;
+      for (String eventName : eventNames) {
+        call(api.streamOnEvent, stream, eventName, handler);
+      }
+      call(api.streamStartAsync, stream);
+      this.drainedUntil = Instant.now();
+    } else {
+      this.stream = null;
+      this.pending = null;
+      this.recording = call(api.recordingConstructor);
+      call(api.recordingSetName, recording, recordingName);
+      enable(api, api.recordingEnable, recording, eventSettings);
+      call(api.recordingSetToDisk, recording, Boolean.TRUE);
+      // old chunks are only needed until drained.
+      call(api.recordingSetMaxAge, recording, drainInterval.multipliedBy(4));
+      call(api.recordingStart, recording);
+      this.drainedUntil = (Instant) call(api.recordingGetStartTime, recording);
+    }
+  }
+
+  private static void enable(final Api api, final MethodHandle enable, final Object recording,
+          final Map<String, Map<String, String>> eventSettings) {
+    for (Map.Entry<String, Map<String, String>> entry : eventSettings.entrySet()) {
+      Object settings = call(enable, recording, entry.getKey());
+      for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+        call(api.settingsWith, settings, setting.getKey(), setting.getValue());
+      }
+    }
+  }
+
+  private static Api getApi() {
+    if (API == null) {
+      throw new UnsupportedOperationException("Java Flight Recorder API not available");
+    }
+    return API;
+  }
+
+  /**
+   * @return true if the Java Flight Recorder is available.
+   */
+  static boolean isAvailable() {
+    return API != null && API.isFlightRecorderAvailable();
+  }
+
+  /**
+   * @param name the event name.
+   * @return true if the event type is known to this JVM.
+   */
+  static boolean isEventAvailable(final String name) {
+    Api api = getApi();
+    Object recorder = call(api.getFlightRecorder);
+    for (Object type : (List<?>) call(api.recorderGetEventTypes, recorder)) {
+      if (name.equals(call(api.eventTypeGetName, type))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * invoked by the stream thread.
+   */
+  private void onEvent(final Object recordedEvent) {
+    Api api = getApi();
+    if (!pending.offer(toEvent(api, eventName(api, recordedEvent), recordedEvent))) {
+      LOG.log(Level.FINE, "Dropped JFR event, {0} pending events", MAX_PENDING_EVENTS);
+    }
+  }
+
+  /**
+   * hand over the events recorded since the previous drain.
+   * @param consumer the event consumer.
+   */
+  void drain(final Consumer<Event> consumer) {
+    if (closed) {
+      return;
+    }
+    if (pending != null) {
+      drainPending(consumer);
+    } else {
+      drainRecording(consumer);
+    }
+  }
+
+  private void drainPending(final Consumer<Event> consumer) {
+    // only the events pending at the start of the drain, the stream might deliver events continuously.
+    for (int i = pending.size(); i > 0; i--) {
+      Event event = pending.poll();
+      if (event == null) {
+        break;
+      }
+      consumer.accept(event);
+    }
+  }
+
+  /**
+   * read the events with a start time in [drainedUntil, now).
+   * copying a running recording with stop = true rotates the chunk, making the events recorded so far readable.
+   */
+  private void drainRecording(final Consumer<Event> consumer) {
+    Api api = getApi();
+    Object snapshot = call(api.recordingCopy, recording, Boolean.TRUE);
+    try {
+      Instant from = drainedUntil;
+      Instant until = (Instant) call(api.recordingGetStopTime, snapshot);
+      InputStream chunks = (InputStream) call(api.recordingGetStream, snapshot, from, until);
+      if (chunks != null) {
+        Path file = Files.createTempFile("spf4j-jfr", ".jfr");
+        try {
+          try (InputStream is = chunks) {
+            Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+          }
+          readEvents(api, file, from, until, consumer);
+        } finally {
+          Files.deleteIfExists(file);
+        }
+      }
+      drainedUntil = until;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      call(api.recordingClose, snapshot);
+    }
+  }
+
+  private void readEvents(final Api api, final Path file, final Instant from, final Instant until,
+          final Consumer<Event> consumer) {
+    Object recordingFile = call(api.fileConstructor, file);
+    try {
+      while ((Boolean) call(api.fileHasMoreEvents, recordingFile)) {
+        Object recordedEvent = call(api.fileReadEvent, recordingFile);
+        // the chunks contain the events of all the recordings running at the same time.
+        String name = eventName(api, recordedEvent);
+        if (eventNames.contains(name)) {
+          Instant startTime = (Instant) call(api.eventGetStartTime, recordedEvent);
+          if (startTime.compareTo(from) >= 0 && startTime.isBefore(until)) {
+            consumer.accept(toEvent(api, name, recordedEvent));
+          }
+        }
+      }
+    } finally {
+      call(api.fileClose, recordingFile);
+    }
+  }
+
+  private static String eventName(final Api api, final Object recordedEvent) {
+    return (String) call(api.eventTypeGetName, call(api.eventGetEventType, recordedEvent));
+  }
+
+  private Event toEvent(final Api api, final String name, final Object recordedEvent) {
+    Object thread = (Boolean) call(api.eventHasField, recordedEvent, "sampledThread")
+            ? call(api.eventGetThread, recordedEvent, "sampledThread")
+            : call(api.eventGetEventThread, recordedEvent);
+    long threadId = thread == null ? -1 : (Long) call(api.threadGetJavaThreadId, thread);
+    String weightField = weightFields.get(name);
+    long weight = weightField == null ? 1 : (Long) call(api.eventGetLong, recordedEvent, weightField);
+    return new Event(name, threadId, toStackTrace(api, call(api.eventGetStackTrace, recordedEvent)), weight);
+  }
+
+  private static StackTraceElement[] toStackTrace(final Api api, @Nullable final Object recordedStackTrace) {
+    if (recordedStackTrace == null) {
+      return new StackTraceElement[0];
+    }
+    List<?> frames = (List<?>) call(api.stackTraceGetFrames, recordedStackTrace);
+    StackTraceElement[] result = new StackTraceElement[frames.size()];
+    for (int i = 0; i < result.length; i++) {
+      Object frame = frames.get(i);
+      Object method = call(api.frameGetMethod, frame);
+      result[i] = new StackTraceElement((String) call(api.classGetName, call(api.methodGetType, method)),
+              (String) call(api.methodGetName, method), null, (Integer) call(api.frameGetLineNumber, frame));
+    }
+    return result;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * hand over the remaining events and stop the recording.
+   * Before JDK 20 a stream can not be stopped without discarding the events not yet delivered,
+   * so the events of the last second might be lost when streaming.
+   * @param consumer the event consumer.
+   */
+  void drainAndClose(final Consumer<Event> consumer) {
+    if (closed) {
+      return;
+    }
+    try {
+      if (stream != null) {
+        Api api = getApi();
+        if (api.streamStop != null) {
+          call(api.streamStop, stream);
+        }
+      }
+      drain(consumer);
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * stops the recording, further drains will not hand over any events.
+   */
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      Api api = getApi();
+      if (stream != null) {
+        call(api.streamClose, stream);
+        pending.clear();
+      } else {
+        call(api.recordingClose, recording);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "JfrEventDrain{" + "streaming=" + (stream != null) + ", drainedUntil=" + drainedUntil
+            + ", closed=" + closed + '}';
+  }
+
+  /**
+   * A recorded event.
+   */
+  @Immutable
+  static final class Event {
+
+    private final String name;
+
+    private final long threadId;
+
+    private final StackTraceElement[] stackTrace;
+
+    private final long weight;
+
+    Event(final String name, final long threadId, final StackTraceElement[] stackTrace, final long weight) {
+      this.name = name;
+      this.threadId = threadId;
+      this.stackTrace = stackTrace;
+      this.weight = weight;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return the java thread id the event is about (the sampled thread for execution samples), -1 if not available.
+     */
+    long getThreadId() {
+      return threadId;
+    }
+
+    @SuppressFBWarnings("EI_EXPOSE_REP")
+    StackTraceElement[] getStackTrace() {
+      return stackTrace;
+    }
+
+    /**
+     * @return the value of the weight field of the event, 1 for events without weight field.
+     */
+    long getWeight() {
+      return weight;
+    }
+
+    @Override
+    public String toString() {
+      return "Event{" + "name=" + name + ", threadId=" + threadId + ", weight=" + weight + '}';
+    }
+
+  }
+
+  private static RuntimeException soften(final Throwable ex) {
+    if (ex instanceof RuntimeException) {
+      return (RuntimeException) ex;
+    } else if (ex instanceof Error) {
+      throw (Error) ex;
+    } else if (ex instanceof IOException) {
+      return new UncheckedIOException((IOException) ex);
+    } else {
+      return new UncheckedExecutionException(ex);
+    }
+  }
+
+  // the Api method handles are converted to generic (Object) types, to be invoked with invokeExact.
+
+  private static Object call(final MethodHandle handle) {
+    try {
+      return (Object) handle.invokeExact();
+    } catch (Throwable ex) {
+      throw soften(ex);
+    }
+  }
+
+  private static Object call(final MethodHandle handle, final Object arg) {
+    try {
+      return (Object) handle.invokeExact(arg);
+    } catch (Throwable ex) {
+      throw soften(ex);
+    }
+  }
+
+  private static Object call(final MethodHandle handle, final Object arg1, final Object arg2) {
+    try {
+      return (Object) handle.invokeExact(arg1, arg2);
+    } catch (Throwable ex) {
+      throw soften(ex);
+    }
+  }
+
+  private static Object call(final MethodHandle handle, final Object arg1, final Object arg2,
+          final Object arg3) {
+    try {
+      return (Object) handle.invokeExact(arg1, arg2, arg3);
+    } catch (Throwable ex) {
+      throw soften(ex);
+    }
+  }
+
+  /**
+   * The jdk.jfr methods used.
+   */
+  private static final class Api {
+
+    private final MethodHandle isAvailable;
+    private final MethodHandle getFlightRecorder;
+    private final MethodHandle recorderGetEventTypes;
+    private final MethodHandle eventTypeGetName;
+    private final MethodHandle settingsWith;
+    private final MethodHandle recordingConstructor;
+    private final MethodHandle recordingSetName;
+    private final MethodHandle recordingEnable;
+    private final MethodHandle recordingSetToDisk;
+    private final MethodHandle recordingSetMaxAge;
+    private final MethodHandle recordingStart;
+    private final MethodHandle recordingCopy;
+    private final MethodHandle recordingGetStartTime;
+    private final MethodHandle recordingGetStopTime;
+    private final MethodHandle recordingGetStream;
+    private final MethodHandle recordingClose;
+    private final MethodHandle fileConstructor;
+    private final MethodHandle fileHasMoreEvents;
+    private final MethodHandle fileReadEvent;
+    private final MethodHandle fileClose;
+    private final MethodHandle eventGetEventType;
+    private final MethodHandle eventGetStartTime;
+    private final MethodHandle eventGetStackTrace;
+    private final MethodHandle eventHasField;
+    private final MethodHandle eventGetThread;
+    private final MethodHandle eventGetEventThread;
+    private final MethodHandle eventGetLong;
+    private final MethodHandle threadGetJavaThreadId;
+    private final MethodHandle stackTraceGetFrames;
+    private final MethodHandle frameGetMethod;
+    private final MethodHandle frameGetLineNumber;
+    private final MethodHandle methodGetType;
+    private final MethodHandle methodGetName;
+    private final MethodHandle classGetName;
+    /** RecordingStream, JDK 14+. */
+    @Nullable
+    private final MethodHandle streamConstructor;
+    @Nullable
+    private final MethodHandle streamEnable;
+    @Nullable
+    private final MethodHandle streamOnEvent;
+    @Nullable
+    private final MethodHandle streamStartAsync;
+    @Nullable
+    private final MethodHandle streamClose;
+    /** RecordingStream.stop, JDK 20+. */
+    @Nullable
+    private final MethodHandle streamStop;
+
+    private Api(final MethodHandles.Lookup lookup) throws ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException {
+      Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+      Class<?> eventType = Class.forName("jdk.jfr.EventType");
+      Class<?> eventSettings = Class.forName("jdk.jfr.EventSettings");
+      Class<?> recording = Class.forName("jdk.jfr.Recording");
+      Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+      Class<?> recordedEvent = Class.forName("jdk.jfr.consumer.RecordedEvent");
+      Class<?> recordedThread = Class.forName("jdk.jfr.consumer.RecordedThread");
+      Class<?> recordedStackTrace = Class.forName("jdk.jfr.consumer.RecordedStackTrace");
+      Class<?> recordedFrame = Class.forName("jdk.jfr.consumer.RecordedFrame");
+      Class<?> recordedMethod = Class.forName("jdk.jfr.consumer.RecordedMethod");
+      Class<?> recordedClass = Class.forName("jdk.jfr.consumer.RecordedClass");
+      isAvailable = staticMethod(lookup, flightRecorder, "isAvailable", boolean.class);
+      getFlightRecorder = staticMethod(lookup, flightRecorder, "getFlightRecorder", flightRecorder);
+      recorderGetEventTypes = virtual(lookup, flightRecorder, "getEventTypes", List.class);
+      eventTypeGetName = virtual(lookup, eventType, "getName", String.class);
+      settingsWith = virtual(lookup, eventSettings, "with", eventSettings, String.class, String.class);
+      recordingConstructor = constructor(lookup, recording);
+      recordingSetName = virtual(lookup, recording, "setName", void.class, String.class);
+      recordingEnable = virtual(lookup, recording, "enable", eventSettings, String.class);
+      recordingSetToDisk = virtual(lookup, recording, "setToDisk", void.class, boolean.class);
+      recordingSetMaxAge = virtual(lookup, recording, "setMaxAge", void.class, Duration.class);
+      recordingStart = virtual(lookup, recording, "start", void.class);
+      recordingCopy = virtual(lookup, recording, "copy", recording, boolean.class);
+      recordingGetStartTime = virtual(lookup, recording, "getStartTime", Instant.class);
+      recordingGetStopTime = virtual(lookup, recording, "getStopTime", Instant.class);
+      recordingGetStream = virtual(lookup, recording, "getStream", InputStream.class, Instant.class, Instant.class);
+      recordingClose = virtual(lookup, recording, "close", void.class);
+      fileConstructor = constructor(lookup, recordingFile, Path.class);
+      fileHasMoreEvents = virtual(lookup, recordingFile, "hasMoreEvents", boolean.class);
+      fileReadEvent = virtual(lookup, recordingFile, "readEvent", recordedEvent);
+      fileClose = virtual(lookup, recordingFile, "close", void.class);
+      eventGetEventType = virtual(lookup, recordedEvent, "getEventType", eventType);
+      eventGetStartTime = virtual(lookup, recordedEvent, "getStartTime", Instant.class);
+      eventGetStackTrace = virtual(lookup, recordedEvent, "getStackTrace", recordedStackTrace);
+      eventHasField = virtual(lookup, recordedEvent, "hasField", boolean.class, String.class);
+      eventGetThread = virtual(lookup, recordedEvent, "getThread", recordedThread, String.class);
+      eventGetEventThread = virtual(lookup, recordedEvent, "getThread", recordedThread);
+      eventGetLong = virtual(lookup, recordedEvent, "getLong", long.class, String.class);
+      threadGetJavaThreadId = virtual(lookup, recordedThread, "getJavaThreadId", long.class);
+      stackTraceGetFrames = virtual(lookup, recordedStackTrace, "getFrames", List.class);
+      frameGetMethod = virtual(lookup, recordedFrame, "getMethod", recordedMethod);
+      frameGetLineNumber = virtual(lookup, recordedFrame, "getLineNumber", int.class);
+      methodGetType = virtual(lookup, recordedMethod, "getType", recordedClass);
+      methodGetName = virtual(lookup, recordedMethod, "getName", String.class);
+      classGetName = virtual(lookup, recordedClass, "getName", String.class);
+      Class<?> recordingStream;
+      try {
+        recordingStream = Class.forName("jdk.jfr.consumer.RecordingStream");
+      } catch (ClassNotFoundException ex) {
+        recordingStream = null;
+      }
+      if (recordingStream != null) {
+        streamConstructor = constructor(lookup, recordingStream);
+        streamEnable = virtual(lookup, recordingStream, "enable", eventSettings, String.class);
+        streamOnEvent = virtual(lookup, recordingStream, "onEvent", void.class, String.class, Consumer.class);
+        streamStartAsync = virtual(lookup, recordingStream, "startAsync", void.class);
+        streamClose = virtual(lookup, recordingStream, "close", void.class);
+        MethodHandle stop;
+        try {
+          stop = virtual(lookup, recordingStream, "stop", boolean.class);
+        } catch (NoSuchMethodException ex) {
+          stop = null;
+        }
+        streamStop = stop;
+      } else {
+        streamConstructor = null;
+        streamEnable = null;
+        streamOnEvent = null;
+        streamStartAsync = null;
+        streamClose = null;
+        streamStop = null;
+      }
+    }
+
+    private static MethodHandle generic(final MethodHandle handle) {
+      return handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+    }
+
+    private static MethodHandle virtual(final MethodHandles.Lookup lookup, final Class<?> clasz, final String name,
+            final Class<?> rtype, final Class<?>... ptypes) throws NoSuchMethodException, IllegalAccessException {
+      return generic(lookup.findVirtual(clasz, name, MethodType.methodType(rtype, ptypes)));
+    }
+
+    private static MethodHandle staticMethod(final MethodHandles.Lookup lookup, final Class<?> clasz,
+            final String name, final Class<?> rtype) throws NoSuchMethodException, IllegalAccessException {
+      return generic(lookup.findStatic(clasz, name, MethodType.methodType(rtype)));
+    }
+
+    private static MethodHandle constructor(final MethodHandles.Lookup lookup, final Class<?> clasz,
+            final Class<?>... ptypes) throws NoSuchMethodException, IllegalAccessException {
+      return generic(lookup.findConstructor(clasz, MethodType.methodType(void.class, ptypes)));
+    }
+
+    @Nullable
+    static Api load() {
+      try {
+        return new Api(MethodHandles.publicLookup());
+      } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | RuntimeException ex) {
+        LOG.log(Level.FINE, "Java Flight Recorder API not available", ex);
+        return null;
+      }
+    }
+
+    boolean isFlightRecorderAvailable() {
+      return (Boolean) call(isAvailable);
+    }
+
+  }
+
+}
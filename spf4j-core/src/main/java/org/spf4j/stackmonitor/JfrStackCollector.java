@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.spf4j.base.TimeSource;
+
+/**
+ * A sampler backed by the Java Flight Recorder jdk.ExecutionSample event.
+ * JFR samples threads asynchronously, without bringing all threads to a safepoint, so the resulting profile
+ * does not have safepoint bias and the sampling cost does not grow with the number of threads.
+ *
+ * The recorded execution samples are periodically drained (by sample(), and before the collections are returned)
+ * into the same SampleNode aggregation used by the other collectors, so profiles can be persisted
+ * and visualized with the existing tooling.
+ *
+ * For accurate attribution of hot compiled code, run with -XX:+UnlockDiagnosticVMOptions -XX:+DebugNonSafepoints.
+ *
+ * Requires a JVM with the jdk.jfr API (JDK 11+, OpenJDK 8u272+), see JfrEventDrain for how the samples are read.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+public final class JfrStackCollector implements ISampler, Closeable {
+
+  private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+  private static final long DEFAULT_PERIOD_MILLIS
+          = Long.getLong("spf4j.jfrStackCollector.periodMillis", 10);
+
+  private static final long DEFAULT_DRAIN_INTERVAL_MILLIS
+          = Long.getLong("spf4j.jfrStackCollector.drainIntervalMillis", 1000);
+
+  private final long ignoredThreadId;
+
+  private final StackCollector collector;
+
+  private final JfrEventDrain events;
+
+  private final long drainIntervalNanos;
+
+  private long lastDrainNanos;
+
+  public JfrStackCollector(final Thread ignore) {
+    this(ignore, Duration.ofMillis(DEFAULT_PERIOD_MILLIS), Duration.ofMillis(DEFAULT_DRAIN_INTERVAL_MILLIS));
+  }
+
+  /**
+   * @param ignore the thread to exclude from the samples (usually the sampling thread).
+   * @param samplePeriod the JFR execution sampling period.
+   * @param drainInterval the minimum interval between reads of the recorded samples.
+   */
+  public JfrStackCollector(final Thread ignore, final Duration samplePeriod, final Duration drainInterval) {
+    this.ignoredThreadId = ignore.getId();
+    this.collector = new StackCollectorImpl();
+    this.drainIntervalNanos = drainInterval.toNanos();
+    this.events = new JfrEventDrain("spf4j-jfr-sampler",
+            ImmutableMap.of(EXECUTION_SAMPLE,
+                    ImmutableMap.of("period", samplePeriod.toMillis() + " ms", "stackTrace", "true")),
+            Collections.emptyMap(), drainInterval);
+    this.lastDrainNanos = TimeSource.nanoTime();
+  }
+
+  /**
+   * The JVM is doing the sampling, this only reads the recorded samples once the drain interval has elapsed.
+   */
+  @Override
+  public void sample() {
+    if (TimeSource.nanoTime() - lastDrainNanos >= drainIntervalNanos) {
+      drain();
+    }
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    drain();
+    SampleNode nodes = collector.getAndReset();
+    return nodes == null ? Collections.EMPTY_MAP : ImmutableMap.of("ALL", nodes);
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollections() {
+    drain();
+    SampleNode nodes = collector.get();
+    return nodes == null ? Collections.EMPTY_MAP : ImmutableMap.of("ALL", nodes);
+  }
+
+  private void drain() {
+    lastDrainNanos = TimeSource.nanoTime();
+    events.drain(this::collect);
+  }
+
+  private void collect(final JfrEventDrain.Event event) {
+    if (event.getThreadId() == ignoredThreadId) {
+      return;
+    }
+    StackTraceElement[] stackTrace = event.getStackTrace();
+    if (stackTrace.length > 0) {
+      collector.collect(stackTrace);
+    }
+  }
+
+  /**
+   * Drains the remaining samples and stops the recording; collected samples remain available.
+   */
+  @Override
+  public void close() {
+    lastDrainNanos = TimeSource.nanoTime();
+    events.drainAndClose(this::collect);
+  }
+
+  @Override
+  public String toString() {
+    return "JfrStackCollector{" + "ignoredThreadId=" + ignoredThreadId + ", collector=" + collector
+            + ", events=" + events + '}';
+  }
+
+}
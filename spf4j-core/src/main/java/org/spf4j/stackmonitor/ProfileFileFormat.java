@@ -36,7 +36,7 @@ package org.spf4j.stackmonitor;
  */
 public enum ProfileFileFormat {
 
-  SSDUMP_2(".ssdump2"), SSDUMP_3(".ssdump3"), SSP(".ssp.avro");
+  SSDUMP_2(".ssdump2"), SSDUMP_3(".ssdump3"), SSP(".ssp.avro"), SSDC(".ssdc");
 
   private final String suffix;
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.io.ByteArrayBuilder;
+import org.spf4j.ssdump2.Converter;
+
+/**
+ * In memory ring of profile slices.
+ *
+ * Each slice holds the samples collected in a time interval, encoded in the compact ssdump3 binary format.
+ * Slices older than the retention time are evicted, and the oldest slices are evicted when the encoded size
+ * of all slices exceeds the byte budget. A profile for an arbitrary time interval is obtained by merging
+ * all the slices that overlap the interval, the time resolution is the slice duration.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class ProfileRing {
+
+  private final long retentionMillis;
+
+  private final long maxBytes;
+
+  private final ArrayDeque<Slice> slices;
+
+  private long bytes;
+
+  /**
+   * @param retentionMillis the maximum time to keep a slice, relative to the end of the most recent slice.
+   * @param maxBytes the maximum number of bytes the encoded slices can use.
+   */
+  public ProfileRing(final long retentionMillis, final long maxBytes) {
+    if (retentionMillis <= 0) {
+      throw new IllegalArgumentException("Invalid retention " + retentionMillis);
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Invalid byte budget " + maxBytes);
+    }
+    this.retentionMillis = retentionMillis;
+    this.maxBytes = maxBytes;
+    this.slices = new ArrayDeque<>();
+    this.bytes = 0;
+  }
+
+  /**
+   * Add a slice.
+   * @param from the slice start.
+   * @param to the slice end.
+   * @param samples the samples collected between from and to, not retained by this ring.
+   */
+  public void add(final Instant from, final Instant to, final Map<String, SampleNode> samples) {
+    if (samples.isEmpty()) {
+      return;
+    }
+    ByteArrayBuilder bab = new ByteArrayBuilder(1024);
+    try {
+      Converter.saveLabeledDumps(bab, samples);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    Slice slice = new Slice(from, to, bab.toByteArray());
+    synchronized (slices) {
+      slices.addLast(slice);
+      bytes += slice.data.length;
+      Instant evictBefore = to.minusMillis(retentionMillis);
+      Slice first;
+      while ((first = slices.peekFirst()) != null
+              && (bytes > maxBytes || !first.to.isAfter(evictBefore))) {
+        slices.removeFirst();
+        bytes -= first.data.length;
+      }
+    }
+  }
+
+  /**
+   * @param from interval start.
+   * @param to interval end.
+   * @return the merged samples of all slices that overlap [from, to).
+   */
+  public Map<String, SampleNode> getProfile(final Instant from, final Instant to) {
+    List<Slice> matching = new ArrayList<>();
+    synchronized (slices) {
+      for (Slice slice : slices) {
+        if (slice.to.isAfter(from) && slice.from.isBefore(to)) {
+          matching.add(slice);
+        }
+      }
+    }
+    if (matching.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, List<SampleNode>> labeled = new HashMap<>();
+    for (Slice slice : matching) {
+      Map<String, SampleNode> samples;
+      try {
+        samples = Converter.loadLabeledDumps(new ByteArrayInputStream(slice.data));
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      for (Map.Entry<String, SampleNode> entry : samples.entrySet()) {
+        labeled.computeIfAbsent(entry.getKey(), (k) -> new ArrayList<>(matching.size())).add(entry.getValue());
+      }
+    }
+    Map<String, SampleNode> result = new HashMap<>(labeled.size() + labeled.size() / 3 + 1);
+    for (Map.Entry<String, List<SampleNode>> entry : labeled.entrySet()) {
+      List<SampleNode> nodes = entry.getValue();
+      result.put(entry.getKey(), nodes.size() == 1 ? nodes.get(0) : SampleNodes.aggregate(nodes));
+    }
+    return result;
+  }
+
+  /**
+   * @return the start of the oldest slice, null if the ring is empty.
+   */
+  @Nullable
+  public Instant getOldestInstant() {
+    synchronized (slices) {
+      Slice first = slices.peekFirst();
+      return first == null ? null : first.from;
+    }
+  }
+
+  public int getNrSlices() {
+    synchronized (slices) {
+      return slices.size();
+    }
+  }
+
+  public long getBytes() {
+    synchronized (slices) {
+      return bytes;
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  public void clear() {
+    synchronized (slices) {
+      slices.clear();
+      bytes = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ProfileRing{" + "retentionMillis=" + retentionMillis + ", maxBytes=" + maxBytes
+            + ", nrSlices=" + getNrSlices() + ", bytes=" + getBytes() + '}';
+  }
+
+  private static final class Slice {
+
+    private final Instant from;
+    private final Instant to;
+    private final byte[] data;
+
+    Slice(final Instant from, final Instant to, final byte[] data) {
+      this.from = from;
+      this.to = to;
+      this.data = data;
+    }
+  }
+
+}
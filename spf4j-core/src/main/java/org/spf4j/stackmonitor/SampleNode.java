@@ -45,6 +45,7 @@ import java.io.ObjectOutput;
 import java.io.Reader;
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.Map;
@@ -286,32 +287,65 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
    * @param other
    */
   public void diff(final SampleNode other) {
-    int thisSelfSampleCount = getSelfSampleCount();
-    int otherSelfSampleCount = other.getSelfSampleCount();
-    int selfDiff = thisSelfSampleCount - otherSelfSampleCount;
-    if (selfDiff > 0) {
-      this.sampleCount -= otherSelfSampleCount;
-    } else {
-      this.sampleCount -= thisSelfSampleCount;
-    }
-    Iterator<Map.Entry<Method, SampleNode>> it = this.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry<Method, SampleNode> entry = it.next();
-      Method m = entry.getKey();
-      SampleNode csn = entry.getValue();
-      SampleNode osn = other.get(m);
-      if (osn != null) {
-        int oSamples = csn.sampleCount;
-        csn.diff(osn);
-        int nSamples = csn.sampleCount;
-        this.sampleCount -= oSamples - nSamples;
-        if (nSamples <= 0) {
-          it.remove();
+    ArrayList<PairFrame> frames = pairFrames(this, other);
+    for (int i = frames.size() - 1; i >= 0; i--) {
+      PairFrame frame = frames.get(i);
+      SampleNode node = frame.node;
+      node.sampleCount -= Math.min(frame.selfCount, frame.otherSelfCount);
+      PairFrame parent = frame.parent;
+      if (parent != null) {
+        parent.node.sampleCount -= frame.count - node.sampleCount;
+        if (node.sampleCount <= 0) {
+          parent.node.remove(frame.method);
         }
       }
     }
   }
 
+  /**
+   * @return the pre-order list of the node pairs present in both trees (parents before children),
+   * with the sample counts before any modification.
+   */
+  private static ArrayList<PairFrame> pairFrames(final SampleNode node, final SampleNode other) {
+    ArrayList<PairFrame> frames = new ArrayList<>();
+    frames.add(new PairFrame(null, null, node, other));
+    for (int i = 0; i < frames.size(); i++) {
+      PairFrame frame = frames.get(i);
+      SampleNode o = frame.other;
+      frame.node.forEachEntry((final Method m, final SampleNode csn) -> {
+        SampleNode osn = o.get(m);
+        if (osn != null) {
+          frames.add(new PairFrame(frame, m, csn, osn));
+        }
+        return true;
+      });
+    }
+    return frames;
+  }
+
+  private static final class PairFrame {
+    @Nullable
+    private final PairFrame parent;
+    private final Method method;
+    private final SampleNode node;
+    private final SampleNode other;
+    private final int count;
+    private final int selfCount;
+    private final int otherSelfCount;
+    private int childCount;
+
+    PairFrame(@Nullable final PairFrame parent, @Nullable final Method method,
+            final SampleNode node, final SampleNode other) {
+      this.parent = parent;
+      this.method = method;
+      this.node = node;
+      this.other = other;
+      this.count = node.sampleCount;
+      this.selfCount = node.getSelfSampleCount();
+      this.otherSelfCount = other.getSelfSampleCount();
+    }
+  }
+
 
   /**
    * Similar to set intersect.
@@ -335,21 +369,17 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
    * @param other
    */
   public void intersect(final SampleNode other) {
-    int thisSelfSampleCount = getSelfSampleCount();
-    int otherSelfSampleCount = other.getSelfSampleCount();
-    this.sampleCount = Math.min(thisSelfSampleCount, otherSelfSampleCount);
-    Iterator<Map.Entry<Method, SampleNode>> it = this.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry<Method, SampleNode> entry = it.next();
-      Method m = entry.getKey();
-      SampleNode csn = entry.getValue();
-      SampleNode osn = other.get(m);
-      if (osn != null) {
-        csn.intersect(osn);
-        if (csn.sampleCount <= 0) {
-          it.remove();
+    ArrayList<PairFrame> frames = pairFrames(this, other);
+    for (int i = frames.size() - 1; i >= 0; i--) {
+      PairFrame frame = frames.get(i);
+      SampleNode node = frame.node;
+      node.sampleCount = Math.min(frame.selfCount, frame.otherSelfCount) + frame.childCount;
+      PairFrame parent = frame.parent;
+      if (parent != null) {
+        if (node.sampleCount <= 0) {
+          parent.node.remove(frame.method);
         } else {
-          this.sampleCount += csn.sampleCount;
+          parent.childCount += node.sampleCount;
         }
       }
     }
@@ -408,16 +438,25 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
    * @param other
    */
   public void add(final SampleNode other) {
-    this.sampleCount += other.sampleCount;
-    other.forEachEntry((final Method m, final SampleNode b) -> {
-      SampleNode xChild = get(m);
-      if (xChild == null) {
-        put(m, b);
-      } else {
-        xChild.add(b);
-      }
-      return true;
-    });
+    ArrayDeque<SampleNode> dq = new ArrayDeque<>();
+    dq.add(this);
+    dq.add(other);
+    SampleNode target;
+    while ((target = dq.poll()) != null) {
+      SampleNode source = dq.poll();
+      target.sampleCount += source.sampleCount;
+      final SampleNode t = target;
+      source.forEachEntry((final Method m, final SampleNode b) -> {
+        SampleNode xChild = t.get(m);
+        if (xChild == null) {
+          t.put(m, b);
+        } else {
+          dq.add(xChild);
+          dq.add(b);
+        }
+        return true;
+      });
+    }
   }
 
   public void add(final StackSamples other) {
@@ -461,20 +500,18 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
   }
 
   /**
-   * to do: have to remove recursion...
-   *
    * @return the total number of nodes in this tree.
    */
   public int getNrNodes() {
-    if (isEmpty()) {
-      return 1;
-    } else {
-      int nrNodes = 0;
-      for (SampleNode node : values()) {
-        nrNodes += node.getNrNodes();
-      }
-      return nrNodes + 1;
+    int nrNodes = 0;
+    ArrayDeque<SampleNode> dq = new ArrayDeque<>();
+    dq.add(this);
+    SampleNode node;
+    while ((node = dq.poll()) != null) {
+      nrNodes++;
+      dq.addAll(node.values());
     }
+    return nrNodes;
   }
 
   /**
@@ -484,30 +521,57 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
    */
   @Nullable
   public SampleNode filteredBy(final Predicate<Method> predicate) {
-    int newCount = this.sampleCount;
-    SampleNode result = new SampleNode(0);
-    for (Map.Entry<Method, SampleNode> entry : this.entrySet()) {
-      Method method = entry.getKey();
-      SampleNode sn = entry.getValue();
-      if (predicate.test(method)) {
-        newCount -= sn.getSampleCount();
-      } else {
-        SampleNode sn2 = sn.filteredBy(predicate);
-        if (sn2 == null) {
-          newCount -= sn.getSampleCount();
+    // pre-order list of the retained nodes, processed in reverse order (children before parents).
+    ArrayList<FilterFrame> frames = new ArrayList<>();
+    frames.add(new FilterFrame(null, null, this));
+    for (int i = 0; i < frames.size(); i++) {
+      FilterFrame frame = frames.get(i);
+      for (Map.Entry<Method, SampleNode> entry : frame.node.entrySet()) {
+        SampleNode sn = entry.getValue();
+        if (predicate.test(entry.getKey())) {
+          frame.newCount -= sn.sampleCount;
         } else {
-          newCount -= sn.getSampleCount() - sn2.getSampleCount();
-          result.put(method, sn2);
+          frames.add(new FilterFrame(frame, entry.getKey(), sn));
         }
       }
     }
-    if (newCount == 0) {
-      return null;
-    } else if (newCount < 0) {
-      throw new IllegalStateException("child sample counts must be <= parent sample count, detail: " + this);
-    } else {
-      result.sampleCount = newCount;
-      return result;
+    for (int i = frames.size() - 1; i >= 0; i--) {
+      FilterFrame frame = frames.get(i);
+      if (frame.newCount < 0) {
+        throw new IllegalStateException("child sample counts must be <= parent sample count, detail: "
+                + frame.node);
+      }
+      FilterFrame parent = frame.parent;
+      if (frame.newCount == 0) {
+        frame.result = null;
+        if (parent != null) {
+          parent.newCount -= frame.node.sampleCount;
+        }
+      } else {
+        frame.result.sampleCount = frame.newCount;
+        if (parent != null) {
+          parent.newCount -= frame.node.sampleCount - frame.newCount;
+          parent.result.put(frame.method, frame.result);
+        }
+      }
+    }
+    return frames.get(0).result;
+  }
+
+  private static final class FilterFrame {
+    @Nullable
+    private final FilterFrame parent;
+    private final Method method;
+    private final SampleNode node;
+    private SampleNode result;
+    private int newCount;
+
+    FilterFrame(@Nullable final FilterFrame parent, @Nullable final Method method, final SampleNode node) {
+      this.parent = parent;
+      this.method = method;
+      this.node = node;
+      this.result = new SampleNode(0);
+      this.newCount = node.sampleCount;
     }
   }
 
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.Methods;
+import org.spf4j.base.avro.Method;
+
+/**
+ * Bulk SampleNode operations for large (multi host) profiles.
+ *
+ * The parallel operations have the same semantics as their SampleNode counterparts, they split the work on subtrees,
+ * subtrees with less than spf4j.sampleNodes.minParallelSamples samples (or deeper than
+ * spf4j.sampleNodes.maxSplitDepth) are processed sequentially with the iterative SampleNode implementations.
+ * Inputs are never modified.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class SampleNodes {
+
+  private static final int MIN_PARALLEL_SAMPLES = Integer.getInteger("spf4j.sampleNodes.minParallelSamples", 10000);
+
+  private static final int MAX_SPLIT_DEPTH = Integer.getInteger("spf4j.sampleNodes.maxSplitDepth", 16);
+
+  private SampleNodes() {
+  }
+
+  /**
+   * k-way merge of sample trees.
+   * @return the aggregate of all nodes, null if nodes is empty.
+   */
+  @Nullable
+  public static SampleNode aggregate(final List<SampleNode> nodes) {
+    if (nodes.isEmpty()) {
+      return null;
+    }
+    return merge(nodes);
+  }
+
+  /**
+   * Parallel k-way merge of sample trees.
+   * @return the aggregate of all nodes, null if nodes is empty.
+   */
+  @Nullable
+  public static SampleNode aggregate(final ForkJoinPool pool, final List<SampleNode> nodes) {
+    if (nodes.isEmpty()) {
+      return null;
+    }
+    return aggregate(pool, nodes, splitThreshold(pool, totalSamples(nodes)));
+  }
+
+  static SampleNode aggregate(final ForkJoinPool pool, final List<SampleNode> nodes, final int threshold) {
+    return pool.invoke(new MergeTask(nodes, 0, threshold));
+  }
+
+  /**
+   * Parallel equivalent of SampleNode.diff(node1, node2).
+   */
+  public static SampleNode diff(final ForkJoinPool pool, final SampleNode node1, final SampleNode node2) {
+    return diff(pool, node1, node2, splitThreshold(pool, node1.getSampleCount()));
+  }
+
+  static SampleNode diff(final ForkJoinPool pool, final SampleNode node1, final SampleNode node2,
+          final int threshold) {
+    return pool.invoke(new DiffTask(node1, node2, 0, threshold));
+  }
+
+  /**
+   * Parallel equivalent of SampleNode.intersect(node1, node2).
+   */
+  public static SampleNode intersect(final ForkJoinPool pool, final SampleNode node1, final SampleNode node2) {
+    return intersect(pool, node1, node2, splitThreshold(pool, node1.getSampleCount()));
+  }
+
+  static SampleNode intersect(final ForkJoinPool pool, final SampleNode node1, final SampleNode node2,
+          final int threshold) {
+    return pool.invoke(new IntersectTask(node1, node2, 0, threshold));
+  }
+
+  /**
+   * Parallel equivalent of node.filteredBy(predicate).
+   */
+  @Nullable
+  public static SampleNode filteredBy(final ForkJoinPool pool, final SampleNode node,
+          final Predicate<Method> predicate) {
+    return filteredBy(pool, node, predicate, splitThreshold(pool, node.getSampleCount()));
+  }
+
+  @Nullable
+  static SampleNode filteredBy(final ForkJoinPool pool, final SampleNode node,
+          final Predicate<Method> predicate, final int threshold) {
+    return pool.invoke(new FilterTask(node, predicate, 0, threshold));
+  }
+
+  /**
+   * Parallel equivalent of SampleNode.diffAnnotate(m, nodeA, nodeB), A-B, B-A and A intersect B are computed
+   * concurrently.
+   */
+  @Nullable
+  public static SampleNode diffAnnotate(final ForkJoinPool pool, final Method m, @Nullable final SampleNode nodeA,
+          @Nullable final SampleNode nodeB) {
+    if (nodeA == null || nodeB == null) {
+      return SampleNode.diffAnnotate(m, nodeA, nodeB);
+    }
+    int threshold = splitThreshold(pool, Math.max(nodeA.getSampleCount(), nodeB.getSampleCount()));
+    DiffTask ambTask = new DiffTask(nodeA, nodeB, 0, threshold);
+    DiffTask bmaTask = new DiffTask(nodeB, nodeA, 0, threshold);
+    IntersectTask aibTask = new IntersectTask(nodeA, nodeB, 0, threshold);
+    pool.invoke(new RecursiveTask<Void>() {
+      @Override
+      protected Void compute() {
+        ForkJoinTask.invokeAll(ambTask, bmaTask, aibTask);
+        return null;
+      }
+    });
+    SampleNode amb = ambTask.join();
+    SampleNode bma = bmaTask.join();
+    SampleNode aib = aibTask.join();
+    SampleNode result = new SampleNode();
+    if (amb.getSampleCount() > 0) {
+      result.addToCount(amb.getSampleCount());
+      result.put(Methods.annotate(m, "A"), amb);
+    }
+    if (bma.getSampleCount() > 0) {
+      result.addToCount(bma.getSampleCount());
+      result.put(Methods.annotate(m, "B"), bma);
+    }
+    if (aib.getSampleCount() > 0) {
+      result.addToCount(aib.getSampleCount());
+      result.put(m, aib);
+    }
+    return result;
+  }
+
+  private static int splitThreshold(final ForkJoinPool pool, final int totalSamples) {
+    return Math.max(MIN_PARALLEL_SAMPLES, totalSamples / (pool.getParallelism() * 8));
+  }
+
+  private static int totalSamples(final List<SampleNode> nodes) {
+    int result = 0;
+    for (SampleNode node : nodes) {
+      result += node.getSampleCount();
+    }
+    return result;
+  }
+
+  /**
+   * Iterative k-way merge.
+   */
+  private static SampleNode merge(final List<SampleNode> nodes) {
+    if (nodes.size() == 1) {
+      return SampleNode.clone(nodes.get(0));
+    }
+    SampleNode result = new SampleNode(totalSamples(nodes));
+    ArrayDeque<PendingMerge> dq = new ArrayDeque<>();
+    dq.add(new PendingMerge(result, nodes));
+    PendingMerge merge;
+    while ((merge = dq.poll()) != null) {
+      for (Map.Entry<Method, List<SampleNode>> group : groupChildren(merge.sources).entrySet()) {
+        List<SampleNode> children = group.getValue();
+        if (children.size() == 1) {
+          merge.target.put(group.getKey(), SampleNode.clone(children.get(0)));
+        } else {
+          SampleNode child = new SampleNode(totalSamples(children));
+          merge.target.put(group.getKey(), child);
+          dq.add(new PendingMerge(child, children));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A node whose children are yet to be merged from the children of the source nodes.
+   */
+  private static final class PendingMerge {
+
+    private final SampleNode target;
+    private final List<SampleNode> sources;
+
+    PendingMerge(final SampleNode target, final List<SampleNode> sources) {
+      this.target = target;
+      this.sources = sources;
+    }
+  }
+
+  private static MethodMap<List<SampleNode>> groupChildren(final List<SampleNode> nodes) {
+    MethodMap<List<SampleNode>> result = new MethodMap<>();
+    for (SampleNode node : nodes) {
+      node.forEachEntry((final Method m, final SampleNode child) -> {
+        List<SampleNode> group = result.get(m);
+        if (group == null) {
+          group = new ArrayList<>(2);
+          result.put(m, group);
+        }
+        group.add(child);
+        return true;
+      });
+    }
+    return result;
+  }
+
+  private static final class MergeTask extends RecursiveTask<SampleNode> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<SampleNode> nodes;
+    private final int depth;
+    private final int threshold;
+
+    MergeTask(final List<SampleNode> nodes, final int depth, final int threshold) {
+      this.nodes = nodes;
+      this.depth = depth;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected SampleNode compute() {
+      int total = totalSamples(nodes);
+      if (depth >= MAX_SPLIT_DEPTH || total < threshold) {
+        return merge(nodes);
+      }
+      MethodMap<List<SampleNode>> groups = groupChildren(nodes);
+      List<Method> methods = new ArrayList<>(groups.size());
+      List<MergeTask> tasks = new ArrayList<>(groups.size());
+      for (Map.Entry<Method, List<SampleNode>> group : groups.entrySet()) {
+        methods.add(group.getKey());
+        tasks.add(new MergeTask(group.getValue(), depth + 1, threshold));
+      }
+      ForkJoinTask.invokeAll(tasks);
+      SampleNode result = new SampleNode(total, tasks.size());
+      for (int i = 0; i < tasks.size(); i++) {
+        result.put(methods.get(i), tasks.get(i).join());
+      }
+      return result;
+    }
+  }
+
+  private static final class DiffTask extends RecursiveTask<SampleNode> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SampleNode node;
+    private final SampleNode other;
+    private final int depth;
+    private final int threshold;
+
+    DiffTask(final SampleNode node, final SampleNode other, final int depth, final int threshold) {
+      this.node = node;
+      this.other = other;
+      this.depth = depth;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected SampleNode compute() {
+      if (depth >= MAX_SPLIT_DEPTH || node.getSampleCount() < threshold) {
+        return SampleNode.diff(node, other);
+      }
+      ChildTasks children = ChildTasks.of(node, other, depth, threshold,
+              (c, o) -> new DiffTask(c, o, depth + 1, threshold));
+      int count = node.getSampleCount()
+              - Math.min(node.getSelfSampleCount(), other.getSelfSampleCount());
+      for (int i = 0; i < children.matched.size(); i++) {
+        count -= children.matchedNodes.get(i).getSampleCount() - children.matched.get(i).join().getSampleCount();
+      }
+      return children.toNode(count);
+    }
+  }
+
+  private static final class IntersectTask extends RecursiveTask<SampleNode> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SampleNode node;
+    private final SampleNode other;
+    private final int depth;
+    private final int threshold;
+
+    IntersectTask(final SampleNode node, final SampleNode other, final int depth, final int threshold) {
+      this.node = node;
+      this.other = other;
+      this.depth = depth;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected SampleNode compute() {
+      if (depth >= MAX_SPLIT_DEPTH || node.getSampleCount() < threshold) {
+        return SampleNode.intersect(node, other);
+      }
+      ChildTasks children = ChildTasks.of(node, other, depth, threshold,
+              (c, o) -> new IntersectTask(c, o, depth + 1, threshold));
+      // like SampleNode.intersect, children that are not in other are retained but not counted.
+      int count = Math.min(node.getSelfSampleCount(), other.getSelfSampleCount());
+      for (ForkJoinTask<SampleNode> task : children.matched) {
+        int childCount = task.join().getSampleCount();
+        if (childCount > 0) {
+          count += childCount;
+        }
+      }
+      return children.toNode(count);
+    }
+  }
+
+  @FunctionalInterface
+  private interface PairTaskFactory {
+    ForkJoinTask<SampleNode> create(SampleNode node, SampleNode other);
+  }
+
+  /**
+   * The child tasks of a node pair: children present in both trees are processed with the pair task, children
+   * present only in node are copied. All tasks are completed when created with of().
+   */
+  private static final class ChildTasks {
+
+    private final List<Method> matchedMethods = new ArrayList<>();
+    private final List<SampleNode> matchedNodes = new ArrayList<>();
+    private final List<ForkJoinTask<SampleNode>> matched = new ArrayList<>();
+    private final List<Method> copiedMethods = new ArrayList<>();
+    private final List<ForkJoinTask<SampleNode>> copied = new ArrayList<>();
+
+    static ChildTasks of(final SampleNode node, final SampleNode other, final int depth, final int threshold,
+            final PairTaskFactory factory) {
+      ChildTasks result = new ChildTasks();
+      List<ForkJoinTask<SampleNode>> all = new ArrayList<>(node.size());
+      node.forEachEntry((final Method m, final SampleNode child) -> {
+        SampleNode otherChild = other.get(m);
+        ForkJoinTask<SampleNode> task;
+        if (otherChild == null) {
+          task = new MergeTask(Collections.singletonList(child), depth + 1, threshold);
+          result.copiedMethods.add(m);
+          result.copied.add(task);
+        } else {
+          task = factory.create(child, otherChild);
+          result.matchedMethods.add(m);
+          result.matchedNodes.add(child);
+          result.matched.add(task);
+        }
+        all.add(task);
+        return true;
+      });
+      ForkJoinTask.invokeAll(all);
+      return result;
+    }
+
+    /**
+     * @return a node with count, the copied children and the matched children with a positive count.
+     */
+    SampleNode toNode(final int count) {
+      SampleNode result = new SampleNode(count, copied.size() + matched.size());
+      for (int i = 0; i < copied.size(); i++) {
+        result.put(copiedMethods.get(i), copied.get(i).join());
+      }
+      for (int i = 0; i < matched.size(); i++) {
+        SampleNode child = matched.get(i).join();
+        if (child.getSampleCount() > 0) {
+          result.put(matchedMethods.get(i), child);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static final class FilterTask extends RecursiveTask<SampleNode> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SampleNode node;
+    private final Predicate<Method> predicate;
+    private final int depth;
+    private final int threshold;
+
+    FilterTask(final SampleNode node, final Predicate<Method> predicate, final int depth, final int threshold) {
+      this.node = node;
+      this.predicate = predicate;
+      this.depth = depth;
+      this.threshold = threshold;
+    }
+
+    @Override
+    @Nullable
+    protected SampleNode compute() {
+      if (depth >= MAX_SPLIT_DEPTH || node.getSampleCount() < threshold) {
+        return node.filteredBy(predicate);
+      }
+      int newCount = node.getSampleCount();
+      List<Method> methods = new ArrayList<>(node.size());
+      List<SampleNode> children = new ArrayList<>(node.size());
+      List<FilterTask> tasks = new ArrayList<>(node.size());
+      for (Map.Entry<Method, SampleNode> entry : node.entrySet()) {
+        SampleNode child = entry.getValue();
+        if (predicate.test(entry.getKey())) {
+          newCount -= child.getSampleCount();
+        } else {
+          methods.add(entry.getKey());
+          children.add(child);
+          tasks.add(new FilterTask(child, predicate, depth + 1, threshold));
+        }
+      }
+      ForkJoinTask.invokeAll(tasks);
+      SampleNode[] results = new SampleNode[tasks.size()];
+      int nrResults = 0;
+      for (int i = 0; i < tasks.size(); i++) {
+        SampleNode result = tasks.get(i).join();
+        int childCount = children.get(i).getSampleCount();
+        if (result == null) {
+          newCount -= childCount;
+        } else {
+          newCount -= childCount - result.getSampleCount();
+          nrResults++;
+        }
+        results[i] = result;
+      }
+      if (newCount == 0) {
+        return null;
+      } else if (newCount < 0) {
+        throw new IllegalStateException("child sample counts must be <= parent sample count, detail: " + node);
+      }
+      SampleNode result = new SampleNode(newCount, nrResults);
+      for (int i = 0; i < results.length; i++) {
+        if (results[i] != null) {
+          result.put(methods.get(i), results[i]);
+        }
+      }
+      return result;
+    }
+  }
+
+}
@@ -32,19 +32,30 @@
 package org.spf4j.stackmonitor;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
@@ -67,6 +78,20 @@ import org.spf4j.jmx.Registry;
  * please read http://sape.inf.usi.ch/sites/default/files/publication/pldi10.pdf pure java stack sampling will probably
  * have safepoint bias.
  *
+ * While sampling, the stack collector is owned by the sampling thread: JMX readers hand their requests to the
+ * sampling thread (served between samples) instead of contending on a lock around sampling.
+ * Periodic profile dumps are swapped out on the sampling thread and handed over to a dedicated persister thread
+ * via a bounded queue. When the queue is full, the dump is deferred and samples keep aggregating in memory,
+ * so a slow disk never stalls sampling.
+ *
+ * Optionally (spf4j.stackSampler.profileSliceMillis, 0 by default = disabled, 10000 is a good value) the samples
+ * are cut into slices that are kept in a in memory {@link ProfileRing} (retained for
+ * spf4j.stackSampler.profileRetentionMillis, 1 hour by default, within a spf4j.stackSampler.profileRingMaxBytes
+ * byte budget, 32MB by default). This allows to get the profile of a past time window (like the last 5 minutes)
+ * with getProfile, or via JMX with dumpRecentProfile and dumpProfile. The sampling thread only swaps out the slices,
+ * encoding them into the ring and merging them for the periodic dumps is done by the persister thread
+ * (or by the thread requesting the profile).
+ *
  * @author zoly
  */
 @ThreadSafe
@@ -81,8 +106,18 @@ public final class Sampler {
           System.getProperty("spf4j.perf.ms.defaultSsdumpFilePrefix",
                   ManagementFactory.getRuntimeMXBean().getName()));
 
-  @GuardedBy("sync")
-  private boolean stopped;
+  private static final int PERSIST_QUEUE_SIZE = Integer.getInteger("spf4j.stackSampler.persistQueueSize", 4);
+
+  private static final long PERSISTER_STOP_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+          Integer.getInteger("spf4j.stackSampler.persisterStopTimeoutMillis", 60000));
+
+  /**
+   * marker for the periodic dumps of the sliced aggregate, when the profile ring is enabled.
+   */
+  private static final ProfileData SLICED_PROFILE = new ProfileData(Instant.EPOCH, Instant.EPOCH,
+          Collections.EMPTY_MAP);
+
+  private volatile boolean stopped;
 
   private volatile long sampleTimeNanos;
   private volatile long dumpTimeNanos;
@@ -97,8 +132,61 @@ public final class Sampler {
   @GuardedBy("sync")
   private Future<?> samplerFuture;
 
+  @GuardedBy("sync")
+  private Future<?> persisterFuture;
+
+  /** true while the sampling thread owns the stack collector. */
+  @GuardedBy("sync")
+  private boolean sampling;
+
+  @GuardedBy("sync")
+  private Thread samplingThread;
+
+  private final ConcurrentLinkedQueue<CollectorRequest<?>> collectorRequests;
+
+  private final BlockingQueue<ProfileData> persistQueue;
+
+  private volatile boolean samplingDone;
+
+  private final AtomicLong deferredDumpCount;
+
+  private final AtomicLong persistedProfileCount;
+
+  private final AtomicLong persistFailureCount;
+
+  private volatile long lastPersistNanos;
+
   private volatile ProfilePersister persister;
 
+  @Nullable
+  private final ProfileRing profileRing;
+
+  private final long profileSliceNanos;
+
+  /**
+   * slices cut by the sampling thread, not yet added to the profile ring and to the sliced aggregate.
+   */
+  private final ConcurrentLinkedQueue<ProfileData> slices;
+
+  private final Object slicedSync = new Object();
+
+  /**
+   * when the profile ring is enabled, the slices are aggregated here (for dumps and collection reads).
+   */
+  @GuardedBy("slicedSync")
+  private Map<String, SampleNode> sliced;
+
+  @GuardedBy("slicedSync")
+  private Instant slicedFrom;
+
+  @GuardedBy("slicedSync")
+  private Instant slicedTo;
+
+  /**
+   * owned like the stack collector.
+   */
+  private long lastSliceNanos;
+
   @Override
   public String toString() {
     return "Sampler{" + "stopped=" + stopped + ", sampleTimeNanos="
@@ -164,6 +252,21 @@ public final class Sampler {
     this.dumpTimeNanos = TimeUnit.MILLISECONDS.toNanos(dumpTimeMillis);
     this.stackCollectorSupp = collector;
     this.persister = persister;
+    this.collectorRequests = new ConcurrentLinkedQueue<>();
+    this.persistQueue = new ArrayBlockingQueue<>(PERSIST_QUEUE_SIZE);
+    this.deferredDumpCount = new AtomicLong();
+    this.persistedProfileCount = new AtomicLong();
+    this.persistFailureCount = new AtomicLong();
+    this.profileSliceNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("spf4j.stackSampler.profileSliceMillis", 0));
+    if (profileSliceNanos > 0) {
+      this.profileRing = new ProfileRing(Long.getLong("spf4j.stackSampler.profileRetentionMillis", 3600000),
+              Long.getLong("spf4j.stackSampler.profileRingMaxBytes", 32 * 1024 * 1024));
+    } else {
+      this.profileRing = null;
+    }
+    this.slices = new ConcurrentLinkedQueue<>();
+    this.sliced = new HashMap<>();
   }
 
 
@@ -217,7 +320,14 @@ public final class Sampler {
     synchronized (sync) {
       if (stopped) {
         stopped = false;
+        samplingDone = false;
         final long stNanos = sampleTimeNanos;
+        persisterFuture = DefaultExecutor.INSTANCE.submit(new AbstractRunnable("SPF4J-Profile-Persister") {
+          @Override
+          public void doRun() throws InterruptedException {
+            persistLoop();
+          }
+        });
         samplerFuture = DefaultExecutor.INSTANCE.submit(new AbstractRunnable("SPF4J-Sampling-Thread") {
 
           @SuppressWarnings("SleepWhileInLoop")
@@ -225,49 +335,30 @@ public final class Sampler {
           @Override
           public void doRun() {
             lastDumpTimeNanos = TimeSource.nanoTime();
+            lastSliceNanos = lastDumpTimeNanos;
+            final ISampler collector = stackCollectorSupp.get(Thread.currentThread());
             synchronized (sync) {
-              stackCollector = stackCollectorSupp.get(Thread.currentThread());
+              stackCollector = collector;
+              samplingThread = Thread.currentThread();
+              sampling = true;
             }
-            final long lDumpTimeNanos = dumpTimeNanos;
-            final ThreadLocalRandom random = ThreadLocalRandom.current();
-            long dumpCounterNanos = 0;
-            long sleepTimeNanos = 0;
-            long halfStNanos = stNanos / 2;
-            if (halfStNanos == 0) {
-              halfStNanos = 1;
-            }
-            long maxSleeepNanos = stNanos + halfStNanos;
-            while (true) {
-              try {
-                synchronized (sync) {
-                  stackCollector.sample();
-                  if (stopped) {
-                    break;
-                  }
-                }
-                dumpCounterNanos += sleepTimeNanos;
-                if (dumpCounterNanos >= lDumpTimeNanos) {
-                  long nanosSinceLastDump = TimeSource.nanoTime() - lastDumpTimeNanos;
-                  if (nanosSinceLastDump >= lDumpTimeNanos) {
-                    dumpCounterNanos = 0;
-                    File dumpFile = dumpToFile();
-                    if (dumpFile != null) {
-                      Logger.getLogger(Sampler.class.getName())
-                              .log(Level.INFO, "Stack samples written to {0}", dumpFile);
-                    }
-                  } else {
-                    dumpCounterNanos = nanosSinceLastDump;
+            try {
+              sampleLoop(collector, stNanos);
+            } finally {
+              synchronized (sync) {
+                sampling = false;
+                samplingThread = null;
+                serveCollectorRequests(collector);
+                if (collector instanceof Closeable) {
+                  try {
+                    ((Closeable) collector).close();
+                  } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(Sampler.class.getName()).log(Level.WARNING,
+                            "Failed to close stack collector " + collector, ex);
                   }
                 }
-                sleepTimeNanos = random.nextLong(halfStNanos, maxSleeepNanos);
-                TimeUnit.NANOSECONDS.sleep(sleepTimeNanos);
-              } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                return;
-              } catch (IOException | RuntimeException ex) {
-                Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
-                        "Exception encountered while samplig, will continue sampling", ex);
               }
+              samplingDone = true;
             }
           }
         });
@@ -277,6 +368,173 @@ public final class Sampler {
     }
   }
 
+  private void sampleLoop(final ISampler collector, final long stNanos) {
+    final long lDumpTimeNanos = dumpTimeNanos;
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    long dumpCounterNanos = 0;
+    long sleepTimeNanos = 0;
+    long halfStNanos = stNanos / 2;
+    if (halfStNanos == 0) {
+      halfStNanos = 1;
+    }
+    long maxSleeepNanos = stNanos + halfStNanos;
+    boolean deferred = false;
+    while (true) {
+      try {
+        collector.sample();
+        if (stopped) {
+          break;
+        }
+        if (profileRing != null && TimeSource.nanoTime() - lastSliceNanos >= profileSliceNanos) {
+          flushSlice(collector);
+        }
+        dumpCounterNanos += sleepTimeNanos;
+        if (dumpCounterNanos >= lDumpTimeNanos) {
+          long nanosSinceLastDump = TimeSource.nanoTime() - lastDumpTimeNanos;
+          if (nanosSinceLastDump >= lDumpTimeNanos) {
+            // only this thread adds to the persist queue, so remaining capacity guarantees the offer succeeds.
+            if (persistQueue.remainingCapacity() > 0) {
+              dumpCounterNanos = 0;
+              deferred = false;
+              ProfileData data;
+              if (profileRing == null) {
+                data = getAndResetProfileSamples(collector);
+              } else {
+                flushSlice(collector);
+                lastDumpTimeNanos = lastSliceNanos;
+                data = SLICED_PROFILE;
+              }
+              if (data != null) {
+                persistQueue.offer(data);
+              }
+            } else if (!deferred) {
+              deferred = true;
+              deferredDumpCount.incrementAndGet();
+            }
+          } else {
+            dumpCounterNanos = nanosSinceLastDump;
+          }
+        }
+        sleepTimeNanos = random.nextLong(halfStNanos, maxSleeepNanos);
+        sleepServingRequests(collector, sleepTimeNanos);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException ex) {
+        Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
+                "Exception encountered while samplig, will continue sampling", ex);
+      }
+    }
+  }
+
+  /**
+   * Sleep till the next sample time, serving collector requests as they arrive.
+   * Requests do not shift the sampling schedule.
+   */
+  private void sleepServingRequests(final ISampler collector, final long sleepNanos) throws InterruptedException {
+    long deadlineNanos = TimeSource.nanoTime() + sleepNanos;
+    while (true) {
+      serveCollectorRequests(collector);
+      long waitNanos = deadlineNanos - TimeSource.nanoTime();
+      if (waitNanos <= 0 || stopped) {
+        return;
+      }
+      LockSupport.parkNanos(this, waitNanos);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  private void serveCollectorRequests(final ISampler collector) {
+    CollectorRequest<?> request;
+    while ((request = collectorRequests.poll()) != null) {
+      request.run(collector);
+    }
+  }
+
+  private void persistLoop() throws InterruptedException {
+    while (true) {
+      ProfileData data = persistQueue.poll(100, TimeUnit.MILLISECONDS);
+      if (profileRing != null) {
+        synchronized (slicedSync) {
+          addSlices();
+        }
+      }
+      if (data == SLICED_PROFILE) {
+        data = takeSliced();
+      }
+      if (data == null) {
+        if (samplingDone && persistQueue.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      long startNanos = TimeSource.nanoTime();
+      try {
+        Path dumpFile = persister.persist(data.getSamples(), null, data.getFrom(), data.getTo());
+        persistedProfileCount.incrementAndGet();
+        if (dumpFile != null) {
+          Logger.getLogger(Sampler.class.getName())
+                  .log(Level.INFO, "Stack samples written to {0}", dumpFile);
+        }
+      } catch (IOException | RuntimeException ex) {
+        persistFailureCount.incrementAndGet();
+        Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
+                "Exception encountered while persisting profile, will continue", ex);
+      } finally {
+        lastPersistNanos = TimeSource.nanoTime() - startNanos;
+      }
+    }
+  }
+
+  /**
+   * Execute a function against the stack collector.
+   * While sampling, the function is executed by the sampling thread in between samples,
+   * otherwise the function is executed by the calling thread.
+   */
+  private <T> T withCollector(final Function<ISampler, T> function, final T noCollectorResult) {
+    CollectorRequest<T> request;
+    Thread st;
+    synchronized (sync) {
+      if (stackCollector == null) {
+        return noCollectorResult;
+      }
+      if (!sampling) {
+        return function.apply(stackCollector);
+      }
+      request = new CollectorRequest<>(function);
+      collectorRequests.add(request);
+      st = samplingThread;
+    }
+    LockSupport.unpark(st);
+    try {
+      return request.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new Spf4jProfilerException(ex);
+    } catch (ExecutionException ex) {
+      throw new Spf4jProfilerException(ex.getCause());
+    }
+  }
+
+  private static final class CollectorRequest<T> extends CompletableFuture<T> {
+
+    private final Function<ISampler, T> function;
+
+    CollectorRequest(final Function<ISampler, T> function) {
+      this.function = function;
+    }
+
+    void run(final ISampler collector) {
+      try {
+        complete(function.apply(collector));
+      } catch (RuntimeException ex) {
+        completeExceptionally(ex);
+      }
+    }
+  }
+
   @JmxExport
   public boolean isCompressDumps() {
     return persister.isCompressing();
@@ -316,25 +574,83 @@ public final class Sampler {
 
   @Nullable
   private ProfileData getAndResetProfileSamples() {
-    long fromNanos;
-    Map<String, SampleNode> collections;
-    long nowNanos;
-    synchronized (sync) {
-      if (stackCollector == null) {
-        return null;
+    if (profileRing == null) {
+      return withCollector(this::getAndResetProfileSamples, null);
+    }
+    withCollector((final ISampler collector) -> {
+      flushSlice(collector);
+      lastDumpTimeNanos = lastSliceNanos;
+      return null;
+    }, null);
+    return takeSliced();
+  }
+
+  /**
+   * Swap out the samples collected since the last slice, they are added to the profile ring
+   * and to the sliced aggregate by addSlices.
+   */
+  private Void flushSlice(final ISampler collector) {
+    long nowNanos = TimeSource.nanoTime();
+    Map<String, SampleNode> slice = collector.getCollectionsAndReset();
+    if (!slice.isEmpty()) {
+      Timing timing = Timing.getCurrentTiming();
+      slices.add(new ProfileData(timing.fromNanoTimeToInstant(lastSliceNanos),
+              timing.fromNanoTimeToInstant(nowNanos), slice));
+    }
+    lastSliceNanos = nowNanos;
+    return null;
+  }
+
+  /**
+   * Encode the pending slices into the profile ring and merge them into the sliced aggregate.
+   */
+  @GuardedBy("slicedSync")
+  private void addSlices() {
+    ProfileData slice;
+    while ((slice = slices.poll()) != null) {
+      profileRing.add(slice.getFrom(), slice.getTo(), slice.getSamples());
+      if (sliced.isEmpty()) {
+        slicedFrom = slice.getFrom();
       }
-      collections = stackCollector.getCollectionsAndReset();
-      if (collections.isEmpty()) {
+      slicedTo = slice.getTo();
+      for (Map.Entry<String, SampleNode> entry : slice.getSamples().entrySet()) {
+        sliced.merge(entry.getKey(), entry.getValue(), (final SampleNode a, final SampleNode b) -> {
+          a.add(b);
+          return a;
+        });
+      }
+    }
+  }
+
+  /**
+   * @return the sliced aggregate, covering the [first slice start, last slice end) window,
+   * null if no samples.
+   */
+  @Nullable
+  private ProfileData takeSliced() {
+    synchronized (slicedSync) {
+      addSlices();
+      if (sliced.isEmpty()) {
         return null;
       }
-      fromNanos = lastDumpTimeNanos;
-      nowNanos = TimeSource.nanoTime();
-      lastDumpTimeNanos = nowNanos;
+      ProfileData result = new ProfileData(slicedFrom, slicedTo, sliced);
+      sliced = new HashMap<>();
+      return result;
     }
+  }
+
+  @Nullable
+  private ProfileData getAndResetProfileSamples(final ISampler collector) {
+    Map<String, SampleNode> collections = collector.getCollectionsAndReset();
+    if (collections.isEmpty()) {
+      return null;
+    }
+    long fromNanos = lastDumpTimeNanos;
+    long nowNanos = TimeSource.nanoTime();
+    lastDumpTimeNanos = nowNanos;
     Timing currentTiming = Timing.getCurrentTiming();
     return new ProfileData(currentTiming.fromNanoTimeToInstant(fromNanos),
             currentTiming.fromNanoTimeToInstant(nowNanos), collections);
-
   }
 
   @JmxExport(description = "save stack samples to file")
@@ -344,7 +660,7 @@ public final class Sampler {
     if (data == null) {
       return null;
     }
-    return persister.persist(data.getSamples(), null, data.getFrom(), data.getTo()).toFile();
+    return toFile(persister.persist(data.getSamples(), null, data.getFrom(), data.getTo()));
   }
 
   /**
@@ -365,7 +681,7 @@ public final class Sampler {
     if (data == null) {
       return null;
     }
-    return persister.persist(data.getSamples(), id, data.getFrom(), data.getTo()).toFile();
+    return toFile(persister.persist(data.getSamples(), id, data.getFrom(), data.getTo()));
   }
 
   /**
@@ -387,31 +703,53 @@ public final class Sampler {
     if (data == null) {
       return null;
     }
-    return persister.withBaseFileName(destinationFolder.toPath(), pbaseFileName)
-           .persist(data.getSamples(), null, data.getFrom(), data.getTo()).toFile();
+    try (ProfilePersister filePersister = persister.withBaseFileName(destinationFolder.toPath(), pbaseFileName)) {
+      return toFile(filePersister.persist(data.getSamples(), null, data.getFrom(), data.getTo()));
+    }
+  }
+
+  @Nullable
+  private static File toFile(@Nullable final Path path) {
+    return path == null ? null : path.toFile();
   }
 
   @JmxExport(description = "stop stack sampling")
   public void stop() throws InterruptedException {
     Future<?> toCancel = null;
+    Future<?> persisterToCancel = null;
+    Thread st = null;
     synchronized (sync) {
       if (!stopped) {
         stopped = true;
         toCancel = samplerFuture;
+        persisterToCancel = persisterFuture;
+        st = samplingThread;
       }
     }
+    if (st != null) {
+      LockSupport.unpark(st);
+    }
     if (toCancel != null) {
       try {
-        toCancel.get(dumpTimeNanos * 3, TimeUnit.NANOSECONDS);
-      } catch (TimeoutException ex) {
-        toCancel.cancel(true);
-        throw new Spf4jProfilerException(ex);
-      } catch (ExecutionException ex) {
-        throw new Spf4jProfilerException(ex);
+        waitFor(toCancel, dumpTimeNanos * 3);
+      } finally {
+        samplingDone = true;
+        waitFor(persisterToCancel, PERSISTER_STOP_TIMEOUT_NANOS);
       }
     }
   }
 
+  private static void waitFor(final Future<?> future, final long timeoutNanos) throws InterruptedException {
+    try {
+      future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException ex) {
+      future.cancel(true);
+      throw new Spf4jProfilerException(ex);
+    } catch (ExecutionException ex) {
+      throw new Spf4jProfilerException(ex);
+    }
+  }
+
   @JmxExport(description = "stack sample time in milliseconds")
   public int getSampleTimeMillis() {
     return (int) TimeUnit.NANOSECONDS.toMillis(sampleTimeNanos);
@@ -429,9 +767,7 @@ public final class Sampler {
 
   @JmxExport(description = "clear in memory collected stack samples")
   public void clear() {
-    synchronized (sync) {
-      stackCollector.getCollectionsAndReset();
-    }
+    getStackCollectionsAndReset();
   }
 
   @JmxExport
@@ -439,22 +775,134 @@ public final class Sampler {
     this.persister.flush();
   }
 
+  @JmxExport(description = "number of profiles waiting to be persisted")
+  public int getPersistQueueSize() {
+    return persistQueue.size();
+  }
+
+  @JmxExport(description = "maximum number of profiles waiting to be persisted")
+  public int getPersistQueueCapacity() {
+    return PERSIST_QUEUE_SIZE;
+  }
+
+  @JmxExport(description = "number of times a periodic dump was deferred because the persist queue was full")
+  public long getDeferredDumpCount() {
+    return deferredDumpCount.get();
+  }
+
+  @JmxExport(description = "number of profiles persisted by the persister thread")
+  public long getPersistedProfileCount() {
+    return persistedProfileCount.get();
+  }
+
+  @JmxExport(description = "number of profiles the persister thread failed to persist")
+  public long getPersistFailureCount() {
+    return persistFailureCount.get();
+  }
+
+  @JmxExport(description = "duration of the last profile persist in milliseconds")
+  public long getLastPersistTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lastPersistNanos);
+  }
+
   public Map<String, SampleNode> getStackCollectionsAndReset() {
-    synchronized (sync) {
-      if (stackCollector == null) {
-        return Collections.EMPTY_MAP;
-      }
-      return stackCollector.getCollectionsAndReset();
+    if (profileRing == null) {
+      return withCollector(ISampler::getCollectionsAndReset, Collections.EMPTY_MAP);
     }
+    withCollector(this::flushSlice, null);
+    ProfileData data = takeSliced();
+    return data == null ? Collections.EMPTY_MAP : data.getSamples();
   }
 
   public Map<String, SampleNode> getStackCollections() {
-    synchronized (sync) {
-      if (stackCollector == null) {
-        return Collections.EMPTY_MAP;
+    if (profileRing == null) {
+      return withCollector(ISampler::getCollections, Collections.EMPTY_MAP);
+    }
+    withCollector(this::flushSlice, null);
+    synchronized (slicedSync) {
+      addSlices();
+      Map<String, SampleNode> result = new HashMap<>(sliced.size() + sliced.size() / 3 + 1);
+      for (Map.Entry<String, SampleNode> entry : sliced.entrySet()) {
+        result.put(entry.getKey(), SampleNode.clone(entry.getValue()));
       }
-      return stackCollector.getCollections();
+      return result;
+    }
+  }
+
+  /**
+   * Get the profile of a past time window from the profile ring.
+   * The result contains all slices that overlap the [from, to) interval,
+   * so the time resolution is the slice time (spf4j.stackSampler.profileSliceMillis).
+   * @param from the window start.
+   * @param to the window end.
+   * @return the profile of the window, empty if there are no samples or if the profile ring is disabled.
+   */
+  public Map<String, SampleNode> getProfile(final Instant from, final Instant to) {
+    if (profileRing == null) {
+      return Collections.EMPTY_MAP;
+    }
+    withCollector(this::flushSlice, null);
+    synchronized (slicedSync) {
+      addSlices();
+    }
+    return profileRing.getProfile(from, to);
+  }
+
+  /**
+   * Get the profile of the most recent time window from the profile ring.
+   * @param duration the window duration.
+   * @return the profile of the last duration.
+   */
+  public Map<String, SampleNode> getRecentProfile(final Duration duration) {
+    Instant now = Timing.getCurrentTiming().fromNanoTimeToInstant(TimeSource.nanoTime());
+    return getProfile(now.minus(duration), now.plusNanos(1));
+  }
+
+  @JmxExport(value = "dumpRecentProfile", description = "save the profile of the last N seconds to file")
+  @Nullable
+  public File dumpRecentProfile(
+          @JmxExport(value = "seconds", description = "the number of seconds to save the profile for")
+          final int seconds) throws IOException {
+    Instant now = Timing.getCurrentTiming().fromNanoTimeToInstant(TimeSource.nanoTime());
+    return dumpProfile(now.minusSeconds(seconds), now.plusNanos(1));
+  }
+
+  @JmxExport(value = "dumpProfile", description = "save the profile between 2 ISO-8601 instants to file")
+  @Nullable
+  public File dumpProfile(
+          @JmxExport(value = "from", description = "window start, like 2020-01-31T16:08:10Z") final String from,
+          @JmxExport(value = "to", description = "window end, like 2020-01-31T16:09:10Z") final String to)
+          throws IOException {
+    return dumpProfile(Instant.parse(from), Instant.parse(to));
+  }
+
+  @Nullable
+  public File dumpProfile(final Instant from, final Instant to) throws IOException {
+    Map<String, SampleNode> profile = getProfile(from, to);
+    if (profile.isEmpty()) {
+      return null;
     }
+    return toFile(persister.persist(profile, "window", from, to));
+  }
+
+  @JmxExport(description = "number of profile slices in the profile ring")
+  public int getProfileRingSlices() {
+    return profileRing == null ? 0 : profileRing.getNrSlices();
+  }
+
+  @JmxExport(description = "number of bytes used by the profile ring")
+  public long getProfileRingBytes() {
+    return profileRing == null ? 0 : profileRing.getBytes();
+  }
+
+  @JmxExport(description = "maximum number of bytes the profile ring can use")
+  public long getProfileRingMaxBytes() {
+    return profileRing == null ? 0 : profileRing.getMaxBytes();
+  }
+
+  @JmxExport(description = "profile ring slice time in milliseconds, 0 if the profile ring is disabled")
+  public long getProfileSliceMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(profileSliceNanos);
   }
 
   @PreDestroy
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.StackSamples;
+import org.spf4j.ssdump2.CompactProfileWriter;
+
+/**
+ * Streams profiles in the compact dictionary encoded format (see {@link CompactProfileWriter}) to a socket,
+ * typically a collector process listening on the loopback interface.
+ * The connection is established lazily, and re-established on the next persist after a failure;
+ * every connection is a new stream with its own header and dictionary.
+ * Since nothing is persisted locally, persist returns null. Explicit dumps to a folder
+ * ({@link #withBaseFileName(java.nio.file.Path, java.lang.String)}) go to a {@link CompactProfilePersister}.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class SocketProfilePersister implements ProfilePersister {
+
+  private static final int CONNECT_TIMEOUT_MILLIS
+          = Integer.getInteger("spf4j.socketProfilePersister.connectTimeoutMillis", 5000);
+
+  private final InetSocketAddress address;
+
+  private final Path targetFolder;
+
+  private final String baseFileName;
+
+  private final boolean compress;
+
+  @Nullable
+  private Socket socket;
+
+  @Nullable
+  private CompactProfileWriter writer;
+
+  /**
+   * @param address the collector address.
+   * @param targetFolder folder used for explicit dumps to file.
+   * @param baseFileName base file name used for explicit dumps to file.
+   * @param compress gzip compress the stream.
+   */
+  public SocketProfilePersister(final InetSocketAddress address, final Path targetFolder,
+          final String baseFileName, final boolean compress) {
+    this.address = address;
+    this.targetFolder = targetFolder;
+    this.baseFileName = baseFileName;
+    this.compress = compress;
+  }
+
+  @Override
+  public boolean isCompressing() {
+    return compress;
+  }
+
+  @Override
+  public ProfilePersister withBaseFileName(final Path ptargetPath, final String pbaseFileName) {
+    return new CompactProfilePersister(ptargetPath, pbaseFileName, compress);
+  }
+
+  @Override
+  public ProfilePersister witCompression(final boolean pcompress) {
+    return new SocketProfilePersister(address, targetFolder, baseFileName, pcompress);
+  }
+
+  @Override
+  @Nullable
+  public synchronized Path persist(final Map<String, ? extends StackSamples> profile, @Nullable final String tag,
+          final Instant profileFrom, final Instant profileTo) throws IOException {
+    if (profile.isEmpty()) {
+      return null;
+    }
+    CompactProfileWriter w = getWriter();
+    try {
+      for (Map.Entry<String, ? extends StackSamples> entry : profile.entrySet()) {
+        StackSamples samples = entry.getValue();
+        if (samples != null) {
+          w.write(profileFrom, profileTo, tag, entry.getKey(), samples);
+        }
+      }
+      w.flush();
+    } catch (IOException | RuntimeException ex) {
+      disconnect(ex);
+      throw ex;
+    }
+    return null;
+  }
+
+  private CompactProfileWriter getWriter() throws IOException {
+    if (writer == null) {
+      Socket s = new Socket();
+      try {
+        s.connect(address, CONNECT_TIMEOUT_MILLIS);
+        OutputStream sos = s.getOutputStream();
+        OutputStream os = compress ? new GZIPOutputStream(sos, 8192, true) : new BufferedOutputStream(sos, 8192);
+        writer = new CompactProfileWriter(os);
+      } catch (IOException | RuntimeException ex) {
+        try {
+          s.close();
+        } catch (IOException ex2) {
+          ex.addSuppressed(ex2);
+        }
+        throw ex;
+      }
+      socket = s;
+    }
+    return writer;
+  }
+
+  private void disconnect(final Exception reason) {
+    Socket s = socket;
+    socket = null;
+    writer = null;
+    if (s != null) {
+      try {
+        s.close();
+      } catch (IOException ex) {
+        reason.addSuppressed(ex);
+      }
+    }
+  }
+
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  public synchronized boolean isConnected() {
+    return writer != null;
+  }
+
+  @Override
+  public Path getTargetPath() {
+    return targetFolder;
+  }
+
+  @Override
+  public String getBaseFileName() {
+    return baseFileName;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    Socket s = socket;
+    CompactProfileWriter w = writer;
+    socket = null;
+    writer = null;
+    if (s != null) {
+      try (Socket toClose = s) {
+        w.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SocketProfilePersister{" + "address=" + address + ", targetFolder=" + targetFolder
+            + ", baseFileName=" + baseFileName + ", compress=" + compress + '}';
+  }
+
+}
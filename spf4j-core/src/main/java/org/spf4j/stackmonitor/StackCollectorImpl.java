@@ -35,38 +35,33 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 /**
+ * Stack collector backed by a compact {@link CallingContextTree}, samples are converted to a SampleNode tree
+ * only when retrieved.
  * @author zoly
  */
 @NotThreadSafe
 public final class StackCollectorImpl implements StackCollector {
 
-  private SampleNode samples;
+  private final CallingContextTree samples = new CallingContextTree();
 
   @Override
   @Nullable
   public SampleNode getAndReset() {
-    SampleNode result = samples;
-    samples = null;
+    SampleNode result = samples.toSampleNode();
+    samples.reset();
     return result;
   }
 
   @Override
   @Nullable
   public SampleNode get() {
-    if (samples == null) {
-      return null;
-    }
-    return SampleNode.clone(samples);
+    return samples.toSampleNode();
   }
 
 
   @Override
   public void collect(final StackTraceElement[] stackTrace) {
-    if (samples == null) {
-      samples = SampleNode.createSampleNode(stackTrace);
-    } else {
-      SampleNode.addToSampleNode(samples, stackTrace);
-    }
+    samples.add(stackTrace);
   }
 
   @Override
@@ -75,7 +70,7 @@ public final class StackCollectorImpl implements StackCollector {
   }
 
   public int getNrNodes() {
-    if (samples == null) {
+    if (samples.isEmpty()) {
       return 0;
     } else {
       return samples.getNrNodes();
@@ -33,13 +33,21 @@ package org.spf4j.stackmonitor;
 
 import gnu.trove.map.TMap;
 import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.Pair;
 import org.spf4j.base.Threads;
+import org.spf4j.base.TimeSource;
+import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.impl.RecorderFactory;
 
 /**
  * A stack sample collector that collects samples only for code executed within a execution context.
@@ -47,12 +55,43 @@ import org.spf4j.base.Threads;
  *
  * This context requires ProfiledExecutionContextFactory wrapper.
  *
+ * When constructed with recordTimes = true (default value of the spf4j.execContextSampler.recordTimes property),
+ * for every sampled thread the thread state and the thread CPU time (ThreadMXBean.getThreadCpuTime) are captured.
+ * The CPU time and the wall time elapsed between 2 samples of a thread executing in the same context are attributed
+ * to that context (see CPU_TIME_NANOS tag), and are recorded per operation name (ExecutionContext.getName()) to the
+ * execution_context.cpu_time, execution_context.wall_time and execution_context.thread_state measurements.
+ * This allows to tell apart operations that burn CPU from operations that are mostly waiting.
+ *
  * @author Zoltan Farkas
  */
 @NotThreadSafe
 @SuppressWarnings("checkstyle:VisibilityModifier")
 public class TracingExecutionContexSampler implements ISampler {
 
+  /**
+   * CPU time in nanoseconds attributed to a execution context by sampling.
+   */
+  public static final ExecutionContext.SimpleTag<Long> CPU_TIME_NANOS = new ExecutionContext.SimpleTag<Long>() {
+    @Override
+    public String toString() {
+      return "cpuTimeNanos";
+    }
+
+    @Override
+    public boolean pushOnClose() {
+      return true;
+    }
+
+    @Override
+    public Long accumulate(@Nullable final Long existing, final Long newVal) {
+      return existing == null ? newVal : existing + newVal;
+    }
+  };
+
+  private static final boolean RECORD_TIMES = Boolean.getBoolean("spf4j.execContextSampler.recordTimes");
+
+  private static final ThreadMXBean THREAD_MX = ManagementFactory.getThreadMXBean();
+
   private final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier;
 
   protected Thread[] requestFor;
@@ -63,6 +102,16 @@ public class TracingExecutionContexSampler implements ISampler {
 
   private final Function<ExecutionContext, String> ctxToCategory;
 
+  /**
+   * thread id -> last thread time observation, null when time recording is disabled.
+   */
+  @Nullable
+  private final TLongObjectHashMap<ThreadTime> threadTimes;
+
+  private final boolean recordCpu;
+
+  private long sampleGeneration;
+
   public TracingExecutionContexSampler(
           final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier,
           final Function<ExecutionContext, String> ctxToCategory) {
@@ -72,11 +121,25 @@ public class TracingExecutionContexSampler implements ISampler {
   public TracingExecutionContexSampler(final int maxNrThreads,
           final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier,
           final Function<ExecutionContext, String> ctxToCategory) {
+    this(maxNrThreads, execCtxSupplier, ctxToCategory, RECORD_TIMES);
+  }
+
+  public TracingExecutionContexSampler(final int maxNrThreads,
+          final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier,
+          final Function<ExecutionContext, String> ctxToCategory,
+          final boolean recordTimes) {
     requestFor = new Thread[maxNrThreads];
     contexts = new ExecutionContext[maxNrThreads];
     this.execCtxSupplier = execCtxSupplier;
     collections = new THashMap<>();
     this.ctxToCategory = ctxToCategory;
+    if (recordTimes) {
+      this.threadTimes = new TLongObjectHashMap<>(maxNrThreads);
+      this.recordCpu = THREAD_MX.isThreadCpuTimeSupported() && THREAD_MX.isThreadCpuTimeEnabled();
+    } else {
+      this.threadTimes = null;
+      this.recordCpu = false;
+    }
   }
 
   @Override
@@ -96,6 +159,49 @@ public class TracingExecutionContexSampler implements ISampler {
           c.collect(stackTrace);
         }
       }
+      if (threadTimes != null) {
+        recordTimes(nrThreads);
+      }
+    }
+  }
+
+  private void recordTimes(final int nrThreads) {
+    long generation = ++sampleGeneration;
+    for (int j = 0; j < nrThreads; j++) {
+      Thread thread = requestFor[j];
+      Thread.State state = thread.getState();
+      if (state == Thread.State.TERMINATED) {
+        continue;
+      }
+      ExecutionContext context = contexts[j];
+      long nowNanos = TimeSource.nanoTime();
+      // cpu time is not available for virtual threads.
+      long cpuNanos = recordCpu && !Threads.isVirtual(thread) ? THREAD_MX.getThreadCpuTime(thread.getId()) : -1L;
+      String name = context.getName();
+      Recorders.THREAD_STATE.getRecorder(Pair.of(name, state)).record(1);
+      ThreadTime last = threadTimes.get(thread.getId());
+      if (last == null) {
+        threadTimes.put(thread.getId(), new ThreadTime(context, nowNanos, cpuNanos, generation));
+      } else {
+        if (last.context == context) {
+          Recorders.WALL_TIME.getRecorder(name).record(nowNanos - last.nanos);
+          if (cpuNanos >= 0 && last.cpuNanos >= 0) {
+            long cpuDelta = cpuNanos - last.cpuNanos;
+            if (cpuDelta > 0) {
+              Recorders.CPU_TIME.getRecorder(name).record(cpuDelta);
+              context.accumulate(CPU_TIME_NANOS, cpuDelta);
+            }
+          }
+        }
+        last.context = context;
+        last.nanos = nowNanos;
+        last.cpuNanos = cpuNanos;
+        last.generation = generation;
+      }
+    }
+    if (threadTimes.size() > nrThreads) {
+      // forget threads that are not executing in a context anymore.
+      threadTimes.retainEntries((final long tid, final ThreadTime time) -> time.generation == generation);
     }
   }
 
@@ -139,6 +245,42 @@ public class TracingExecutionContexSampler implements ISampler {
     return result;
   }
 
+  private static final class ThreadTime {
+
+    private ExecutionContext context;
+    private long nanos;
+    private long cpuNanos;
+    private long generation;
+
+    ThreadTime(final ExecutionContext context, final long nanos, final long cpuNanos, final long generation) {
+      this.context = context;
+      this.nanos = nanos;
+      this.cpuNanos = cpuNanos;
+      this.generation = generation;
+    }
+  }
+
+  /**
+   * Lazy holder for the per operation measurement recorders, shared by all sampler instances.
+   */
+  private static final class Recorders {
+
+    private static final int SAMPLE_TIME_MILLIS =
+            Integer.getInteger("spf4j.execContextSampler.recorderSampleTimeMillis", 60000);
+
+    private static final MeasurementRecorderSource CPU_TIME =
+            RecorderFactory.createScalableCountingRecorderSource2("execution_context.cpu_time", "ns",
+                    SAMPLE_TIME_MILLIS);
+
+    private static final MeasurementRecorderSource WALL_TIME =
+            RecorderFactory.createScalableCountingRecorderSource2("execution_context.wall_time", "ns",
+                    SAMPLE_TIME_MILLIS);
+
+    private static final MeasurementRecorderSource THREAD_STATE =
+            RecorderFactory.createScalableSimpleCountingRecorderSource("execution_context.thread_state", "count",
+                    SAMPLE_TIME_MILLIS);
+  }
+
   /**
    * @inherited
    */
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.io.BinaryData;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+
+/**
+ * Columnar data block encoding. The rows of a block are grouped by table and every column of a table is stored
+ * separately:
+ * <ul>
+ * <li>timestamps are delta-of-delta encoded.</li>
+ * <li>values are either zig-zag varint delta encoded, or Gorilla style XOR encoded (byte aligned),
+ * whichever is smaller for the column.</li>
+ * </ul>
+ *
+ * A block is stored as a ColumnarDataBlock avro record {long baseTimestamp; bytes data;} where data is:
+ * <pre>
+ * varint nrTables
+ * nrTables x [varint tableId, varint nrRows, varint nrColumns,
+ *             varint ts0 - baseTimestamp, varint ts1 - ts0, nrRows - 2 x varint delta-of-delta,
+ *             nrColumns x [byte encoding, nrRows x encoded value]]
+ * </pre>
+ * All varints are zig-zag encoded, like avro longs.
+ * The rows of a table can have different lengths (histogram bucket pairs), the rows shorter than the longest row
+ * of the table in the block are padded with zeros.
+ *
+ * This class is also the write buffer where rows are accumulated until the block is written,
+ * all arrays are reused between blocks.
+ *
+ * @author zoly
+ */
+public final class ColumnarDataBlock {
+
+  public static final Schema SCHEMA = SchemaBuilder.record("ColumnarDataBlock")
+          .namespace("org.spf4j.tsdb2.avro")
+          .doc("a block of table data stored by column")
+          .fields()
+          .name("baseTimestamp").doc("the UTC timestamp that all timestamps in this block are relative to")
+          .type().longType().noDefault()
+          .name("data").doc("columnar encoded data").type().bytesType().noDefault()
+          .endRecord();
+
+  static final byte DELTA_ENC = 0;
+
+  static final byte XOR_ENC = 1;
+
+  private static final byte XOR_ZERO = (byte) 0xFF;
+
+  private final TLongObjectMap<TableColumns> tables;
+
+  private final List<TableColumns> tableList;
+
+  private int nrRows;
+
+  private long baseTimestamp;
+
+  private byte[] buffer;
+
+  private int size;
+
+  public ColumnarDataBlock() {
+    this.tables = new TLongObjectHashMap<>();
+    this.tableList = new ArrayList<>();
+    this.nrRows = 0;
+    this.baseTimestamp = Long.MAX_VALUE;
+    this.buffer = new byte[4096];
+    this.size = 0;
+  }
+
+  /**
+   * Add a row to this block.
+   * @param tableId the table id.
+   * @param timestamp the row timestamp (millis since epoch).
+   * @param data the row data, will be copied.
+   */
+  public void add(final long tableId, final long timestamp, final long... data) {
+    add(tableId, timestamp, data, 0, data.length);
+  }
+
+  /**
+   * Add a row to this block.
+   * @param tableId the table id.
+   * @param timestamp the row timestamp (millis since epoch).
+   * @param data the array containing the row data, will be copied.
+   * @param offset the offset of the row data in the array.
+   * @param length the number of columns.
+   */
+  public void add(final long tableId, final long timestamp, final long[] data, final int offset, final int length) {
+    columns(tableId).add(timestamp, data, offset, length);
+    if (timestamp < baseTimestamp) {
+      baseTimestamp = timestamp;
+    }
+    nrRows++;
+  }
+
+  /**
+   * Add all the rows of another block to this block.
+   * @param other the block to copy the rows from.
+   */
+  void addAll(final ColumnarDataBlock other) {
+    for (TableColumns tc : other.tableList) {
+      for (int r = 0; r < tc.nrRows; r++) {
+        add(tc.tableId, tc.timestamps[r], tc.values, r * tc.nrColumns, tc.nrColumns);
+      }
+    }
+  }
+
+  private TableColumns columns(final long tableId) {
+    TableColumns columns = tables.get(tableId);
+    if (columns == null) {
+      columns = new TableColumns(tableId);
+      tables.put(tableId, columns);
+      tableList.add(columns);
+    }
+    return columns;
+  }
+
+  public int getNrRows() {
+    return nrRows;
+  }
+
+  public boolean isEmpty() {
+    return nrRows == 0;
+  }
+
+  public long getBaseTimestamp() {
+    return baseTimestamp;
+  }
+
+  /**
+   * @return tableId, min timestamp, max timestamp triplets for all the tables with data in this block.
+   */
+  long[] getTableRanges() {
+    int nrTables = 0;
+    for (TableColumns tc : tableList) {
+      if (tc.nrRows > 0) {
+        nrTables++;
+      }
+    }
+    long[] result = new long[nrTables * 3];
+    int i = 0;
+    for (TableColumns tc : tableList) {
+      if (tc.nrRows > 0) {
+        result[i++] = tc.tableId;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int j = 0; j < tc.nrRows; j++) {
+          long ts = tc.timestamps[j];
+          if (ts < min) {
+            min = ts;
+          }
+          if (ts > max) {
+            max = ts;
+          }
+        }
+        result[i++] = min;
+        result[i++] = max;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Encode the content of this block. The result is available via getEncoded/getEncodedSize,
+   * until the next encode call.
+   */
+  public void encode() {
+    size = 0;
+    int nrTables = 0;
+    for (TableColumns tc : tableList) {
+      if (tc.nrRows > 0) {
+        nrTables++;
+      }
+    }
+    writeLong(nrTables);
+    for (TableColumns tc : tableList) {
+      if (tc.nrRows > 0) {
+        encode(tc);
+      }
+    }
+  }
+
+  private void encode(final TableColumns tc) {
+    int rows = tc.nrRows;
+    int cols = tc.nrColumns;
+    writeLong(tc.tableId);
+    writeLong(rows);
+    writeLong(cols);
+    long[] ts = tc.timestamps;
+    writeLong(ts[0] - baseTimestamp);
+    if (rows > 1) {
+      long prevDelta = ts[1] - ts[0];
+      writeLong(prevDelta);
+      for (int i = 2; i < rows; i++) {
+        long delta = ts[i] - ts[i - 1];
+        writeLong(delta - prevDelta);
+        prevDelta = delta;
+      }
+    }
+    long[] values = tc.values;
+    for (int c = 0; c < cols; c++) {
+      int deltaSize = 0;
+      int xorSize = 0;
+      long prev = 0;
+      for (int i = c, l = rows * cols; i < l; i += cols) {
+        long val = values[i];
+        deltaSize += varLongSize(val - prev);
+        xorSize += xorSize(val ^ prev);
+        prev = val;
+      }
+      prev = 0;
+      if (deltaSize <= xorSize) {
+        ensureCapacity(1 + deltaSize);
+        buffer[size++] = DELTA_ENC;
+        for (int i = c, l = rows * cols; i < l; i += cols) {
+          long val = values[i];
+          size += BinaryData.encodeLong(val - prev, buffer, size);
+          prev = val;
+        }
+      } else {
+        ensureCapacity(1 + xorSize);
+        buffer[size++] = XOR_ENC;
+        for (int i = c, l = rows * cols; i < l; i += cols) {
+          long val = values[i];
+          writeXor(val ^ prev);
+          prev = val;
+        }
+      }
+    }
+  }
+
+  private void writeLong(final long value) {
+    ensureCapacity(10);
+    size += BinaryData.encodeLong(value, buffer, size);
+  }
+
+  /**
+   * Byte aligned variant of the Gorilla XOR encoding: a header byte containing the number of leading (high nibble)
+   * and trailing (low nibble) zero bytes, followed by the remaining bytes. A zero XOR is encoded as a single byte.
+   */
+  private void writeXor(final long xor) {
+    if (xor == 0L) {
+      buffer[size++] = XOR_ZERO;
+      return;
+    }
+    int lz = Long.numberOfLeadingZeros(xor) >>> 3;
+    int tz = Long.numberOfTrailingZeros(xor) >>> 3;
+    buffer[size++] = (byte) ((lz << 4) | tz);
+    for (int shift = (7 - lz) << 3, end = tz << 3; shift >= end; shift -= 8) {
+      buffer[size++] = (byte) (xor >>> shift);
+    }
+  }
+
+  private static int xorSize(final long xor) {
+    if (xor == 0L) {
+      return 1;
+    }
+    return 9 - (Long.numberOfLeadingZeros(xor) >>> 3) - (Long.numberOfTrailingZeros(xor) >>> 3);
+  }
+
+  private static int varLongSize(final long value) {
+    long n = (value << 1) ^ (value >> 63);
+    int bits = 64 - Long.numberOfLeadingZeros(n);
+    return bits == 0 ? 1 : (bits + 6) / 7;
+  }
+
+  private void ensureCapacity(final int extra) {
+    int needed = size + extra;
+    if (needed > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length << 1));
+    }
+  }
+
+  /**
+   * @return the buffer containing the encoded block, valid bytes are from 0 to getEncodedSize().
+   */
+  byte[] getEncoded() {
+    return buffer;
+  }
+
+  int getEncodedSize() {
+    return size;
+  }
+
+  /**
+   * Clear the rows in this block, the allocated buffers are retained for reuse.
+   */
+  public void clear() {
+    for (TableColumns tc : tableList) {
+      tc.nrRows = 0;
+      tc.nrColumns = 0;
+    }
+    nrRows = 0;
+    baseTimestamp = Long.MAX_VALUE;
+  }
+
+  /**
+   * Decode a columnar block into a row oriented data block.
+   * @param baseTimestamp the block base timestamp.
+   * @param data the encoded data.
+   * @return the row oriented data block.
+   */
+  public static DataBlock decode(final long baseTimestamp, final ByteBuffer data) {
+    ByteBuffer buff = data.slice();
+    try {
+      int nrTables = (int) readLong(buff);
+      List<DataRow> rows = new ArrayList<>();
+      long[] timestamps = new long[0];
+      long[] values = new long[0];
+      for (int t = 0; t < nrTables; t++) {
+        long tableId = readLong(buff);
+        int nrRows = (int) readLong(buff);
+        int nrColumns = (int) readLong(buff);
+        if (timestamps.length < nrRows) {
+          timestamps = new long[nrRows];
+        }
+        readTimestamps(buff, baseTimestamp, timestamps, 0, nrRows);
+        int nrValues = nrRows * nrColumns;
+        if (values.length < nrValues) {
+          values = new long[nrValues];
+        }
+        for (int c = 0; c < nrColumns; c++) {
+          readColumn(buff, values, 0, c, nrColumns, nrRows);
+        }
+        for (int r = 0; r < nrRows; r++) {
+          List<Long> rowData = new ArrayList<>(nrColumns);
+          for (int c = 0, i = r * nrColumns; c < nrColumns; c++, i++) {
+            rowData.add(values[i]);
+          }
+          rows.add(new DataRow((int) (timestamps[r] - baseTimestamp), tableId, rowData));
+        }
+      }
+      return new DataBlock(baseTimestamp, rows);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+      throw new IllegalArgumentException("Invalid columnar block " + data, ex);
+    }
+  }
+
+  /**
+   * read the timestamps of a table into timestamps, starting at offset.
+   */
+  static void readTimestamps(final ByteBuffer buff, final long baseTimestamp,
+          final long[] timestamps, final int offset, final int nrRows) {
+    long ts = baseTimestamp + readLong(buff);
+    timestamps[offset] = ts;
+    if (nrRows > 1) {
+      long delta = readLong(buff);
+      ts += delta;
+      timestamps[offset + 1] = ts;
+      for (int i = offset + 2, l = offset + nrRows; i < l; i++) {
+        delta += readLong(buff);
+        ts += delta;
+        timestamps[i] = ts;
+      }
+    }
+  }
+
+  /**
+   * read a column into a row-major value array, where the table values start at offset.
+   */
+  static void readColumn(final ByteBuffer buff, final long[] values, final int offset, final int column,
+          final int nrColumns, final int nrRows) {
+    byte encoding = buff.get();
+    long prev = 0;
+    int l = offset + nrRows * nrColumns;
+    switch (encoding) {
+      case DELTA_ENC:
+        for (int i = offset + column; i < l; i += nrColumns) {
+          prev += readLong(buff);
+          values[i] = prev;
+        }
+        break;
+      case XOR_ENC:
+        for (int i = offset + column; i < l; i += nrColumns) {
+          prev ^= readXor(buff);
+          values[i] = prev;
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid column encoding " + encoding);
+    }
+  }
+
+  private static long readXor(final ByteBuffer buff) {
+    int header = buff.get() & 0xFF;
+    if (header == (XOR_ZERO & 0xFF)) {
+      return 0L;
+    }
+    int lz = header >>> 4;
+    int tz = header & 0x0F;
+    long result = 0;
+    for (int i = 8 - lz - tz; i > 0; i--) {
+      result = (result << 8) | (buff.get() & 0xFFL);
+    }
+    return result << (tz << 3);
+  }
+
+  /**
+   * Read a zig-zag varint encoded long.
+   */
+  static long readLong(final ByteBuffer buff) {
+    long n = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = buff.get() & 0xFF;
+      n |= (b & 0x7FL) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0 && shift < 64);
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  @Override
+  public String toString() {
+    return "ColumnarDataBlock{" + "nrTables=" + tableList.size() + ", nrRows=" + nrRows
+            + ", baseTimestamp=" + baseTimestamp + '}';
+  }
+
+  private static final class TableColumns {
+
+    private final long tableId;
+
+    /** the length of the longest row. */
+    private int nrColumns;
+
+    private long[] timestamps;
+
+    /** row major values. */
+    private long[] values;
+
+    private int nrRows;
+
+    TableColumns(final long tableId) {
+      this.tableId = tableId;
+      this.nrColumns = 0;
+      this.timestamps = new long[8];
+      this.values = new long[0];
+      this.nrRows = 0;
+    }
+
+    /**
+     * widen the rows to length columns, padding the existing rows with zeros.
+     */
+    private void widen(final int length) {
+      int capacity = timestamps.length * length;
+      if (nrRows == 0) {
+        if (values.length < capacity) {
+          values = new long[capacity];
+        }
+      } else {
+        long[] newValues = new long[Math.max(capacity, values.length)];
+        for (int r = 0; r < nrRows; r++) {
+          System.arraycopy(values, r * nrColumns, newValues, r * length, nrColumns);
+        }
+        values = newValues;
+      }
+      nrColumns = length;
+    }
+
+    void add(final long timestamp, final long[] data, final int offset, final int length) {
+      if (length > nrColumns) {
+        widen(length);
+      }
+      if (nrRows >= timestamps.length) {
+        int newSize = timestamps.length << 1;
+        timestamps = Arrays.copyOf(timestamps, newSize);
+        values = Arrays.copyOf(values, newSize * nrColumns);
+      }
+      timestamps[nrRows] = timestamp;
+      int start = nrRows * nrColumns;
+      System.arraycopy(data, offset, values, start, length);
+      Arrays.fill(values, start + length, start + nrColumns, 0L);
+      nrRows++;
+    }
+
+  }
+
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.ByteBufferInputStream;
+import org.spf4j.base.Handler;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.Header;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Memory mapped TSDB2 file reader.
+ *
+ * Data rows are accessed via a flyweight cursor: {@link #next()} advances to the next data row, and
+ * {@link #getTimestamp()}, {@link #getTableId()}, {@link #getNrColumns()}, {@link #getLong(int)} return the
+ * current row content. Data blocks (both row and columnar encoded) are decoded straight from the mapped file into
+ * reusable primitive arrays, so no objects are allocated per row. Table definitions are decoded when encountered,
+ * and are available via {@link #getTableDef(long)}.
+ *
+ * Blocks are decoded in place only when their writer schema from the file header is identical to the schema this
+ * reader was built against, otherwise they are read with a schema resolving avro decoder.
+ *
+ * Files larger than the mapping window (spf4j.tsdb2.maxMapWindowBytes, 1GB by default) are mapped in windows.
+ * Files that are being written to can be tailed with {@link #reReadSize()} or {@link #watch}.
+ *
+ * Instances are not thread safe. {@link #close()} closes the file channel, but the JDK provides no supported way
+ * to unmap a buffer, so the last mapped window is released only when it is garbage collected.
+ *
+ * @author zoly
+ */
+public final class MappedTSDBReader implements Closeable {
+
+  private static final long MAX_WINDOW_SIZE = Long.getLong("spf4j.tsdb2.maxMapWindowBytes", 1L << 30);
+
+  private static final byte TABLE_DEF = 0;
+
+  private static final byte DATA_BLOCK = 1;
+
+  private static final byte COLUMNAR_BLOCK = 2;
+
+  /** data block with a writer schema that differs from DataBlock. */
+  private static final byte RESOLVED_DATA_BLOCK = 3;
+
+  /** columnar data block with a writer schema that differs from ColumnarDataBlock. */
+  private static final byte RESOLVED_COLUMNAR_BLOCK = 4;
+
+  private static final byte UNKNOWN = -1;
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final Header header;
+
+  /** record type for every branch of the file content union. */
+  private final byte[] recordTypes;
+
+  private final SpecificDatumReader<TableDef> tableDefReader;
+
+  @Nullable
+  private final SpecificDatumReader<DataBlock> dataBlockReader;
+
+  @Nullable
+  private final GenericDatumReader<GenericRecord> columnarBlockReader;
+
+  private final TLongObjectMap<TableDef> tableDefs;
+
+  private final ByteBuffer sizeBuffer;
+
+  private BinaryDecoder decoder;
+
+  private long size;
+
+  private MappedByteBuffer window;
+
+  private long windowStart;
+
+  private long windowEnd;
+
+  /** the file position of the next record. */
+  private long position;
+
+  private volatile boolean watch;
+
+  private int nrRows;
+
+  private int row;
+
+  private long[] timestamps;
+
+  private long[] tableIds;
+
+  /** offset of the row values in values, the row values are from valueOffsets[row] to valueOffsets[row + 1]. */
+  private int[] valueOffsets;
+
+  private long[] values;
+
+  public MappedTSDBReader(final File file) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.sizeBuffer = ByteBuffer.allocate(8);
+    this.tableDefs = new TLongObjectHashMap<>();
+    this.timestamps = new long[64];
+    this.tableIds = new long[64];
+    this.valueOffsets = new int[65];
+    this.values = new long[256];
+    try {
+      this.size = readSize();
+      map(0);
+      byte[] magic = new byte[TSDBWriter.MAGIC.length];
+      window.get(magic);
+      if (!Arrays.equals(TSDBWriter.MAGIC, magic)) {
+        throw new IOException("wrong file type, magic is " + Arrays.toString(magic));
+      }
+      window.position(magic.length + 8);
+      decoder = DecoderFactory.get().directBinaryDecoder(
+              new ByteBufferInputStream(Collections.singletonList(window)), null);
+      header = new SpecificDatumReader<>(Header.class).read(null, decoder);
+      position = window.position();
+      List<Schema> types = new Schema.Parser().parse(header.getContentSchema()).getTypes();
+      recordTypes = new byte[types.size()];
+      Schema tableDefSchema = TableDef.getClassSchema();
+      SpecificDatumReader<DataBlock> dbReader = null;
+      GenericDatumReader<GenericRecord> cbReader = null;
+      for (int i = 0; i < recordTypes.length; i++) {
+        Schema type = types.get(i);
+        String name = type.getFullName();
+        if (name.equals(TableDef.getClassSchema().getFullName())) {
+          recordTypes[i] = TABLE_DEF;
+          tableDefSchema = type;
+        } else if (name.equals(DataBlock.getClassSchema().getFullName())) {
+          if (type.equals(DataBlock.getClassSchema())) {
+            recordTypes[i] = DATA_BLOCK;
+          } else {
+            recordTypes[i] = RESOLVED_DATA_BLOCK;
+            dbReader = new SpecificDatumReader<>(type, DataBlock.getClassSchema());
+          }
+        } else if (name.equals(ColumnarDataBlock.SCHEMA.getFullName())) {
+          if (type.equals(ColumnarDataBlock.SCHEMA)) {
+            recordTypes[i] = COLUMNAR_BLOCK;
+          } else {
+            recordTypes[i] = RESOLVED_COLUMNAR_BLOCK;
+            cbReader = new GenericDatumReader<>(type, ColumnarDataBlock.SCHEMA);
+          }
+        } else {
+          recordTypes[i] = UNKNOWN;
+        }
+      }
+      tableDefReader = new SpecificDatumReader<>(tableDefSchema, TableDef.getClassSchema());
+      dataBlockReader = dbReader;
+      columnarBlockReader = cbReader;
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  private long readSize() throws IOException {
+    sizeBuffer.clear();
+    while (sizeBuffer.hasRemaining()) {
+      if (channel.read(sizeBuffer, TSDBWriter.MAGIC.length + sizeBuffer.position()) < 0) {
+        throw new EOFException("Invalid TSDB2 file, no size in header " + file);
+      }
+    }
+    return sizeBuffer.getLong(0);
+  }
+
+  private void map(final long from) throws IOException {
+    windowStart = from;
+    windowEnd = Math.min(size, from + MAX_WINDOW_SIZE);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, from, windowEnd - from);
+  }
+
+  /**
+   * Advance to the next data row.
+   * @return true if there is a next row, false if the end of the file is reached.
+   * When tailing a file, more rows might become available after {@link #reReadSize()}.
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    if (++row < nrRows) {
+      return true;
+    }
+    while (nextRecord()) {
+      if (nrRows > 0) {
+        row = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean nextRecord() throws IOException {
+    nrRows = 0;
+    row = 0;
+    if (position >= size) {
+      return false;
+    }
+    if (position < windowStart || position >= windowEnd) {
+      map(position);
+    }
+    while (true) {
+      window.position((int) (position - windowStart));
+      try {
+        readRecord(window);
+        position = windowStart + window.position();
+        return true;
+      } catch (BufferUnderflowException | EOFException ex) {
+        if (windowStart == position) {
+          throw new IOException("Truncated record at " + position + ", this=" + this, ex);
+        }
+        // record crosses the window end.
+        map(position);
+      } catch (IllegalArgumentException ex) {
+        throw new IOException("Corrupted record at " + position + ", this=" + this, ex);
+      }
+    }
+  }
+
+  private void readRecord(final ByteBuffer buf) throws IOException {
+    int branch = (int) ColumnarDataBlock.readLong(buf);
+    if (branch < 0 || branch >= recordTypes.length) {
+      throw new IOException("Invalid record type " + branch + " at " + position + ", this=" + this);
+    }
+    switch (recordTypes[branch]) {
+      case TABLE_DEF:
+        TableDef td = tableDefReader.read(null, decoder(buf));
+        if (td.getId() != position) {
+          throw new IOException("Table Id should be equal with file position " + position + ", " + td.getId());
+        }
+        tableDefs.put(position, td);
+        break;
+      case DATA_BLOCK:
+        readRowBlock(buf);
+        break;
+      case COLUMNAR_BLOCK:
+        readColumnarBlock(buf);
+        break;
+      case RESOLVED_DATA_BLOCK:
+        readRowBlock(dataBlockReader.read(null, decoder(buf)));
+        break;
+      case RESOLVED_COLUMNAR_BLOCK:
+        GenericRecord cb = columnarBlockReader.read(null, decoder(buf));
+        readColumns((Long) cb.get(0), (ByteBuffer) cb.get(1));
+        break;
+      default:
+        throw new IOException("Unsupported record type " + branch + " at " + position + ", this=" + this);
+    }
+  }
+
+  private BinaryDecoder decoder(final ByteBuffer buf) {
+    decoder = DecoderFactory.get().directBinaryDecoder(
+            new ByteBufferInputStream(Collections.singletonList(buf)), decoder);
+    return decoder;
+  }
+
+  /**
+   * Decodes a DataBlock in place, valid only when the writer schema is DataBlock.
+   */
+  private void readRowBlock(final ByteBuffer buf) {
+    long baseTs = ColumnarDataBlock.readLong(buf);
+    int r = 0;
+    int vi = 0;
+    long count;
+    while ((count = ColumnarDataBlock.readLong(buf)) != 0) {
+      if (count < 0) {
+        count = -count;
+        ColumnarDataBlock.readLong(buf); // block size in bytes.
+      }
+      for (long i = 0; i < count; i++) {
+        ensureRows(r + 1);
+        timestamps[r] = baseTs + ColumnarDataBlock.readLong(buf);
+        tableIds[r] = ColumnarDataBlock.readLong(buf);
+        valueOffsets[r] = vi;
+        long vcount;
+        while ((vcount = ColumnarDataBlock.readLong(buf)) != 0) {
+          if (vcount < 0) {
+            vcount = -vcount;
+            ColumnarDataBlock.readLong(buf);
+          }
+          ensureValues(vi + (int) vcount);
+          for (long j = 0; j < vcount; j++) {
+            values[vi++] = ColumnarDataBlock.readLong(buf);
+          }
+        }
+        r++;
+      }
+    }
+    valueOffsets[r] = vi;
+    nrRows = r;
+  }
+
+  private void readRowBlock(final DataBlock block) {
+    long baseTs = block.getBaseTimestamp();
+    List<DataRow> rows = block.getValues();
+    ensureRows(rows.size());
+    int r = 0;
+    int vi = 0;
+    for (DataRow dr : rows) {
+      timestamps[r] = baseTs + dr.getRelTimeStamp();
+      tableIds[r] = dr.getTableDefId();
+      valueOffsets[r++] = vi;
+      List<Long> data = dr.getData();
+      ensureValues(vi + data.size());
+      for (Long value : data) {
+        values[vi++] = value;
+      }
+    }
+    valueOffsets[r] = vi;
+    nrRows = r;
+  }
+
+  private void readColumnarBlock(final ByteBuffer buf) {
+    long baseTs = ColumnarDataBlock.readLong(buf);
+    int len = (int) ColumnarDataBlock.readLong(buf);
+    if (buf.remaining() < len) {
+      throw new BufferUnderflowException();
+    }
+    int end = buf.position() + len;
+    readColumns(baseTs, buf);
+    buf.position(end);
+  }
+
+  private void readColumns(final long baseTs, final ByteBuffer buf) {
+    int nrTables = (int) ColumnarDataBlock.readLong(buf);
+    int r = 0;
+    int vi = 0;
+    for (int t = 0; t < nrTables; t++) {
+      long tableId = ColumnarDataBlock.readLong(buf);
+      int rows = (int) ColumnarDataBlock.readLong(buf);
+      int cols = (int) ColumnarDataBlock.readLong(buf);
+      ensureRows(r + rows);
+      ensureValues(vi + rows * cols);
+      ColumnarDataBlock.readTimestamps(buf, baseTs, timestamps, r, rows);
+      for (int c = 0; c < cols; c++) {
+        ColumnarDataBlock.readColumn(buf, values, vi, c, cols, rows);
+      }
+      for (int i = 0; i < rows; i++) {
+        tableIds[r] = tableId;
+        valueOffsets[r++] = vi;
+        vi += cols;
+      }
+    }
+    valueOffsets[r] = vi;
+    nrRows = r;
+  }
+
+  private void ensureRows(final int rows) {
+    if (rows > timestamps.length) {
+      int newSize = Math.max(rows, timestamps.length << 1);
+      timestamps = Arrays.copyOf(timestamps, newSize);
+      tableIds = Arrays.copyOf(tableIds, newSize);
+      valueOffsets = Arrays.copyOf(valueOffsets, newSize + 1);
+    }
+  }
+
+  private void ensureValues(final int nrValues) {
+    if (nrValues > values.length) {
+      values = Arrays.copyOf(values, Math.max(nrValues, values.length << 1));
+    }
+  }
+
+  /**
+   * @return the current row timestamp (millis since epoch).
+   */
+  public long getTimestamp() {
+    return timestamps[row];
+  }
+
+  /**
+   * @return the current row table id.
+   */
+  public long getTableId() {
+    return tableIds[row];
+  }
+
+  /**
+   * @return the number of columns of the current row.
+   */
+  public int getNrColumns() {
+    return valueOffsets[row + 1] - valueOffsets[row];
+  }
+
+  /**
+   * @param column the column index.
+   * @return the value of the column in the current row.
+   */
+  public long getLong(final int column) {
+    int offset = valueOffsets[row];
+    if (column < 0 || column >= valueOffsets[row + 1] - offset) {
+      throw new IndexOutOfBoundsException("Invalid column " + column + " for " + this);
+    }
+    return values[offset + column];
+  }
+
+  /**
+   * @param tableId the table id.
+   * @return the table definition, null if the table definition was not read yet.
+   */
+  @Nullable
+  public TableDef getTableDef(final long tableId) {
+    return tableDefs.get(tableId);
+  }
+
+  /**
+   * @return the file position of the next record.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Position the reader at a record boundary, like the positions in the {@link TSDBIndex}.
+   * @param pos the file position of the next record to read.
+   */
+  public void seek(final long pos) {
+    position = pos;
+    nrRows = 0;
+    row = 0;
+  }
+
+  /**
+   * method useful when implementing tailing.
+   *
+   * @return true if size changed.
+   * @throws IOException
+   */
+  public boolean reReadSize() throws IOException {
+    long newSize = readSize();
+    if (newSize != size) {
+      size = newSize;
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  @SuppressFBWarnings("EI_EXPOSE_REP")
+  public Header getHeader() {
+    return header;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public void stopWatching() {
+    watch = false;
+  }
+
+  /**
+   * Tail the file, invoking the handler for every data row. The handler receives this reader as a flyweight
+   * cursor positioned at the row, it should not retain it.
+   */
+  //CHECKSTYLE:OFF
+  public <E extends Exception> void watch(final Handler<MappedTSDBReader, E> handler,
+          final TSDBReader.EventSensitivity es, final long deadlineNanos)
+          throws IOException, InterruptedException, E {
+    //CHECKSTYLE:ON
+    synchronized (this) {
+      if (watch) {
+        throw new IllegalStateException("File is already watched " + file);
+      }
+      watch = true;
+    }
+    try {
+      TSDBReader.watchFile(file, es, deadlineNanos, () -> watch, (initial, deadline) -> {
+        if (initial || reReadSize()) {
+          while (next()) {
+            handler.handle(this, deadline);
+          }
+        }
+      });
+    } finally {
+      watch = false;
+    }
+  }
+
+  //CHECKSTYLE:OFF
+  public <E extends Exception> Future<Void> bgWatch(final Handler<MappedTSDBReader, E> handler,
+          final TSDBReader.EventSensitivity es, final long deadlineNanos) {
+    //CHECKSTYLE:ON
+    return DefaultExecutor.INSTANCE.submit(() -> {
+      watch(handler, es, deadlineNanos);
+      return null;
+    });
+  }
+
+  /**
+   * Closes the file channel. The mapped window is dropped, and will be unmapped when garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return "MappedTSDBReader{" + "file=" + file + ", size=" + size + ", position=" + position
+            + ", windowStart=" + windowStart + ", windowEnd=" + windowEnd + '}';
+  }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongPredicate;
+import javax.annotation.Nullable;
+import org.spf4j.base.Either;
+import org.spf4j.base.Strings;
+import org.spf4j.io.SidecarIndex;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Sparse index of a TSDB2 file, stored in a side-car file (tsdb file name + ".tidx").
+ * The index contains the file position of every table definition, and for every data block its file position
+ * and the time range of every table that has data in the block. Queries use it to seek directly to the records
+ * they need instead of scanning the entire file.
+ *
+ * The index is maintained by TSDBWriter, see {@link SidecarIndex} for how it is validated and recovered.
+ *
+ * Index file format: MAGIC followed by entries:
+ * <pre>
+ * TABLE_DEF:  byte 0, long position, long endPosition
+ * DATA_BLOCK: byte 1, long position, long endPosition, int nrTables, nrTables x [long tableId, long minTs, long maxTs]
+ * </pre>
+ *
+ * @author zoly
+ */
+public final class TSDBIndex {
+
+  public static final String INDEX_FILE_SUFFIX = ".tidx";
+
+  private static final byte[] MAGIC = Strings.toUtf8("TSDB2IDX");
+
+  private static final byte TABLE_DEF = 0;
+
+  private static final byte DATA_BLOCK = 1;
+
+  private static final SidecarIndex.Format<SidecarIndex.Entry> FORMAT
+          = new SidecarIndex.Format<SidecarIndex.Entry>(MAGIC) {
+    @Override
+    @Nullable
+    protected SidecarIndex.Entry readEntry(final DataInputStream dis) throws IOException {
+      byte type = dis.readByte();
+      long position = dis.readLong();
+      long end = dis.readLong();
+      switch (type) {
+        case TABLE_DEF:
+          return new TableDefEntry(position, end);
+        case DATA_BLOCK:
+          int nrTables = dis.readInt();
+          if (nrTables < 0) {
+            return null;
+          }
+          long[] ranges = new long[nrTables * 3];
+          for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = dis.readLong();
+          }
+          return new BlockEntry(position, end, ranges);
+        default:
+          return null;
+      }
+    }
+  };
+
+  private final SidecarIndex<SidecarIndex.Entry> index;
+
+  private final long[] tableDefPositions;
+
+  private final List<BlockEntry> blocks;
+
+  private TSDBIndex(final SidecarIndex<SidecarIndex.Entry> index) {
+    this.index = index;
+    TLongList tdPositions = new TLongArrayList();
+    this.blocks = new ArrayList<>();
+    for (SidecarIndex.Entry entry : index.getEntries()) {
+      if (entry instanceof BlockEntry) {
+        blocks.add((BlockEntry) entry);
+      } else {
+        tdPositions.add(entry.getPosition());
+      }
+    }
+    this.tableDefPositions = tdPositions.toArray();
+  }
+
+  public static File getIndexFile(final File tsdbFile) {
+    return new File(tsdbFile.getPath() + INDEX_FILE_SUFFIX);
+  }
+
+  /**
+   * Load the index of a TSDB2 file.
+   * @param tsdbFile the TSDB2 file.
+   * @param endPosition the end of the committed data in the TSDB2 file. Index entries beyond it are ignored.
+   * @return the index, or null if the file has no valid index.
+   * @throws IOException
+   */
+  @Nullable
+  public static TSDBIndex load(final File tsdbFile, final long endPosition) throws IOException {
+    SidecarIndex<SidecarIndex.Entry> index = SidecarIndex.load(getIndexFile(tsdbFile).toPath(), FORMAT, endPosition);
+    return index == null ? null : new TSDBIndex(index);
+  }
+
+  /**
+   * @return the file positions of all indexed table definitions.
+   */
+  public long[] getTableDefPositions() {
+    return tableDefPositions.clone();
+  }
+
+  /**
+   * @return all indexed data blocks, in file order.
+   */
+  public List<BlockEntry> getBlocks() {
+    return Collections.unmodifiableList(blocks);
+  }
+
+  /**
+   * @return the file position where the indexed records end, 0 if nothing is indexed.
+   */
+  public long getIndexedEnd() {
+    return index.getIndexedEnd();
+  }
+
+  /**
+   * Creates a new, empty index for a new or truncated TSDB2 file.
+   */
+  @CreatesObligation
+  static Writer createWriter(final File tsdbFile) throws IOException {
+    return new Writer(SidecarIndex.create(getIndexFile(tsdbFile).toPath(), FORMAT));
+  }
+
+  /**
+   * Opens the index of a TSDB2 file for append. Index entries beyond endPosition are discarded, and records
+   * that are not in the index are indexed.
+   */
+  @CreatesObligation
+  static Writer openWriter(final File tsdbFile, final long endPosition) throws IOException {
+    TSDBIndex index = load(tsdbFile, endPosition);
+    if (index == null) {
+      Writer writer = createWriter(tsdbFile);
+      writer.indexRecords(tsdbFile, 0L);
+      return writer;
+    }
+    Writer writer = new Writer(index.index.openForAppend(getIndexFile(tsdbFile).toPath()));
+    if (index.getIndexedEnd() < endPosition) {
+      writer.indexRecords(tsdbFile, index.getIndexedEnd());
+    }
+    return writer;
+  }
+
+  @Override
+  public String toString() {
+    return "TSDBIndex{" + "nrTableDefs=" + tableDefPositions.length + ", nrBlocks=" + blocks.size()
+            + ", indexedEnd=" + index.getIndexedEnd() + '}';
+  }
+
+  /**
+   * Index entry of a data block.
+   */
+  public static final class BlockEntry implements SidecarIndex.Entry {
+
+    private final long position;
+
+    private final long endPosition;
+
+    /** tableId, min timestamp, max timestamp triplets. */
+    private final long[] tableRanges;
+
+    BlockEntry(final long position, final long endPosition, final long[] tableRanges) {
+      this.position = position;
+      this.endPosition = endPosition;
+      this.tableRanges = tableRanges;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public long getEndPosition() {
+      return endPosition;
+    }
+
+    public int getNrTables() {
+      return tableRanges.length / 3;
+    }
+
+    public long getTableId(final int idx) {
+      return tableRanges[idx * 3];
+    }
+
+    public long getTableStartTime(final int idx) {
+      return tableRanges[idx * 3 + 1];
+    }
+
+    public long getTableEndTime(final int idx) {
+      return tableRanges[idx * 3 + 2];
+    }
+
+    /**
+     * @return true if the block contains data for a table accepted by tableIdFilter, in the provided time range.
+     */
+    public boolean matches(final LongPredicate tableIdFilter, final long startTimeMillis, final long endTimeMillis) {
+      for (int i = 0; i < tableRanges.length; i += 3) {
+        if (tableRanges[i + 1] <= endTimeMillis && tableRanges[i + 2] >= startTimeMillis
+                && tableIdFilter.test(tableRanges[i])) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "BlockEntry{" + "position=" + position + ", endPosition=" + endPosition
+              + ", tableRanges=" + Arrays.toString(tableRanges) + '}';
+    }
+
+  }
+
+  private static final class TableDefEntry implements SidecarIndex.Entry {
+
+    private final long position;
+
+    private final long endPosition;
+
+    TableDefEntry(final long position, final long endPosition) {
+      this.position = position;
+      this.endPosition = endPosition;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public long getEndPosition() {
+      return endPosition;
+    }
+
+  }
+
+  /**
+   * Appends entries to a index file.
+   */
+  static final class Writer implements Closeable, Flushable {
+
+    private final DataOutputStream os;
+
+    private final TLongLongMap minTs;
+
+    private final TLongLongMap maxTs;
+
+    Writer(final DataOutputStream os) {
+      this.os = os;
+      this.minTs = new TLongLongHashMap();
+      this.maxTs = new TLongLongHashMap();
+    }
+
+    void writeTableDef(final long position, final long endPosition) throws IOException {
+      os.writeByte(TABLE_DEF);
+      os.writeLong(position);
+      os.writeLong(endPosition);
+    }
+
+    /**
+     * @param tableRanges tableId, min timestamp, max timestamp triplets.
+     */
+    void writeDataBlock(final long position, final long endPosition, final long[] tableRanges) throws IOException {
+      os.writeByte(DATA_BLOCK);
+      os.writeLong(position);
+      os.writeLong(endPosition);
+      os.writeInt(tableRanges.length / 3);
+      for (long val : tableRanges) {
+        os.writeLong(val);
+      }
+    }
+
+    void writeDataBlock(final long position, final long endPosition, final DataBlock block) throws IOException {
+      long baseTs = block.getBaseTimestamp();
+      for (DataRow row : block.getValues()) {
+        long tableId = row.getTableDefId();
+        long ts = baseTs + row.getRelTimeStamp();
+        if (minTs.containsKey(tableId)) {
+          if (ts < minTs.get(tableId)) {
+            minTs.put(tableId, ts);
+          }
+          if (ts > maxTs.get(tableId)) {
+            maxTs.put(tableId, ts);
+          }
+        } else {
+          minTs.put(tableId, ts);
+          maxTs.put(tableId, ts);
+        }
+      }
+      os.writeByte(DATA_BLOCK);
+      os.writeLong(position);
+      os.writeLong(endPosition);
+      os.writeInt(minTs.size());
+      for (long tableId : minTs.keys()) {
+        os.writeLong(tableId);
+        os.writeLong(minTs.get(tableId));
+        os.writeLong(maxTs.get(tableId));
+      }
+      minTs.clear();
+      maxTs.clear();
+    }
+
+    /**
+     * Index all records of a TSDB2 file starting from a position.
+     */
+    void indexRecords(final File tsdbFile, final long from) throws IOException {
+      try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+        if (from > reader.getPosition()) {
+          reader.seek(from);
+        }
+        long position = reader.getPosition();
+        Either<TableDef, DataBlock> read;
+        while ((read = reader.read()) != null) {
+          long endPosition = reader.getPosition();
+          if (read.isLeft()) {
+            writeTableDef(position, endPosition);
+          } else {
+            writeDataBlock(position, endPosition, read.getRight());
+          }
+          position = endPosition;
+        }
+      }
+      os.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      os.close();
+    }
+
+  }
+
+}
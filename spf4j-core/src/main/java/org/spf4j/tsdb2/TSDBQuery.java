@@ -37,6 +37,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.primitives.Longs;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.iterator.TLongIterator;
 import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongObjectMap;
@@ -59,6 +60,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.avro.Schema;
@@ -99,8 +101,9 @@ public final class TSDBQuery {
   public static ListMultimap<String, TableDef> getAllTables(final File tsdbFile) throws IOException {
     ListMultimap<String, TableDef> result = ArrayListMultimap.create();
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+      RecordScan scan = new RecordScan(reader, true, (b) -> false);
       Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
+      while ((read = scan.read()) != null) {
         if (read.isLeft()) {
           final TableDef tdef = read.getLeft();
           result.put(tdef.getName(), tdef);
@@ -115,8 +118,9 @@ public final class TSDBQuery {
           throws IOException {
     ListMultimap<String, TableDef> result = ArrayListMultimap.create();
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+      RecordScan scan = new RecordScan(reader, true, (b) -> false);
       Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
+      while ((read = scan.read()) != null) {
         if (read.isLeft()) {
           final TableDef tdef = read.getLeft();
           final String name = tdef.getName();
@@ -175,8 +179,9 @@ public final class TSDBQuery {
     ListMultimap<String, TableDefEx> result = ArrayListMultimap.create();
     TLongObjectMap<TableDefEx> id2Def = new TLongObjectHashMap<>();
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+      RecordScan scan = new RecordScan(reader, true, (b) -> false);
       Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
+      while ((read = scan.read()) != null) {
         if (read.isLeft()) {
           final TableDef left = read.getLeft();
           final TableDefEx tableDefEx = new TableDefEx(left, Long.MAX_VALUE, 0L);
@@ -200,6 +205,25 @@ public final class TSDBQuery {
           }
         }
       }
+      TSDBIndex index = scan.getIndex();
+      if (index != null) {
+        for (TSDBIndex.BlockEntry block : index.getBlocks()) {
+          for (int i = 0, l = block.getNrTables(); i < l; i++) {
+            TableDefEx tdex = id2Def.get(block.getTableId(i));
+            if (tdex == null) {
+              throw new IOException("Potentially corupted file data block with no tableDef " + block);
+            }
+            long startTs = block.getTableStartTime(i);
+            if (startTs < tdex.getStartTime()) {
+              tdex.setStartTime(startTs);
+            }
+            long endTs = block.getTableEndTime(i);
+            if (endTs > tdex.getEndTime()) {
+              tdex.setEndTime(endTs);
+            }
+          }
+        }
+      }
     }
     return result;
   }
@@ -208,8 +232,9 @@ public final class TSDBQuery {
   public static List<TableDef> getTableDef(final File tsdbFile, final String tableName) throws IOException {
     List<TableDef> result = new ArrayList<>();
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+      RecordScan scan = new RecordScan(reader, true, (b) -> false);
       Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
+      while ((read = scan.read()) != null) {
         if (read.isLeft()) {
           TableDef left = read.getLeft();
           if (tableName.equals(left.getName())) {
@@ -236,8 +261,10 @@ public final class TSDBQuery {
           final long startTimeMillis, final long endTimeMillis, final BiConsumer<Long, long[]> consumer)
           throws IOException {
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
+      RecordScan scan = new RecordScan(reader, false,
+              (b) -> b.matches((id) -> Longs.contains(tableIds, id), startTimeMillis, endTimeMillis));
       Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
+      while ((read = scan.read()) != null) {
         if (read.isRight()) {
           DataBlock data = read.getRight();
           long baseTs = data.getBaseTimestamp();
@@ -286,7 +313,8 @@ public final class TSDBQuery {
           final long endTimeMillis, final Collection<Long> ids, final Schema rSchema) throws IOException {
     TSDBReader reader = new TSDBReader(tsdbFile, 8192);
     try {
-      DataScan dataScan = new DataScan(reader);
+      DataScan dataScan = new DataScan(new RecordScan(reader, false,
+              (b) -> b.matches(ids::contains, startTimeMillis, endTimeMillis)));
       Iterable<Observation> filtered = Iterables.filter(dataScan,
               (x) -> {
                 long ts = x.getRelTimeStamp();
@@ -304,7 +332,7 @@ public final class TSDBQuery {
   public static AvroCloseableIterable<Observation> getTimeSeriesData(final File tsdbFile) throws IOException {
     TSDBReader reader = new TSDBReader(tsdbFile, 8192);
     try {
-      Iterable<Observation> dataScan = new DataScan(reader);
+      Iterable<Observation> dataScan = new DataScan(new RecordScan(reader, false, (b) -> true));
       return AvroCloseableIterable.from(dataScan, reader, Observation.getClassSchema());
     } catch (RuntimeException | IOException ex) {
       reader.close();
@@ -335,12 +363,78 @@ public final class TSDBQuery {
     };
   }
 
-  private static class DataScan implements Iterable<Observation> {
+  /**
+   * Reads the table definitions and data blocks of a TSDB2 file that a query needs.
+   * When the file has a {@link TSDBIndex}, the reader seeks directly to the indexed records that are needed,
+   * records that are not indexed yet are read sequentially and need to be filtered by the caller.
+   */
+  private static final class RecordScan {
 
     private final TSDBReader reader;
 
-    DataScan(final TSDBReader tsdb) throws IOException {
-      reader = tsdb;
+    @Nullable
+    private final TSDBIndex index;
+
+    private final TLongIterator positions;
+
+    private final long tailPosition;
+
+    private boolean tail;
+
+    RecordScan(final TSDBReader reader, final boolean tableDefs,
+            final Predicate<TSDBIndex.BlockEntry> blockFilter) throws IOException {
+      this.reader = reader;
+      this.index = TSDBIndex.load(reader.getFile(), reader.getSize());
+      TLongList pos = new TLongArrayList();
+      if (index == null) {
+        this.tailPosition = reader.getPosition();
+      } else {
+        if (tableDefs) {
+          pos.addAll(index.getTableDefPositions());
+        }
+        for (TSDBIndex.BlockEntry block : index.getBlocks()) {
+          if (blockFilter.test(block)) {
+            pos.add(block.getPosition());
+          }
+        }
+        pos.sort();
+        this.tailPosition = Math.max(reader.getPosition(), index.getIndexedEnd());
+      }
+      this.positions = pos.iterator();
+      this.tail = false;
+    }
+
+    @Nullable
+    TSDBIndex getIndex() {
+      return index;
+    }
+
+    @Nullable
+    Either<TableDef, DataBlock> read() throws IOException {
+      if (!tail) {
+        if (positions.hasNext()) {
+          long position = positions.next();
+          if (position != reader.getPosition()) {
+            reader.seek(position);
+          }
+          return reader.read();
+        }
+        tail = true;
+        if (tailPosition != reader.getPosition()) {
+          reader.seek(tailPosition);
+        }
+      }
+      return reader.read();
+    }
+
+  }
+
+  private static class DataScan implements Iterable<Observation> {
+
+    private final RecordScan reader;
+
+    DataScan(final RecordScan scan) {
+      reader = scan;
     }
 
     @Override
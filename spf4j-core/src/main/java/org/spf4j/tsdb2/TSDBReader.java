@@ -41,6 +41,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
@@ -49,13 +50,14 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import javax.annotation.Nullable;
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
@@ -78,7 +80,7 @@ public final class TSDBReader implements Closeable {
 
   private static final boolean CORUPTION_LENIENT = Boolean.getBoolean("spf4j.tsdb2.lenientRead");
 
-  private static final Schema R_SCHEMA = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$));
+  private static final Schema R_SCHEMA = TSDBWriter.COLUMNAR_FILE_RECORD_SCHEMA;
 
   private CountingInputStream bis;
   private final Header header;
@@ -144,6 +146,22 @@ public final class TSDBReader implements Closeable {
     }
   }
 
+  /**
+   * @return the file position of the next record to be read.
+   */
+  public synchronized long getPosition() {
+    return bis.getCount();
+  }
+
+  /**
+   * Position the reader at a record boundary, like the positions in the {@link TSDBIndex}.
+   * @param position the file position of the next record to read.
+   * @throws IOException
+   */
+  public synchronized void seek(final long position) throws IOException {
+    resetStream(position);
+  }
+
   @Nullable
   public synchronized Either<TableDef, DataBlock> read() throws IOException {
     final long position = bis.getCount();
@@ -167,8 +185,19 @@ public final class TSDBReader implements Closeable {
         throw new IOException("Table Id should be equal with file position " + position + ", " + tdId);
       }
       return Either.left(td);
-    } else {
+    } else if (result instanceof DataBlock) {
       return Either.right((DataBlock) result);
+    } else {
+      GenericRecord block = (GenericRecord) result;
+      try {
+        return Either.right(ColumnarDataBlock.decode((Long) block.get(0), (ByteBuffer) block.get(1)));
+      } catch (IllegalArgumentException ex) {
+        if (CORUPTION_LENIENT) {
+          return null;
+        } else {
+          throw new IOException("Error decoding columnar block at " + position + ", this= " + this, ex);
+        }
+      }
     }
   }
 
@@ -185,6 +214,10 @@ public final class TSDBReader implements Closeable {
     return size;
   }
 
+  public File getFile() {
+    return file;
+  }
+
   @SuppressFBWarnings("EI_EXPOSE_REP")
   public Header getHeader() {
     return header;
@@ -248,6 +281,37 @@ public final class TSDBReader implements Closeable {
       }
       watch = true;
     }
+    try {
+      watchFile(file, es, deadlineNanos, () -> watch, (initial, deadline) -> {
+        if (initial || reReadSize()) {
+          readAll(handler, deadline);
+        }
+      });
+    } finally {
+      watch = false;
+    }
+  }
+
+  /**
+   * Reads the new content of a file that is being tailed.
+   */
+  @FunctionalInterface
+  interface TailReader<E extends Exception> {
+
+    /**
+     * @param initial true when invoked at the beginning of the watch, false when the file might have changed.
+     * @param deadlineNanos the watch deadline.
+     */
+    void read(boolean initial, long deadlineNanos) throws IOException, E;
+  }
+
+  /**
+   * Watches a file for changes, invoking the tail reader when the watch starts and every time the file
+   * might have changed, until the deadline is reached or until the watching supplier returns false.
+   */
+  static <E extends Exception> void watchFile(final File file, final EventSensitivity es, final long deadlineNanos,
+          final BooleanSupplier watching, final TailReader<E> reader)
+          throws IOException, InterruptedException, E {
     SensitivityWatchEventModifier sensitivity;
     switch (es) {
       case LOW:
@@ -267,7 +331,7 @@ public final class TSDBReader implements Closeable {
       path.register(watchService, new WatchEvent.Kind[]{StandardWatchEventKinds.ENTRY_MODIFY,
         StandardWatchEventKinds.OVERFLOW
       }, sensitivity);
-      readAll(handler, deadlineNanos);
+      reader.read(true, deadlineNanos);
       do {
         long tNanos = deadlineNanos - TimeSource.nanoTime();
         if (tNanos <= 0) {
@@ -275,25 +339,21 @@ public final class TSDBReader implements Closeable {
         }
         WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
         if (key == null) {
-          if (reReadSize()) {
-            readAll(handler, deadlineNanos);
-          }
+          reader.read(false, deadlineNanos);
           continue;
         }
         if (!key.isValid()) {
           key.cancel();
           break;
         }
-        if (!key.pollEvents().isEmpty() && reReadSize()) {
-          readAll(handler, deadlineNanos);
+        if (!key.pollEvents().isEmpty()) {
+          reader.read(false, deadlineNanos);
         }
         if (!key.reset()) {
           key.cancel();
           break;
         }
-      } while (watch);
-    } finally {
-      watch = false;
+      } while (watching.getAsBoolean());
     }
   }
 
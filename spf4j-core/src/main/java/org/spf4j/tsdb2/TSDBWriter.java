@@ -43,6 +43,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.util.ArrayList;
@@ -68,6 +69,10 @@ import org.spf4j.tsdb2.avro.TableDef;
  * Second generation Time-Series database format. The linked list structure from first generation is dropped to reduce
  * write overhead.
  *
+ * The data block encoding is versioned via the content schema stored in the file header:
+ * files with {@link #FILE_RECORD_SCHEMA} store row oriented DataBlocks, files with
+ * {@link #COLUMNAR_FILE_RECORD_SCHEMA} store {@link ColumnarDataBlock}s. Columnar files are opt-in,
+ * since they cannot be read by readers that predate the encoding.
  *
  * @author zoly
  */
@@ -76,25 +81,68 @@ public final class TSDBWriter implements Closeable, Flushable {
   public static final Schema FILE_RECORD_SCHEMA
           = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$));
 
+  public static final Schema COLUMNAR_FILE_RECORD_SCHEMA
+          = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$, ColumnarDataBlock.SCHEMA));
+
+  /**
+   * The block encoding for new files, row oriented by default so that files stay readable by older readers,
+   * the columnar encoding can be enabled with -Dspf4j.tsdb2.blockEncoding=COLUMNAR.
+   */
+  public static final BlockEncoding DEFAULT_BLOCK_ENCODING
+          = BlockEncoding.valueOf(System.getProperty("spf4j.tsdb2.blockEncoding", "ROW"));
+
+  private static final int COLUMNAR_BLOCK_IDX = 2;
+
+  private static final int WRITE_STRIPES = Integer.highestOneBit(
+          Integer.getInteger("spf4j.tsdb2.writeStripes", org.spf4j.base.Runtime.NR_PROCESSORS) * 2 - 1);
+
   static final byte[] MAGIC = Strings.toUtf8("TSDB2");
 
   private final File file;
   private final FileChannel channel;
   private final BinaryEncoder encoder;
   private final Header header;
-  private final SpecificDatumWriter<Object> recordWriter = new SpecificDatumWriter<>(FILE_RECORD_SCHEMA);
+  private final SpecificDatumWriter<Object> recordWriter;
+  private final BlockEncoding blockEncoding;
   private final DataBlock writeBlock;
+  private final WriteStripe[] stripes;
+  private ColumnarDataBlock spareBlock;
+  private volatile boolean closed;
   private final int maxRowsPerBlock;
   private final RandomAccessFile raf;
 
   private final ByteArrayBuilder bab;
 
+  private final TSDBIndex.Writer indexWriter;
+
+  public enum BlockEncoding {
+    /** row oriented avro DataBlock. */
+    ROW,
+    /** delta-of-delta/XOR compressed ColumnarDataBlock. */
+    COLUMNAR
+  }
+
   @CreatesObligation
   public TSDBWriter(final File file, final int maxRowsPerBlock,
           final String description, final boolean append) throws IOException {
+    this(file, maxRowsPerBlock, description, append, DEFAULT_BLOCK_ENCODING);
+  }
+
+  /**
+   * Create a TSDB2 writer.
+   * @param file the file to write to.
+   * @param maxRowsPerBlock the maximum number of rows to buffer in a block before writing it.
+   * @param description the file description, must be null when appending to an existing file.
+   * @param append append to the file if it exists.
+   * @param encoding the block encoding for new files,
+   * when appending to an existing file the encoding of the existing file is used.
+   * @throws IOException
+   */
+  @CreatesObligation
+  public TSDBWriter(final File file, final int maxRowsPerBlock,
+          final String description, final boolean append, final BlockEncoding encoding) throws IOException {
     this.file = file;
     this.maxRowsPerBlock = maxRowsPerBlock;
-    this.writeBlock = new DataBlock(System.currentTimeMillis(), new ArrayList<DataRow>(maxRowsPerBlock));
     raf = new RandomAccessFile(file, "rw");
     bab = new ByteArrayBuilder(32768, ArraySuppliers.Bytes.JAVA_NEW);
     encoder = EncoderFactory.get().directBinaryEncoder(bab, null);
@@ -108,8 +156,9 @@ public final class TSDBWriter implements Closeable, Flushable {
       // new file or overwite, will write header;
       bab.write(MAGIC);
       toOutputStream(0, bab);
+      blockEncoding = encoding;
       header = Header.newBuilder()
-              .setContentSchema(FILE_RECORD_SCHEMA.toString())
+              .setContentSchema(getFileRecordSchema(encoding).toString())
               .setDescription(description)
               .build();
       SpecificDatumWriter<Header> headerWriter = new SpecificDatumWriter<>(Header.SCHEMA$);
@@ -120,6 +169,7 @@ public final class TSDBWriter implements Closeable, Flushable {
       toByteArray(size, buffer, MAGIC.length);
       raf.write(buffer, 0, size);
       channel.force(true);
+      indexWriter = TSDBIndex.createWriter(file);
     } else {
       if (description != null) {
         throw new IllegalArgumentException("Providing description when appending is not allowed for " + file);
@@ -132,9 +182,47 @@ public final class TSDBWriter implements Closeable, Flushable {
         SpecificDatumReader<Header> reader = new SpecificDatumReader<>(Header.getClassSchema());
         BinaryDecoder directBinaryDecoder = DecoderFactory.get().directBinaryDecoder(dis, null);
         header = reader.read(null, directBinaryDecoder);
+        blockEncoding = getBlockEncoding(new Schema.Parser().parse(header.getContentSchema()));
         raf.seek(size);
+        indexWriter = TSDBIndex.openWriter(file, size);
+      }
+    }
+    recordWriter = new SpecificDatumWriter<>(getFileRecordSchema(blockEncoding));
+    if (blockEncoding == BlockEncoding.COLUMNAR) {
+      writeBlock = null;
+      stripes = new WriteStripe[WRITE_STRIPES];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new WriteStripe();
+      }
+      spareBlock = new ColumnarDataBlock();
+    } else {
+      writeBlock = new DataBlock(System.currentTimeMillis(), new ArrayList<DataRow>(maxRowsPerBlock));
+      stripes = null;
+    }
+  }
+
+  public static Schema getFileRecordSchema(final BlockEncoding encoding) {
+    switch (encoding) {
+      case ROW:
+        return FILE_RECORD_SCHEMA;
+      case COLUMNAR:
+        return COLUMNAR_FILE_RECORD_SCHEMA;
+      default:
+        throw new UnsupportedOperationException("Unsupported block encoding " + encoding);
+    }
+  }
+
+  /**
+   * @param contentSchema the content schema from a file header.
+   * @return the block encoding used in the file.
+   */
+  public static BlockEncoding getBlockEncoding(final Schema contentSchema) {
+    for (Schema type : contentSchema.getTypes()) {
+      if (type.getFullName().equals(ColumnarDataBlock.SCHEMA.getFullName())) {
+        return BlockEncoding.COLUMNAR;
       }
     }
+    return BlockEncoding.ROW;
   }
 
   static void validateType(final InputStream dis) throws IOException {
@@ -152,11 +240,69 @@ public final class TSDBWriter implements Closeable, Flushable {
     recordWriter.write(tableDef, encoder);
     encoder.flush();
     raf.write(bab.getBuffer(), 0, bab.size());
+    indexWriter.writeTableDef(position, raf.getFilePointer());
     return position;
   }
 
-  public synchronized void writeDataRow(final long tableId, final long timestamp, final long... data)
+  public void writeDataRow(final long tableId, final long timestamp, final long... data)
+          throws IOException {
+    if (stripes == null) {
+      writeRow(tableId, timestamp, data);
+    } else {
+      writeDataRow(tableId, timestamp, data, 0, data.length);
+    }
+  }
+
+  /**
+   * Write a data row.
+   *
+   * With the columnar block encoding, the row is copied into the reusable column buffers of a write stripe
+   * selected by the table id, so no objects are allocated per row, and concurrent writers of different tables
+   * contend only on their stripe instead of the writer. Every stripe is written as a separate block,
+   * since all rows of a table go to the same stripe, rows of a table are stored in the order they are written.
+   * A row is either written by {@link #close()} or rejected with a ClosedChannelException,
+   * so a writer racing a close can write the row somewhere else.
+   *
+   * @param tableId the table id.
+   * @param timestamp the row timestamp (millis since epoch).
+   * @param data the array containing the row data, it is copied so it can be reused by the caller.
+   * @param offset the offset of the row data in the array.
+   * @param length the number of columns.
+   * @throws IOException
+   */
+  public void writeDataRow(final long tableId, final long timestamp, final long[] data,
+          final int offset, final int length) throws IOException {
+    if (stripes == null) {
+      writeRow(tableId, timestamp, Arrays.copyOfRange(data, offset, offset + length));
+      return;
+    }
+    WriteStripe stripe = stripes[(int) ((tableId * 0x9E3779B97F4A7C15L) >>> 32) & (stripes.length - 1)];
+    boolean full;
+    synchronized (stripe) {
+      if (closed) {
+        throw new ClosedChannelException();
+      }
+      ColumnarDataBlock block = stripe.block;
+      block.add(tableId, timestamp, data, offset, length);
+      full = block.getNrRows() >= this.maxRowsPerBlock;
+    }
+    if (full) {
+      synchronized (this) {
+        if (closed) {
+          // the row was written by close.
+          return;
+        }
+        writeStripe(stripe);
+        commit();
+      }
+    }
+  }
+
+  private synchronized void writeRow(final long tableId, final long timestamp, final long[] data)
           throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
     List<DataRow> blockValues = this.writeBlock.getValues();
     if (blockValues.size() >= this.maxRowsPerBlock) {
       flush();
@@ -168,7 +314,12 @@ public final class TSDBWriter implements Closeable, Flushable {
 
   @Override
   public synchronized void close() throws IOException {
-    try (RandomAccessFile f = raf) {
+    if (closed) {
+      return;
+    }
+    // rows added after this are rejected, the ones added before are flushed below.
+    closed = true;
+    try (RandomAccessFile f = raf; TSDBIndex.Writer iw = indexWriter) {
       flush();
     }
   }
@@ -194,23 +345,90 @@ public final class TSDBWriter implements Closeable, Flushable {
   }
 
   /**
-   * Commits the data to disk.
+   * Commits the data to disk, and updates the block index.
    *
    * @throws IOException
    */
   @Override
   public synchronized void flush() throws IOException {
+    if (stripes != null) {
+      for (WriteStripe stripe : stripes) {
+        writeStripe(stripe);
+      }
+      commit();
+      return;
+    }
     List<DataRow> blockValues = writeBlock.getValues();
     if (!blockValues.isEmpty()) {
+      final long position = raf.getFilePointer();
       bab.reset();
       this.recordWriter.write(writeBlock, this.encoder);
       encoder.flush();
       raf.write(bab.getBuffer(), 0, bab.size());
-      channel.force(true);
-      updateEOFPtrPointer();
+      indexWriter.writeDataBlock(position, raf.getFilePointer(), writeBlock);
       blockValues.clear();
     }
+    // also commits table definitions written since the last flush.
+    commit();
+  }
+
+  /**
+   * Swaps out the stripe block and writes it to the file (uncommitted). The stripe lock is held only for the swap.
+   * If the write fails, the rows are put back into the stripe (ahead of the rows added meanwhile),
+   * and the next write overwrites the partially written block.
+   */
+  private void writeStripe(final WriteStripe stripe) throws IOException {
+    ColumnarDataBlock block;
+    synchronized (stripe) {
+      block = stripe.block;
+      if (block.isEmpty()) {
+        return;
+      }
+      ColumnarDataBlock spare = spareBlock;
+      spareBlock = null;
+      stripe.block = spare == null ? new ColumnarDataBlock() : spare;
+    }
+    final long position = raf.getFilePointer();
+    try {
+      block.encode();
+      bab.reset();
+      encoder.writeIndex(COLUMNAR_BLOCK_IDX);
+      encoder.writeLong(block.getBaseTimestamp());
+      encoder.writeBytes(block.getEncoded(), 0, block.getEncodedSize());
+      encoder.flush();
+      raf.write(bab.getBuffer(), 0, bab.size());
+      indexWriter.writeDataBlock(position, raf.getFilePointer(), block.getTableRanges());
+    } catch (IOException | RuntimeException ex) {
+      synchronized (stripe) {
+        ColumnarDataBlock current = stripe.block;
+        block.addAll(current);
+        stripe.block = block;
+        current.clear();
+        spareBlock = current;
+      }
+      try {
+        raf.seek(position);
+      } catch (IOException ex2) {
+        ex.addSuppressed(ex2);
+      }
+      throw ex;
+    }
+    block.clear();
+    spareBlock = block;
+  }
+
+  /**
+   * Makes the written blocks durable and visible to readers.
+   */
+  private void commit() throws IOException {
     channel.force(true);
+    updateEOFPtrPointer();
+    channel.force(true);
+    indexWriter.flush();
+  }
+
+  public BlockEncoding getBlockEncoding() {
+    return blockEncoding;
   }
 
   private void updateEOFPtrPointer() throws IOException {
@@ -230,4 +448,13 @@ public final class TSDBWriter implements Closeable, Flushable {
     return "TSDBWriter{" + "file=" + file + ", raf=" + raf + '}';
   }
 
+  /**
+   * Columnar write staging, the block is guarded by the stripe monitor.
+   */
+  private static final class WriteStripe {
+
+    private ColumnarDataBlock block = new ColumnarDataBlock();
+
+  }
+
 }
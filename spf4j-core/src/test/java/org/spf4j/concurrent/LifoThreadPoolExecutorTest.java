@@ -67,6 +67,13 @@ public class LifoThreadPoolExecutorTest {
     assertPoolBehavior(executor);
   }
 
+  @Test
+  public void testLifoExecWS() throws InterruptedException, IOException {
+    LifoThreadPoolExecutorWS executor
+            = new LifoThreadPoolExecutorWS("test", 8, 8, 60000, 1024);
+    assertPoolBehavior(executor);
+  }
+
   @Test
   public void testLifoExecSQZeroQueue() throws InterruptedException, IOException {
     RejectedExecutionException ex = new RejectedExecutionExceptionImpl();
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author zoly
+ */
+@SuppressFBWarnings({"HES_LOCAL_EXECUTOR_SERVICE", "MDM_THREAD_YIELD"})
+public final class LifoThreadPoolExecutorWSTest {
+
+  @Test(timeout = 60000)
+  public void testConcurrentSubmitters() throws InterruptedException {
+    LifoThreadPool executor = LifoThreadPoolBuilder.newBuilder().withCoreSize(2).withMaxSize(8)
+            .withQueueSizeLimit(1024).workStealing().build();
+    Assert.assertTrue(executor instanceof LifoThreadPoolExecutorWS);
+    final LongAdder adder = new LongAdder();
+    final int nrSubmitters = 4;
+    final int nrTasks = 200000;
+    Thread[] submitters = new Thread[nrSubmitters];
+    for (int i = 0; i < nrSubmitters; i++) {
+      submitters[i] = new Thread(() -> {
+        for (int j = 0; j < nrTasks; j++) {
+          try {
+            executor.execute(adder::increment);
+          } catch (RejectedExecutionException ex) {
+            adder.increment();
+          }
+        }
+      });
+      submitters[i].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(nrSubmitters * nrTasks, adder.sum());
+    Assert.assertEquals(0, executor.getThreadCount());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+  }
+
+  @Test(timeout = 60000)
+  public void testWorkStealing() throws InterruptedException {
+    LifoThreadPool executor = new LifoThreadPoolExecutorWS("test", 0, 4, 60000, 100000);
+    final int nrTasks = 10000;
+    CountDownLatch latch = new CountDownLatch(nrTasks);
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    executor.execute(() -> {
+      for (int i = 0; i < nrTasks; i++) {
+        executor.execute(() -> {
+          threads.add(Thread.currentThread());
+          latch.countDown();
+        });
+      }
+    });
+    Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(threads.size() > 1);
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testSpawnBeforeQueueAndReject() throws InterruptedException {
+    LifoThreadPool executor = new LifoThreadPoolExecutorWS("test", 0, 4, 60000, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable blocking = () -> {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    for (int i = 0; i < 4; i++) {
+      executor.execute(blocking);
+    }
+    Assert.assertEquals(4, executor.getThreadCount());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+    executor.execute(blocking);
+    Assert.assertEquals(1, executor.getNrQueuedTasks());
+    try {
+      executor.execute(blocking);
+      Assert.fail();
+    } catch (RejectedExecutionException ex) {
+      // expected
+    }
+    release.countDown();
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+  }
+
+  @Test(timeout = 60000)
+  public void testCancelInterrupts() throws InterruptedException {
+    LifoThreadPool executor = new LifoThreadPoolExecutorWS("test", 1, 2, 60000, 0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    Future<?> future = executor.submit(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      } catch (InterruptedException ex) {
+        interrupted.countDown();
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(future.cancel(true));
+    Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    // the interrupt must not leak into the next task.
+    Assert.assertFalse(executor.submit(() -> Thread.currentThread().isInterrupted()).isCancelled());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testIdleRetirement() throws InterruptedException {
+    LifoThreadPool executor = new LifoThreadPoolExecutorWS("test", 1, 4, 50, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(() -> {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    Assert.assertEquals(4, executor.getThreadCount());
+    release.countDown();
+    while (executor.getThreadCount() > 1) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    Assert.assertEquals(1, executor.getThreadCount());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testShutdownNow() throws InterruptedException {
+    LifoThreadPool executor = new LifoThreadPoolExecutorWS("test", 0, 1, 60000, 10);
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    executor.execute(() -> { });
+    executor.shutdown();
+    Assert.assertFalse(executor.awaitTermination(10, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(1, executor.shutdownNow().size());
+    Assert.assertTrue(executor.awaitTermination(1000, TimeUnit.MILLISECONDS));
+  }
+
+}
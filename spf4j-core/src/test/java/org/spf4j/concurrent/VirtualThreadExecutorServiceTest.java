@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.ExecutionContexts;
+
+/**
+ * @author zoly
+ */
+@SuppressFBWarnings("HES_LOCAL_EXECUTOR_SERVICE")
+public final class VirtualThreadExecutorServiceTest {
+
+  @Test(timeout = 60000)
+  public void testContextPropagation() throws InterruptedException, ExecutionException {
+    VirtualThreadExecutorService executor = new VirtualThreadExecutorService("vtTest", 2);
+    try (ExecutionContext ctx = ExecutionContexts.start("testContextPropagation", 10, TimeUnit.SECONDS)) {
+      Future<ExecutionContext> future = executor.submit(() -> ExecutionContexts.current().getSource());
+      Assert.assertSame(ctx, future.get());
+    }
+    Assert.assertNull(executor.submit(() -> ExecutionContexts.current()).get());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrencyLimit() throws InterruptedException, ExecutionException {
+    VirtualThreadExecutorService executor = new VirtualThreadExecutorService("vtTestLimit", 3);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    Future<?>[] futures = new Future[100];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = executor.submit(() -> {
+        int r = running.incrementAndGet();
+        maxRunning.accumulateAndGet(r, Math::max);
+        Thread.sleep(1);
+        running.decrementAndGet();
+        return null;
+      });
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    Assert.assertTrue("max running " + maxRunning, maxRunning.get() <= 3);
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(executor.isTerminated());
+    Assert.assertEquals(0, executor.getQueuedCount());
+    Assert.assertEquals(0, executor.getActiveCount());
+  }
+
+  @Test(timeout = 60000)
+  public void testPermitTimeout() throws InterruptedException {
+    VirtualThreadExecutorService executor = new VirtualThreadExecutorService("vtTestTimeout", 1);
+    CountDownLatch blocker = new CountDownLatch(1);
+    executor.execute(() -> {
+      try {
+        blocker.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Future<String> future;
+    try (ExecutionContext ctx = ExecutionContexts.start("testPermitTimeout", 100, TimeUnit.MILLISECONDS)) {
+      future = executor.submit(() -> "done");
+    }
+    try {
+      future.get();
+      Assert.fail();
+    } catch (ExecutionException ex) {
+      Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+    }
+    blocker.countDown();
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testShutdownNow() throws InterruptedException {
+    VirtualThreadExecutorService executor = new VirtualThreadExecutorService("vtTestShutdown", 1);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicInteger interrupted = new AtomicInteger();
+    executor.execute(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(60000);
+      } catch (InterruptedException ex) {
+        interrupted.incrementAndGet();
+      }
+    });
+    started.await();
+    for (int i = 0; i < 5; i++) {
+      executor.execute(() -> Assert.fail());
+    }
+    List<Runnable> notStarted = executor.shutdownNow();
+    Assert.assertEquals(5, notStarted.size());
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, interrupted.get());
+    try {
+      executor.execute(() -> { });
+      Assert.fail();
+    } catch (RejectedExecutionException ex) {
+      // expected
+    }
+  }
+
+}
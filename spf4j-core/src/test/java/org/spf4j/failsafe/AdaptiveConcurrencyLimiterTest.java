@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.CompoundSemaphore;
+import org.spf4j.concurrent.LocalSemaphore;
+
+/**
+ * @author zoly
+ */
+public final class AdaptiveConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong time = new AtomicLong();
+
+  private AdaptiveConcurrencyLimiter create(final ConcurrencyLimitAlgorithm algorithm) {
+    return new AdaptiveConcurrencyLimiter(null, algorithm, 100 * MS, 10, 1000, time::get);
+  }
+
+  /**
+   * run a window of operations, nrConcurrent at a time, each taking latencyNanos.
+   */
+  private void runWindow(final AdaptiveConcurrencyLimiter limiter, final int nrConcurrent, final long latencyNanos,
+          final boolean drop) throws InterruptedException {
+    long windowEnd = time.get() + 100 * MS;
+    do {
+      for (int i = 0; i < nrConcurrent; i++) {
+        Assert.assertTrue(limiter.tryAcquire(1, time.get()));
+      }
+      time.addAndGet(latencyNanos);
+      for (int i = 0; i < nrConcurrent; i++) {
+        if (drop) {
+          limiter.releaseDropped(1);
+        } else {
+          limiter.release();
+        }
+      }
+    } while (time.get() < windowEnd);
+  }
+
+  @Test
+  public void testAimd() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = create(new AimdLimitAlgorithm(10, 2, 20, 0.5, 10 * MS));
+    Assert.assertEquals(10, limiter.getLimit());
+    runWindow(limiter, 10, MS, false);
+    Assert.assertEquals(11, limiter.getLimit());
+    // low utilization, no increase (the first window still sees the in flight permits of the previous one).
+    runWindow(limiter, 2, MS, false);
+    int limit = limiter.getLimit();
+    runWindow(limiter, 2, MS, false);
+    Assert.assertEquals(limit, limiter.getLimit());
+    runWindow(limiter, 10, MS, true);
+    Assert.assertEquals(limit / 2, limiter.getLimit());
+    // latency above threshold
+    runWindow(limiter, 2, 20 * MS, false);
+    runWindow(limiter, 2, 20 * MS, false);
+    Assert.assertEquals(2, limiter.getLimit());
+    Assert.assertFalse(limiter.tryAcquire(3, time.get()));
+    Assert.assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testGradient() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = create(new GradientLimitAlgorithm(10, 1, 100));
+    for (int i = 0; i < 20; i++) {
+      runWindow(limiter, limiter.getLimit(), MS, false);
+    }
+    int grownLimit = limiter.getLimit();
+    Assert.assertTrue("limit " + grownLimit, grownLimit > 20);
+    // latency grows with the load, the limit needs to go down.
+    for (int i = 0; i < 10; i++) {
+      runWindow(limiter, limiter.getLimit(), 4 * MS, false);
+    }
+    Assert.assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < grownLimit * 3 / 4);
+  }
+
+  @Test(timeout = 60000)
+  public void testWaitForPermit() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(new AimdLimitAlgorithm(1, 1, 1, 0.5, MS));
+    CompoundSemaphore semaphore = new CompoundSemaphore(new LocalSemaphore(10, false), limiter);
+    Assert.assertTrue(semaphore.tryAcquire(1, TimeUnit.SECONDS));
+    Assert.assertFalse(semaphore.tryAcquire(10, TimeUnit.MILLISECONDS));
+    Thread releaser = new Thread(() -> {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+      semaphore.release();
+    });
+    releaser.start();
+    long start = TimeSource.nanoTime();
+    Assert.assertTrue(semaphore.tryAcquire(10, TimeUnit.SECONDS));
+    Assert.assertTrue(TimeSource.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    releaser.join();
+    semaphore.release();
+    Assert.assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test(timeout = 60000)
+  public void testSinglePermitWaiterBehindMultiPermitWaiter() throws InterruptedException {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(new AimdLimitAlgorithm(2, 2, 2, 0.5, MS));
+    Assert.assertTrue(limiter.tryAcquire(2, TimeSource.nanoTime()));
+    long deadline = TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    AtomicBoolean multiAcquired = new AtomicBoolean();
+    AtomicBoolean singleAcquired = new AtomicBoolean();
+    Thread multi = startAcquirer(limiter, 2, deadline, multiAcquired);
+    Thread single = startAcquirer(limiter, 1, deadline, singleAcquired);
+    // the released permit must reach the single permit waiter, even if the multi permit waiter is first in line.
+    limiter.release(1);
+    single.join(TimeUnit.SECONDS.toMillis(10));
+    Assert.assertTrue(singleAcquired.get());
+    limiter.release(2);
+    multi.join();
+    Assert.assertTrue(multiAcquired.get());
+    limiter.release(2);
+    Assert.assertEquals(0, limiter.getInFlight());
+  }
+
+  private static Thread startAcquirer(final AdaptiveConcurrencyLimiter limiter, final int nrPermits,
+          final long deadlineNanos, final AtomicBoolean acquired) throws InterruptedException {
+    Thread thread = new Thread(() -> {
+      try {
+        acquired.set(limiter.tryAcquire(nrPermits, deadlineNanos));
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    thread.start();
+    while (thread.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(1);
+    }
+    return thread;
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.TimeSource;
+import org.spf4j.failsafe.concurrent.DefaultFailSafeExecutor;
+
+/**
+ * @author zoly
+ */
+public final class LatencyPercentileHedgeTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong time = new AtomicLong();
+
+  private LatencyPercentileHedge create(final double budgetRatio, final int maxBudget) {
+    return new LatencyPercentileHedge(0.95, budgetRatio, maxBudget, MS, 10000 * MS, 1,
+            1000 * MS, 6, 100, HedgePolicy.NONE, time::get);
+  }
+
+  @Test
+  public void testHistogramBuckets() {
+    for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+      int idx = SlidingLatencyHistogram.bucketIdx(v);
+      Assert.assertTrue(v + " in " + idx, SlidingLatencyHistogram.bucketLowerBound(idx) <= v);
+      Assert.assertTrue(v + " in " + idx, SlidingLatencyHistogram.bucketUpperBound(idx) >= v);
+      Assert.assertTrue(SlidingLatencyHistogram.bucketUpperBound(idx) - SlidingLatencyHistogram.bucketLowerBound(idx)
+              <= SlidingLatencyHistogram.bucketLowerBound(idx) / 8);
+    }
+  }
+
+  @Test
+  public void testPercentileHedge() {
+    LatencyPercentileHedge hedge = create(0.05, 10);
+    Assert.assertSame(Hedge.NONE, hedge.getHedge(time.get(), time.get() + 10000 * MS));
+    for (int i = 1; i <= 1000; i++) {
+      hedge.record(i * MS);
+    }
+    // the hedge delay is recomputed every second.
+    time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    long delay = hedge.getHedgeDelayNanos();
+    Assert.assertTrue("delay " + delay, delay >= 950 * MS && delay <= 950 * MS * 9 / 8);
+    Hedge h = hedge.getHedge(time.get(), time.get() + 10000 * MS);
+    Assert.assertEquals(delay, h.getHedgeDelayNanos());
+    Assert.assertEquals(1, h.getHedgeCount());
+    // no hedge when the hedge delay is beyond the deadline.
+    Assert.assertSame(Hedge.NONE, hedge.getHedge(time.get(), time.get() + 900 * MS));
+    // the latencies slide out of the window.
+    time.addAndGet(TimeUnit.SECONDS.toNanos(6));
+    Assert.assertEquals(-1, hedge.getHedgeDelayNanos());
+    Assert.assertSame(Hedge.NONE, hedge.getHedge(time.get(), time.get() + 10000 * MS));
+  }
+
+  @Test
+  public void testBudget() throws Exception {
+    LatencyPercentileHedge hedge = create(0.05, 2);
+    for (int i = 1; i <= 100; i++) {
+      hedge.record(MS);
+    }
+    time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    AtomicInteger calls = new AtomicInteger();
+    // the hedge tokens are withdrawn when the hedges are granted.
+    Callable<Integer> call1 = hedge.timed(calls::incrementAndGet);
+    Assert.assertEquals(1, hedge.policyOf(call1).getHedge(time.get(), time.get() + 10000 * MS).getHedgeCount());
+    Assert.assertEquals(1, hedge.getBudget(), 0.0001);
+    Callable<Integer> call2 = hedge.timed(calls::incrementAndGet);
+    Assert.assertEquals(1, hedge.policyOf(call2).getHedge(time.get(), time.get() + 10000 * MS).getHedgeCount());
+    Assert.assertEquals(0.05, hedge.getBudget(), 0.0001);
+    Assert.assertSame(Hedge.NONE, hedge.getHedge(time.get(), time.get() + 10000 * MS));
+    Assert.assertEquals(0.1, hedge.getBudget(), 0.0001);
+    // call1 completes before its hedge is executed, the hedge token is refunded.
+    call1.call();
+    Assert.assertEquals(1.1, hedge.getBudget(), 0.0001);
+    // the refunds are capped at maxBudget.
+    call2.call();
+    Assert.assertEquals(2, hedge.getBudget(), 0.0001);
+    // extra attempts without reservation (retries) are charged.
+    call2.call();
+    Assert.assertEquals(1, hedge.getBudget(), 0.0001);
+    // the debt is not clamped to -maxBudget.
+    for (int i = 0; i < 4; i++) {
+      hedge.chargeExtraAttempt();
+    }
+    Assert.assertEquals(-3, hedge.getBudget(), 0.0001);
+    int nrRequests = 0;
+    do {
+      nrRequests++;
+    } while (hedge.getHedge(time.get(), time.get() + 10000 * MS).getHedgeCount() == 0);
+    // the debt + a token needs 80 requests.
+    Assert.assertEquals(80, nrRequests);
+    Assert.assertEquals(0, hedge.getBudget(), 0.0001);
+  }
+
+  @Test
+  public void testConcurrentHedgesWithinBudget() throws InterruptedException {
+    LatencyPercentileHedge hedge = create(0, 5);
+    for (int i = 1; i <= 100; i++) {
+      hedge.record(MS);
+    }
+    time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    AtomicInteger granted = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 100; j++) {
+          granted.addAndGet(hedge.getHedge(time.get(), time.get() + 10000 * MS).getHedgeCount());
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(5, granted.get());
+    Assert.assertEquals(0, hedge.getBudget(), 0.0001);
+  }
+
+  @Test(timeout = 60000)
+  public void testHedgedExecution() throws InterruptedException, ExecutionException {
+    LatencyPercentileHedge hedge = new LatencyPercentileHedge(0.95, 0.05, 10 * MS, 10000 * MS, 1);
+    for (int i = 1; i <= 100; i++) {
+      hedge.record(i * MS / 10);
+    }
+    CountDownLatch slow = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger();
+    long start = TimeSource.nanoTime();
+    String result = RetryPolicy.<String, Callable<String>>noRetryPolicy()
+            .async(hedge::policyOf, DefaultFailSafeExecutor.instance())
+            .<String, Callable<String>>submit(hedge.timed(() -> {
+              if (attempts.getAndIncrement() == 0) {
+                // the first attempt is stuck
+                slow.await();
+                return "slow";
+              }
+              return "hedged";
+            }), 10, TimeUnit.SECONDS).get();
+    slow.countDown();
+    Assert.assertEquals("hedged", result);
+    Assert.assertTrue(TimeSource.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertEquals(2, attempts.get());
+    Assert.assertEquals(9, hedge.getBudget(), 0.0001);
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.spf4j.concurrent.PermitSupplier;
+
+/**
+ * @author zoly
+ */
+public final class StripedRateLimiterTest {
+
+  private ScheduledExecutorService mockExec;
+
+  private ScheduledFuture mockFut;
+
+  private StripedRateLimiter create(final long permitsPerInterval, final long intervalNanos,
+          final long initialPermits, final long maxPermits, final int nrStripes) {
+    mockExec = Mockito.mock(ScheduledExecutorService.class);
+    mockFut = Mockito.mock(ScheduledFuture.class);
+    Mockito.when(mockExec.scheduleAtFixedRate(Mockito.any(), Mockito.eq(intervalNanos), Mockito.eq(intervalNanos),
+            Mockito.eq(TimeUnit.NANOSECONDS))).thenReturn(mockFut);
+    return new StripedRateLimiter(permitsPerInterval, Duration.ofNanos(intervalNanos), initialPermits, maxPermits,
+            mockExec, () -> 0L, nrStripes);
+  }
+
+  private Runnable replenisher() {
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(mockExec).scheduleAtFixedRate(captor.capture(), Mockito.anyLong(), Mockito.anyLong(),
+            Mockito.eq(TimeUnit.NANOSECONDS));
+    return captor.getValue();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidStripes() {
+    create(10, 1000000, 0, 10, 3);
+  }
+
+  @Test
+  public void testBurstAndBorrowing() {
+    try (StripedRateLimiter limiter = create(10, 1000000, 0, 20, 4)) {
+      Assert.assertFalse(limiter.tryAcquire());
+      Runnable replenisher = replenisher();
+      replenisher.run();
+      Assert.assertEquals(10, limiter.getNrPermits());
+      // all permits are available to a single thread, borrowing from the other stripes.
+      for (int i = 0; i < 10; i++) {
+        Assert.assertTrue(limiter.tryAcquire());
+      }
+      Assert.assertFalse(limiter.tryAcquire());
+      for (int i = 0; i < 5; i++) {
+        replenisher.run();
+      }
+      // max burst size
+      Assert.assertEquals(20, limiter.getNrPermits());
+      Assert.assertTrue(limiter.tryAcquire(5));
+      Assert.assertEquals(15, limiter.getNrPermits());
+      Assert.assertFalse(limiter.tryAcquire(6)); // no stripe has 6 permits.
+    }
+    Mockito.verify(mockFut).cancel(false);
+  }
+
+  @Test
+  public void testReservation() throws InterruptedException {
+    try (StripedRateLimiter limiter = create(10, 1000000000L, 5, 20, 4)) {
+      PermitSupplier.Acquisition acq = limiter.tryAcquireGetDelayNanos(12, TimeUnit.SECONDS.toNanos(10));
+      Assert.assertTrue(acq.isSuccess());
+      Assert.assertEquals(1000000000L, acq.permitAvailableEstimateInNanos());
+      Assert.assertEquals(-7, limiter.getNrPermits());
+      acq = limiter.tryAcquireGetDelayNanos(10, TimeUnit.MILLISECONDS.toNanos(10));
+      Assert.assertFalse(acq.isSuccess());
+      Assert.assertEquals(2000000000L, acq.permitAvailableEstimateInNanos());
+      Assert.assertEquals(-7, limiter.getNrPermits());
+      Runnable replenisher = replenisher();
+      replenisher.run();
+      Assert.assertEquals(3, limiter.getNrPermits());
+      // the 3 permits are in different stripes, and collected from all of them.
+      Assert.assertTrue(limiter.tryAcquireGetDelayNanos(3, 0).isSuccess());
+      Assert.assertFalse(limiter.tryAcquireGetDelayNanos(1, 0).isSuccess());
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentAccuracy() throws InterruptedException {
+    try (StripedRateLimiter limiter = create(1000, 1000000, 0, 100000, 8)) {
+      Runnable replenisher = replenisher();
+      LongAdder acquired = new LongAdder();
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread(() -> {
+          for (int j = 0; j < 100000; j++) {
+            if (limiter.tryAcquire()) {
+              acquired.increment();
+            }
+          }
+        });
+        threads[i].start();
+      }
+      for (int i = 0; i < 100; i++) {
+        replenisher.run();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      Assert.assertEquals(100000, acquired.sum() + limiter.getNrPermits());
+    }
+  }
+
+}
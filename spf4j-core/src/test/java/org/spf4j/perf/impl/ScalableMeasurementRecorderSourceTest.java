@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.acc.QuantizedAccumulator;
+
+/**
+ * @author zoly
+ */
+public final class ScalableMeasurementRecorderSourceTest {
+
+  @Test
+  public void testIdleSharedAccumulatorsRemoved() {
+    ScalableMeasurementRecorderSource source = new ScalableMeasurementRecorderSource(
+            new QuantizedAccumulator("test", "", "ms", 10, 0, 6, 10), 3600000, new NopMeasurementStore(),
+            false, AccumulatorStorage.THREAD_CELLS);
+    try {
+      MeasurementRecorder recorder = source.getRecorder("A");
+      recorder.record(1);
+      source.getRecorder("B").record(2);
+      Assert.assertEquals(2, source.getEntitiesMeasurementsAndReset().size());
+      source.getRecorder("B").record(3);
+      Assert.assertEquals(1, source.getEntitiesMeasurementsAndReset().size());
+      Assert.assertSame(recorder, source.getRecorder("A"));
+      Assert.assertTrue(source.getEntitiesMeasurementsAndReset().isEmpty());
+      Assert.assertNotSame(recorder, source.getRecorder("A"));
+      source.getRecorder("A").record(4);
+      Assert.assertEquals(4L, source.getEntitiesMeasurementsAndReset().get("A").get()[0]);
+    } finally {
+      source.close();
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import com.google.common.primitives.Longs;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.avro.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.TimeSeriesRecord;
+import org.spf4j.tsdb2.TableDefs;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * @author zoly
+ */
+public final class HistogramAccumulatorTest {
+
+  @Test
+  public void testBuckets() {
+    HistogramAccumulator acc = new HistogramAccumulator("test", "", "ms", 1000, 2);
+    long prev = 0;
+    for (int i = 1; i < acc.getNrBuckets(); i++) {
+      long lower = acc.bucketLowerBound(i);
+      Assert.assertTrue(lower > prev);
+      Assert.assertEquals(i, acc.getBucket(lower));
+      Assert.assertEquals(i - 1, acc.getBucket(lower - 1));
+      // relative bucket width <= 2^-precisionBits
+      Assert.assertTrue((lower - prev) * 4 <= Math.max(4, prev));
+      prev = lower;
+    }
+    Assert.assertEquals(0, acc.getBucket(-5));
+    Assert.assertEquals(acc.getNrBuckets() - 1, acc.getBucket(Long.MAX_VALUE));
+    MeasurementsInfo info = acc.getInfo();
+    Assert.assertEquals("p99", info.getMeasurementName(6));
+    Assert.assertEquals(8, info.getNumberOfMeasurements());
+  }
+
+  @Test
+  public void testSparseBuckets() {
+    HistogramAccumulator acc = new HistogramAccumulator("test", "", "ms", 100000, 3);
+    acc.record(-3);
+    acc.record(5);
+    acc.record(5);
+    acc.record(1000);
+    acc.record(Long.MAX_VALUE);
+    long[] vals = acc.get();
+    Assert.assertEquals(8 + 4 * 2, vals.length);
+    Assert.assertArrayEquals(new long[] {0, 1, 5, 2, acc.bucketLowerBound(acc.getBucket(1000)), 1,
+      acc.bucketLowerBound(acc.getNrBuckets() - 1), 1}, Arrays.copyOfRange(vals, 8, vals.length));
+    HistogramAccumulator acc2 = new HistogramAccumulator("test", "", "ms", 100000, 3);
+    acc2.record(5);
+    acc2.record(7);
+    long[] vals2 = acc2.get();
+    Schema schema = TableDefs.createSchema(TableDefs.from(acc.getInfo(), 1000, 1));
+    Observation o1 = new Observation(0L, 1L, new ArrayList<>(Longs.asList(vals)));
+    Observation o2 = new Observation(1000L, 1L, Longs.asList(vals2));
+    TimeSeriesRecord.accumulateObservations(schema, o1, o2);
+    long[] expected = acc.aggregate(acc2).get();
+    Assert.assertEquals(Longs.asList(expected).subList(8, expected.length),
+            o1.getData().subList(8, o1.getData().size()));
+    Assert.assertEquals(7L, o1.getData().get(0).longValue());
+  }
+
+  @Test
+  public void testPercentiles() {
+    HistogramAccumulator acc = new HistogramAccumulator("test", "", "ms", 100000, 5);
+    Assert.assertNull(acc.get());
+    for (int i = 1; i <= 10000; i++) {
+      acc.record(i);
+    }
+    long[] vals = acc.get();
+    Assert.assertEquals(10000L, vals[0]);
+    Assert.assertEquals(10000L * 10001 / 2, vals[1]);
+    Assert.assertEquals(1L, vals[2]);
+    Assert.assertEquals(10000L, vals[3]);
+    long[] expected = {5000, 9000, 9900, 9990};
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], vals[4 + i], expected[i] / 32.0);
+    }
+    Assert.assertEquals(vals[6], acc.getValueAtPercentile(99).longValue());
+    LockFreeAccumulator lf = LockFreeAccumulator.from(acc.createLike("test"));
+    StripedAccumulator st = StripedAccumulator.from(acc.createLike("test"));
+    for (int i = 1; i <= 10000; i++) {
+      lf.record(i);
+      st.record(i);
+    }
+    Assert.assertArrayEquals(vals, lf.get());
+    Assert.assertArrayEquals(vals, st.getThenReset());
+    Assert.assertArrayEquals(vals, acc.getThenReset());
+    Assert.assertNull(acc.get());
+  }
+
+  @Test
+  public void testAggregateDifferentConfigs() {
+    HistogramAccumulator fine = new HistogramAccumulator("test", "", "ms", 1000, 4);
+    HistogramAccumulator coarse = new HistogramAccumulator("test", "", "ms", 100000, 2);
+    HistogramAccumulator expected = new HistogramAccumulator("test", "", "ms", 100000, 2);
+    Random rnd = new Random(7);
+    for (int i = 0; i < 1000; i++) {
+      long v = rnd.nextInt(1000);
+      fine.record(v);
+      expected.record(v);
+      v = rnd.nextInt(100000);
+      coarse.record(v);
+      expected.record(v);
+    }
+    HistogramAccumulator agg = fine.aggregate(coarse);
+    Assert.assertEquals(2, agg.getPrecisionBits());
+    Assert.assertEquals(100000, agg.getHighestTrackableValue());
+    long[] aggVals = agg.get();
+    long[] expVals = expected.get();
+    Assert.assertEquals(Arrays.toString(expVals), Arrays.toString(aggVals));
+    Assert.assertArrayEquals(expVals, coarse.aggregate(fine).get());
+  }
+
+}
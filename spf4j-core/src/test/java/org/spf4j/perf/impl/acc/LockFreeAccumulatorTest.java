@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author zoly
+ */
+public final class LockFreeAccumulatorTest {
+
+  @Test
+  public void testSameAsTemplate() {
+    QuantizedAccumulator template = new QuantizedAccumulator("test", "", "ms", 10, 0, 3, 10);
+    LockFreeAccumulator acc = LockFreeAccumulator.from(template.createClone());
+    Assert.assertNull(acc.get());
+    for (long i = -5; i < 2000; i += 7) {
+      template.record(i);
+      acc.record(i);
+    }
+    Assert.assertArrayEquals(template.get(), acc.get());
+    Assert.assertArrayEquals(template.getThenReset(), acc.getThenReset());
+    Assert.assertNull(acc.get());
+    acc.record(5);
+    template.record(5);
+    Assert.assertArrayEquals(template.get(), acc.createClone().get());
+    Assert.assertArrayEquals(template.get(), acc.reset().get());
+    Assert.assertNull(acc.getThenReset());
+    MinMaxAvgAccumulator mma = new MinMaxAvgAccumulator("test", "", "ms");
+    LockFreeAccumulator acc2 = LockFreeAccumulator.from(mma.createClone());
+    mma.record(3);
+    mma.record(-1);
+    acc2.record(3);
+    acc2.record(-1);
+    Assert.assertArrayEquals(mma.get(), acc2.get());
+    Assert.assertArrayEquals(new long[] {4, 4, -1, 3}, acc2.aggregate(acc2).get());
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    LockFreeAccumulator acc = LockFreeAccumulator.from(new MinMaxAvgAccumulator("test", "", "ms"));
+    int nrThreads = 4;
+    int nrRecords = 100000;
+    CountDownLatch latch = new CountDownLatch(1);
+    Thread[] threads = new Thread[nrThreads];
+    for (int t = 0; t < nrThreads; t++) {
+      threads[t] = new Thread(() -> {
+        try {
+          latch.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 1; i <= nrRecords; i++) {
+          acc.record(i);
+        }
+      });
+      threads[t].start();
+    }
+    latch.countDown();
+    long count = 0;
+    long total = 0;
+    long max = Long.MIN_VALUE;
+    boolean done = false;
+    while (!done) {
+      done = true;
+      for (Thread thread : threads) {
+        if (thread.isAlive()) {
+          done = false;
+        }
+      }
+      long[] vals = acc.getThenReset();
+      if (vals != null) {
+        count += vals[0];
+        total += vals[1];
+        Assert.assertTrue(vals[2] >= 1);
+        max = Math.max(max, vals[3]);
+      }
+    }
+    Assert.assertEquals((long) nrThreads * nrRecords, count);
+    Assert.assertEquals((long) nrThreads * nrRecords * (nrRecords + 1) / 2, total);
+    Assert.assertEquals(nrRecords, max);
+    Assert.assertNull(acc.getThenReset());
+    Assert.assertEquals("cells of dead threads are removed", 0, acc.getNrCells());
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author zoly
+ */
+public final class StripedAccumulatorTest {
+
+  @Test
+  public void testSameAsTemplate() {
+    QuantizedAccumulator template = new QuantizedAccumulator("test", "", "ms", 10, -1, 3, 10);
+    StripedAccumulator acc = StripedAccumulator.from(template.createClone(), 4);
+    Assert.assertNull(acc.get());
+    for (long i = -50; i < 2000; i += 7) {
+      template.record(i);
+      acc.record(i);
+    }
+    Assert.assertArrayEquals(template.get(), acc.get());
+    Assert.assertArrayEquals(template.getThenReset(), acc.getThenReset());
+    Assert.assertNull(acc.getThenReset());
+    acc.record(3);
+    acc.record(7);
+    Assert.assertArrayEquals(new long[] {2, 10, 3, 7},
+            StripedAccumulator.from(new MinMaxAvgAccumulator("test", "", "ms"), 1).createLike("x")
+                    .aggregate(LockFreeAccumulator.from(new MinMaxAvgAccumulator("test", "", "ms"))
+                            .newDetached(new long[] {3, 7, 2, 10})).get());
+    CountAccumulator counter = new CountAccumulator("test", "", "count");
+    StripedAccumulator acc2 = StripedAccumulator.from(counter);
+    acc2.increment();
+    acc2.record(5);
+    Assert.assertArrayEquals(new long[] {6}, acc2.reset().get());
+  }
+
+  @Test
+  public void testManyShortLivedThreads() throws InterruptedException {
+    StripedAccumulator acc = StripedAccumulator.from(new MinMaxAvgAccumulator("test", "", "ms"), 8);
+    long count = 0;
+    long total = 0;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    int nrTasks = 2000;
+    Thread[] threads = new Thread[nrTasks];
+    for (int t = 0; t < nrTasks; t++) {
+      final int val = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100; i++) {
+          acc.record(val);
+        }
+      });
+      threads[t].start();
+      if (t % 100 == 0) {
+        long[] vals = acc.getThenReset();
+        if (vals != null) {
+          count += vals[0];
+          total += vals[1];
+          min = Math.min(min, vals[2]);
+          max = Math.max(max, vals[3]);
+        }
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long[] vals = acc.getThenReset();
+    if (vals != null) {
+      count += vals[0];
+      total += vals[1];
+      min = Math.min(min, vals[2]);
+      max = Math.max(max, vals[3]);
+    }
+    Assert.assertEquals(nrTasks * 100L, count);
+    Assert.assertEquals(100L * nrTasks * (nrTasks - 1) / 2, total);
+    Assert.assertEquals(0L, min);
+    Assert.assertEquals(nrTasks - 1, max);
+  }
+
+}
@@ -34,25 +34,33 @@ package org.spf4j.perf.impl.ms.tsdb;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.specific.SpecificDatumReader;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.perf.MeasurementStoreQuery;
 import org.spf4j.perf.TimeSeriesRecord;
 import org.spf4j.perf.impl.MeasurementsInfoImpl;
 import org.spf4j.perf.impl.ms.tsdb.AvroMeasurementStore.Compressor;
 import org.spf4j.tsdb2.avro.Aggregation;
 import org.spf4j.tsdb2.avro.MeasurementType;
+import org.spf4j.tsdb2.avro.Observation;
 
 /**
  *
@@ -146,6 +154,220 @@ public class AvroMeasurementStoreTest {
 
   }
 
+  @Test
+  public void testSegments() throws IOException {
+    Path folder = Files.createTempDirectory("testSegments");
+    AvroMeasurementStore store = new AvroMeasurementStore(folder, "testSegments", null,
+            new SegmentPolicy(1, 0, TimeUnit.DAYS.toMillis(1), TimeUnit.MINUTES.toMillis(1), 10000));
+    try {
+      long mid = store.alocateMeasurements(new MeasurementsInfoImpl("test", "test", new String[]{"v1", "v2"},
+              new String[]{"t1", "t2"},
+              new Aggregation[]{Aggregation.SUM, Aggregation.LAST},
+              MeasurementType.GAUGE), 1000);
+      for (int i = 0; i < 6; i++) {
+        store.saveMeasurements(mid, i * 1000L, i, i);
+      }
+      store.flush();
+      for (int i = 6; i < 9; i++) {
+        store.saveMeasurements(mid, i * 1000L, i, i);
+      }
+      store.flush();
+      store.flush(); // nothing written, must not roll.
+      List<Path> dataFiles = store.getDataFiles();
+      LOG.debug("Segments {}", dataFiles);
+      Assert.assertEquals(3, dataFiles.size());
+      Assert.assertEquals(store.getDataFile(), dataFiles.get(2));
+      MeasurementStoreQuery query = store.query();
+      Schema metric = query.getMeasurements((x) -> true).iterator().next();
+      List<TimeSeriesRecord> results = getMetrics(query, metric, Instant.EPOCH, Instant.now());
+      Assert.assertEquals(9, results.size());
+      for (int i = 0; i < 9; i++) {
+        Assert.assertEquals(Instant.ofEpochMilli(i * 1000L), results.get(i).getTimeStamp());
+      }
+      long now = System.currentTimeMillis();
+      Files.setLastModifiedTime(dataFiles.get(0), FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(2)));
+      Files.setLastModifiedTime(dataFiles.get(1), FileTime.fromMillis(now - TimeUnit.HOURS.toMillis(1)));
+      store.maintainSegments();
+      dataFiles = store.getDataFiles();
+      Assert.assertEquals(2, dataFiles.size());
+      results = getMetrics(query, metric, Instant.EPOCH, Instant.now());
+      Assert.assertEquals(1, results.size());
+      TimeSeriesRecord rec = results.get(0);
+      Assert.assertEquals(Instant.ofEpochMilli(8000L), rec.getTimeStamp());
+      Assert.assertEquals(6L + 7L + 8L, rec.getLongValue("v1"));
+      Assert.assertEquals(8L, rec.getLongValue("v2"));
+    } finally {
+      store.close();
+      for (Path file : Files.list(folder).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+      Files.delete(folder);
+    }
+  }
+
+  @Test
+  public void testBlockIndex() throws IOException {
+    Path folder = Files.createTempDirectory("testBlockIndex");
+    AvroMeasurementStore store = new AvroMeasurementStore(folder, "testBlockIndex", null, SegmentPolicy.NONE);
+    try {
+      long mid1 = store.alocateMeasurements(new MeasurementsInfoImpl("m1", "test", new String[]{"v1"},
+              new String[]{"t1"}, MeasurementType.GAUGE), 1000);
+      long mid2 = store.alocateMeasurements(new MeasurementsInfoImpl("m2", "test", new String[]{"v1"},
+              new String[]{"t1"}, MeasurementType.GAUGE), 1000);
+      int nrRows = ObservationBlockIndex.DEFAULT_BLOCK_RECORDS * 2;
+      for (int i = 0; i < nrRows; i++) {
+        store.saveMeasurements(mid1, i * 1000L, i);
+        store.saveMeasurements(mid2, i * 1000L, -i);
+      }
+      store.flush();
+      Path dataFile = store.getDataFile();
+      long fileId;
+      try (DataFileReader<Observation> reader = new DataFileReader<>(dataFile.toFile(),
+              new SpecificDatumReader<>(Observation.class))) {
+        fileId = ObservationBlockIndex.getFileId(reader);
+      }
+      ObservationBlockIndex index = ObservationBlockIndex.load(dataFile, fileId, Files.size(dataFile));
+      Assert.assertNotNull(index);
+      Assert.assertEquals(4, index.getBlocks().size());
+      Assert.assertEquals(Files.size(dataFile), index.getIndexedEnd());
+      assertQueries(store.query(), nrRows);
+      store.close();
+      // a index that does not cover the data is completed with a match everything entry.
+      Files.delete(ObservationBlockIndex.getIndexFile(dataFile));
+      store = new AvroMeasurementStore(folder, "testBlockIndex", null, SegmentPolicy.NONE);
+      assertQueries(store.query(), nrRows);
+    } finally {
+      store.close();
+      Files.delete(ObservationBlockIndex.getIndexFile(store.getDataFile()));
+      Files.delete(store.getDataFile());
+      Files.delete(store.getInfoFile());
+      Files.delete(folder);
+    }
+  }
+
+  @Test
+  public void testParallelScan() throws IOException {
+    Path folder = Files.createTempDirectory("testParallelScan");
+    AvroMeasurementStore store = new AvroMeasurementStore(folder, "testParallelScan", null,
+            new SegmentPolicy(1, 0, 0, 0, 60000));
+    try {
+      long mid1 = store.alocateMeasurements(new MeasurementsInfoImpl("m1", "test", new String[]{"v1"},
+              new String[]{"t1"}, MeasurementType.GAUGE), 1000);
+      long mid2 = store.alocateMeasurements(new MeasurementsInfoImpl("m2", "test", new String[]{"v1"},
+              new String[]{"t1"}, MeasurementType.GAUGE), 1000);
+      int nrRows = ObservationBlockIndex.DEFAULT_BLOCK_RECORDS * 3;
+      for (int s = 0; s < 3; s++) {
+        for (int i = s * nrRows; i < (s + 1) * nrRows; i++) {
+          store.saveMeasurements(mid1, i * 1000L, i);
+          store.saveMeasurements(mid2, i * 1000L, -i);
+        }
+        store.flush();
+      }
+      List<Path> dataFiles = store.getDataFiles();
+      Assert.assertEquals(4, dataFiles.size()); // 3 rolled segments + the empty active file.
+      List<Observation> expected = getObservations(store.query());
+      Assert.assertEquals(nrRows * 3 * 2, expected.size());
+      AvroMeasurementStoreReader parallel = new AvroMeasurementStoreReader(store.getInfoFile(),
+              DefaultExecutor.INSTANCE, 4);
+      Assert.assertEquals(expected, getObservations(parallel));
+      assertQueries(parallel, nrRows * 3);
+      // small chunks, files decoded in many pieces, in reverse order to exercise the merge.
+      List<ParallelObservationScan.FileScan> files = new ArrayList<>(dataFiles.size());
+      for (int i = dataFiles.size() - 1; i >= 0; i--) {
+        Path dataFile = dataFiles.get(i);
+        try (DataFileReader<Observation> reader = new DataFileReader<>(dataFile.toFile(),
+                new SpecificDatumReader<>(Observation.class))) {
+          files.add(new ParallelObservationScan.FileScan(dataFile, reader.getMetaLong("timeRef"),
+                  new long[] {reader.previousSync(), Files.size(dataFile)}, Long.MIN_VALUE, Long.MAX_VALUE, null));
+        }
+      }
+      List<Observation> result = new ArrayList<>(expected.size());
+      try (ParallelObservationScan scan = new ParallelObservationScan(files, DefaultExecutor.INSTANCE, 4, 8192)) {
+        scan.forEachRemaining(result::add);
+      }
+      Assert.assertEquals(expected.size(), result.size());
+      for (int i = 1; i < result.size(); i++) {
+        Assert.assertTrue(result.get(i - 1).getRelTimeStamp() <= result.get(i).getRelTimeStamp());
+      }
+      Assert.assertEquals(new HashSet<>(expected), new HashSet<>(result));
+    } finally {
+      store.close();
+      for (Path file : Files.list(folder).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+      Files.delete(folder);
+    }
+  }
+
+  /**
+   * Segments with interleaved timestamps: sequential and parallel scans must both merge them by timestamp,
+   * and the returned iterables must be re-iterable.
+   */
+  @Test
+  public void testScanOrderAndReuse() throws IOException {
+    Path folder = Files.createTempDirectory("testScanOrder");
+    AvroMeasurementStore store = new AvroMeasurementStore(folder, "testScanOrder", null,
+            new SegmentPolicy(1, 0, 0, 0, 60000));
+    try {
+      long mid = store.alocateMeasurements(new MeasurementsInfoImpl("m1", "test", new String[]{"v1"},
+              new String[]{"t1"}, MeasurementType.GAUGE), 1000);
+      int nrRows = 1000;
+      for (int s = 0; s < 3; s++) {
+        for (int i = 0; i < nrRows; i++) {
+          store.saveMeasurements(mid, (i * 3L + 2 - s) * 1000L, s);
+        }
+        store.flush();
+      }
+      MeasurementStoreQuery[] queries = new MeasurementStoreQuery[] {store.query(),
+        new AvroMeasurementStoreReader(store.getInfoFile(), DefaultExecutor.INSTANCE, 4)};
+      for (MeasurementStoreQuery query : queries) {
+        Schema m1 = query.getMeasurements((x) -> "m1".equals(x)).iterator().next();
+        try (AvroCloseableIterable<Observation> data = query.getObservations(m1, Instant.EPOCH, Instant.now())) {
+          List<Observation> first = new ArrayList<>(nrRows * 3);
+          data.forEach(first::add);
+          List<Observation> second = new ArrayList<>(nrRows * 3);
+          data.forEach(second::add);
+          Assert.assertEquals(nrRows * 3, first.size());
+          for (int i = 0; i < first.size(); i++) {
+            Assert.assertEquals(i * 1000L, first.get(i).getRelTimeStamp());
+          }
+          Assert.assertEquals(first, second);
+        }
+        Assert.assertEquals(nrRows * 3, getObservations(query).size());
+      }
+    } finally {
+      store.close();
+      for (Path file : Files.list(folder).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+      Files.delete(folder);
+    }
+  }
+
+  private static List<Observation> getObservations(final MeasurementStoreQuery query) throws IOException {
+    List<Observation> result = new ArrayList<>();
+    try (AvroCloseableIterable<Observation> data = query.getObservations()) {
+      for (Observation obs : data) {
+        result.add(obs);
+      }
+    }
+    return result;
+  }
+
+  private static void assertQueries(final MeasurementStoreQuery query, final int nrRows) throws IOException {
+    Schema m1 = query.getMeasurements((x) -> "m1".equals(x)).iterator().next();
+    List<TimeSeriesRecord> results = getMetrics(query, m1, Instant.ofEpochMilli(5000_000L),
+            Instant.ofEpochMilli(5010_000L));
+    Assert.assertEquals(11, results.size());
+    for (int i = 0; i < 11; i++) {
+      Assert.assertEquals(5000L + i, results.get(i).getLongValue("v1"));
+    }
+    results = getMetrics(query, m1, Instant.EPOCH, Instant.ofEpochMilli(Long.MAX_VALUE));
+    Assert.assertEquals(nrRows, results.size());
+    results = getMetrics(query, m1, Instant.ofEpochMilli(nrRows * 1000L), Instant.ofEpochMilli(Long.MAX_VALUE));
+    Assert.assertEquals(0, results.size());
+  }
+
   public static List<TimeSeriesRecord> getMetrics(final MeasurementStoreQuery query,
           final Schema metric, final Instant from, final Instant to) throws IOException {
     List<TimeSeriesRecord> results = new ArrayList<>();
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.avro.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.perf.TimeSeriesRecord;
+import org.spf4j.perf.impl.MeasurementsInfoImpl;
+import org.spf4j.tsdb2.TSDBQuery;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.MeasurementType;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * @author zoly
+ */
+public class TSDBMeasurementStoreTest {
+
+  @Test
+  public void testSegments() throws IOException {
+    Path folder = Files.createTempDirectory("tsdbSegments");
+    File dbFile = folder.resolve("test.tsdb2").toFile();
+    TSDBMeasurementStore store = new TSDBMeasurementStore(dbFile,
+            new SegmentPolicy(1, 0, 0, TimeUnit.MINUTES.toMillis(1), 10000));
+    // row encoded blocks store int millis relative to the block start, so use recent timestamps.
+    long time = (System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) / 60000 * 60000;
+    try {
+      long mid1 = store.alocateMeasurements(new MeasurementsInfoImpl("m1", "test", new String[]{"v1", "v2"},
+              new String[]{"t1", "t2"}, new Aggregation[]{Aggregation.SUM, Aggregation.LAST},
+              MeasurementType.GAUGE), 1000);
+      long mid2 = store.alocateMeasurements(new MeasurementsInfoImpl("m2", "test", new String[]{"v"},
+              new String[]{"t"}, MeasurementType.GAUGE), 1000);
+      for (int i = 0; i < 6; i++) {
+        store.saveMeasurements(mid1, time + i * 1000L, i, i);
+        store.saveMeasurements(mid2, time + i * 1000L, i);
+      }
+      store.flush();
+      for (int i = 6; i < 9; i++) {
+        store.saveMeasurements(mid1, time + i * 1000L, i, i);
+      }
+      store.flush();
+      List<Path> segments = Segments.list(folder, "test", ".tsdb2");
+      Assert.assertEquals(3, segments.size());
+      MeasurementStoreQuery query = store.query();
+      Collection<Schema> measurements = query.getMeasurements((x) -> "m1".equals(x));
+      Assert.assertEquals(1, measurements.size());
+      Schema m1 = measurements.iterator().next();
+      // the table definitions are written in every segment.
+      Assert.assertEquals(3, ((Collection) m1.getObjectProp(TimeSeriesRecord.IDS_PROP)).size());
+      List<TimeSeriesRecord> results = AvroMeasurementStoreTest.getMetrics(query, m1, Instant.EPOCH, Instant.now());
+      Assert.assertEquals(9, results.size());
+      for (int i = 0; i < 9; i++) {
+        Assert.assertEquals(Instant.ofEpochMilli(time + i * 1000L), results.get(i).getTimeStamp());
+        Assert.assertEquals(i, results.get(i).getLongValue("v1"));
+      }
+
+      Files.setLastModifiedTime(segments.get(0),
+              FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+      store.maintainSegments();
+      for (TableDef td : TSDBQuery.getAllTables(segments.get(0).toFile()).values()) {
+        Assert.assertEquals(10000, td.getSampleTime());
+      }
+      // table ids are file positions, they change when a segment is rewritten.
+      m1 = query.getMeasurements((x) -> "m1".equals(x)).iterator().next();
+      results = AvroMeasurementStoreTest.getMetrics(query, m1, Instant.EPOCH, Instant.now());
+      Assert.assertEquals(4, results.size());
+      TimeSeriesRecord rec = results.get(0);
+      Assert.assertEquals(Instant.ofEpochMilli(time + 5000L), rec.getTimeStamp());
+      Assert.assertEquals(0L + 1 + 2 + 3 + 4 + 5, rec.getLongValue("v1"));
+      Assert.assertEquals(5L, rec.getLongValue("v2"));
+      Assert.assertEquals(Instant.ofEpochMilli(time + 6000L), results.get(1).getTimeStamp());
+    } finally {
+      store.close();
+      for (Path file : Files.list(folder).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+      Files.delete(folder);
+    }
+  }
+
+  @Test
+  public void testSavesRacingRoll() throws Exception {
+    Path folder = Files.createTempDirectory("tsdbRoll");
+    File dbFile = folder.resolve("test.tsdb2").toFile();
+    TSDBMeasurementStore store = new TSDBMeasurementStore(dbFile, new SegmentPolicy(1, 0, 0, 0, 0));
+    long time = (System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) / 60000 * 60000;
+    int nrThreads = 4;
+    int nrRows = 2000;
+    ExecutorService exec = Executors.newFixedThreadPool(nrThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>(nrThreads);
+      for (int t = 0; t < nrThreads; t++) {
+        long mid = store.alocateMeasurements(new MeasurementsInfoImpl("m" + t, "test", new String[]{"v"},
+                new String[]{"t"}, MeasurementType.GAUGE), 1000);
+        futures.add(exec.submit(() -> {
+          for (int i = 0; i < nrRows; i++) {
+            store.saveMeasurements(mid, time + i, i);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        while (!future.isDone()) {
+          store.flush();
+        }
+        future.get();
+      }
+      store.flush();
+      MeasurementStoreQuery query = store.query();
+      for (int t = 0; t < nrThreads; t++) {
+        String name = "m" + t;
+        Schema m = query.getMeasurements((x) -> name.equals(x)).iterator().next();
+        List<TimeSeriesRecord> results = AvroMeasurementStoreTest.getMetrics(query, m, Instant.EPOCH, Instant.now());
+        Assert.assertEquals(nrRows, results.size());
+      }
+    } finally {
+      exec.shutdown();
+      store.close();
+      for (Path file : Files.list(folder).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+      Files.delete(folder);
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.avro.Method;
+import org.spf4j.stackmonitor.CallingContextTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * @author zoly
+ */
+public final class StreamingConverterTest {
+
+  private static SampleNode randomSamples(final Random rnd, final int nrSamples) {
+    SampleNode result = null;
+    for (int s = 0; s < nrSamples; s++) {
+      StackTraceElement[] st = new StackTraceElement[1 + rnd.nextInt(8)];
+      for (int i = 0; i < st.length; i++) {
+        int m = rnd.nextInt(4);
+        st[i] = new StackTraceElement("C" + m, "m" + m + (i % 3), "C.java", i);
+      }
+      if (result == null) {
+        result = SampleNode.createSampleNode(st);
+      } else {
+        SampleNode.addToSampleNode(result, st);
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testStreamingOperations() throws IOException {
+    Random rnd = new Random(3);
+    SampleNode a = randomSamples(rnd, 500);
+    SampleNode b = randomSamples(rnd, 300);
+    File fa = File.createTempFile("testa", ".ssdump2");
+    File fb = File.createTempFile("testb", ".ssdump2.gz");
+    Converter.save(fa, a);
+    Converter.save(fb, b);
+    StreamingConverter.ElementSource sa = StreamingConverter.ssdump2(fa);
+    StreamingConverter.ElementSource sb = StreamingConverter.ssdump2(fb);
+
+    Assert.assertEquals(a, StreamingConverter.load(sa, (m) -> false));
+    CallingContextTree agg = StreamingConverter.aggregate(new CallingContextTree(), sa);
+    StreamingConverter.aggregate(agg, sb);
+    Assert.assertEquals(SampleNode.aggregate(a, b), agg.toSampleNode());
+
+    Predicate<Method> exclude = (m) -> "m11".equals(m.getName()) || "m22".equals(m.getName());
+    Assert.assertEquals(a.filteredBy(exclude), StreamingConverter.load(sa, exclude));
+    Assert.assertNull(StreamingConverter.load(sa, (m) -> true));
+
+    Assert.assertEquals(SampleNode.diff(a, b), StreamingConverter.diff(sa, sb));
+    Assert.assertEquals(SampleNode.diff(b, a), StreamingConverter.diff(sb, sa));
+    Assert.assertNull(StreamingConverter.diff(sa, sa));
+
+    int nrElements = StreamingConverter.fold(sa, 0, (c, e) -> c + 1);
+    Assert.assertEquals(a.getNrNodes(), nrElements);
+  }
+
+  @Test
+  public void testLabeledDumps() throws IOException {
+    Random rnd = new Random(5);
+    Map<String, SampleNode> dumps = new HashMap<>();
+    List<String> labels = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      String label = "label" + i;
+      labels.add(label);
+      dumps.put(label, randomSamples(rnd, 100 + i));
+    }
+    for (String suffix : new String[] {".ssdump3", ".ssdump3.gz"}) {
+      File file = File.createTempFile("labeled", suffix);
+      Converter.saveLabeledDumps(file, dumps);
+      List<String> loadedLabels = new ArrayList<>();
+      Converter.loadLabels(file, loadedLabels::add);
+      Assert.assertEquals(dumps.keySet().size(), loadedLabels.size());
+      Assert.assertTrue(loadedLabels.containsAll(labels));
+      for (String label : labels) {
+        Assert.assertEquals(dumps.get(label), Converter.loadLabeledDump(file, label));
+        Assert.assertEquals(dumps.get(label),
+                StreamingConverter.load(StreamingConverter.labeledDump(file, label), (m) -> false));
+      }
+      Assert.assertNull(Converter.loadLabeledDump(file, "nolabel"));
+      Assert.assertNull(StreamingConverter.load(StreamingConverter.labeledDump(file, "nolabel"), (m) -> false));
+      // the index is invalidated when the file changes.
+      Converter.saveLabeledDumps(file, Collections.singletonMap("other", dumps.get("label1")));
+      Assert.assertEquals(dumps.get("label1"), Converter.loadLabeledDump(file, "other"));
+      Assert.assertNull(Converter.loadLabeledDump(file, "label1"));
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author zoly
+ */
+public final class CallingContextTreeTest {
+
+  @Test
+  public void testSameAsSampleNode() {
+    Random rnd = new Random(7);
+    StackTraceElement[] frames = new StackTraceElement[50];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new StackTraceElement("C" + (i % 7), "m" + i, "C.java", i);
+    }
+    CallingContextTree tree = new CallingContextTree();
+    Assert.assertNull(tree.toSampleNode());
+    SampleNode expected = null;
+    for (int s = 0; s < 2000; s++) {
+      StackTraceElement[] st = new StackTraceElement[1 + rnd.nextInt(30)];
+      for (int i = 0; i < st.length; i++) {
+        StackTraceElement f = frames[rnd.nextInt(8) + (i % 5) * 8];
+        // same method, different element instance, must not create a distinct node.
+        st[i] = rnd.nextBoolean() ? f
+                : new StackTraceElement(f.getClassName(), f.getMethodName(), f.getFileName(), f.getLineNumber() + 1);
+      }
+      tree.add(st);
+      if (expected == null) {
+        expected = SampleNode.createSampleNode(st);
+      } else {
+        SampleNode.addToSampleNode(expected, st);
+      }
+    }
+    SampleNode result = tree.toSampleNode();
+    Assert.assertEquals(expected, result);
+    Assert.assertEquals(expected.getNrNodes(), tree.getNrNodes());
+    Assert.assertEquals(40, tree.getNrMethods());
+    tree.reset();
+    Assert.assertTrue(tree.isEmpty());
+    Assert.assertNull(tree.toSampleNode());
+    tree.add(new StackTraceElement[] {frames[0]});
+    Assert.assertEquals(SampleNode.createSampleNode(frames[0]), tree.toSampleNode());
+    Assert.assertEquals(40, tree.getNrMethods());
+  }
+
+  @Test
+  public void testMethodTableBounded() {
+    CallingContextTree tree = new CallingContextTree(100);
+    StackTraceElement main = new StackTraceElement("Main", "main", null, -1);
+    for (int c = 0; c < 50; c++) {
+      SampleNode expected = null;
+      for (int i = 0; i < 30; i++) {
+        // like generated/lambda classes, new methods every cycle.
+        StackTraceElement[] st = {new StackTraceElement("Lambda" + c + '_' + i, "run", null, -1), main};
+        tree.add(st);
+        if (expected == null) {
+          expected = SampleNode.createSampleNode(st);
+        } else {
+          SampleNode.addToSampleNode(expected, st);
+        }
+      }
+      Assert.assertEquals(expected, tree.toSampleNode());
+      tree.reset();
+      Assert.assertTrue(tree.getNrMethods() <= 100 + 31);
+    }
+    tree.add(new StackTraceElement[] {main});
+    Assert.assertEquals(SampleNode.createSampleNode(main), tree.toSampleNode());
+  }
+
+}
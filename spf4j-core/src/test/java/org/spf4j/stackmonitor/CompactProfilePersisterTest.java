@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.ssdump2.CompactProfileReader;
+import org.spf4j.ssdump2.Converter;
+
+/**
+ * @author zoly
+ */
+public final class CompactProfilePersisterTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompactProfilePersisterTest.class);
+
+  private static SampleNode testSamples() {
+    SampleNodeTest snt = new SampleNodeTest();
+    SampleNode sn = SampleNode.createSampleNode(snt.newSt1());
+    SampleNode.addToSampleNode(sn, snt.newSt2());
+    SampleNode.addToSampleNode(sn, snt.newSt3());
+    SampleNode.addToSampleNode(sn, snt.newSt4());
+    return sn;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    SampleNode sn = testSamples();
+    Path folder = Files.createTempDirectory("compactProfile");
+    Path file;
+    Instant from = Instant.parse("2020-01-31T16:00:00Z");
+    Instant to = from.plusSeconds(10);
+    try (CompactProfilePersister persister = new CompactProfilePersister(folder, "testProfile", true)) {
+      for (int i = 0; i < 10; i++) {
+        persister.persist(ImmutableMap.of("test", sn), "tag", from, to);
+      }
+      file = persister.getTargetFile();
+    }
+    try (CompactProfileReader reader = new CompactProfileReader(
+            new GZIPInputStream(Files.newInputStream(file)))) {
+      for (int i = 0; i < 10; i++) {
+        CompactProfileReader.ProfileRecord rec = reader.read();
+        Assert.assertEquals("test", rec.getLabel());
+        Assert.assertEquals("tag", rec.getTag());
+        Assert.assertEquals(from, rec.getFrom());
+        Assert.assertEquals(to, rec.getTo());
+        Assert.assertEquals(sn, rec.getSamples());
+      }
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testSizeAndRotation() throws IOException {
+    SampleNode sn = testSamples();
+    Path folder = Files.createTempDirectory("compactProfile");
+    File ssdump2File = folder.resolve("testProfile" + ProfileFileFormat.SSDUMP_2.getSuffix()).toFile();
+    Converter.save(ssdump2File, sn);
+    Path compactFile;
+    try (CompactProfilePersister persister = new CompactProfilePersister(folder, "testProfile", false)) {
+      persister.persist(ImmutableMap.of("test", sn), null, Instant.now(), Instant.now());
+      compactFile = persister.getTargetFile();
+    }
+    LOG.debug("ssdump2 size = {}, compact size = {}", ssdump2File.length(), Files.size(compactFile));
+    Assert.assertTrue(Files.size(compactFile) < ssdump2File.length());
+    Path rotFolder = Files.createTempDirectory("compactProfile");
+    try (CompactProfilePersister persister = new CompactProfilePersister(rotFolder, "testProfile", false,
+            1, 3600000)) {
+      for (int i = 0; i < 3; i++) {
+        persister.persist(ImmutableMap.of("test", sn), null, Instant.now(), Instant.now());
+      }
+    }
+    List<Path> files;
+    try (Stream<Path> list = Files.list(rotFolder)) {
+      files = list.collect(Collectors.toList());
+    }
+    Assert.assertEquals(3, files.size());
+    for (Path file : files) {
+      try (CompactProfileReader reader = new CompactProfileReader(Files.newInputStream(file))) {
+        Assert.assertEquals(sn, reader.read().getSamples());
+        Assert.assertNull(reader.read());
+      }
+    }
+  }
+
+  @Test
+  public void testFailedPersistStartsNewFile() throws IOException {
+    SampleNode sn = testSamples();
+    Path folder = Files.createTempDirectory("compactProfile");
+    AtomicBoolean fail = new AtomicBoolean(true);
+    Path goodFile;
+    try (CompactProfilePersister persister = new CompactProfilePersister(folder, "testProfile", false,
+            1024 * 1024, 3600000, (f) -> new FilterOutputStream(Files.newOutputStream(f)) {
+              @Override
+              public void write(final byte[] b, final int off, final int len) throws IOException {
+                if (fail.get()) {
+                  throw new IOException("test failure");
+                }
+                out.write(b, off, len);
+              }
+            })) {
+      try {
+        persister.persist(ImmutableMap.of("test", sn), null, Instant.now(), Instant.now());
+        Assert.fail();
+      } catch (IOException ex) {
+        // expected
+      }
+      Path failedFile = persister.getTargetFile();
+      fail.set(false);
+      persister.persist(ImmutableMap.of("test", sn), null, Instant.now(), Instant.now());
+      goodFile = persister.getTargetFile();
+      Assert.assertNotEquals(failedFile, goodFile);
+    }
+    try (CompactProfileReader reader = new CompactProfileReader(Files.newInputStream(goodFile))) {
+      Assert.assertEquals(sn, reader.read().getSamples());
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testSocketPersister() throws IOException {
+    SampleNode sn = testSamples();
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Path folder = Files.createTempDirectory("compactProfile");
+      try (SocketProfilePersister persister = new SocketProfilePersister(
+              new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+              folder, "testProfile", true)) {
+        Assert.assertNull(persister.persist(ImmutableMap.of("test", sn), null, Instant.now(), Instant.now()));
+        persister.persist(ImmutableMap.of("test2", sn), null, Instant.now(), Instant.now());
+        Assert.assertTrue(persister.isConnected());
+        try (Socket client = server.accept();
+                InputStream is = new GZIPInputStream(client.getInputStream());
+                CompactProfileReader reader = new CompactProfileReader(is)) {
+          CompactProfileReader.ProfileRecord rec = reader.read();
+          Assert.assertEquals("test", rec.getLabel());
+          Assert.assertEquals(sn, rec.getSamples());
+          rec = reader.read();
+          Assert.assertEquals("test2", rec.getLabel());
+          Assert.assertEquals(sn, rec.getSamples());
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author zoly
+ */
+public final class ContentionStackCollectorTest {
+
+  private static final Object LOCK = new Object();
+
+  @Test(timeout = 30000)
+  public void testContention() throws InterruptedException {
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread owner = new Thread(() -> {
+      synchronized (LOCK) {
+        locked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "lockOwner1");
+    owner.start();
+    locked.await();
+    Thread contender = new Thread(() -> {
+      synchronized (LOCK) {
+        LOCK.notifyAll();
+      }
+    }, "lockContender");
+    contender.start();
+    try {
+      while (contender.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(1);
+      }
+      ContentionStackCollector collector = new ContentionStackCollector(Thread.currentThread());
+      for (int i = 0; i < 5; i++) {
+        collector.sample();
+      }
+      List<ContentionStackCollector.LockContention> instances = collector.getTopContendedLockInstances(10);
+      ContentionStackCollector.LockContention instance = instances.stream()
+              .filter((c) -> c.getLock().equals("java.lang.Object@"
+                      + Integer.toHexString(System.identityHashCode(LOCK)))).findFirst().get();
+      Assert.assertEquals(5, instance.getNrSamples());
+      Assert.assertEquals(Integer.valueOf(5), instance.getOwnerSamples().get("lockOwner1"));
+      Map<String, SampleNode> collections = collector.getCollectionsAndReset();
+      SampleNode blocked = collections.get(ContentionStackCollector.BLOCKED);
+      Assert.assertNotNull(collections.toString(), blocked);
+      Assert.assertNotNull(collections.get(ContentionStackCollector.WAITING));
+      List<ContentionStackCollector.LockContention> top = ContentionStackCollector.getTopContendedLocks(blocked, 3);
+      Assert.assertEquals(1, top.size());
+      ContentionStackCollector.LockContention contention = top.get(0);
+      // the tree is keyed by the lock class, and the owner thread name without digits.
+      Assert.assertEquals("java.lang.Object", contention.getLock());
+      Assert.assertEquals(5, contention.getNrSamples());
+      Assert.assertEquals(Integer.valueOf(5), contention.getOwnerSamples().get("lockOwner#"));
+      Assert.assertTrue(collector.getCollections().isEmpty());
+      Assert.assertTrue(collector.getTopContendedLockInstances(10).isEmpty());
+    } finally {
+      release.countDown();
+      owner.join();
+      contender.join();
+    }
+  }
+
+}
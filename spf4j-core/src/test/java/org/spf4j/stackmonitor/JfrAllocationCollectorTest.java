@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.spf4j.base.avro.Method;
+
+/**
+ * @author zoly
+ */
+public final class JfrAllocationCollectorTest {
+
+  private static volatile Object sink;
+
+  @Test(timeout = 60000)
+  public void testAllocationProfile() throws InterruptedException {
+    Assume.assumeTrue(JfrEventDrain.isAvailable());
+    Thread ignored = new Thread("ignored");
+    CountingDelegate delegate = new CountingDelegate();
+    try (JfrAllocationCollector collector = new JfrAllocationCollector(ignored, delegate, "1000/s",
+            Duration.ofMillis(100))) {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      SampleNode allocations = null;
+      while (System.nanoTime() < deadline) {
+        allocate();
+        collector.sample();
+        allocations = collector.getCollections().get(JfrAllocationCollector.LABEL);
+        if (allocations != null && contains(allocations, "allocate")) {
+          break;
+        }
+        Thread.sleep(10);
+      }
+      Assert.assertNotNull(allocations);
+      Assert.assertTrue(allocations.toString(), contains(allocations, "allocate"));
+      Assert.assertTrue(delegate.nrSamples > 0);
+      Map<String, SampleNode> reset = collector.getCollectionsAndReset();
+      Assert.assertTrue(reset.get(JfrAllocationCollector.LABEL).getSampleCount() >= allocations.getSampleCount());
+      Assert.assertNotNull(reset.get("DELEGATE"));
+      collector.close();
+      Assert.assertTrue(delegate.closed);
+    }
+  }
+
+  private static void allocate() {
+    for (int i = 0; i < 1000; i++) {
+      sink = new byte[10240];
+    }
+  }
+
+  private static boolean contains(final SampleNode node, final String methodName) {
+    for (Map.Entry<Method, SampleNode> entry : node.entrySet()) {
+      if (methodName.equals(entry.getKey().getName()) || contains(entry.getValue(), methodName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class CountingDelegate implements ISampler, Closeable {
+
+    private int nrSamples;
+
+    private boolean closed;
+
+    @Override
+    public void sample() {
+      nrSamples++;
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollectionsAndReset() {
+      return getCollections();
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollections() {
+      return Collections.singletonMap("DELEGATE", new SampleNode(nrSamples));
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.spf4j.base.avro.Method;
+
+/**
+ * @author zoly
+ */
+public final class JfrStackCollectorTest {
+
+  private static volatile boolean spin;
+
+  private static volatile long sink;
+
+  @Test(timeout = 60000)
+  public void testJfrSampling() throws InterruptedException {
+    Assume.assumeTrue(JfrEventDrain.isAvailable());
+    spin = true;
+    Thread busy = new Thread(JfrStackCollectorTest::busyWork, "jfr-test-busy");
+    busy.start();
+    try (JfrStackCollector collector = new JfrStackCollector(Thread.currentThread(), Duration.ofMillis(5),
+            Duration.ofMillis(100))) {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      SampleNode samples = null;
+      while (System.nanoTime() < deadline) {
+        collector.sample();
+        Map<String, SampleNode> collections = collector.getCollections();
+        samples = collections.get("ALL");
+        if (samples != null && contains(samples, "busyWork")) {
+          break;
+        }
+        Thread.sleep(50);
+      }
+      Assert.assertNotNull(samples);
+      Assert.assertTrue(samples.toString(), contains(samples, "busyWork"));
+      int count = samples.getSampleCount();
+      // a second read without new samples must not double count already drained events.
+      spin = false;
+      busy.join();
+      Map<String, SampleNode> reset = collector.getCollectionsAndReset();
+      Assert.assertTrue(reset.get("ALL").getSampleCount() >= count);
+      // close hands over the samples not yet delivered, nothing is read after.
+      collector.close();
+      collector.getCollectionsAndReset();
+      collector.sample();
+      Assert.assertTrue(collector.getCollections().isEmpty());
+    } finally {
+      spin = false;
+      busy.join();
+    }
+  }
+
+  private static boolean contains(final SampleNode node, final String methodName) {
+    for (Map.Entry<Method, SampleNode> entry : node.entrySet()) {
+      if (methodName.equals(entry.getKey().getName()) || contains(entry.getValue(), methodName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void busyWork() {
+    long result = 0;
+    while (spin) {
+      for (int i = 0; i < 1000; i++) {
+        result += Long.toString(result * 31 + i).hashCode();
+      }
+    }
+    sink = result;
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Methods;
+
+/**
+ * @author zoly
+ */
+public final class ProfileRingTest {
+
+  private static final Instant T0 = Instant.parse("2020-01-31T16:00:00Z");
+
+  @Test
+  public void testWindows() {
+    ProfileRing ring = new ProfileRing(3600000, 1024 * 1024);
+    for (int i = 0; i < 6; i++) {
+      ring.add(T0.plusSeconds(i * 10), T0.plusSeconds(i * 10 + 10), Collections.singletonMap("label",
+              SampleNode.createSampleNode(new StackTraceElement("C", "m" + i, "C.java", 1))));
+    }
+    Assert.assertEquals(6, ring.getNrSlices());
+    Map<String, SampleNode> profile = ring.getProfile(T0.plusSeconds(15), T0.plusSeconds(30));
+    SampleNode node = profile.get("label");
+    Assert.assertEquals(2, node.getSampleCount());
+    Assert.assertNotNull(node.get(Methods.getMethod(new StackTraceElement("C", "m1", "C.java", 1))));
+    Assert.assertNotNull(node.get(Methods.getMethod(new StackTraceElement("C", "m2", "C.java", 1))));
+    Assert.assertEquals(6, ring.getProfile(T0, T0.plusSeconds(60)).get("label").getSampleCount());
+    Assert.assertTrue(ring.getProfile(T0.plusSeconds(60), T0.plusSeconds(70)).isEmpty());
+  }
+
+  @Test
+  public void testEviction() {
+    ProfileRing ring = new ProfileRing(30000, 1024 * 1024);
+    Map<String, SampleNode> samples = Collections.singletonMap("label",
+              SampleNode.createSampleNode(new StackTraceElement("C", "m", "C.java", 1)));
+    for (int i = 0; i < 6; i++) {
+      ring.add(T0.plusSeconds(i * 10), T0.plusSeconds(i * 10 + 10), samples);
+    }
+    Assert.assertEquals(3, ring.getNrSlices());
+    Assert.assertEquals(T0.plusSeconds(30), ring.getOldestInstant());
+    long sliceBytes = ring.getBytes() / 3;
+    ProfileRing small = new ProfileRing(3600000, sliceBytes * 2);
+    for (int i = 0; i < 6; i++) {
+      small.add(T0.plusSeconds(i * 10), T0.plusSeconds(i * 10 + 10), samples);
+    }
+    Assert.assertEquals(2, small.getNrSlices());
+    Assert.assertEquals(sliceBytes * 2, small.getBytes());
+    Assert.assertEquals(2, small.getProfile(T0, T0.plusSeconds(60)).get("label").getSampleCount());
+  }
+
+}
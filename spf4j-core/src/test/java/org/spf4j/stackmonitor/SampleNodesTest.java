@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.avro.Method;
+
+/**
+ * @author zoly
+ */
+public final class SampleNodesTest {
+
+  private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+  @AfterClass
+  public static void shutdown() {
+    POOL.shutdown();
+  }
+
+  @Test
+  public void testAggregate() {
+    Random rnd = new Random(7);
+    for (int i = 0; i < 20; i++) {
+      List<SampleNode> nodes = new ArrayList<>();
+      SampleNode expected = new SampleNode(0);
+      for (int j = 0; j < 5; j++) {
+        SampleNode node = randomTree(rnd, 200);
+        nodes.add(node);
+        expected.add(SampleNode.clone(node));
+      }
+      String before = nodes.toString();
+      Assert.assertEquals(expected, SampleNodes.aggregate(nodes));
+      Assert.assertEquals(expected, SampleNodes.aggregate(POOL, nodes, 10));
+      Assert.assertEquals(before, nodes.toString());
+    }
+    Assert.assertNull(SampleNodes.aggregate(new ArrayList<>()));
+  }
+
+  @Test
+  public void testDiffIntersectFilter() {
+    Random rnd = new Random(11);
+    Predicate<Method> pred = (m) -> "m1".equals(m.getName());
+    for (int i = 0; i < 50; i++) {
+      SampleNode a = randomTree(rnd, 300);
+      SampleNode b = randomTree(rnd, 300);
+      Assert.assertEquals(SampleNode.diff(a, b), SampleNodes.diff(POOL, a, b, 10));
+      Assert.assertEquals(SampleNode.intersect(a, b), SampleNodes.intersect(POOL, a, b, 10));
+      Assert.assertEquals(a.filteredBy(pred), SampleNodes.filteredBy(POOL, a, pred, 10));
+      Method m = Method.newBuilder().setDeclaringClass("C").setName("root").build();
+      Assert.assertEquals(SampleNode.diffAnnotate(m, a, b), SampleNodes.diffAnnotate(POOL, m, a, b));
+    }
+  }
+
+  @Test
+  public void testDeepTree() {
+    StackTraceElement[] st = new StackTraceElement[100000];
+    for (int i = 0; i < st.length; i++) {
+      st[i] = new StackTraceElement("C", "m" + (i % 3), "C.java", i);
+    }
+    SampleNode a = SampleNode.createSampleNode(st);
+    SampleNode b = SampleNode.createSampleNode(st);
+    SampleNode.addToSampleNode(b, st);
+    SampleNode aggregate = SampleNodes.aggregate(POOL, Arrays.asList(a, b), 1);
+    Assert.assertEquals(3, aggregate.getSampleCount());
+    Assert.assertEquals(0, SampleNodes.diff(POOL, a, b, 1).getSampleCount());
+    Assert.assertEquals(1, SampleNodes.intersect(POOL, a, b, 1).getSampleCount());
+    SampleNode copy = SampleNode.clone(b);
+    copy.add(a);
+    Assert.assertEquals(3, copy.getSampleCount());
+    Assert.assertEquals(st.length + 1, SampleNodes.filteredBy(POOL, b, (m) -> false, 1).getNrNodes());
+    Assert.assertNull(SampleNodes.filteredBy(POOL, b, (m) -> "m2".equals(m.getName()), 1));
+  }
+
+  private static SampleNode randomTree(final Random rnd, final int nrSamples) {
+    SampleNode result = new SampleNode(0);
+    for (int i = 0; i < nrSamples; i++) {
+      StackTraceElement[] st = new StackTraceElement[1 + rnd.nextInt(8)];
+      for (int j = 0; j < st.length; j++) {
+        st[j] = new StackTraceElement("C" + rnd.nextInt(2), "m" + rnd.nextInt(3), "C.java", j);
+      }
+      SampleNode.addToSampleNode(result, st);
+    }
+    return result;
+  }
+
+}
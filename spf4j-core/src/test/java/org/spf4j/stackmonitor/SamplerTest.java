@@ -34,12 +34,21 @@ package org.spf4j.stackmonitor;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.hamcrest.Matchers;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spf4j.base.StackSamples;
 import org.spf4j.log.Level;
 import org.spf4j.test.log.LogAssert;
 import org.spf4j.test.matchers.LogMatchers;
@@ -90,5 +99,145 @@ public class SamplerTest {
     sampler.stop();
   }
 
+  @Test(timeout = 20000)
+  public void testSlowPersisterDoesNotStallSampling() throws InterruptedException, IOException {
+    CountDownLatch persistBlock = new CountDownLatch(1);
+    BlockingPersister persister = new BlockingPersister(persistBlock);
+    AtomicInteger nrSamples = new AtomicInteger();
+    Sampler sampler = new Sampler(1, 10, (t) -> new CountingSampler(
+            new FastStackCollector(false, true, new Thread[]{t}), nrSamples), persister);
+    sampler.start();
+    while (sampler.getDeferredDumpCount() == 0) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(sampler.getPersistQueueCapacity(), sampler.getPersistQueueSize());
+    int samples = nrSamples.get();
+    Thread.sleep(100);
+    Assert.assertThat(nrSamples.get(), Matchers.greaterThan(samples));
+    Assert.assertFalse(sampler.getStackCollections().isEmpty());
+    persistBlock.countDown();
+    sampler.stop();
+    Assert.assertEquals(0, sampler.getPersistQueueSize());
+    Assert.assertEquals(persister.getNrPersisted(), sampler.getPersistedProfileCount());
+    Assert.assertThat(sampler.getPersistedProfileCount(),
+            Matchers.greaterThan((long) sampler.getPersistQueueCapacity()));
+  }
+
+  @Test(timeout = 20000)
+  public void testRecentProfile() throws InterruptedException, IOException {
+    Assert.assertEquals(0, new Sampler(1, 3600000, (t) -> new FastStackCollector(false, true, new Thread[]{t}),
+            new BlockingPersister(new CountDownLatch(0))).getProfileSliceMillis());
+    Sampler sampler;
+    System.setProperty("spf4j.stackSampler.profileSliceMillis", "50");
+    try {
+      sampler = new Sampler(1, 300, (t) -> new FastStackCollector(false, true, new Thread[]{t}),
+              new BlockingPersister(new CountDownLatch(0)));
+    } finally {
+      System.clearProperty("spf4j.stackSampler.profileSliceMillis");
+    }
+    sampler.start();
+    Thread.sleep(500);
+    Map<String, SampleNode> recent = sampler.getRecentProfile(Duration.ofMinutes(1));
+    Assert.assertFalse(recent.isEmpty());
+    Assert.assertThat(sampler.getProfileRingSlices(), Matchers.greaterThan(0));
+    Assert.assertTrue(sampler.getRecentProfile(Duration.ofMinutes(1)).size() >= recent.size());
+    Assert.assertTrue(sampler.getProfile(Instant.EPOCH, Instant.EPOCH.plusSeconds(1)).isEmpty());
+    Assert.assertFalse(sampler.getStackCollections().isEmpty());
+    // the periodic dumps are the aggregates of the slices.
+    while (sampler.getPersistedProfileCount() == 0) {
+      Thread.sleep(10);
+    }
+    sampler.stop();
+  }
+
+  private static final class CountingSampler implements ISampler {
+
+    private final ISampler sampler;
+
+    private final AtomicInteger nrSamples;
+
+    CountingSampler(final ISampler sampler, final AtomicInteger nrSamples) {
+      this.sampler = sampler;
+      this.nrSamples = nrSamples;
+    }
+
+    @Override
+    public void sample() {
+      sampler.sample();
+      nrSamples.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollectionsAndReset() {
+      return sampler.getCollectionsAndReset();
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollections() {
+      return sampler.getCollections();
+    }
+  }
+
+  private static final class BlockingPersister implements ProfilePersister {
+
+    private final CountDownLatch block;
+
+    private final AtomicInteger nrPersisted = new AtomicInteger();
+
+    BlockingPersister(final CountDownLatch block) {
+      this.block = block;
+    }
+
+    int getNrPersisted() {
+      return nrPersisted.get();
+    }
+
+    @Override
+    public boolean isCompressing() {
+      return false;
+    }
+
+    @Override
+    public ProfilePersister withBaseFileName(final Path targetPath, final String baseFileName) {
+      return this;
+    }
+
+    @Override
+    public ProfilePersister witCompression(final boolean compress) {
+      return this;
+    }
+
+    @Override
+    @Nullable
+    public Path persist(final Map<String, ? extends StackSamples> profile, @Nullable final String tag,
+            final Instant profileFrom, final Instant profileTo) throws IOException {
+      try {
+        block.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException(ex);
+      }
+      nrPersisted.incrementAndGet();
+      return null;
+    }
+
+    @Override
+    public Path getTargetPath() {
+      return Paths.get(org.spf4j.base.Runtime.TMP_FOLDER);
+    }
+
+    @Override
+    public String getBaseFileName() {
+      return "test";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
 
 }
@@ -31,11 +31,15 @@
  */
 package org.spf4j.stackmonitor;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import org.junit.Assert;
 import org.junit.Test;
 import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.ExecutionContexts;
 
 /**
  *
@@ -58,4 +62,47 @@ public class TracingExecutionContexSamplerTest {
     Assert.assertTrue(sampleMap.isEmpty());
   }
 
+  @Test(timeout = 30000)
+  public void testCpuTimeAttribution() throws InterruptedException {
+    AtomicReference<ExecutionContext> ctxRef = new AtomicReference<>();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread worker = new Thread(() -> {
+      try (ExecutionContext ctx = ExecutionContexts.start("cpuBurner")) {
+        ctxRef.set(ctx);
+        started.countDown();
+        long result = 0;
+        while (done.getCount() > 0) {
+          result += Long.toString(result).hashCode();
+        }
+        ctx.put(CPU_BURNER_RESULT, result);
+      }
+    }, "cpuBurner");
+    worker.start();
+    started.await();
+    ExecutionContext ctx = ctxRef.get();
+    TracingExecutionContexSampler sampler = new TracingExecutionContexSampler(10,
+            () -> Collections.singletonMap(worker, ctx).entrySet(), (a) -> a.getName(), true);
+    try {
+      Long cpuNanos;
+      do {
+        sampler.sample();
+        Thread.sleep(10);
+        cpuNanos = ctx.get(TracingExecutionContexSampler.CPU_TIME_NANOS);
+      } while (cpuNanos == null);
+      Assert.assertTrue(cpuNanos > 0);
+      Assert.assertTrue(sampler.getCollections().containsKey("cpuBurner"));
+    } finally {
+      done.countDown();
+      worker.join();
+    }
+  }
+
+  private static final ExecutionContext.SimpleTag<Long> CPU_BURNER_RESULT = new ExecutionContext.SimpleTag<Long>() {
+    @Override
+    public String toString() {
+      return "cpuBurnerResult";
+    }
+  };
+
 }
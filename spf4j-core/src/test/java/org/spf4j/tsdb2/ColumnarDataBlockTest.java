@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.primitives.Longs;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+public class ColumnarDataBlockTest {
+
+  @Test
+  public void testEncodeDecode() {
+    ColumnarDataBlock block = new ColumnarDataBlock();
+    long time = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      block.add(1, time + i * 1000, i, -i * 3, Double.doubleToRawLongBits(i * 0.1), Long.MAX_VALUE);
+      if (i % 3 == 0) {
+        block.add(5, time + i * 1000 + (i % 7), Long.MIN_VALUE, 0);
+      }
+    }
+    block.encode();
+    DataBlock decoded = ColumnarDataBlock.decode(block.getBaseTimestamp(),
+            ByteBuffer.wrap(block.getEncoded(), 0, block.getEncodedSize()));
+    List<DataRow> rows = decoded.getValues();
+    Assert.assertEquals(134, rows.size());
+    int i = 0;
+    int j = 0;
+    for (DataRow row : rows) {
+      long ts = decoded.getBaseTimestamp() + row.getRelTimeStamp();
+      if (row.getTableDefId() == 1) {
+        Assert.assertEquals(time + i * 1000, ts);
+        Assert.assertEquals(Arrays.asList((long) i, (long) -i * 3,
+                Double.doubleToRawLongBits(i * 0.1), Long.MAX_VALUE), row.getData());
+        i++;
+      } else {
+        Assert.assertEquals(5L, row.getTableDefId());
+        Assert.assertEquals(time + j * 1000 + (j % 7), ts);
+        Assert.assertEquals(Longs.asList(Long.MIN_VALUE, 0), row.getData());
+        j += 3;
+      }
+    }
+    Assert.assertTrue("encoded size " + block.getEncodedSize(), block.getEncodedSize() < 134 * 16);
+    block.clear();
+    Assert.assertTrue(block.isEmpty());
+  }
+
+  @Test
+  public void testVariableRowLength() {
+    ColumnarDataBlock block = new ColumnarDataBlock();
+    long time = System.currentTimeMillis();
+    block.add(1, time, 1, 2, 3);
+    block.add(1, time + 1000, 4, 5, 6, 7, 8);
+    block.add(1, time + 2000, 9);
+    block.encode();
+    List<DataRow> rows = ColumnarDataBlock.decode(block.getBaseTimestamp(),
+            ByteBuffer.wrap(block.getEncoded(), 0, block.getEncodedSize())).getValues();
+    Assert.assertEquals(Longs.asList(1, 2, 3, 0, 0), rows.get(0).getData());
+    Assert.assertEquals(Longs.asList(4, 5, 6, 7, 8), rows.get(1).getData());
+    Assert.assertEquals(Longs.asList(9, 0, 0, 0, 0), rows.get(2).getData());
+    block.clear();
+    block.add(1, time, 1, 2);
+    block.encode();
+    rows = ColumnarDataBlock.decode(block.getBaseTimestamp(),
+            ByteBuffer.wrap(block.getEncoded(), 0, block.getEncodedSize())).getValues();
+    Assert.assertEquals(Longs.asList(1, 2), rows.get(0).getData());
+  }
+
+  @Test
+  public void testAddAll() {
+    ColumnarDataBlock block = new ColumnarDataBlock();
+    long time = System.currentTimeMillis();
+    block.add(1, time, 1, 2);
+    ColumnarDataBlock other = new ColumnarDataBlock();
+    other.add(1, time - 1000, 3, 4, 5);
+    other.add(2, time + 1000, 6);
+    block.addAll(other);
+    Assert.assertEquals(3, block.getNrRows());
+    Assert.assertEquals(time - 1000, block.getBaseTimestamp());
+    block.encode();
+    List<DataRow> rows = ColumnarDataBlock.decode(block.getBaseTimestamp(),
+            ByteBuffer.wrap(block.getEncoded(), 0, block.getEncodedSize())).getValues();
+    Assert.assertEquals(Longs.asList(1, 2, 0), rows.get(0).getData());
+    Assert.assertEquals(Longs.asList(3, 4, 5), rows.get(1).getData());
+    Assert.assertEquals(Longs.asList(6), rows.get(2).getData());
+  }
+
+  @Test
+  public void testRowAndColumnarFiles() throws IOException {
+    TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+    File rowFile = File.createTempFile("test", ".tsdb2");
+    File colFile = File.createTempFile("test", ".tsdb2");
+    long time = System.currentTimeMillis();
+    long[] tableIds = new long[2];
+    for (TSDBWriter.BlockEncoding enc : TSDBWriter.BlockEncoding.values()) {
+      File file = enc == TSDBWriter.BlockEncoding.ROW ? rowFile : colFile;
+      try (TSDBWriter writer = new TSDBWriter(file, 1000, "test", false, enc)) {
+        long tableId = writer.writeTableDef(tableDef);
+        tableIds[enc.ordinal()] = tableId;
+        for (int i = 0; i < 1000; i++) {
+          writer.writeDataRow(tableId, time + i * 1000, i * 10, 1000 + i % 5);
+        }
+      }
+      try (TSDBWriter writer = new TSDBWriter(file, 1000, null, true)) {
+        Assert.assertEquals(enc, writer.getBlockEncoding());
+      }
+    }
+    TimeSeries rowTs = TSDBQuery.getTimeSeries(rowFile, new long[]{tableIds[0]}, 0, Long.MAX_VALUE);
+    TimeSeries colTs = TSDBQuery.getTimeSeries(colFile, new long[]{tableIds[1]}, 0, Long.MAX_VALUE);
+    Assert.assertArrayEquals(rowTs.getTimeStamps(), colTs.getTimeStamps());
+    Assert.assertArrayEquals(rowTs.getValues(), colTs.getValues());
+    long colDataSize = dataSize(colFile);
+    long rowDataSize = dataSize(rowFile);
+    Assert.assertTrue(colDataSize + " vs " + rowDataSize, colDataSize * 3 < rowDataSize);
+  }
+
+  private static long dataSize(final File file) throws IOException {
+    try (TSDBReader reader = new TSDBReader(file, 1024)) {
+      return reader.getSize() - reader.getPosition();
+    }
+  }
+
+}
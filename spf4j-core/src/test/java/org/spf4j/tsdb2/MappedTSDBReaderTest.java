@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.TimeSource;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.Header;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+public class MappedTSDBReaderTest {
+
+  private final TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+
+  @Test
+  public void testRead() throws IOException {
+    for (TSDBWriter.BlockEncoding enc : TSDBWriter.BlockEncoding.values()) {
+      File testFile = File.createTempFile("test", ".tsdb2");
+      long tableId;
+      long time = System.currentTimeMillis();
+      try (TSDBWriter writer = new TSDBWriter(testFile, 7, "test", false, enc)) {
+        tableId = writer.writeTableDef(tableDef);
+        for (int i = 0; i < 100; i++) {
+          writer.writeDataRow(tableId, time + i, i, -i);
+        }
+      }
+      try (MappedTSDBReader reader = new MappedTSDBReader(testFile)) {
+        int i = 0;
+        while (reader.next()) {
+          Assert.assertEquals(tableId, reader.getTableId());
+          Assert.assertEquals(time + i, reader.getTimestamp());
+          Assert.assertEquals(2, reader.getNrColumns());
+          Assert.assertEquals(i, reader.getLong(0));
+          Assert.assertEquals(-i, reader.getLong(1));
+          i++;
+        }
+        Assert.assertEquals(100, i);
+        Assert.assertEquals(tableDef.getName(), reader.getTableDef(tableId).getName());
+      }
+    }
+  }
+
+  /**
+   * A file whose DataRow writer schema has an extra field must be read via schema resolution.
+   */
+  @Test
+  public void testReadEvolvedSchema() throws IOException {
+    Schema rowSchema = SchemaBuilder.record("DataRow").namespace("org.spf4j.tsdb2.avro").fields()
+            .name("relTimeStamp").type().intType().noDefault()
+            .name("tableDefId").type().longType().noDefault()
+            .name("flags").type().intType().intDefault(0)
+            .name("data").type().array().items().longType().noDefault()
+            .endRecord();
+    Schema blockSchema = SchemaBuilder.record("DataBlock").namespace("org.spf4j.tsdb2.avro").fields()
+            .name("baseTimestamp").type().longType().noDefault()
+            .name("values").type().array().items(rowSchema).noDefault()
+            .endRecord();
+    Schema contentSchema = Schema.createUnion(Arrays.asList(TableDef.getClassSchema(), blockSchema));
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    bos.write(TSDBWriter.MAGIC);
+    TSDBWriter.toOutputStream(0, bos);
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bos, null);
+    new SpecificDatumWriter<Header>(Header.getClassSchema()).write(Header.newBuilder()
+            .setContentSchema(contentSchema.toString()).setDescription("evolved").build(), encoder);
+    long tableId = bos.size();
+    SpecificDatumWriter<Object> recordWriter = new SpecificDatumWriter<>(contentSchema);
+    recordWriter.write(TableDef.newBuilder(tableDef).setId(tableId).build(), encoder);
+    long time = System.currentTimeMillis();
+    List<GenericRecord> rows = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      GenericRecord row = new GenericData.Record(rowSchema);
+      row.put("relTimeStamp", i);
+      row.put("tableDefId", tableId);
+      row.put("flags", 1000 + i);
+      row.put("data", Arrays.asList((long) i, (long) -i));
+      rows.add(row);
+    }
+    GenericRecord block = new GenericData.Record(blockSchema);
+    block.put("baseTimestamp", time);
+    block.put("values", rows);
+    recordWriter.write(block, encoder);
+    byte[] content = bos.toByteArray();
+    TSDBWriter.toByteArray(content.length, content, TSDBWriter.MAGIC.length);
+    File testFile = File.createTempFile("test", ".tsdb2");
+    Files.write(testFile.toPath(), content);
+    try (MappedTSDBReader reader = new MappedTSDBReader(testFile)) {
+      int i = 0;
+      while (reader.next()) {
+        Assert.assertEquals(tableId, reader.getTableId());
+        Assert.assertEquals(time + i, reader.getTimestamp());
+        Assert.assertEquals(2, reader.getNrColumns());
+        Assert.assertEquals(i, reader.getLong(0));
+        Assert.assertEquals(-i, reader.getLong(1));
+        i++;
+      }
+      Assert.assertEquals(10, i);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testTailing() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    try (TSDBWriter writer = new TSDBWriter(testFile, 4, "test", false);
+            MappedTSDBReader reader = new MappedTSDBReader(testFile)) {
+      final BlockingQueue<Long> queue = new ArrayBlockingQueue<>(100);
+      Future<Void> bgWatch = reader.bgWatch((MappedTSDBReader row, long deadline) -> {
+        queue.put(row.getLong(0));
+      }, TSDBReader.EventSensitivity.HIGH, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+      long tableId = writer.writeTableDef(tableDef);
+      final long time = System.currentTimeMillis();
+      writer.writeDataRow(tableId, time, 0, 1);
+      writer.writeDataRow(tableId, time + 10, 1, 1);
+      writer.flush();
+      Assert.assertEquals(0L, queue.take().longValue());
+      Assert.assertEquals(1L, queue.take().longValue());
+      writer.writeDataRow(tableId, time + 20, 2, 1);
+      writer.flush();
+      Assert.assertEquals(2L, queue.take().longValue());
+      reader.stopWatching();
+      bgWatch.get(5000, TimeUnit.MILLISECONDS);
+    }
+  }
+
+}
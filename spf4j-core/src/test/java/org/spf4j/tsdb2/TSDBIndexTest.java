@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.collect.ListMultimap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+public class TSDBIndexTest {
+
+  private static TableDef tableDef(final String name) {
+    return TableDef.newBuilder()
+          .setName(name)
+          .setDescription(name)
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+  }
+
+  @Test
+  public void testIndexedQuery() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long tableA;
+    long tableB;
+    long time = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 4, "test", false)) {
+      tableA = writer.writeTableDef(tableDef("a"));
+      tableB = writer.writeTableDef(tableDef("b"));
+      for (int i = 0; i < 100; i++) {
+        writer.writeDataRow(tableA, time + i * 10, i, 1);
+        if (i % 10 == 0) {
+          writer.writeDataRow(tableB, time + i * 10, i, 2);
+        }
+      }
+    }
+    TSDBIndex index;
+    try (TSDBReader reader = new TSDBReader(testFile, 1024)) {
+      index = TSDBIndex.load(testFile, reader.getSize());
+      Assert.assertNotNull(index);
+      Assert.assertEquals(reader.getSize(), index.getIndexedEnd());
+    }
+    Assert.assertEquals(2, index.getTableDefPositions().length);
+    List<TSDBIndex.BlockEntry> blocks = index.getBlocks();
+    Assert.assertEquals(28, blocks.size());
+    TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[]{tableA}, time + 500, time + 590);
+    Assert.assertEquals(10, ts.getTimeStamps().length);
+    Assert.assertEquals(50L, ts.getValues()[0][0]);
+    ts = TSDBQuery.getTimeSeries(testFile, new long[]{tableB}, 0, Long.MAX_VALUE);
+    Assert.assertEquals(10, ts.getTimeStamps().length);
+    ListMultimap<String, TSDBQuery.TableDefEx> ranges = TSDBQuery.getAllTablesWithDataRanges(testFile);
+    TSDBQuery.TableDefEx rangeB = ranges.get("b").get(0);
+    Assert.assertEquals(time, rangeB.getStartTime());
+    Assert.assertEquals(time + 900, rangeB.getEndTime());
+  }
+
+  @Test
+  public void testIndexRecovery() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long tableA;
+    long time = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 4, "test", false)) {
+      tableA = writer.writeTableDef(tableDef("a"));
+      for (int i = 0; i < 10; i++) {
+        writer.writeDataRow(tableA, time + i, i, 1);
+      }
+    }
+    Assert.assertTrue(TSDBIndex.getIndexFile(testFile).delete());
+    // queries work without a index.
+    Assert.assertEquals(10, TSDBQuery.getTimeSeries(testFile, new long[]{tableA}, 0, Long.MAX_VALUE)
+            .getTimeStamps().length);
+    // index is rebuilt when appending.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 4, null, true)) {
+      for (int i = 10; i < 20; i++) {
+        writer.writeDataRow(tableA, time + i, i, 1);
+      }
+    }
+    try (TSDBReader reader = new TSDBReader(testFile, 1024)) {
+      TSDBIndex index = TSDBIndex.load(testFile, reader.getSize());
+      Assert.assertNotNull(index);
+      Assert.assertEquals(reader.getSize(), index.getIndexedEnd());
+    }
+    TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[]{tableA}, time + 5, time + 14);
+    Assert.assertEquals(10, ts.getTimeStamps().length);
+    Assert.assertEquals(5L, ts.getValues()[0][0]);
+  }
+
+}
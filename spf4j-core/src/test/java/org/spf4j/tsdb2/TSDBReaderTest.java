@@ -33,12 +33,18 @@ package org.spf4j.tsdb2;
 
 import com.google.common.collect.ListMultimap;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -105,6 +111,62 @@ public class TSDBReaderTest {
 
   }
 
+  /**
+   * Every thread writes its own table, and all threads write a shared table in timestamp order;
+   * rows of every table must be read back in timestamp order.
+   */
+  @Test
+  public void testConcurrentWrites() throws IOException, InterruptedException, ExecutionException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    int nrThreads = 8;
+    int nrRows = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+    TLongLongMap lastTs = new TLongLongHashMap();
+    TLongLongMap count = new TLongLongHashMap();
+    final long time = System.currentTimeMillis();
+    final long[] sharedSeq = new long[1];
+    try (TSDBWriter writer = new TSDBWriter(testFile, 16, "test", false, TSDBWriter.BlockEncoding.COLUMNAR)) {
+      final long sharedTableId = writer.writeTableDef(tableDef);
+      List<Future<?>> futures = new ArrayList<>(nrThreads);
+      for (int t = 0; t < nrThreads; t++) {
+        final int thread = t;
+        final long tableId = writer.writeTableDef(TableDef.newBuilder(tableDef).setName("test" + t).build());
+        futures.add(executor.submit(() -> {
+          long[] row = new long[3];
+          for (int i = 0; i < nrRows; i++) {
+            row[0] = thread;
+            row[1] = i;
+            row[2] = 2;
+            writer.writeDataRow(tableId, time + i, row, 0, 3);
+            synchronized (sharedSeq) {
+              writer.writeDataRow(sharedTableId, time + sharedSeq[0]++, row, 0, 3);
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    try (MappedTSDBReader reader = new MappedTSDBReader(testFile)) {
+      while (reader.next()) {
+        long tableId = reader.getTableId();
+        long ts = reader.getTimestamp();
+        Assert.assertTrue("out of order row for " + tableId + " at " + ts,
+                ts >= lastTs.get(tableId));
+        lastTs.put(tableId, ts);
+        count.adjustOrPutValue(tableId, 1, 1);
+      }
+    }
+    Assert.assertEquals(nrThreads + 1, count.size());
+    for (long c : count.values()) {
+      Assert.assertTrue(c == nrRows || c == (long) nrRows * nrThreads);
+    }
+  }
+
   @Test(timeout = 5000)
   public void testTailing() throws IOException, InterruptedException, ExecutionException, TimeoutException {
     File testFile = File.createTempFile("test", ".tsdb2");
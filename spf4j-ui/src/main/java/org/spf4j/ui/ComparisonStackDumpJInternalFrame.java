@@ -50,6 +50,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
@@ -60,6 +61,7 @@ import org.spf4j.base.SuppressForbiden;
 import org.spf4j.ssdump2.Converter;
 import org.spf4j.stackmonitor.ProfileMetaData;
 import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.SampleNodes;
 
 /**
  * will need to add some standard filtering:
@@ -153,7 +155,7 @@ class ComparisonStackDumpJInternalFrame extends javax.swing.JInternalFrame {
     SampleNode sampleNodeB = samplesSupplierB.getSamples(
             (String) contextSelectorB.getSelectedItem(), (String) tagsSelectorB.getSelectedItem(),
             bSpinners.start.getDate().toInstant(), bSpinners.end.getDate().toInstant());
-    this.samples = SampleNode.diffAnnotate(Methods.ROOT, sampleNodeA, sampleNodeB);
+    this.samples = SampleNodes.diffAnnotate(ForkJoinPool.commonPool(), Methods.ROOT, sampleNodeA, sampleNodeB);
     if (samples == null) {
       this.samples = SampleNode.createSampleNode(
               new StackTraceElement[]{new StackTraceElement("NO SAMPLES", "", "", -1)});
@@ -201,7 +203,7 @@ class ComparisonStackDumpJInternalFrame extends javax.swing.JInternalFrame {
       sync(metaDataB.getTags(), tagsSelectorB);
       sync(metaDataB.getContexts(), contextSelectorB);
 
-      this.samples =SampleNode.diffAnnotate(Methods.ROOT,
+      this.samples = SampleNodes.diffAnnotate(ForkJoinPool.commonPool(), Methods.ROOT,
               samplesSupplierA.getSamples((String) contextSelectorA.getSelectedItem(),
                 (String) tagsSelectorA.getSelectedItem(), startA, endA),
               samplesSupplierB.getSamples((String) contextSelectorB.getSelectedItem(),
@@ -58,6 +58,7 @@ import org.spf4j.stackmonitor.SampleGraph.AggSample;
 import org.spf4j.stackmonitor.SampleGraph.Sample;
 import org.spf4j.stackmonitor.SampleGraph.SampleKey;
 import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.SampleNodes;
 import static org.spf4j.ui.StackPanelBase.LINK_COLOR;
 
 /**
@@ -329,12 +330,11 @@ public final class HotFlameStackPanel extends StackPanelBase<SampleKey> {
     if (tips.size() >= 1) {
       SampleKey sample = tips.get(0);
       Set<Sample> samples = completeGraph.getSamples(sample);
-      Iterator<SampleGraph.Sample> iterator = samples.iterator();
-      SampleNode agg = iterator.next().getNode();
-      while (iterator.hasNext()) {
-        agg = SampleNode.aggregate(agg, iterator.next().getNode());
+      List<SampleNode> nodes = new ArrayList<>(samples.size());
+      for (Sample s : samples) {
+        nodes.add(s.getNode());
       }
-      updateSamples(sample.getMethod(), agg);
+      updateSamples(sample.getMethod(), SampleNodes.aggregate(nodes));
       repaint();
     }
   }